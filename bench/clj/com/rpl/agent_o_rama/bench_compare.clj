@@ -0,0 +1,62 @@
+(ns com.rpl.agent-o-rama.bench-compare
+  "Compares two JMH JSON result files, e.g. from before and after a change, and flags benchmarks
+  whose score moved by more than a threshold."
+  (:require
+   [jsonista.core :as j]))
+
+(def DEFAULT-THRESHOLD-PERCENT 10.0)
+
+(defn- benchmark-key
+  [{:strs [benchmark params]}]
+  (if (seq params)
+    (str benchmark " " (pr-str (into (sorted-map) params)))
+    benchmark))
+
+(defn- read-results
+  [path]
+  (into {}
+        (for [res (j/read-value (slurp path))]
+          [(benchmark-key res) res])))
+
+;; higher is better for throughput, lower is better for the time modes
+(defn- regression?
+  [mode change-percent threshold]
+  (if (= mode "thrpt")
+    (< change-percent (- threshold))
+    (> change-percent threshold)))
+
+(defn compare-results
+  [before-path after-path threshold]
+  (let [before (read-results before-path)
+        after  (read-results after-path)]
+    (vec
+     (for [[k {:strs [mode primaryMetric]}] (sort-by key after)
+           :let [before-metric (get-in before [k "primaryMetric"])]
+           :when before-metric
+           :let [before-score   (get before-metric "score")
+                 after-score    (get primaryMetric "score")
+                 change-percent (if (zero? before-score)
+                                  0.0
+                                  (* 100.0 (/ (- after-score before-score) before-score)))]]
+       {:benchmark   k
+        :unit        (get primaryMetric "scoreUnit")
+        :before      before-score
+        :after       after-score
+        :change      change-percent
+        :regression? (regression? mode change-percent threshold)}))))
+
+(defn -main
+  [before-path after-path & [threshold]]
+  (let [threshold (if threshold (Double/parseDouble threshold) DEFAULT-THRESHOLD-PERCENT)
+        res       (compare-results before-path after-path threshold)]
+    (doseq [{:keys [benchmark unit before after change regression?]} res]
+      (println (format "%s %-90s %12.3f -> %12.3f %s (%+.1f%%)"
+                       (if regression? "!!" "  ")
+                       benchmark
+                       (double before)
+                       (double after)
+                       unit
+                       (double change))))
+    (when (some :regression? res)
+      (println (format "Regressions over %.1f%% found" threshold))
+      (System/exit 1))))
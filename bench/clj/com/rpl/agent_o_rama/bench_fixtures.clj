@@ -0,0 +1,143 @@
+(ns com.rpl.agent-o-rama.bench-fixtures
+  "Inputs for the JMH benchmarks under bench/java, built to resemble what the hot paths see in
+  production."
+  (:require
+   ;; extends the rule filter protocol to the filter records
+   [com.rpl.agent-o-rama.impl.analytics]
+   [com.rpl.agent-o-rama.impl.client :as client]
+   [com.rpl.agent-o-rama.impl.queries :as queries]
+   [com.rpl.agent-o-rama.impl.serialize]
+   [com.rpl.agent-o-rama.impl.stats :as stats]
+   [com.rpl.agent-o-rama.impl.types :as aor-types]
+   [com.rpl.rama])
+  (:import
+   [dev.langchain4j.agent.tool
+    ToolExecutionRequest]
+   [dev.langchain4j.data.message
+    AiMessage
+    SystemMessage
+    ToolExecutionResultMessage
+    UserMessage]
+   [java.util
+    UUID]))
+
+(defn- text
+  [n]
+  (apply str (repeat n "lorem ipsum ")))
+
+(defn invoke-info
+  "Map shaped like the info stored for a node invoke."
+  []
+  {:node               "chat"
+   :invoke-args        [{"question" (text 20) "user-id" "u-123"}]
+   :start-time-millis  1700000000000
+   :finish-time-millis 1700000002500
+   :emits              [{:invoke-id (UUID/randomUUID) :target-task-id 3 :node "tools"}]
+   :result             {:val (text 40) :failure? false}
+   :metadata           {"tenant" "acme" "experiment" "baseline" "attempt" 2}})
+
+(defn chat-messages
+  []
+  [(SystemMessage. (text 30))
+   (UserMessage. ^String (text 20))
+   (-> (AiMessage/builder)
+       (.text "Looking that up")
+       (.toolExecutionRequests
+        [(-> (ToolExecutionRequest/builder)
+             (.id "call-1")
+             (.name "search")
+             (.arguments "{\"query\":\"agent-o-rama benchmarks\"}")
+             .build)])
+       .build)
+   (ToolExecutionResultMessage. "call-1" "search" (text 50))
+   (AiMessage. ^String (text 40))])
+
+(defn- nested-op
+  [i]
+  (let [start (+ 1700000000000 (* i 10))]
+    (aor-types/->valid-NestedOpInfoImpl
+     start
+     (+ start (mod i 7))
+     (nth [:model-call :store-read :store-write :tool-call] (mod i 4))
+     (if (zero? (mod i 4))
+       {"objectName"       "openai"
+        "inputTokenCount"  120
+        "outputTokenCount" 40
+        "totalTokenCount"  160}
+       {"name" "$$store" "op" "get"}))))
+
+(defn nested-ops
+  [n]
+  (mapv nested-op (range n)))
+
+(defn basic-stats
+  [n]
+  (let [{:keys [nested-op-stats token-counts]} (stats/nested-op-stats (nested-ops n))]
+    (aor-types/->valid-BasicAgentInvokeStatsImpl
+     nested-op-stats
+     (:input token-counts)
+     (:output token-counts)
+     (:total token-counts)
+     {"chat"  (aor-types/->valid-OpStatsImpl 3 900)
+      "tools" (aor-types/->valid-OpStatsImpl 2 150)})))
+
+(defn pages-map
+  "Per-task pages of agent invokes, as gathered by the invokes page query before merging."
+  [num-tasks page-size]
+  (into {}
+        (for [task-id (range num-tasks)]
+          [task-id
+           (into {}
+                 (for [i (range page-size)]
+                   [(UUID/randomUUID)
+                    {:start-time-millis  (+ 1700000000000 (* i num-tasks) task-id)
+                     :finish-time-millis (+ 1700000001000 (* i num-tasks) task-id)
+                     :invoke-args        ["hello"]
+                     :graph-version      1}]))])))
+
+(defn to-invokes-page-result
+  [pages-map page-size]
+  (queries/to-invokes-page-result pages-map page-size))
+
+(defn rule-filter
+  []
+  (aor-types/->valid-AndFilter
+   [(aor-types/->valid-LatencyFilter (aor-types/->valid-ComparatorSpec :> 1000))
+    (aor-types/->valid-TokenCountFilter :total (aor-types/->valid-ComparatorSpec :>= 100))
+    (aor-types/->valid-OrFilter
+     [(aor-types/->valid-InputMatchFilter "$[0].question" #"ipsum")
+      (aor-types/->valid-NotFilter (aor-types/->valid-ErrorFilter))])]))
+
+(defn rule-filter-info
+  [num-nested-ops]
+  (assoc (invoke-info)
+   :input      (:invoke-args (invoke-info))
+   :nested-ops (nested-ops num-nested-ops)
+   :exceptions []))
+
+(defn rule-filter-matches?
+  [filter info]
+  (aor-types/rule-filter-matches? filter info))
+
+(defn stream-chunks
+  [n]
+  (let [invoke-id (UUID/randomUUID)]
+    (mapv (fn [i] {:invoke-id invoke-id :index i :chunk (str "token-" i " ")})
+          (range n))))
+
+(defn assemble-stream
+  "Feeds chunks to a client stream one proxy update at a time, the way a streaming node's
+  output arrives, and returns the assembled chunks by invoke."
+  [chunks]
+  (let [callback (volatile! nil)
+        stream   (with-redefs [com.rpl.rama/foreign-proxy
+                               (fn [_ _ {:keys [callback-fn]}]
+                                 (vreset! callback callback-fn)
+                                 nil)]
+                   (client/agent-stream-all-impl nil
+                                                 (aor-types/->AgentInvokeImpl 0 (UUID/randomUUID))
+                                                 "chat"
+                                                 nil))]
+    (doseq [i (range 1 (inc (count chunks)))]
+      (@callback (subvec chunks 0 i) nil nil))
+    @stream))
@@ -0,0 +1,460 @@
+(ns com.rpl.agent-o-rama.loadgen
+  "Open-loop load generator and latency profiler for agents, run against an in-process cluster.
+
+  Invokes arrive at a target rate regardless of how fast earlier ones complete, and end-to-end
+  latency is measured from each invoke's scheduled arrival time, so a backed up cluster shows up
+  as latency rather than as a lower arrival rate. Each stage of a run reports throughput,
+  end-to-end and per-node latency percentiles, depot append rates and GC time.
+
+  The default workload is a three node agent calling stub chat and streaming chat models with
+  configurable latency and token count distributions, so runs need no network. Any agent module
+  can be given instead with :module, :agent-name and :args-fn."
+  (:use [com.rpl.rama]
+        [com.rpl.rama.path])
+  (:require
+   [clojure.string :as str]
+   [com.rpl.agent-o-rama :as aor]
+   [com.rpl.agent-o-rama.impl.pobjects :as po]
+   [com.rpl.agent-o-rama.impl.types :as aor-types]
+   [com.rpl.agent-o-rama.langchain4j :as lc4j]
+   [com.rpl.rama.test :as rtest]
+   [jsonista.core :as j])
+  (:import
+   [com.rpl.agentorama
+    AgentClient
+    AgentInvoke]
+   [dev.langchain4j.data.message
+    AiMessage]
+   [dev.langchain4j.model.chat
+    ChatModel
+    StreamingChatModel]
+   [dev.langchain4j.model.chat.response
+    ChatResponse
+    ChatResponse$Builder
+    StreamingChatResponseHandler]
+   [dev.langchain4j.model.output
+    FinishReason
+    TokenUsage]
+   [java.lang.management
+    GarbageCollectorMXBean
+    ManagementFactory]
+   [java.util.concurrent
+    ConcurrentHashMap
+    ConcurrentLinkedQueue
+    ThreadLocalRandom]
+   [java.util.concurrent.atomic
+    AtomicLong]
+   [java.util.concurrent.locks
+    LockSupport]
+   [java.util.function
+    BiConsumer
+    Function]))
+
+(def DEFAULT-OPTIONS
+  {:rates               [10 50 100]
+   :stage-millis        30000
+   :warmup-millis       10000
+   :drain-millis        60000
+   :tasks               4
+   :threads             2
+   ;; invokes per stage whose traces are fetched for per-node latencies
+   :trace-samples       200
+   :chat-latency-millis {:type :lognormal :median 300 :sigma 0.5}
+   :first-token-millis  {:type :lognormal :median 200 :sigma 0.5}
+   :inter-token-millis  {:type :exponential :mean 15}
+   :input-tokens        {:type :uniform :min 200 :max 1000}
+   :output-tokens       {:type :uniform :min 20 :max 200}})
+
+;; Distributions are either a number, for a constant, or a map with :type and its parameters
+(defn sample
+  ^double [dist]
+  (let [rng (ThreadLocalRandom/current)]
+    (if (number? dist)
+      (double dist)
+      (case (:type dist)
+        :constant    (double (:value dist))
+        :uniform     (+ (:min dist) (* (.nextDouble rng) (- (:max dist) (:min dist))))
+        :exponential (* (- (Math/log (- 1.0 (.nextDouble rng)))) (:mean dist))
+        :lognormal   (* (:median dist) (Math/exp (* (:sigma dist) (.nextGaussian rng))))
+        (throw (ex-info "Unknown distribution" {:dist dist}))))))
+
+(defn- sample-long
+  [dist]
+  (max 0 (Math/round (sample dist))))
+
+(defn- sleep-millis!
+  [millis]
+  (when (pos? millis)
+    (LockSupport/parkNanos (long (* millis 1000000.0)))))
+
+(defn- tokens-text
+  [n]
+  (str/join " " (repeat n "tok")))
+
+(defn- stub-response
+  ^ChatResponse [options text num-tokens]
+  (-> (ChatResponse$Builder.)
+      (.aiMessage (AiMessage. ^String text))
+      (.finishReason FinishReason/STOP)
+      (.modelName "loadgen-stub")
+      (.tokenUsage (TokenUsage. (int (sample-long (:input-tokens options))) (int num-tokens)))
+      .build))
+
+(defn stub-chat-model
+  [options]
+  (reify
+   ChatModel
+   (doChat [this request]
+     (let [num-tokens (sample-long (:output-tokens options))]
+       (sleep-millis! (sample (:chat-latency-millis options)))
+       (stub-response options (tokens-text num-tokens) num-tokens)))))
+
+(defn stub-streaming-chat-model
+  [options]
+  (reify
+   StreamingChatModel
+   (doChat [this request handler]
+     (let [^StreamingChatResponseHandler handler handler
+           num-tokens (sample-long (:output-tokens options))]
+       (sleep-millis! (sample (:first-token-millis options)))
+       (dotimes [i num-tokens]
+         (when (pos? i)
+           (sleep-millis! (sample (:inter-token-millis options))))
+         (.onPartialResponse handler "tok "))
+       (.onCompleteResponse handler
+                            (stub-response options (tokens-text num-tokens) num-tokens))))))
+
+(defn workload-module
+  "Module with a \"chat-agent\" agent shaped like a typical retrieval-free chat flow: a plain node,
+  a call to a chat model, then a streamed call to a streaming chat model whose text is the
+  result."
+  [options]
+  (aor/agentmodule
+   [topology]
+   (aor/declare-agent-object-builder topology "chat-model" (fn [_] (stub-chat-model options)))
+   (aor/declare-agent-object-builder topology
+                                     "streaming-chat-model"
+                                     (fn [_] (stub-streaming-chat-model options)))
+   (->
+     topology
+     (aor/new-agent "chat-agent")
+     (aor/node
+      "start"
+      "plan"
+      (fn [agent-node prompt]
+        (aor/emit! agent-node "plan" (str "Answer concisely: " prompt))))
+     (aor/node
+      "plan"
+      "respond"
+      (fn [agent-node prompt]
+        (let [model (aor/get-agent-object agent-node "chat-model")]
+          (aor/emit! agent-node "respond" (lc4j/basic-chat model prompt)))))
+     (aor/node
+      "respond"
+      nil
+      (fn [agent-node plan]
+        (let [model (aor/get-agent-object agent-node "streaming-chat-model")]
+          (aor/result! agent-node (lc4j/basic-chat model plan))))))))
+
+(defn- workload-args
+  [i]
+  [(str "question " i)])
+
+(defn percentiles
+  [values]
+  (let [sorted (long-array values)
+        n      (alength sorted)]
+    (java.util.Arrays/sort sorted)
+    (if (zero? n)
+      {:count 0}
+      (let [at (fn [p] (aget sorted (min (dec n) (int (Math/floor (* p n))))))]
+        {:count n
+         :mean  (/ (double (areduce sorted i sum 0 (+ sum (aget sorted i)))) n)
+         :p50   (at 0.5)
+         :p99   (at 0.99)
+         :p999  (at 0.999)
+         :max   (aget sorted (dec n))}))))
+
+(defn- depot-offsets
+  [depot]
+  (let [{:keys [num-partitions]} (foreign-object-info depot)]
+    (reduce +
+            (for [i (range num-partitions)]
+              (:end-offset (foreign-depot-partition-info depot i))))))
+
+(defn- depot-snapshot
+  [depots]
+  (into {}
+        (for [[name depot] depots]
+          [name (depot-offsets depot)])))
+
+(defn- gc-snapshot
+  []
+  (reduce (fn [m ^GarbageCollectorMXBean gc]
+            (-> m
+                (update :time-millis + (max 0 (.getCollectionTime gc)))
+                (update :count + (max 0 (.getCollectionCount gc)))))
+          {:time-millis 0 :count 0}
+          (ManagementFactory/getGarbageCollectorMXBeans)))
+
+(defn- root-invoke-id
+  [root-pstate ^AgentInvoke invoke]
+  (foreign-select-one [(keypath (.getAgentInvokeId invoke)) :root-invoke-id]
+                      root-pstate
+                      {:pkey (.getTaskId invoke)}))
+
+(defn- node-latencies
+  "Node name to latencies in millis of the node invokes in the given invokes' traces."
+  [^AgentClient client invokes]
+  (let [{:keys [root-pstate tracing-query]} (aor-types/underlying-objects client)]
+    (reduce
+     (fn [m ^AgentInvoke invoke]
+       (let [task-id (.getTaskId invoke)
+             root    (root-invoke-id root-pstate invoke)
+             {:keys [invokes-map]}
+             (foreign-invoke-query tracing-query task-id [[task-id root]] 10000)]
+         (reduce
+          (fn [m {:keys [node start-time-millis finish-time-millis]}]
+            (if (and node start-time-millis finish-time-millis)
+              (update m node conj (- finish-time-millis start-time-millis))
+              m))
+          m
+          (vals invokes-map))))
+     {}
+     invokes)))
+
+(defn- run-arrivals!
+  "Issues invokes with Poisson arrivals at rate per second for duration-millis, then waits up to
+  drain-millis for them to finish. Returns latencies in micros of successful and failed invokes
+  and a sample of successful invokes. Invokes still running when the drain ends are censored:
+  their latency so far is a lower bound and is included in the successful latencies, so a backed
+  up cluster still shows in the tail.
+
+  arrivals-end-fn is called as soon as the last invoke is issued, before the drain, and its
+  result is returned as :arrivals-end. Only successful invokes that finished by then are counted
+  in :in-window, so a cluster that can't keep up isn't credited with work finished in the
+  drain."
+  [^AgentClient client args-fn rate duration-millis drain-millis trace-samples arrivals-end-fn]
+  (let [latencies        (ConcurrentLinkedQueue.)
+        ;; nanos at which each successful invoke finished
+        finished         (ConcurrentLinkedQueue.)
+        failed-latencies (ConcurrentLinkedQueue.)
+        sampled          (ConcurrentLinkedQueue.)
+        num-sampled      (AtomicLong.)
+        ;; arrival index -> scheduled nanos, for invokes that haven't finished
+        pending          (ConcurrentHashMap.)
+        issued           (AtomicLong.)
+        start-nanos      (System/nanoTime)
+        end-nanos        (+ start-nanos (* duration-millis 1000000))
+        mean-gap         (/ 1.0e9 rate)]
+    (loop [scheduled (double start-nanos)
+           i         0]
+      (when (< scheduled end-nanos)
+        (let [wait (- (long scheduled) (System/nanoTime))]
+          (when (pos? wait) (LockSupport/parkNanos wait)))
+        (let [scheduled-nanos (long scheduled)]
+          (.incrementAndGet issued)
+          (.put pending i scheduled-nanos)
+          (-> (.initiateAsync client (into-array Object (args-fn i)))
+              (.thenCompose
+               (reify
+                Function
+                (apply [_ invoke]
+                  (-> (.resultAsync client ^AgentInvoke invoke)
+                      (.thenApply (reify
+                                   Function
+                                   (apply [_ _] invoke)))))))
+              (.whenComplete
+               (reify
+                BiConsumer
+                (accept [_ invoke t]
+                  ;; not recorded when the drain already counted it as censored
+                  (when (.remove pending i)
+                    (let [latency (quot (- (System/nanoTime) scheduled-nanos) 1000)]
+                      (if t
+                        (.add failed-latencies latency)
+                        (do
+                          (.add latencies latency)
+                          (.add finished (System/nanoTime))
+                          (when (<= (.incrementAndGet num-sampled) trace-samples)
+                            (.add sampled invoke)))))))))))
+        (recur (+ scheduled (* mean-gap (- (Math/log (- 1.0 (.nextDouble (ThreadLocalRandom/current)))))))
+               (inc i))))
+    (let [window-end    (System/nanoTime)
+          arrivals-end  (arrivals-end-fn)
+          arrival-nanos (- window-end start-nanos)
+          drain-end     (+ (System/currentTimeMillis) drain-millis)]
+      (while (and (not (.isEmpty pending))
+                  (< (System/currentTimeMillis) drain-end))
+        (Thread/sleep 10))
+      (let [now      (System/nanoTime)
+            censored (reduce (fn [n i]
+                               (if-let [scheduled-nanos (.remove pending i)]
+                                 (do
+                                   (.add latencies (quot (- now scheduled-nanos) 1000))
+                                   (inc n))
+                                 n))
+                             0
+                             (vec (.keySet pending)))]
+        {:issued           (.get issued)
+         :censored         censored
+         :in-window        (count (filter #(<= % window-end) finished))
+         :arrivals-end     arrivals-end
+         :arrival-nanos    arrival-nanos
+         :elapsed-nanos    (- now start-nanos)
+         :latencies        (vec latencies)
+         :failed-latencies (vec failed-latencies)
+         :sampled          (vec sampled)}))))
+
+(defn- millis-stats
+  [micros-stats]
+  (transform [(submap [:mean :p50 :p99 :p999 :max]) MAP-VALS]
+             #(/ (double %) 1000.0)
+             micros-stats))
+
+(defn run-stage!
+  [client depots {:keys [args-fn stage-millis drain-millis trace-samples]} rate]
+  (let [depots-before (depot-snapshot depots)
+        gc-before     (gc-snapshot)
+        {:keys [issued censored in-window arrivals-end arrival-nanos elapsed-nanos latencies
+                failed-latencies sampled]}
+        (run-arrivals! client
+                       args-fn
+                       rate
+                       stage-millis
+                       drain-millis
+                       trace-samples
+                       #(depot-snapshot depots))
+        ;; rates only count work done within the arrival window, since work finished in the drain
+        ;; would otherwise hide saturation
+        arrival-secs  (/ arrival-nanos 1.0e9)
+        elapsed-secs  (/ elapsed-nanos 1.0e9)
+        depots-after  arrivals-end
+        gc-after      (gc-snapshot)
+        gc-millis     (- (:time-millis gc-after) (:time-millis gc-before))
+        succeeded     (- (count latencies) censored)]
+    {:target-qps        rate
+     :issued            issued
+     :succeeded         succeeded
+     ;; succeeded within the arrival window, which is what :throughput-qps counts
+     :succeeded-in-window in-window
+     :failed            (count failed-latencies)
+     ;; still running when the drain ended, counted in :end-to-end-millis at their latency so far
+     :censored          censored
+     :throughput-qps    (/ in-window arrival-secs)
+     :end-to-end-millis (millis-stats (percentiles latencies))
+     :failed-millis     (millis-stats (percentiles failed-latencies))
+     :node-millis       (transform MAP-VALS percentiles (node-latencies client sampled))
+     :depot-appends-per-sec
+     (into {}
+           (for [[name offset] depots-after]
+             [name (/ (- offset (get depots-before name)) arrival-secs)]))
+     :gc                {:time-millis gc-millis
+                         :count       (- (:count gc-after) (:count gc-before))
+                         :percent     (/ (* 100.0 gc-millis) (* 1000.0 elapsed-secs))}}))
+
+(defn- agent-depots
+  [ipc module-name agent-name]
+  {"agent"        (foreign-depot ipc module-name (po/agent-depot-name agent-name))
+   "streaming"    (foreign-depot ipc module-name (po/agent-streaming-depot-name agent-name))
+   "pstate-write" (foreign-depot ipc module-name (po/agent-pstate-write-depot-name))})
+
+(defn run-load!
+  "Launches the module on a new in-process cluster and runs one stage per rate in :rates, after
+  a warmup at the first rate. Returns the report for each stage. See DEFAULT-OPTIONS for the
+  other options."
+  ([] (run-load! {}))
+  ([options]
+   (let [options (merge DEFAULT-OPTIONS options)
+         options (if (:module options)
+                   options
+                   (assoc options
+                    :module     (workload-module options)
+                    :agent-name "chat-agent"
+                    :args-fn    workload-args))]
+     (with-open [ipc (rtest/create-ipc)]
+       (rtest/launch-module! ipc
+                             (:module options)
+                             {:tasks (:tasks options) :threads (:threads options)})
+       (let [module-name (get-module-name (:module options))
+             manager     (aor/agent-manager ipc module-name)
+             client      (aor/agent-client manager (:agent-name options))
+             depots      (agent-depots ipc module-name (:agent-name options))]
+         (when (pos? (:warmup-millis options))
+           (run-arrivals! client
+                          (:args-fn options)
+                          (first (:rates options))
+                          (:warmup-millis options)
+                          (:drain-millis options)
+                          0))
+         (mapv #(run-stage! client depots options %) (:rates options)))))))
+
+(defn- fmt
+  [v]
+  (if (number? v) (format "%.1f" (double v)) "-"))
+
+(defn print-report
+  [stages]
+  (doseq [{:keys [target-qps throughput-qps succeeded failed censored end-to-end-millis
+                  failed-millis node-millis depot-appends-per-sec gc]}
+          stages]
+    (println (format "=== target %s qps: %s qps achieved, %d succeeded, %d failed, %d censored"
+                     target-qps
+                     (fmt throughput-qps)
+                     succeeded
+                     failed
+                     censored))
+    (println (format "  end-to-end ms  p50 %s  p99 %s  p999 %s  max %s%s"
+                     (fmt (:p50 end-to-end-millis))
+                     (fmt (:p99 end-to-end-millis))
+                     (fmt (:p999 end-to-end-millis))
+                     (fmt (:max end-to-end-millis))
+                     (if (pos? censored) "  (tail includes censored invokes)" "")))
+    (when (pos? failed)
+      (println (format "  failed ms      p50 %s  p99 %s  max %s"
+                       (fmt (:p50 failed-millis))
+                       (fmt (:p99 failed-millis))
+                       (fmt (:max failed-millis)))))
+    (doseq [[node {:keys [count p50 p99 p999 max]}] (sort-by key node-millis)]
+      (println (format "  node %-12s ms  p50 %s  p99 %s  p999 %s  max %s  (%d sampled)"
+                       node
+                       (fmt p50)
+                       (fmt p99)
+                       (fmt p999)
+                       (fmt max)
+                       count)))
+    (doseq [[name rate] (sort-by key depot-appends-per-sec)]
+      (println (format "  depot %-12s %s appends/s" name (fmt rate))))
+    (println (format "  gc %d ms over %d collections (%s%% of stage)"
+                     (:time-millis gc)
+                     (:count gc)
+                     (fmt (:percent gc))))))
+
+(defn- parse-args
+  [args]
+  (reduce
+   (fn [options [k v]]
+     (case k
+       "--rates"               (assoc options :rates (mapv parse-double (str/split v #",")))
+       "--stage-seconds"       (assoc options :stage-millis (* 1000 (parse-long v)))
+       "--warmup-seconds"      (assoc options :warmup-millis (* 1000 (parse-long v)))
+       "--tasks"               (assoc options :tasks (parse-long v))
+       "--threads"             (assoc options :threads (parse-long v))
+       "--chat-latency-millis" (assoc options :chat-latency-millis (parse-double v))
+       "--output-tokens"       (assoc options :output-tokens (parse-long v))
+       "--out"                 (assoc options :out v)
+       (throw (ex-info "Unknown option" {:option k}))))
+   {}
+   (partition 2 args)))
+
+;; e.g. lein loadgen --rates 20,50,100 --stage-seconds 60 --out target/loadgen.json
+(defn -main
+  [& args]
+  (let [options (parse-args args)
+        stages  (run-load! (dissoc options :out))]
+    (print-report stages)
+    (when-let [out (:out options)]
+      (spit out (j/write-value-as-string stages))
+      (println "Report saved to" out))
+    (shutdown-agents)
+    (System/exit 0)))
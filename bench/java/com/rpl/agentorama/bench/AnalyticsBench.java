@@ -0,0 +1,33 @@
+package com.rpl.agentorama.bench;
+
+import clojure.lang.IFn;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Rule filter evaluation, which runs for every rule on every finished run
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AnalyticsBench {
+  static final IFn RULE_FILTER_MATCHES = Fixtures.fn("rule-filter-matches?");
+
+  @Param({"10", "200"})
+  public int numNestedOps;
+
+  Object _filter;
+  Object _info;
+
+  @Setup
+  public void setup() {
+    _filter = Fixtures.fn("rule-filter").invoke();
+    _info = Fixtures.fn("rule-filter-info").invoke(numNestedOps);
+  }
+
+  @Benchmark
+  public Object ruleFilterMatches() {
+    return RULE_FILTER_MATCHES.invoke(_filter, _info);
+  }
+}
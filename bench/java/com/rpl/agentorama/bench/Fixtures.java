@@ -0,0 +1,13 @@
+package com.rpl.agentorama.bench;
+
+import clojure.lang.IFn;
+import com.rpl.rama.impl.Util;
+
+// Functions from the bench-fixtures namespace, which builds the benchmarks' inputs
+class Fixtures {
+  static final String NS = "com.rpl.agent-o-rama.bench-fixtures";
+
+  static IFn fn(String name) {
+    return Util.getIFn(NS, name);
+  }
+}
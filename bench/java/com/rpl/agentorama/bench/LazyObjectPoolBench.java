@@ -0,0 +1,38 @@
+package com.rpl.agentorama.bench;
+
+import com.rpl.agentorama.impl.LazyObjectPool;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Acquire and release of pooled agent objects by many threads at once
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(8)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LazyObjectPoolBench {
+  @Param({"1", "4", "16"})
+  public int limit;
+
+  LazyObjectPool _pool;
+
+  @Setup
+  public void setup() {
+    _pool = new LazyObjectPool(limit, () -> new Object());
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    _pool.close();
+  }
+
+  @Benchmark
+  public Object acquireRelease() {
+    Object o = _pool.acquire(60000);
+    _pool.release(o);
+    return o;
+  }
+}
@@ -0,0 +1,34 @@
+package com.rpl.agentorama.bench;
+
+import clojure.lang.IFn;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Merging of the per-task pages gathered by paginated queries like the invokes list
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class QueriesBench {
+  static final IFn TO_INVOKES_PAGE_RESULT = Fixtures.fn("to-invokes-page-result");
+
+  @Param({"4", "64"})
+  public int numTasks;
+
+  @Param({"20", "100"})
+  public int pageSize;
+
+  Object _pagesMap;
+
+  @Setup
+  public void setup() {
+    _pagesMap = Fixtures.fn("pages-map").invoke(numTasks, pageSize);
+  }
+
+  @Benchmark
+  public Object toPageResult() {
+    return TO_INVOKES_PAGE_RESULT.invoke(_pagesMap, pageSize);
+  }
+}
@@ -0,0 +1,94 @@
+package com.rpl.agentorama.bench;
+
+import clojure.lang.IFn;
+import com.rpl.agentorama.impl.AORHelpers;
+import com.rpl.agentorama.impl.NippyMap;
+import com.rpl.rama.impl.Util;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Round trips of the serialization used for node invoke info, PState values and traces
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SerializationBench {
+  static final IFn JSON_FREEZE = Util.getIFn("com.rpl.agent-o-rama.impl.json-serialize", "json-freeze");
+  static final IFn JSON_THAW = Util.getIFn("com.rpl.agent-o-rama.impl.json-serialize", "json-thaw");
+
+  Map _info;
+  byte[] _frozenInfo;
+  NippyMap _nippyMap;
+  byte[] _serializedNippyMap;
+  Object _messages;
+  String _messagesJson;
+
+  @Setup
+  public void setup() throws IOException {
+    _info = (Map) Fixtures.fn("invoke-info").invoke();
+    _frozenInfo = AORHelpers.freeze(_info);
+    _nippyMap = new NippyMap(_info);
+    _serializedNippyMap = javaSerialize(_nippyMap);
+    _messages = Fixtures.fn("chat-messages").invoke();
+    _messagesJson = (String) JSON_FREEZE.invoke(_messages);
+  }
+
+  static byte[] javaSerialize(Object o) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(o);
+    }
+    return bytes.toByteArray();
+  }
+
+  static Object javaDeserialize(byte[] ser) throws IOException, ClassNotFoundException {
+    try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(ser))) {
+      return in.readObject();
+    }
+  }
+
+  @Benchmark
+  public byte[] nippyFreeze() {
+    return AORHelpers.freeze(_info);
+  }
+
+  @Benchmark
+  public Object nippyThaw() {
+    return AORHelpers.thaw(_frozenInfo);
+  }
+
+  @Benchmark
+  public Object nippyRoundTrip() {
+    return AORHelpers.thaw(AORHelpers.freeze(_info));
+  }
+
+  @Benchmark
+  public byte[] nippyMapSerialize() throws IOException {
+    return javaSerialize(_nippyMap);
+  }
+
+  @Benchmark
+  public Object nippyMapDeserialize() throws IOException, ClassNotFoundException {
+    return javaDeserialize(_serializedNippyMap);
+  }
+
+  // a record received and sent on without its contents being read
+  @Benchmark
+  public byte[] nippyMapForward() throws IOException, ClassNotFoundException {
+    return javaSerialize(javaDeserialize(_serializedNippyMap));
+  }
+
+  @Benchmark
+  public Object jsonFreezeMessages() {
+    return JSON_FREEZE.invoke(_messages);
+  }
+
+  @Benchmark
+  public Object jsonThawMessages() {
+    return JSON_THAW.invoke(_messagesJson);
+  }
+}
@@ -0,0 +1,42 @@
+package com.rpl.agentorama.bench;
+
+import clojure.lang.IFn;
+import com.rpl.rama.impl.Util;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Stats computed for every node invoke and merged for every agent invoke
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StatsBench {
+  static final IFn NESTED_OP_STATS = Util.getIFn("com.rpl.agent-o-rama.impl.stats", "nested-op-stats");
+  static final IFn COMBINE_BASIC_STATS = Util.getIFn("com.rpl.agent-o-rama.impl.stats", "combine-basic-stats");
+
+  @Param({"10", "100", "1000"})
+  public int numNestedOps;
+
+  Object _nestedOps;
+  Object _stats1;
+  Object _stats2;
+
+  @Setup
+  public void setup() {
+    _nestedOps = Fixtures.fn("nested-ops").invoke(numNestedOps);
+    _stats1 = Fixtures.fn("basic-stats").invoke(numNestedOps);
+    _stats2 = Fixtures.fn("basic-stats").invoke(numNestedOps / 2);
+  }
+
+  @Benchmark
+  public Object nestedOpStats() {
+    return NESTED_OP_STATS.invoke(_nestedOps);
+  }
+
+  @Benchmark
+  public Object combineBasicStats() {
+    return COMBINE_BASIC_STATS.invoke(_stats1, _stats2);
+  }
+}
@@ -0,0 +1,31 @@
+package com.rpl.agentorama.bench;
+
+import clojure.lang.IFn;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Client-side assembly of a streaming node's chunks as they arrive one update at a time
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StreamAssemblyBench {
+  static final IFn ASSEMBLE_STREAM = Fixtures.fn("assemble-stream");
+
+  @Param({"100", "1000"})
+  public int numChunks;
+
+  Object _chunks;
+
+  @Setup
+  public void setup() {
+    _chunks = Fixtures.fn("stream-chunks").invoke(numChunks);
+  }
+
+  @Benchmark
+  public Object assembleStream() {
+    return ASSEMBLE_STREAM.invoke(_chunks);
+  }
+}
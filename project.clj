@@ -98,6 +98,12 @@
                                          [org.clojure/clojure "1.12.2"]
                                          [prismatic/schema "1.4.1"]]}
              :test       {:jvm-opts ["-Daor.test.runner=1"]}
+             :bench      {:source-paths      ["bench/clj"]
+                          :java-source-paths ["src/java" "bench/java"]
+                          ;; runs the JMH annotation processor that generates the benchmark harness
+                          :javac-options     ["-proc:full"]
+                          :dependencies      [[org.openjdk.jmh/jmh-core "1.37"]
+                                              [org.openjdk.jmh/jmh-generator-annprocess "1.37"]]}
              :nrepl-port {:repl-options {:port 7888}}}
   :codox {:source-paths ["src/clj"]
           :metadata     {:doc/format :markdown}
@@ -108,7 +114,9 @@
                          com.rpl.agent-o-rama.store
                          com.rpl.agent-o-rama.throttled-logging
                          com.rpl.agent-o-rama.tools]}
-  :aliases {"test-all" ["with-profile" "+examples" "test"]}
+  :aliases {"test-all" ["with-profile" "+examples" "test"]
+            "bench"    ["with-profile" "+bench" "run" "-m" "org.openjdk.jmh.Main"]
+            "loadgen"  ["with-profile" "+bench" "run" "-m" "com.rpl.agent-o-rama.loadgen"]}
   :plugins [[lein-exec "0.3.7"]
             [lein-codox "0.10.8"]
             [lein-doo "0.1.11"]])
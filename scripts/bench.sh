@@ -0,0 +1,37 @@
+#!/bin/bash
+
+# Runs the JMH benchmarks and saves the results as JSON under bench/results, named by commit.
+# When a baseline is given, compares against it and fails if any benchmark regressed.
+# Usage: ./scripts/bench.sh [--baseline <results.json>] [--threshold <percent>] [<jmh args>...]
+# e.g. ./scripts/bench.sh --baseline bench/results/abc123.json Serialization
+
+set -e
+
+BASELINE=""
+THRESHOLD=10
+
+while [[ $# -gt 0 ]]; do
+  case $1 in
+    --baseline)
+      BASELINE="$2"
+      shift 2
+      ;;
+    --threshold)
+      THRESHOLD="$2"
+      shift 2
+      ;;
+    *)
+      break
+      ;;
+  esac
+done
+
+mkdir -p bench/results
+RESULTS="bench/results/$(git rev-parse --short HEAD).json"
+
+lein bench -rf json -rff "$RESULTS" "$@"
+echo "Results saved to $RESULTS"
+
+if [[ -n "$BASELINE" ]]; then
+  lein with-profile +bench run -m com.rpl.agent-o-rama.bench-compare "$BASELINE" "$RESULTS" "$THRESHOLD"
+fi
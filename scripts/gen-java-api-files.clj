@@ -111,6 +111,8 @@
     [["StaticStringHandler..." "handlers"]]]
    ["errorHandlerByType" "ToolsAgentOptions.Impl"
     [["FunctionHandler..." "handlers"]]]
+   ["inlineExecution" "ToolsAgentOptions.Impl" []]
+   ["distributedTools" "ToolsAgentOptions.Impl" [["String..." "toolNames"]]]
   ])
 
 (def EVALUATOR-BUILDER-OPTIONS-METHODS
@@ -149,6 +151,8 @@
     [["String" "name"] ["double" "val"]]]
    ["metadata" "AgentContext.Impl"
     [["String" "name"] ["boolean" "val"]]]
+   ["priority" "AgentContext.Impl"
+    [["InvokePriority" "priority"]]]
   ])
 
 (def ^:dynamic *operation-index*)
@@ -33,6 +33,41 @@ public interface AgentGraph {
    * @return this agent graph for method chaining
    */
   AgentGraph setUpdateMode(UpdateMode mode);
+
+  /**
+   * Sets how tasks are chosen for a node when it's emitted to.
+   * 
+   * @param name the name of a node declared in this agent graph
+   * @param placement the placement strategy for the node
+   * @return this agent graph for method chaining
+   * @see NodePlacement
+   */
+  AgentGraph setNodePlacement(String name, NodePlacement placement);
+
+  /**
+   * Stops an agg node from keeping the full arguments of every input it aggregates.
+   * 
+   * Each input is kept as a SHA-256 digest of its arguments instead, which is enough to
+   * tell inputs apart in traces. Use this for wide aggregations with large inputs, since
+   * otherwise every input is stored alongside the aggregated state.
+   * 
+   * @param name the name of an agg node declared in this agent graph
+   * @return this agent graph for method chaining
+   */
+  AgentGraph setCompactAggInputs(String name);
+
+  /**
+   * Runs the updates of an agg node off the task thread.
+   * 
+   * By default each input is aggregated directly on the task thread, which blocks every other
+   * event on that task while the update runs. With this set, updates run on a virtual thread
+   * one at a time per aggregation, in the order inputs arrive, and the new state is applied back
+   * on the task thread. Use this for aggregators that do expensive work like merging large maps.
+   * 
+   * @param name the name of an agg node declared in this agent graph
+   * @return this agent graph for method chaining
+   */
+  AgentGraph setAsyncAggUpdates(String name);
   
 <% (dofor [i (range 0 (dec MAX-ARITY))] (str %>
   /**
@@ -8,6 +8,7 @@
    [com.rpl.agent-o-rama.impl.clojure :as c]
    [com.rpl.agent-o-rama.impl.core :as i]
    [com.rpl.agent-o-rama.impl.datasets :as datasets]
+   [com.rpl.agent-o-rama.impl.embedding-store :as es]
    [com.rpl.agent-o-rama.impl.evaluators :as evals]
    [com.rpl.agent-o-rama.impl.experiments :as exp]
    [com.rpl.agent-o-rama.impl.helpers :as h]
@@ -31,12 +32,15 @@
     AgentNode
     AgentObjectFetcher
     AgentObjectSetup
+    AgentOverloadedException
     AgentTopology
     AgentStream
     AgentStreamByInvoke
+    CreateDatasetOptions
     CreateEvaluatorOptions
     HumanInputRequest
     MultiAgg$Impl
+    NewDatasetExample
     UpdateMode]
    [com.rpl.agentorama.impl
     IFetchAgentClient]
@@ -55,6 +59,60 @@
    [rpl.rama.generated
     TopologyDoesNotExistException]))
 
+(defn- capture-level-spec
+  [v]
+  (when-not (or (nil? v) (contains? #{:full :truncated :hashed :timings-only} v))
+    "value must be one of :full, :truncated, :hashed, or :timings-only"))
+
+(defn- priority-spec
+  [v]
+  (when-not (or (nil? v) (contains? aor-types/PRIORITIES v))
+    "value must be one of :interactive or :batch"))
+
+(def ^:private MAX-INITIATE-BATCH-SIZE 1000)
+
+(defn- validate-agent-context!
+  [agent-name context]
+  (let [{:keys [metadata] :as context} (merge {:metadata {}} context)]
+    (h/validate-options! agent-name
+                         context
+                         {:metadata h/map-spec
+                          :priority priority-spec})
+    (when-not (every? string? (keys metadata))
+      (throw (h/ex-info "Metadata keys must be strings"
+                        {:keys (pr-str (keys metadata))})))
+    (when-not (every? aor-types/valid-restricted-map-value? (vals metadata))
+      (throw (h/ex-info
+              "Metadata values must be ints, longs, floats, doubles, booleans, or strings"
+              {:vals (pr-str (vals metadata))})))
+    context))
+
+(defn- overloaded-message
+  [agent-name {:keys [queue-depth]}]
+  (str "Agent " agent-name " is overloaded with " queue-depth " queued node invokes"))
+
+(defn- check-agent-overloaded!
+  [agent-name ret]
+  (when (aor-types/AgentOverloaded? ret)
+    (throw (AgentOverloadedException. (overloaded-message agent-name ret)))))
+
+(defn- batch-invokes
+  "Joins the results of each chunk of a batch initiate, throwing AgentOverloadedException with
+   the handles of the accepted chunks if any chunk was rejected."
+  [agent-name chunks chunk-results]
+  (if-let [overloaded (first (filter aor-types/AgentOverloaded? chunk-results))]
+    (throw (AgentOverloadedException.
+            (str (overloaded-message agent-name overloaded)
+                 ", so some of the batch wasn't initiated")
+            (into []
+                  (mapcat (fn [chunk res]
+                            (if (aor-types/AgentOverloaded? res)
+                              (repeat (count chunk) nil)
+                              res)))
+                  chunks
+                  chunk-results)))
+    (into [] cat chunk-results)))
+
 (defn- check-unique-agent-name!
   [agents-vol mirror-agents-vol name]
   (when (or (contains? @agents-vol name)
@@ -66,7 +124,7 @@
 \n
 The topology provides the configuration context for:\n
   - Declaring agents with [[new-agent]]
-  - Declaring stores: [[declare-key-value-store]], [[declare-document-store]], [[declare-pstate-store]]
+  - Declaring stores: [[declare-key-value-store]], [[declare-document-store]], [[declare-pstate-store]], [[declare-embedding-store]]
   - Declaring agent objects: [[declare-agent-object]], [[declare-agent-object-builder]]
   - Declaring evaluators: [[declare-evaluator-builder]], [[declare-comparative-evaluator-builder]], [[declare-summary-evaluator-builder]]
   - Declaring actions: [[declare-action-builder]]
@@ -140,6 +198,12 @@ Returns:\n
         {key-class (fixed-keys-schema
                     (into {}
                           (mapv vec (partition 2 key-val-classes))))}))
+     (declareEmbeddingStore [this name]
+       (simpl/declare-store* stream-topology
+                             store-info-vol
+                             name
+                             simpl/EMBEDDING
+                             es/EMBEDDING-STORE-SCHEMA))
      (^PState$Declaration declarePStateStore [this ^String name ^Class schema]
        (declare-pstate* stream-topology (symbol name) schema))
      (^PState$Declaration declarePStateStore [this ^String name
@@ -250,14 +314,45 @@ Returns:\n
                               full-options
                               {:thread-safe?        h/boolean-spec
                                :auto-tracing?       h/boolean-spec
-                               :worker-object-limit h/positive-number-spec})
+                               :worker-object-limit h/positive-number-spec
+                               :capture-level       capture-level-spec
+                               :response-cache      h/map-spec
+                               :rate-limit          h/map-spec
+                               :embedding-batch     h/map-spec})
+         (when-let [cache-options (:response-cache full-options)]
+           (h/validate-options! name
+                                cache-options
+                                {:max-entries h/non-negative-number-spec
+                                 :max-bytes   h/non-negative-number-spec
+                                 :ttl-millis  h/non-negative-number-spec
+                                 :store       h/string-spec})
+           (when-not (:auto-tracing? full-options)
+             (throw (h/ex-info "Response cache requires auto-tracing" {:name name}))))
+         (when-let [rate-limit (:rate-limit full-options)]
+           (h/validate-options! name
+                                rate-limit
+                                {:requests-per-minute h/non-negative-number-spec
+                                 :tokens-per-minute   h/non-negative-number-spec})
+           (when-not (:auto-tracing? full-options)
+             (throw (h/ex-info "Rate limit requires auto-tracing" {:name name}))))
+         (when-let [embedding-batch (:embedding-batch full-options)]
+           (h/validate-options! name
+                                embedding-batch
+                                {:max-batch-size  h/positive-number-spec
+                                 :max-wait-millis h/non-negative-number-spec})
+           (when-not (:auto-tracing? full-options)
+             (throw (h/ex-info "Embedding batching requires auto-tracing" {:name name}))))
          (vswap! declared-objects-vol
                  assoc
                  name
-                 {"limit"       (:worker-object-limit full-options)
-                  "threadSafe"  (:thread-safe? full-options)
-                  "autoTracing" (:auto-tracing? full-options)
-                  "builderFn"   afn
+                 {"limit"        (:worker-object-limit full-options)
+                  "threadSafe"   (:thread-safe? full-options)
+                  "autoTracing"  (:auto-tracing? full-options)
+                  "captureLevel" (some-> (:capture-level full-options) clojure.core/name)
+                  "responseCache" (:response-cache full-options)
+                  "rateLimit"    (:rate-limit full-options)
+                  "embeddingBatch" (:embedding-batch full-options)
+                  "builderFn"    afn
                  })
        ))
      (declare-evaluator-builder-internal [this type name description builder-fn
@@ -402,6 +497,24 @@ Example:\n
   [^AgentTopology agent-topology name schema]
   (declare-pstate* (.getStreamTopology agent-topology) (symbol name) schema))
 
+(defn declare-embedding-store
+  "Declares a vector store for retrieval in the agent topology.\n
+\n
+The store is a langchain4j EmbeddingStore of TextSegments. Embeddings are partitioned by id, and searches run on every partition in parallel using an in-memory nearest neighbor index. Searches with a metadata filter scan the matching embeddings exactly. Metadata isn't indexed, so a filtered search evaluates the filter against every embedding on every partition, and its cost grows with the size of the store.\n
+\n
+Each partition's index is rebuilt from the stored embeddings the first time the partition is used after a restart, blocking that partition's task until the rebuild finishes.\n
+\n
+Args:\n
+  - agent-topology - agent topology instance
+  - name - String name for the store that must begin with `$$` (used with [[get-store]])
+\n
+Example:\n
+<pre>
+(declare-embedding-store topology \"$$docs\")
+</pre>"
+  [^AgentTopology agent-topology name]
+  (.declareEmbeddingStore agent-topology name))
+
 (defn declare-agent-object
   "Declares a static agent object that will be shared across all agent executions.\n
 \n
@@ -432,6 +545,31 @@ Args:\n
     - :thread-safe? - Boolean, whether object is thread-safe (default false)
     - :auto-tracing? - Boolean, whether to auto-trace object calls (default true)
     - :worker-object-limit - Number, max objects per worker (default 1000)
+    - :capture-level - One of :full, :truncated, :hashed, or :timings-only. Overrides the
+      agent's nested op capture level for calls on this object (default none)
+    - :response-cache - Map enabling a per-worker cache of chat model responses, shared by all
+      instances of the object. Requests with the same messages and parameters reuse the cached
+      response, and streaming requests replay it as a single chunk. Only use this for
+      deterministic calls, e.g. temperature 0. Requires auto-tracing. Keys:
+      - :max-entries - maximum number of cached responses (default 1000, 0 for no limit)
+      - :max-bytes - maximum total size of cached keys and response texts (default 0, no limit)
+      - :ttl-millis - how long a response stays cached (default 0, kept until evicted)
+      - :store - name of a key/value store declared on the module, used as a second tier
+        checked on memory misses so cached responses survive restarts and are shared across
+        workers
+    - :rate-limit - Map of cluster-wide limits on chat model calls, e.g. to match a provider's
+      account-wide rate limits. Each worker leases budget in chunks from a shared token bucket, so
+      calls only coordinate when a worker's lease runs out. Calls wait until budget is available,
+      and the wait is recorded as a nested op. Requires auto-tracing. Keys:
+      - :requests-per-minute - maximum requests per minute (default 0, no limit)
+      - :tokens-per-minute - maximum tokens per minute, estimated from each request and
+        corrected with its actual usage (default 0, no limit)
+    - :embedding-batch - Map enabling coalescing of concurrent `embed` calls on an EmbeddingModel
+      from all agents on a worker into a single `embedAll` call. A batch is sent once it's full or
+      its first call has waited long enough. Each call is still recorded as its own nested op.
+      Requires auto-tracing. Keys:
+      - :max-batch-size - maximum number of texts embedded in one call (default 32)
+      - :max-wait-millis - how long a call waits for others to join its batch (default 5)
 \n
 Example:\n
 <pre>
@@ -798,6 +936,66 @@ Example:\n
    agent-graph
    (graph/convert-update-mode->java mode)))
 
+(defn set-node-placement
+  "Sets how tasks are chosen for a node when it's emitted to. By default emits are spread
+   across tasks round-robin, with the first emit of a node invoke staying on the emitting
+   task. Placement only applies to regular nodes, since aggregation nodes always run with
+   the agent root.\n
+\n
+Strategies:\n
+  - :round-robin - The default
+  - :least-loaded - Task with the fewest node invokes currently running. Load is only known for tasks led by the same worker as the emitting node, so unless that worker leads every task of the module this places round-robin instead
+  - :agent-root - Task of the agent invoke's root
+  - :partition-key - Emits with the same key go to the same task, so per-task caches and pooled objects are reused. Requires key-fn, which takes the emitted arguments and returns the key
+\n
+Args:\n
+  - agent-graph - agent graph builder instance
+  - name - String name of a node declared in the agent graph
+  - strategy - Placement strategy keyword
+  - key-fn - Var or fully qualified symbol naming a function from emitted arguments to partition key, for :partition-key. Placements are serialized with the graph, so anonymous functions aren't allowed
+\n
+Example:\n
+<pre>
+(defn doc-key [doc-id text] doc-id)
+(set-node-placement agent-graph \"summarize\" :partition-key #'doc-key)
+</pre>"
+  ([agent-graph name strategy]
+   (c/set-node-placement agent-graph name strategy))
+  ([agent-graph name strategy key-fn]
+   (c/set-node-placement agent-graph name strategy key-fn)))
+
+(defn set-compact-agg-inputs
+  "Stops an agg node from keeping the full arguments of every input it aggregates. Each input is kept as a SHA-256 digest of its arguments instead, which is enough to tell inputs apart in traces.\n
+\n
+Use this for wide aggregations with large inputs, since otherwise every input is stored alongside the aggregated state.\n
+\n
+Args:\n
+  - agent-graph - agent graph builder instance
+  - name - String name of an agg node declared in the agent graph
+\n
+Example:\n
+<pre>
+(set-compact-agg-inputs agent-graph \"combine-chunks\")
+</pre>"
+  [agent-graph name]
+  (c/set-compact-agg-inputs agent-graph name))
+
+(defn set-async-agg-updates
+  "Runs the updates of an agg node off the task thread. By default each input is aggregated directly on the task thread, which blocks every other event on that task while the update runs.\n
+\n
+With this set, updates run on a virtual thread one at a time per aggregation, in the order inputs arrive, and the new state is applied back on the task thread. Use this for aggregators that do expensive work like merging large maps.\n
+\n
+Args:\n
+  - agent-graph - agent graph builder instance
+  - name - String name of an agg node declared in the agent graph
+\n
+Example:\n
+<pre>
+(set-async-agg-updates agent-graph \"merge-results\")
+</pre>"
+  [agent-graph name]
+  (c/set-async-agg-updates agent-graph name))
+
 (defmacro multi-agg
   "Creates an aggregator for use with [[agg-node]] that supports multiple dispatch targets.\n
 \n
@@ -1008,7 +1206,7 @@ An agent module is the top-level container that defines a complete agent system,
 \n
 The topology provides the configuration context for:\n
   - Declaring agents with [[new-agent]]
-  - Declaring stores: [[declare-key-value-store]], [[declare-document-store]], [[declare-pstate-store]]
+  - Declaring stores: [[declare-key-value-store]], [[declare-document-store]], [[declare-pstate-store]], [[declare-embedding-store]]
   - Declaring agent objects: [[declare-agent-object]], [[declare-agent-object-builder]]
   - Declaring evaluators: [[declare-evaluator-builder]], [[declare-comparative-evaluator-builder]], [[declare-summary-evaluator-builder]]
   - Declaring actions: [[declare-action-builder]]
@@ -1049,7 +1247,7 @@ This is a convenience macro that creates a def binding for an agent module, auto
 \n
 The topology provides the configuration context for:\n
   - Declaring agents with [[new-agent]]
-  - Declaring stores: [[declare-key-value-store]], [[declare-document-store]], [[declare-pstate-store]]
+  - Declaring stores: [[declare-key-value-store]], [[declare-document-store]], [[declare-pstate-store]], [[declare-embedding-store]]
   - Declaring agent objects: [[declare-agent-object]], [[declare-agent-object-builder]]
   - Declaring evaluators: [[declare-evaluator-builder]], [[declare-comparative-evaluator-builder]], [[declare-summary-evaluator-builder]]
   - Declaring actions: [[declare-action-builder]]
@@ -1264,6 +1462,12 @@ Example:\n
             (aor-types/initiate-with-context-async-internal this
                                                             (if context @context)
                                                             (into [] args)))
+          (initiateBatch [this argsList context]
+            (.get (.initiateBatchAsync this argsList context)))
+          (initiateBatchAsync [this argsList context]
+            (aor-types/initiate-batch-async-internal this
+                                                     (if context @context)
+                                                     (mapv vec argsList)))
           (fork [this invoke nodeInvokeIdToNewArgs]
             (.get (.forkAsync this invoke nodeInvokeIdToNewArgs)))
           (forkAsync [this invoke nodeInvokeIdToNewArgs]
@@ -1435,17 +1639,7 @@ Example:\n
              (h/cf-function [agent-invoke]
                (.resultAsync this agent-invoke))))
           (initiate-with-context-async-internal [this context args]
-            (let [{:keys [metadata] :as context} (merge {:metadata {}} context)]
-              (h/validate-options! agentName
-                                   context
-                                   {:metadata h/map-spec})
-              (when-not (every? string? (keys metadata))
-                (throw (h/ex-info "Metadata keys must be strings"
-                                  {:keys (pr-str (keys metadata))})))
-              (when-not (every? aor-types/valid-restricted-map-value? (vals metadata))
-                (throw (h/ex-info
-                        "Metadata values must be ints, longs, floats, doubles, booleans, or strings"
-                        {:vals (pr-str (vals metadata))})))
+            (let [{:keys [metadata priority]} (validate-agent-context! agentName context)]
               (.thenApply
                (foreign-append-async!
                 agent-depot
@@ -1454,11 +1648,50 @@ Example:\n
                  aor-types/FORCED-AGENT-TASK-ID
                  aor-types/FORCED-AGENT-INVOKE-ID
                  metadata
-                 aor-types/OPERATION-SOURCE))
-               (h/cf-function [{[agent-task-id agent-id]
-                                aor-types/AGENT-TOPOLOGY-NAME}]
-                 (aor-types/->AgentInvokeImpl agent-task-id agent-id)
+                 aor-types/OPERATION-SOURCE
+                 priority))
+               (h/cf-function [{ret aor-types/AGENT-TOPOLOGY-NAME}]
+                 (check-agent-overloaded! agentName ret)
+                 (let [[agent-task-id agent-id] ret]
+                   (aor-types/->AgentInvokeImpl agent-task-id agent-id))
                ))))
+          (initiate-batch-async-internal [this context args-list]
+            (let [{:keys [metadata priority]} (validate-agent-context! agentName context)
+                  source aor-types/OPERATION-SOURCE
+
+                  ;; - agent ids are chosen here so each append only has to ack the task
+                  ;; that took the batch
+                  ;; - each chunk is a single append, and chunks are spread across tasks by
+                  ;; the depot partitioner, so each is accepted or rejected on its own
+                  chunks (vec (partition-all MAX-INITIATE-BATCH-SIZE args-list))
+                  cfs
+                  (mapv
+                   (fn [chunk]
+                     (let [agent-ids (mapv (fn [_] (h/random-uuid7)) chunk)]
+                       (.thenApply
+                        (foreign-append-async!
+                         agent-depot
+                         (aor-types/->valid-AgentInitiateBatch
+                          (mapv (fn [args agent-id]
+                                  (aor-types/->valid-AgentInitiate (vec args)
+                                                                   nil
+                                                                   agent-id
+                                                                   metadata
+                                                                   source
+                                                                   priority))
+                                chunk
+                                agent-ids)))
+                        (h/cf-function [{ret aor-types/AGENT-TOPOLOGY-NAME}]
+                          (if (aor-types/AgentOverloaded? ret)
+                            ret
+                            (mapv #(aor-types/->AgentInvokeImpl ret %) agent-ids))))))
+                   chunks)]
+              (.thenApply
+               (CompletableFuture/allOf (into-array CompletableFuture cfs))
+               (h/cf-function [_]
+                 (batch-invokes agentName
+                                chunks
+                                (mapv #(.join ^CompletableFuture %) cfs))))))
           (stream-internal [this agent-invoke node callback-fn]
             (iclient/agent-stream-impl
              root-pstate
@@ -1515,6 +1748,12 @@ Example:\n
             })
          )))
      (createDataset [this name description inputJsonSchema outputJsonSchema]
+       (let [options (CreateDatasetOptions.)]
+         (set! (.description options) description)
+         (set! (.inputJsonSchema options) inputJsonSchema)
+         (set! (.outputJsonSchema options) outputJsonSchema)
+         (.createDataset this name options)))
+     (createDataset [this name ^CreateDatasetOptions options]
        (let [uuid (h/random-uuid7)
 
              {error aor-types/AGENT-TOPOLOGY-NAME}
@@ -1522,9 +1761,10 @@ Example:\n
               datasets-depot
               (aor-types/->valid-CreateDataset uuid
                                                name
-                                               description
-                                               inputJsonSchema
-                                               outputJsonSchema))]
+                                               (.description options)
+                                               (.inputJsonSchema options)
+                                               (.outputJsonSchema options)
+                                               (when (.sharded options) true)))]
          (when error
            (throw (h/ex-info "Error creating dataset" {:info error})))
          uuid))
@@ -1563,6 +1803,45 @@ Example:\n
                   (throw (h/ex-info "Error adding example" {:info error})))
                 uuid
               )))))
+     (addDatasetExamplesBatchAsync
+       [this datasetId snapshotName examples]
+       (let [source  (or aor-types/OPERATION-SOURCE (aor-types/->ApiSourceImpl))
+             batches (partition-all datasets/ADD-EXAMPLES-BATCH-SIZE examples)
+             cfs     (mapv
+                      (fn [batch]
+                        (foreign-append-async!
+                         datasets-depot
+                         (aor-types/->valid-AddDatasetExamples
+                          datasetId
+                          snapshotName
+                          (mapv (fn [^NewDatasetExample example]
+                                  (aor-types/->valid-DatasetExampleEntry
+                                   (h/random-uuid7)
+                                   (.input example)
+                                   (.referenceOutput example)
+                                   (into #{} (.tags example))))
+                                batch)
+                          source)))
+                      batches)]
+         (.thenApply
+          (CompletableFuture/allOf (into-array CompletableFuture cfs))
+          (h/cf-function [_]
+            (reduce
+             (fn [ret [offset ^CompletableFuture cf]]
+               (let [{errors aor-types/AGENT-TOPOLOGY-NAME} (.join cf)]
+                 (reduce-kv (fn [ret i error]
+                              (assoc ret (int (+ offset i)) error))
+                            ret
+                            errors)))
+             {}
+             (map vector
+                  (iterate #(+ % datasets/ADD-EXAMPLES-BATCH-SIZE) 0)
+                  cfs))))))
+     (addDatasetExamplesBatch [this datasetId snapshotName examples]
+       (.get (.addDatasetExamplesBatchAsync this
+                                            datasetId
+                                            snapshotName
+                                            examples)))
      (addDatasetExample [this datasetId input options]
        (.get (.addDatasetExampleAsync this
                                       datasetId
@@ -1836,7 +2115,7 @@ Metadata allows attaching custom key-value data to agent executions. Metadata is
 \n
 Args:\n
   - agent-client - agent client instance
-  - context - Map with single key :metadata containing a map with string keys and values that are strings, numbers, or booleans
+  - context - Map with key :metadata containing a map with string keys and values that are strings, numbers, or booleans, and optional key :priority of :interactive or :batch. When an agent limits its running nodes, queued nodes of interactive invokes run before those of batch invokes. Defaults to :batch for experiments and :interactive otherwise
   - args - Arguments to pass to the agent
 \n
 Returns:\n
@@ -1858,7 +2137,7 @@ Metadata allows attaching custom key-value data to agent executions. Metadata is
 \n
 Args:\n
   - agent-client - agent client instance
-  - context - Map with single key :metadata containing a map with string keys and values that are strings, numbers, or booleans
+  - context - Map with key :metadata containing a map with string keys and values that are strings, numbers, or booleans, and optional key :priority of :interactive or :batch. When an agent limits its running nodes, queued nodes of interactive invokes run before those of batch invokes. Defaults to :batch for experiments and :interactive otherwise
   - args - Arguments to pass to the agent
 \n
 Returns:\n
@@ -1880,7 +2159,7 @@ Metadata allows attaching custom key-value data to agent executions. Metadata is
 \n
 Args:\n
   - agent-client - agent client instance
-  - context - Map with single key :metadata containing a map with string keys and values that are strings, numbers, or booleans
+  - context - Map with key :metadata containing a map with string keys and values that are strings, numbers, or booleans, and optional key :priority of :interactive or :batch. When an agent limits its running nodes, queued nodes of interactive invokes run before those of batch invokes. Defaults to :batch for experiments and :interactive otherwise
   - args - Arguments to pass to the agent
 \n
 Returns:\n
@@ -1902,7 +2181,7 @@ Metadata allows attaching custom key-value data to agent executions. Metadata is
 \n
 Args:\n
   - agent-client - agent client instance
-  - context - Map with single key :metadata containing a map with string keys and values that are strings, numbers, or booleans
+  - context - Map with key :metadata containing a map with string keys and values that are strings, numbers, or booleans, and optional key :priority of :interactive or :batch. When an agent limits its running nodes, queued nodes of interactive invokes run before those of batch invokes. Defaults to :batch for experiments and :interactive otherwise
   - args - Arguments to pass to the agent
 \n
 Returns:\n
@@ -1917,6 +2196,43 @@ Example:\n
   ^AgentInvoke [agent-client context & args]
   (apply c/agent-initiate-with-context agent-client context args))
 
+(defn agent-initiate-batch-async
+  "Asynchronously initiates many agent executions at once.\n
+\n
+The initiates are appended to the agent depot in batches rather than one append per execution, which is much cheaper than calling [[agent-initiate]] in a loop for bulk workloads. Each batch is accepted or rejected for overload independently. If any is rejected this fails with an AgentOverloadedException whose getBatchInvokes has the handles of the accepted executions and nil for the rejected ones.\n
+\n
+Args:\n
+  - agent-client - agent client instance
+  - context - Context map for all the executions, as for [[agent-initiate-with-context]], or nil
+  - args-list - Sequence of argument vectors, one per execution
+\n
+Returns:\n
+  - CompletableFuture<List<AgentInvoke>> - Future that completes with the agent invoke handles in the same order as args-list"
+  ^CompletableFuture [agent-client context args-list]
+  (c/agent-initiate-batch-async agent-client context args-list))
+
+(defn agent-initiate-batch
+  "Initiates many agent executions at once and returns a handle for each.\n
+\n
+The initiates are appended to the agent depot in batches rather than one append per execution, which is much cheaper than calling [[agent-initiate]] in a loop for bulk workloads. Each batch is accepted or rejected for overload independently. If any is rejected this fails with an AgentOverloadedException whose getBatchInvokes has the handles of the accepted executions and nil for the rejected ones.\n
+\n
+Args:\n
+  - agent-client - agent client instance
+  - context - Context map for all the executions, as for [[agent-initiate-with-context]], or nil
+  - args-list - Sequence of argument vectors, one per execution
+\n
+Returns:\n
+  - Vector of agent invoke handles in the same order as args-list
+\n
+Example:\n
+<pre>
+(aor/agent-initiate-batch client
+  {:priority :batch}
+  [[\"first\"] [\"second\"]])
+</pre>"
+  [agent-client context args-list]
+  (c/agent-initiate-batch agent-client context args-list))
+
 (defn agent-fork
   "Creates a fork of an agent execution with modified parameters for specific nodes.\n
 \n
@@ -2287,6 +2603,7 @@ Args:\n
     - :description - String description of the dataset
     - :input-json-schema - JSON schema for input validation
     - :output-json-schema - JSON schema for output validation
+    - :sharded? - Boolean, spreads examples across all tasks by example ID for very large datasets
 \n
 Returns:\n
   - UUID of the created dataset
@@ -2305,12 +2622,14 @@ Example:\n
                         options
                         {:description        h/any-spec
                          :input-json-schema  h/any-spec
-                         :output-json-schema h/any-spec})
-   (.createDataset manager
-                   name
-                   (:description options)
-                   (:input-json-schema options)
-                   (:output-json-schema options))))
+                         :output-json-schema h/any-spec
+                         :sharded?           h/boolean-spec})
+   (let [jopts (CreateDatasetOptions.)]
+     (set! (.description jopts) (:description options))
+     (set! (.inputJsonSchema jopts) (:input-json-schema options))
+     (set! (.outputJsonSchema jopts) (:output-json-schema options))
+     (set! (.sharded jopts) (boolean (:sharded? options)))
+     (.createDataset manager name jopts))))
 
 (defn set-dataset-name!
   "Updates the name of an existing dataset.\n
@@ -2383,6 +2702,49 @@ Example:\n
   ([^AgentManager manager dataset-id input options]
    (c/add-dataset-example! manager dataset-id input options)))
 
+(defn add-dataset-examples-batch-async!
+  "Asynchronously adds a batch of examples to a dataset. Examples are written in multi-example records rather than one record per example, so this is much cheaper for bulk loads. Examples that violate the dataset's JSON schemas are skipped while the rest are still added.\n
+\n
+Args:\n
+  - manager - agent manager instance
+  - dataset-id - UUID of the dataset
+  - examples - Sequence of maps with keys:
+    - :input - Input data for the example
+    - :reference-output - Optional expected output for the example
+    - :tags - Optional set of tags for categorization
+  - options - Optional map with configuration:
+    - :snapshot - Snapshot name to add the examples to
+\n
+Returns:\n
+  - CompletableFuture<Map> - Future that completes with a map from index in examples to error message for each example that failed"
+  (^CompletableFuture [manager dataset-id examples]
+   (c/add-dataset-examples-batch-async! manager dataset-id examples))
+  (^CompletableFuture [^AgentManager manager dataset-id examples options]
+   (c/add-dataset-examples-batch-async! manager dataset-id examples options)))
+
+(defn add-dataset-examples-batch!
+  "Adds a batch of examples to a dataset. Examples that violate the dataset's JSON schemas are skipped while the rest are still added.\n
+\n
+Args:\n
+  - manager - agent manager instance
+  - dataset-id - UUID of the dataset
+  - examples - Sequence of example maps (same as add-dataset-examples-batch-async!)
+  - options - Optional map with configuration (same as add-dataset-examples-batch-async!)
+\n
+Returns:\n
+  - Map from index in examples to error message for each example that failed
+\n
+Example:\n
+<pre>
+(aor/add-dataset-examples-batch! agent-manager dataset-id
+  [{:input \"What is AI?\" :reference-output \"AI is...\"}
+   {:input \"What is ML?\" :tags #{\"basic\"}}])
+</pre>"
+  ([manager dataset-id examples]
+   (c/add-dataset-examples-batch! manager dataset-id examples))
+  ([^AgentManager manager dataset-id examples options]
+   (c/add-dataset-examples-batch! manager dataset-id examples options)))
+
 (defn set-dataset-example-input!
   "Updates the input data for a specific dataset example.\n
 \n
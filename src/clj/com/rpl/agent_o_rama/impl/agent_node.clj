@@ -4,13 +4,18 @@
   (:require
    [clojure.tools.logging :as cljlogging]
    [com.rpl.agent-o-rama.impl.client :as iclient]
+   [com.rpl.agent-o-rama.impl.embedding-store :as es]
    [com.rpl.agent-o-rama.impl.helpers :as h]
    [com.rpl.agent-o-rama.impl.langchain4j-trace :as lc4j-trace]
    [com.rpl.agent-o-rama.impl.partitioner :as apart]
    [com.rpl.agent-o-rama.impl.pobjects :as po]
+   [com.rpl.agent-o-rama.impl.rate-limits :as rl]
+   [com.rpl.agent-o-rama.impl.stats :as stats]
    [com.rpl.agent-o-rama.impl.store-impl :as simpl]
+   [com.rpl.agent-o-rama.impl.trace-capture :as tc]
    [com.rpl.agent-o-rama.impl.types :as aor-types]
-   [com.rpl.rama.ops :as ops])
+   [com.rpl.rama.ops :as ops]
+   [jsonista.core :as j])
   (:import
    [com.rpl.agentorama
     AgentClient
@@ -23,7 +28,12 @@
    [com.rpl.agentorama.impl
     AgentDeclaredObjectsTaskGlobal
     AgentNodeExecutorTaskGlobal
-    RamaClientsTaskGlobal]
+    MicroBatcher
+    RamaClientsTaskGlobal
+    ResultCache
+    ResultCache$Entry]
+   [com.rpl.agentorama.store
+    KeyValueStore]
    [com.rpl.agent_o_rama.impl.types
     Node]
    [dev.langchain4j.model.chat
@@ -34,12 +44,30 @@
    [dev.langchain4j.data.segment
     TextSegment]
    [dev.langchain4j.data.message
-    ChatMessage]
+    AiMessage
+    ChatMessage
+    ChatMessageDeserializer
+    ChatMessageSerializer]
+   [dev.langchain4j.agent.tool
+    ToolSpecification]
+   [dev.langchain4j.internal
+    JsonSchemaElementUtils]
    [dev.langchain4j.model.chat.request
-    ChatRequest]
+    ChatRequest
+    ChatRequestParameters
+    ResponseFormat]
+   [dev.langchain4j.model.chat.request.json
+    JsonSchema
+    JsonSchemaElement]
    [dev.langchain4j.model.chat.response
     ChatResponse
     StreamingChatResponseHandler]
+   [dev.langchain4j.model.embedding
+    EmbeddingModel]
+   [dev.langchain4j.model.output
+    FinishReason
+    Response
+    TokenUsage]
    [dev.langchain4j.store.embedding
     EmbeddingMatch
     EmbeddingStore]
@@ -48,9 +76,21 @@
    [java.io
     Closeable]
    [java.util
+    List
+    Map
+    Queue
     UUID]
    [java.util.concurrent
-    CompletableFuture]))
+    CompletableFuture
+    CompletionException
+    ConcurrentLinkedQueue
+    ExecutionException]
+   [java.util.function
+    BiConsumer
+    BiFunction
+    Function]
+   [java.util.concurrent.locks
+    ReentrantLock]))
 
 (defn next-task-id
   [task-id-vol ^com.rpl.rama.ModuleInstanceInfo module-instance-info]
@@ -64,8 +104,65 @@
     (vswap! task-id-vol next)
     ret))
 
+(defn- least-loaded-task-id
+  [^com.rpl.rama.ModuleInstanceInfo module-instance-info placed-vol]
+  (let [executors (AgentNodeExecutorTaskGlobal/getWorkerExecutors
+                   (.getModuleName module-instance-info))]
+    ;; load is only known for tasks this worker leads, so unless it leads all of them this
+    ;; returns nil and emits are placed round-robin instead
+    (when (= (count executors) (.getNumTasks module-instance-info))
+      ;; counts emits already placed by this node invoke, since they aren't running yet
+      (let [load-fn (fn [[task-id ^AgentNodeExecutorTaskGlobal node-exec]]
+                      (+ (.getRunningCount node-exec) (get @placed-vol task-id 0)))
+            task-id (key (apply min-key load-fn (shuffle (seq executors))))]
+        (vswap! placed-vol update task-id (fnil inc 0))
+        (long task-id)))))
+
+;; partition key fns are stored in the graph by name, and resolved once per worker
+(defonce ^:private PLACEMENT-KEY-FNS (java.util.concurrent.ConcurrentHashMap.))
+
+(defn- placement-key-fn
+  [{:keys [key-fn key-fn-class]}]
+  (.computeIfAbsent
+   ^java.util.concurrent.ConcurrentHashMap PLACEMENT-KEY-FNS
+   (or key-fn key-fn-class)
+   (reify Function
+     (apply [_ _]
+       (if key-fn
+         (requiring-resolve key-fn)
+         (let [^com.rpl.rama.ops.RamaFunction1 f
+               (.newInstance (.getDeclaredConstructor (Class/forName key-fn-class)
+                                                      (make-array Class 0))
+                             (object-array 0))]
+           (fn [& args] (.invoke f (vec args)))))))))
+
+(defn- emit-task-id
+  [{:keys [node placement]} args emit-count task-id agent-task-id task-ids-vol placed-vol
+   ^com.rpl.rama.ModuleInstanceInfo module-instance-info]
+  (if-not (instance? Node node)
+    agent-task-id
+    (case (get placement :strategy :round-robin)
+      :agent-root
+      agent-task-id
+
+      :partition-key
+      (Math/floorMod (long (hash (apply (placement-key-fn placement) args)))
+                     (long (.getNumTasks module-instance-info)))
+
+      :least-loaded
+      (or (least-loaded-task-id module-instance-info placed-vol)
+          (next-task-id task-ids-vol module-instance-info))
+
+      :round-robin
+      (if (= emit-count 1)
+        task-id
+        (next-task-id task-ids-vol module-instance-info)))))
+
 (defprotocol AgentNodeInternal
   (agent-node-state [this])
+  (track-async-call! [this cf])
+  (wait-async-calls! [this])
+  (run-concurrently! [this afns])
   (release-acquired-objects! [this])
   (get-streaming-recorder [this])
   (get-declared-objects [this])
@@ -141,10 +238,6 @@
          (verify-successful-cf! cf)))
     )))
 
-(defn- no-async!
-  []
-  (throw (h/ex-info "Async API not implemented for subagents" {})))
-
 (defn- no-stream!
   []
   (throw (h/ex-info "Streaming not implemented for subagents" {})))
@@ -177,6 +270,79 @@
      ~res-sym
    ))
 
+(defn completion-cause
+  [^Throwable t]
+  (if (and (instance? CompletionException t) (some? (.getCause t)))
+    (.getCause t)
+    t))
+
+(defn with-call-failure
+  [info t]
+  (if (some? t)
+    (-> info
+        (dissoc "result")
+        (assoc "failure" (h/throwable->str (completion-cause t))))
+    info))
+
+;; failed calls are recorded too, with the failure in place of the result
+(defmacro timed-agent-call-async
+  [expr agent-node-sym agent-info-tuple [res-sym] info-map-expr]
+  `(let [start-time-millis# (h/current-time-millis)
+         [agent-module-name# agent-name#] ~agent-info-tuple]
+     (track-async-call!
+      ~agent-node-sym
+      (.whenComplete
+       ~(with-meta expr {:tag 'java.util.concurrent.CompletableFuture})
+       (reify
+        BiConsumer
+        (accept [_# ~res-sym t#]
+          (record-nested-op!-impl
+           ~agent-node-sym
+           :agent-call
+           start-time-millis#
+           (h/current-time-millis)
+           (with-call-failure
+            (assoc ~info-map-expr
+             "agent-module-name" agent-module-name#
+             "agent-name" agent-name#)
+            t#))))))))
+
+(defn- record-next-step!
+  [agent-node [agent-module-name agent-name] agent-invoke start-time-millis ret]
+  (let [[stats res] (if (instance? HumanInputRequest ret)
+                      [nil ret]
+                      [(:stats ret) (:result ret)])
+        data-map    {"op"                "nextStep"
+                     "agent-invoke"      agent-invoke
+                     "agent-module-name" agent-module-name
+                     "agent-name"        agent-name}
+        data-map    (if stats (assoc data-map "stats" stats) data-map)
+        data-map    (if (instance? AgentFailedException res)
+                      data-map
+                      (assoc data-map "result" res))]
+    (record-nested-op!-impl
+     agent-node
+     :agent-call
+     start-time-millis
+     (h/current-time-millis)
+     data-map)
+    (if (instance? AgentFailedException res)
+      (throw res))
+    res))
+
+(defn- merge-async-nested-ops
+  [nested-ops ^Queue async-nested-ops]
+  (if (.isEmpty async-nested-ops)
+    nested-ops
+    (vec (sort-by :start-time-millis (into nested-ops async-nested-ops)))))
+
+(defn- wait-async-call
+  [^CompletableFuture cf]
+  ;; failures are surfaced to the node through the future itself
+  (try
+    (.join cf)
+    (catch Exception _)))
+
 (defn mk-fetcher
   ^AgentObjectFetcher []
   (let [declared-objects-tg   (po/agent-declared-objects-task-global)
@@ -198,6 +364,10 @@
   []
   (h/random-uuid7))
 
+(def AGENT-NODE-CONTEXT (ThreadLocal.))
+;; set on threads running work for a node alongside the node's own thread
+(def CONCURRENT-CONTEXT (ThreadLocal.))
+
 (defn mk-agent-node
   [agent-name agent-graph agent-task-id agent-id execution-context curr-node invoke-id retry-num
    store-info ^RamaClientsTaskGlobal rama-clients]
@@ -206,7 +376,19 @@
         emits-vol           (volatile! [])
         nested-ops-vol      (volatile! [])
         task-ids-vol        (volatile! nil)
+        placed-vol          (volatile! {})
         emit-count-vol      (volatile! 0)
+        ;; nested ops recorded off the node's thread, like by async subagent calls, are queued
+        ;; and merged in by start time when the node finishes
+        async-nested-ops    (ConcurrentLinkedQueue.)
+        async-calls         (ConcurrentLinkedQueue.)
+        human-input-lock    (ReentrantLock.)
+        conj-nested-op!     (fn [agent-node nested-op]
+                              (if (and (identical? agent-node
+                                                   (h/thread-local-get AGENT-NODE-CONTEXT))
+                                       (not (h/thread-local-get CONCURRENT-CONTEXT)))
+                                (vswap! nested-ops-vol conj nested-op)
+                                (.add async-nested-ops nested-op)))
         valid-output-nodes  (-> agent-graph
                                 :node-map
                                 (get curr-node)
@@ -248,13 +430,14 @@
           (aor-types/->valid-AgentNodeEmit
            (gen-node-id)
            nil
-           (if (selected-any? [:node-map (keypath node) :node
-                               #(instance? Node %)]
-                              agent-graph)
-             (if (= emit-count 1)
-               task-id
-               (next-task-id task-ids-vol module-instance-info))
-             agent-task-id)
+           (emit-task-id (select-any [:node-map (keypath node)] agent-graph)
+                         args
+                         emit-count
+                         task-id
+                         agent-task-id
+                         task-ids-vol
+                         placed-vol
+                         module-instance-info)
            node
            (vec args)
           ))))
@@ -280,7 +463,7 @@
               false
               (.getLocalPState rama-clients name)
               (.getPStateWriteDepot rama-clients)
-              nested-ops-vol)]
+              #(conj-nested-op! this %))]
          ;; TODO: not sure this is the right approach for mirrors
          (condp = (get (:store-info store-info) name)
            simpl/KV
@@ -289,6 +472,11 @@
            simpl/DOC
            (simpl/mk-doc-store store-params)
 
+           simpl/EMBEDDING
+           (es/mk-embedding-store store-params
+                                  (.getEmbeddingStoreWriteDepot rama-clients)
+                                  (.getEmbeddingStoreSearchQuery rama-clients))
+
            nil
            (simpl/mk-pstate-store store-params)
 
@@ -307,7 +495,9 @@
             (let [inv (.initiate this args)]
               (.result this inv)))
           (invokeAsync [this args]
-            (no-async!))
+            (.thenCompose ^CompletableFuture (.initiateAsync this args)
+                          (h/cf-function [inv]
+                            (.resultAsync this inv))))
           (initiate [this args]
             (timed-agent-call
              (.initiate client args)
@@ -318,12 +508,33 @@
               "args"   (vec args) ; so it doesn't put a raw array in the trace
               "result" res}))
           (initiateAsync [this args]
-            (no-async!))
+            (timed-agent-call-async
+             (.initiateAsync client args)
+             agent-node
+             agent-info-tuple
+             [res]
+             {"op"     "initiate"
+              "args"   (vec args)
+              "result" res}))
+          (initiateBatch [this argsList context]
+            (.get (.initiateBatchAsync this argsList context)))
+          (initiateBatchAsync [this argsList context]
+            (timed-agent-call-async
+             (.initiateBatchAsync client argsList context)
+             agent-node
+             agent-info-tuple
+             [res]
+             {"op"     "initiateBatch"
+              "args"   (mapv vec argsList)
+              "result" res}))
           (fork [this invoke nodeInvokeIdToNewArgs]
             (let [inv (.initiateFork this invoke nodeInvokeIdToNewArgs)]
               (.result this inv)))
           (forkAsync [this invoke nodeInvokeIdToNewArgs]
-            (no-async!))
+            (.thenCompose ^CompletableFuture
+                          (.initiateForkAsync this invoke nodeInvokeIdToNewArgs)
+                          (h/cf-function [inv]
+                            (.resultAsync this inv))))
           (initiateFork [this invoke nodeInvokeIdToNewArgs]
             (timed-agent-call
              (.initiateFork client invoke nodeInvokeIdToNewArgs)
@@ -335,42 +546,49 @@
               "new-args-map" nodeInvokeIdToNewArgs
               "result"       res}))
           (initiateForkAsync [this invoke invokeIdToNewArgs]
-            (no-async!))
+            (timed-agent-call-async
+             (.initiateForkAsync client invoke invokeIdToNewArgs)
+             agent-node
+             agent-info-tuple
+             [res]
+             {"op"           "initiateFork"
+              "invoke"       invoke
+              "new-args-map" invokeIdToNewArgs
+              "result"       res}))
           (nextStep [this agent-invoke]
             (let [start-time-millis (h/current-time-millis)
                   ret               (.get ^CompletableFuture
-                                          (aor-types/subagent-next-step-async client agent-invoke))
-                  [stats res]       (if (instance? HumanInputRequest ret)
-                                      [nil ret]
-                                      [(:stats ret) (:result ret)])
-
-                  finish-time-millis
-                  (h/current-time-millis)
-                  [agent-module-name agent-name]
-                  agent-info-tuple
-                  data-map
-                  {"op"           "nextStep"
-                   "agent-invoke" agent-invoke
-                   "agent-module-name" agent-module-name
-                   "agent-name"   agent-name}
-
-                  data-map
-                  (if stats (assoc data-map "stats" stats) data-map)
-                  data-map
-                  (if (instance? AgentFailedException res) data-map (assoc data-map "result" res))
-                 ]
-              (record-nested-op!-impl
-               agent-node
-               :agent-call
-               start-time-millis
-               finish-time-millis
-               data-map)
-              (if (instance? AgentFailedException res)
-                (throw res))
-              res
+                                          (aor-types/subagent-next-step-async client agent-invoke))]
+              (record-next-step! agent-node agent-info-tuple agent-invoke start-time-millis ret)
             ))
           (nextStepAsync [this agent-invoke]
-            (no-async!))
+            (let [start-time-millis (h/current-time-millis)]
+              (track-async-call!
+               agent-node
+               (.handle ^CompletableFuture
+                        (aor-types/subagent-next-step-async client agent-invoke)
+                        (reify
+                         BiFunction
+                         (apply [_ ret t]
+                           (if (some? t)
+                             (let [[agent-module-name agent-name] agent-info-tuple]
+                               (record-nested-op!-impl
+                                agent-node
+                                :agent-call
+                                start-time-millis
+                                (h/current-time-millis)
+                                (with-call-failure
+                                 {"op"                "nextStep"
+                                  "agent-invoke"      agent-invoke
+                                  "agent-module-name" agent-module-name
+                                  "agent-name"        agent-name}
+                                 t))
+                               (throw (completion-cause t)))
+                             (record-next-step! agent-node
+                                                agent-info-tuple
+                                                agent-invoke
+                                                start-time-millis
+                                                ret))))))))
           (result [this agent-invoke]
             (loop [step (.nextStep this agent-invoke)]
               (if (instance? HumanInputRequest step)
@@ -382,7 +600,29 @@
                   (recur (.nextStep this agent-invoke)))
                 (:result step))))
           (resultAsync [this agent-invoke]
-            (no-async!))
+            (.thenCompose
+             ^CompletableFuture (.nextStepAsync this agent-invoke)
+             (h/cf-function [step]
+               (if (instance? HumanInputRequest step)
+                 ;; getting human input blocks, so it runs on its own virtual thread, tracked
+                 ;; so the node waits for it
+                 (let [cf      (CompletableFuture.)
+                       tracked (track-async-call! agent-node cf)]
+                   (.submitTask node-exec
+                                nil
+                                (fn []
+                                  (try
+                                    (.provideHumanInput
+                                     this
+                                     step
+                                     (.getHumanInput agent-node (:prompt step)))
+                                    (.complete cf nil)
+                                    (catch Throwable t
+                                      (.completeExceptionally cf t)))))
+                   (.thenCompose ^CompletableFuture tracked
+                                 (h/cf-function [_]
+                                   (.resultAsync this agent-invoke))))
+                 (CompletableFuture/completedFuture (:result step))))))
           (stream [this agent-invoke node]
             (no-stream!))
           (stream [this agent-invoke node stream-callback]
@@ -405,8 +645,15 @@
              {"op"           "pendingHumanInputs"
               "agent-invoke" agent-invoke
               "result"       res}))
-          (pendingHumanInputsAsync [this invoke]
-            (no-async!))
+          (pendingHumanInputsAsync [this agent-invoke]
+            (timed-agent-call-async
+             (.pendingHumanInputsAsync client agent-invoke)
+             agent-node
+             agent-info-tuple
+             [res]
+             {"op"           "pendingHumanInputs"
+              "agent-invoke" agent-invoke
+              "result"       res}))
           (provideHumanInput [this request response]
             (timed-agent-call
              (.provideHumanInput client request response)
@@ -417,7 +664,14 @@
               "request"  request
               "response" response}))
           (provideHumanInputAsync [this request response]
-            (no-async!))
+            (timed-agent-call-async
+             (.provideHumanInputAsync client request response)
+             agent-node
+             agent-info-tuple
+             [res]
+             {"op"       "provideHumanInput"
+              "request"  request
+              "response" response}))
           (close [this]
             (close! client))
           aor-types/AgentClientInternal
@@ -425,6 +679,15 @@
             (aor-types/invoke-with-context-async-internal client context args))
           (initiate-with-context-async-internal [this context args]
             (aor-types/initiate-with-context-async-internal client context args))
+          (initiate-batch-async-internal [this context args-list]
+            (timed-agent-call-async
+             (aor-types/initiate-batch-async-internal client context args-list)
+             agent-node
+             agent-info-tuple
+             [res]
+             {"op"     "initiateBatch"
+              "args"   args-list
+              "result" res}))
           (subagent-next-step-async [this agent-invoke]
             (aor-types/subagent-next-step-async client agent-invoke))
           aor-types/UnderlyingObjects
@@ -440,38 +703,43 @@
                             :finish-time-millis finish-time-millis})))
        (when-not (every? string? (keys info))
          (throw (h/ex-info "Info map must contain string keys" {:info info})))
-       (vswap! nested-ops-vol
-               conj
-               (aor-types/->NestedOpInfoImpl
-                start-time-millis
-                finish-time-millis
-                (aor-types/nested-op-type->clj type)
-                (into {} info))))
+       (conj-nested-op!
+        this
+        (aor-types/->NestedOpInfoImpl
+         start-time-millis
+         finish-time-millis
+         (aor-types/nested-op-type->clj type)
+         (into {} info))))
      (getHumanInput
        [this prompt]
-       (let [start-time-millis (h/current-time-millis)
-             request (aor-types/->valid-NodeHumanInputRequest
-                      agent-task-id
-                      agent-id
-                      curr-node
-                      task-id
-                      invoke-id
-                      prompt
-                      (h/random-uuid-str))
-             cf      (CompletableFuture.)
-             _ (.putHumanFuture node-exec invoke-id request cf)
-             _ (foreign-append! human-depot request :append-ack)
-             ret     (.get cf)]
-         (vswap! nested-ops-vol
-                 conj
-                 (aor-types/->NestedOpInfoImpl
-                  start-time-millis
-                  (h/current-time-millis)
-                  :human-input
-                  {"prompt" prompt
-                   "result" ret}))
-         ret
-       ))
+       ;; a node has at most one outstanding human input request, so requests made from
+       ;; parallel subagent calls take turns
+       (.lock human-input-lock)
+       (try
+        (let [start-time-millis (h/current-time-millis)
+              request (aor-types/->valid-NodeHumanInputRequest
+                       agent-task-id
+                       agent-id
+                       curr-node
+                       task-id
+                       invoke-id
+                       prompt
+                       (h/random-uuid-str))
+              cf      (CompletableFuture.)
+              _ (.putHumanFuture node-exec invoke-id request cf)
+              _ (foreign-append! human-depot request :append-ack)
+              ret     (.get cf)]
+          (conj-nested-op!
+           this
+           (aor-types/->NestedOpInfoImpl
+            start-time-millis
+            (h/current-time-millis)
+            :human-input
+            {"prompt" prompt
+             "result" ret}))
+          ret)
+        (finally
+          (.unlock human-input-lock))))
      AgentNodeInternal
      (get-declared-objects [this]
        declared-objects-tg)
@@ -482,8 +750,63 @@
      (agent-node-state [this]
        {:emits      @emits-vol
         :result     @result-vol
-        :nested-ops @nested-ops-vol
-       }))))
+        :nested-ops (merge-async-nested-ops @nested-ops-vol async-nested-ops)
+       })
+     (track-async-call! [this cf]
+       ;; - the call is registered before it can complete, and the future handed back is
+       ;; completed here so callbacks attached to it run before the call counts as done
+       ;; - calls made from those callbacks are therefore registered before the call that
+       ;; triggered them is done, so the node keeps waiting until none are left
+       (let [ret  (CompletableFuture.)
+             done (CompletableFuture.)]
+         (.add async-calls done)
+         (.whenComplete
+          ^CompletableFuture cf
+          (reify
+           BiConsumer
+           (accept [_ res t]
+             (try
+               (if (some? t)
+                 (.completeExceptionally ret (completion-cause t))
+                 (.complete ret res))
+               (finally
+                 (.complete done nil))))))
+         ret))
+     (wait-async-calls! [this]
+       (loop []
+         (when-let [cf (.poll async-calls)]
+           (wait-async-call cf)
+           (recur))))
+     (run-concurrently! [this afns]
+       ;; each fn runs on its own virtual thread with the node's context, so agent objects
+       ;; used inside are traced on this node
+       (let [acquire-timeout-millis (h/thread-local-get
+                                     AgentDeclaredObjectsTaskGlobal/ACQUIRE_TIMEOUT_MILLIS)
+             cfs (mapv
+                  (fn [afn]
+                    (let [cf (CompletableFuture.)]
+                      (.submitTask node-exec
+                                   nil
+                                   (fn []
+                                     (try
+                                       (h/thread-local-set! AGENT-NODE-CONTEXT this)
+                                       (h/thread-local-set! CONCURRENT-CONTEXT true)
+                                       (h/thread-local-set!
+                                        AgentDeclaredObjectsTaskGlobal/ACQUIRE_TIMEOUT_MILLIS
+                                        acquire-timeout-millis)
+                                       (.complete cf (afn))
+                                       (catch Throwable t
+                                         (.completeExceptionally cf t)))))
+                      cf))
+                  afns)]
+         ;; every fn finishes before any failure is rethrown, so none outlive the node
+         (wait-async-call (CompletableFuture/allOf (into-array CompletableFuture cfs)))
+         (mapv (fn [^CompletableFuture cf]
+                 (try
+                   (.join cf)
+                   (catch java.util.concurrent.CompletionException e
+                     (throw (.getCause e)))))
+               cfs))))))
 
 (defn submit-virtual-task!
   [invoke-id afn]
@@ -491,49 +814,80 @@
         (po/agent-node-executor-task-global)]
     (.submitTask node-exec invoke-id afn)))
 
+(def PRIORITY-CLASSES
+  {:interactive AgentNodeExecutorTaskGlobal/INTERACTIVE
+   :batch       AgentNodeExecutorTaskGlobal/BATCH})
+
+(defn submit-node-task!
+  [agent-name node invoke-id priority agent-limit node-limits interactive-reserved
+   batch-reserved afn]
+  (let [^AgentNodeExecutorTaskGlobal node-exec
+        (po/agent-node-executor-task-global)
+        reserved (long-array [interactive-reserved batch-reserved])]
+    (.submitNodeTask node-exec
+                     invoke-id
+                     agent-name
+                     node
+                     (int (get PRIORITY-CLASSES
+                               priority
+                               AgentNodeExecutorTaskGlobal/INTERACTIVE))
+                     agent-limit
+                     (get node-limits node 0)
+                     reserved
+                     afn)))
+
 (defn log-node-error
   [t msg data]
   (cljlogging/error t msg data))
 
-(def AGENT-NODE-CONTEXT (ThreadLocal.))
-
 (defn try-close!
   [obj]
   (when (instance? Closeable obj)
     (close! obj)))
 
+(def ^:private TOKEN-COUNT-KEYS
+  ["inputTokenCount" "outputTokenCount" "totalTokenCount"])
+
 (defn- record-model-call!
   [name agent-node ^ChatRequest request ^ChatResponse response start-time-millis
-   first-token-time-millis]
+   first-token-time-millis cache-info]
   (record-nested-op!-impl
    agent-node
    :model-call
    start-time-millis
    (h/current-time-millis)
-   (h/remove-empty-vals
-    {"objectName"       name
-     "modelName"        (.modelName response)
-     "frequencyPenalty" (.frequencyPenalty request)
-     "presencePenalty"  (.presencePenalty request)
-     "stopSequences"    (into [] (.stopSequences request))
-     "temperature"      (.temperature request)
-     "topK"             (.topK request)
-     "topP"             (.topP request)
-     "input"            (lc4j-trace/messages->trace (.messages request))
-     "response"         (h/safe-> response .aiMessage .text)
-     "finishReason"     (lc4j-trace/finish-reason->trace
-                         (.finishReason response))
-     "inputTokenCount"  (h/safe-> response
-                                  .tokenUsage
-                                  .inputTokenCount)
-     "outputTokenCount" (h/safe-> response
-                                  .tokenUsage
-                                  .outputTokenCount)
-     "totalTokenCount"  (h/safe-> response
-                                  .tokenUsage
-                                  .totalTokenCount)
-     "firstTokenTimeMillis" first-token-time-millis
-    })))
+   (cond->
+     (h/remove-empty-vals
+      {"objectName"       name
+       "modelName"        (.modelName response)
+       "frequencyPenalty" (.frequencyPenalty request)
+       "presencePenalty"  (.presencePenalty request)
+       "stopSequences"    (into [] (.stopSequences request))
+       "temperature"      (.temperature request)
+       "topK"             (.topK request)
+       "topP"             (.topP request)
+       "input"            (lc4j-trace/messages->trace (.messages request))
+       "response"         (h/safe-> response .aiMessage .text)
+       "finishReason"     (lc4j-trace/finish-reason->trace
+                           (.finishReason response))
+       "inputTokenCount"  (h/safe-> response
+                                    .tokenUsage
+                                    .inputTokenCount)
+       "outputTokenCount" (h/safe-> response
+                                    .tokenUsage
+                                    .outputTokenCount)
+       "totalTokenCount"  (h/safe-> response
+                                    .tokenUsage
+                                    .totalTokenCount)
+       "firstTokenTimeMillis" first-token-time-millis
+      })
+
+     ;; no tokens were spent on a cached response
+     (get cache-info "cacheHit")
+     (as-> $ (apply dissoc $ TOKEN-COUNT-KEYS))
+
+     cache-info
+     (merge cache-info))))
 
 (defn record-model-failure!
   [name agent-node ^ChatRequest request start-time-millis t]
@@ -546,47 +900,261 @@
     "input"      (lc4j-trace/messages->trace (.messages request))
     "failure"    (h/throwable->str t)}))
 
+(def DEFAULT-RESPONSE-CACHE-OPTIONS
+  {:max-entries 1000
+   :max-bytes   0
+   :ttl-millis  0})
+
+(defn- mk-response-cache
+  [response-cache-options]
+  (when response-cache-options
+    (let [{:keys [max-entries max-bytes ttl-millis store]}
+          (merge DEFAULT-RESPONSE-CACHE-OPTIONS response-cache-options)]
+      {:cache (ResultCache. (long max-entries) (long max-bytes) (long ttl-millis))
+       :store store})))
+
+(def DEFAULT-EMBEDDING-BATCH-OPTIONS
+  {:max-batch-size  32
+   :max-wait-millis 5})
+
+(defn- embed-batch
+  [items]
+  ;; each item is [model segment], and the model of the first caller runs the whole batch since
+  ;; that caller is blocked waiting on it
+  (let [^EmbeddingModel model (ffirst items)
+        ^Response response    (.embedAll model (mapv second items))
+        batch-size            (count items)]
+    (mapv (fn [embedding] {:embedding embedding :batch-size batch-size})
+          (.content response))))
+
+(defn- mk-embedding-batcher
+  [embedding-batch-options]
+  (when embedding-batch-options
+    (let [{:keys [max-batch-size max-wait-millis]}
+          (merge DEFAULT-EMBEDDING-BATCH-OPTIONS embedding-batch-options)]
+      (MicroBatcher. (int max-batch-size) (long max-wait-millis) embed-batch))))
+
+(defn mk-wrap-options
+  "Returns the state shared by every instance of an agent object on a worker, built from its
+  declared info."
+  [name info rate-limit-depot]
+  {:response-cache    (mk-response-cache (get info "responseCache"))
+   :rate-limiter      (rl/mk-rate-limiter name (get info "rateLimit") rate-limit-depot)
+   :embedding-batcher (mk-embedding-batcher (get info "embeddingBatch"))})
+
+(defn- canonicalize
+  [v]
+  (cond
+    (instance? Map v) (into (sorted-map) (map (fn [[k x]] [(str k) (canonicalize x)])) v)
+    (instance? List v) (mapv canonicalize v)
+    :else v))
+
+(defn- schema->canonical
+  [^JsonSchemaElement schema]
+  (when schema
+    (JsonSchemaElementUtils/toMap schema)))
+
+(defn- tool-specification->canonical
+  [^ToolSpecification spec]
+  {"name"        (.name spec)
+   "description" (.description spec)
+   "parameters"  (schema->canonical (.parameters spec))})
+
+(defn- response-format->canonical
+  [^ResponseFormat response-format]
+  (when response-format
+    (let [^JsonSchema json-schema (.jsonSchema response-format)]
+      {"type"       (some-> (.type response-format) .name)
+       "schemaName" (some-> json-schema .name)
+       "schema"     (some-> json-schema .rootElement schema->canonical)})))
+
+(defn- chat-request-parameters->canonical
+  [^ChatRequestParameters params]
+  {"modelName"          (.modelName params)
+   "temperature"        (.temperature params)
+   "topP"               (.topP params)
+   "topK"               (.topK params)
+   "frequencyPenalty"   (.frequencyPenalty params)
+   "presencePenalty"    (.presencePenalty params)
+   "maxOutputTokens"    (.maxOutputTokens params)
+   "stopSequences"      (vec (.stopSequences params))
+   "toolChoice"         (some-> (.toolChoice params) .name)
+   "toolSpecifications" (mapv tool-specification->canonical (.toolSpecifications params))
+   "responseFormat"     (response-format->canonical (.responseFormat params))})
+
+(defn chat-request-cache-key
+  [^ChatRequest request]
+  (first (tc/digest-args [(str (ChatMessageSerializer/messagesToJson (.messages request))
+                               "\n"
+                               (j/write-value-as-string
+                                (canonicalize
+                                 (chat-request-parameters->canonical (.parameters request)))))])))
+
+(defn- chat-response->stored
+  [^ChatResponse response]
+  (let [^TokenUsage usage (.tokenUsage response)]
+    {:ai-message    (ChatMessageSerializer/messageToJson (.aiMessage response))
+     :model-name    (.modelName response)
+     :finish-reason (some-> (.finishReason response) .name)
+     :token-usage   (when usage
+                      [(.inputTokenCount usage)
+                       (.outputTokenCount usage)
+                       (.totalTokenCount usage)])}))
+
+(defn- stored->chat-response
+  ^ChatResponse [{:keys [ai-message model-name finish-reason token-usage]}]
+  (let [[input output total] token-usage]
+    (cond-> (ChatResponse/builder)
+      true (.aiMessage ^AiMessage (ChatMessageDeserializer/messageFromJson ai-message))
+      model-name (.modelName model-name)
+      finish-reason (.finishReason (FinishReason/valueOf finish-reason))
+      token-usage (.tokenUsage (TokenUsage. input output total))
+      true .build)))
+
+(defn- cached-response-size
+  [^String k ^ChatResponse response]
+  (let [text (or (h/safe-> response .aiMessage .text) "")]
+    (+ (alength (.getBytes k "UTF-8"))
+       (alength (.getBytes ^String text "UTF-8")))))
+
+(defn- estimate-tokens
+  [^ChatRequest request]
+  ;; roughly four characters per token, plus the requested output budget
+  (+ (quot (count (ChatMessageSerializer/messagesToJson (.messages request))) 4)
+     (or (.maxOutputTokens request) 0)))
+
+(defn- rate-limited-chat
+  [name agent-node rate-limiter ^ChatRequest request response-fn]
+  (if-not rate-limiter
+    (response-fn)
+    (let [tokens     (estimate-tokens request)
+          start-time (h/current-time-millis)
+          waited     (rl/acquire! rate-limiter tokens)]
+      (when (pos? waited)
+        (record-nested-op!-impl agent-node
+                                :other
+                                start-time
+                                (h/current-time-millis)
+                                {"objectName" name
+                                 "op"         "rateLimitWait"
+                                 "waitMillis" waited}))
+      (let [^ChatResponse response (response-fn)]
+        (rl/charge-actual-tokens! rate-limiter
+                                  tokens
+                                  (h/safe-> response .tokenUsage .totalTokenCount))
+        response))))
+
+(defn- response-cache-store
+  ^KeyValueStore [^AgentNode agent-node store-name]
+  (when (and agent-node store-name)
+    (.getStore agent-node store-name)))
+
+(defn- cached-chat-response
+  "Returns [response cache-info]. replay-fn is called with a response served from the cache."
+  [{:keys [^ResultCache cache store]} agent-node ^ChatRequest request response-fn replay-fn]
+  (let [k     (chat-request-cache-key request)
+        now   (h/current-time-millis)
+        store (response-cache-store agent-node store)
+        hit!  (fn [response tier latency-millis]
+                (replay-fn response)
+                [response
+                 {"cacheHit" true "cacheTier" tier "savedMillis" latency-millis}])]
+    (if-let [^ResultCache$Entry e (.get cache k)]
+      (hit! (.result e) "memory" (.latencyMillis e))
+      (let [{:keys [expires-at-millis latency-millis] :as stored}
+            (when store (.get store k))]
+        (if (and stored (> expires-at-millis now))
+          (let [response (stored->chat-response (:response stored))]
+            (.put cache
+                  k
+                  response
+                  (cached-response-size k response)
+                  expires-at-millis
+                  latency-millis)
+            (hit! response "store" latency-millis))
+          (let [^ChatResponse response (response-fn)
+                latency    (- (h/current-time-millis) now)
+                expires-at (.expiresAt cache now)]
+            (.put cache k response (cached-response-size k response) expires-at latency)
+            (when store
+              (.put store
+                    k
+                    {:response          (chat-response->stored response)
+                     :expires-at-millis expires-at
+                     :latency-millis    latency}))
+            [response {"cacheHit" false}]))))))
+
 (defn- instrument-chat!
-  [name request response-fn]
+  [name request response-fn {:keys [response-cache rate-limiter]}]
   (let [^AgentNode agent-node (h/thread-local-get AGENT-NODE-CONTEXT)
-        start-time-millis     (h/current-time-millis)]
+        start-time-millis     (h/current-time-millis)
+        response-fn           #(rate-limited-chat name
+                                                  agent-node
+                                                  rate-limiter
+                                                  request
+                                                  response-fn)]
     (try
-      (let [response (response-fn)]
-        (record-model-call! name agent-node request response start-time-millis nil)
+      (let [[response cache-info]
+            (if response-cache
+              (cached-chat-response response-cache agent-node request response-fn (fn [_]))
+              [(response-fn) nil])]
+        (record-model-call! name
+                            agent-node
+                            request
+                            response
+                            start-time-millis
+                            nil
+                            cache-info)
         response)
       (catch Throwable t
         (record-model-failure! name agent-node request start-time-millis t)
         (throw t)))))
 
 (defn- instrument-streaming-chat!
-  [name ^ChatRequest request initiate-fn]
+  [name ^ChatRequest request initiate-fn {:keys [response-cache rate-limiter]}]
   (let [^AgentNode agent-node (h/thread-local-get AGENT-NODE-CONTEXT)
-        start-time-millis     (h/current-time-millis)]
+        start-time-millis     (h/current-time-millis)
+        first-token-time-millis (atom nil)
+        update-token-time!
+        (fn [] (swap! first-token-time-millis (fn [v] (or v (h/current-time-millis)))))
+        stream-fn
+        (fn []
+          (let [cf (CompletableFuture.)]
+            (initiate-fn
+             (reify
+              StreamingChatResponseHandler
+              (onPartialResponse [this partial]
+                (update-token-time!)
+                (.streamChunk agent-node partial))
+              (onCompleteResponse [this response]
+                (update-token-time!)
+                (.complete cf response))
+              (onError [this t]
+                (.completeExceptionally
+                 cf
+                 (h/ex-info "Streaming failed" {:name name} t)))))
+            (.get cf)))
+        stream-fn
+        #(rate-limited-chat name agent-node rate-limiter request stream-fn)
+        ;; a cached response is streamed as a single chunk
+        replay-fn
+        (fn [^ChatResponse response]
+          (update-token-time!)
+          (when-let [text (h/safe-> response .aiMessage .text)]
+            (when agent-node
+              (.streamChunk agent-node text))))]
     (try
-      (let [cf (CompletableFuture.)
-            first-token-time-millis (atom nil)
-            update-token-time!
-            (fn [] (swap! first-token-time-millis (fn [v] (or v (h/current-time-millis)))))
-            _ (initiate-fn
-               (reify
-                StreamingChatResponseHandler
-                (onPartialResponse [this partial]
-                  (update-token-time!)
-                  (.streamChunk agent-node partial))
-                (onCompleteResponse [this response]
-                  (update-token-time!)
-                  (.complete cf response))
-                (onError [this t]
-                  (.completeExceptionally
-                   cf
-                   (h/ex-info "Streaming failed" {:name name} t)))))
-            response (.get cf)]
+      (let [[response cache-info]
+            (if response-cache
+              (cached-chat-response response-cache agent-node request stream-fn replay-fn)
+              [(stream-fn) nil])]
         (record-model-call! name
                             agent-node
                             request
                             response
                             start-time-millis
-                            @first-token-time-millis)
+                            @first-token-time-millis
+                            cache-info)
         response)
       (catch Throwable t
         (record-model-failure! name agent-node request start-time-millis t)
@@ -609,205 +1177,297 @@
      ~res-sym
    ))
 
+(defn- batched-embed
+  ^Embedding [name ^MicroBatcher batcher model ^TextSegment segment]
+  (let [agent-node        (h/thread-local-get AGENT-NODE-CONTEXT)
+        start-time-millis (h/current-time-millis)]
+    (try
+      (let [{:keys [embedding batch-size]}
+            (try
+              (.get (.submit batcher [model segment]))
+              (catch ExecutionException e
+                (throw (.getCause e))))]
+        (record-nested-op!-impl agent-node
+                                :model-call
+                                start-time-millis
+                                (h/current-time-millis)
+                                {"objectName" name
+                                 "op"         "embed"
+                                 "batchSize"  batch-size})
+        embedding)
+      (catch Throwable t
+        (record-nested-op!-impl agent-node
+                                :model-call
+                                start-time-millis
+                                (h/current-time-millis)
+                                {"objectName" name
+                                 "op"         "embed"
+                                 "failure"    (h/throwable->str t)})
+        (throw t)))))
+
 (defn wrap-agent-object
-  [name obj]
-  (cond
-    (instance? ChatModel obj)
-    (let [^ChatModel obj obj]
-      (reify
-       ChatModel
-       ;; - each provider overrides one of the following two methods and uses
-       ;; default impls for the rest of the "chat" methods
-       (^ChatResponse chat [this ^ChatRequest chatRequest]
-         (instrument-chat! name chatRequest #(.chat obj chatRequest)))
-       (^ChatResponse doChat [this ^ChatRequest chatRequest]
-         (instrument-chat! name chatRequest #(.doChat obj chatRequest)))
-       (defaultRequestParameters [this] (.defaultRequestParameters obj))
-       (listeners [this] (.listeners obj))
-       (provider [this] (.provider obj))
-       (supportedCapabilities [this] (.supportedCapabilities obj))
-
-       IUnderlying
-       (getUnderlying [this] obj)
-
-       Closeable
-       (close [this] (try-close! obj))))
-
-
-    (instance? StreamingChatModel obj)
-    (let [^StreamingChatModel obj obj]
-      (reify
-       ChatModel
-       ;; - same as with ChatModel impls, some StreamingChatModel impls
-       ;; implement chat(ChatRequest, StreamingChatResponseHandler) and others
-       ;; implement doChat(ChatRequest, StreamingChatResponseHandler)
-       ;; - so here only need to implement these entry points and forward to
-       ;; corresponding method on StreamingChatModel
-       (^ChatResponse chat [this ^ChatRequest chatRequest]
-         (instrument-streaming-chat!
-          name
-          chatRequest
-          #(.chat obj chatRequest ^StreamingChatResponseHandler %)))
-       (^ChatResponse doChat [this ^ChatRequest chatRequest]
-         (instrument-streaming-chat!
-          name
-          chatRequest
-          #(.doChat obj chatRequest ^StreamingChatResponseHandler %)))
-       (defaultRequestParameters [this] (.defaultRequestParameters obj))
-       (listeners [this] (.listeners obj))
-       (provider [this] (.provider obj))
-       (supportedCapabilities [this] (.supportedCapabilities obj))
-
-       IUnderlying
-       (getUnderlying [this] obj)
-
-       Closeable
-       (close [this] (try-close! obj))))
-
-    (instance? EmbeddingStore obj)
-    (let [^EmbeddingStore obj obj]
-      (reify
-       EmbeddingStore
-       (add [this embedding]
-         (with-traced
-          (.add obj embedding)
-          name
-          :db-write
-          [res]
-          {"op" "add"
-           "id" res
-          }))
-       (^String add [this ^Embedding embedding ^Object embedded]
-         (with-traced
-          (.add obj embedding embedded)
-          name
-          :db-write
-          [res]
-          {"op" "add"
-           "id" res
-          }))
-       (^void add [this ^String id ^Embedding embedding]
-         (with-traced
-          (.add obj id embedding)
-          name
-          :db-write
-          [res]
-          {"op" "add"
-           "id" id
-          }))
-       (addAll [this embeddings]
-         (with-traced
-          (.addAll obj embeddings)
-          name
-          :db-write
-          [res]
-          {"op"  "addAll"
-           "ids" res
-          }))
-       (addAll [this embeddings embeddeds]
-         (with-traced
-          (.addAll obj embeddings embeddeds)
-          name
-          :db-write
-          [res]
-          {"op"  "addAll"
-           "ids" res
-          }))
-       (addAll [this ids embeddings embeddeds]
-         (with-traced
-          (.addAll obj ids embeddings embeddeds)
-          name
-          :db-write
-          [res]
-          {"op"  "addAll"
-           "ids" ids
-          }))
-       (generateIds [this n]
-         (.generateIds obj n))
-       (remove [this id]
-         (with-traced
-          (.remove obj id)
-          name
-          :db-write
-          [res]
-          {"op" "remove"
-           "id" id
-          }))
-       (removeAll [this]
-         (with-traced
-          (.removeAll obj)
-          name
-          :db-write
-          [res]
-          {"op" "removeAll"
-          }))
-       (^void removeAll [this ^Filter filter]
-         (with-traced
-          (.removeAll obj filter)
-          name
-          :db-write
-          [res]
-          {"op"     "removeAll"
-           "filter" (str filter)
-          }))
-       (^void removeAll [this ^java.util.Collection ids]
-         (with-traced
-          (.removeAll obj ids)
-          name
-          :db-write
-          [res]
-          {"op"  "removeAll"
-           "ids" ids
-          }))
-       (search [this request]
-         (with-traced
-          (.search obj request)
-          name
-          :db-read
-          [res]
-          {"op"      "search"
-           "request" {"filter"     (str (.filter request))
-                      "maxResults" (.maxResults request)
-                      "minScore"   (.minScore request)}
-           "matches" (mapv
-                      (fn [^EmbeddingMatch match]
-                        (let [embedded (.embedded match)
-                              base-map {"id"    (.embeddingId match)
-                                        "score" (.score match)}]
-                          (if (instance? TextSegment embedded)
-                            (let [metadata (.metadata ^TextSegment embedded)]
-                              (if metadata
-                                (assoc base-map "metadata" (into {} (.toMap metadata)))
-                                base-map))
-                            base-map)))
-                      (.matches res))
-          }))
-
-       IUnderlying
-       (getUnderlying [this] obj)
-
-       Closeable
-       (close [this] (try-close! obj))))
-
-    :else
-    obj))
+  ([name obj]
+   (wrap-agent-object name obj nil))
+  ([name obj wrap-options]
+   (cond
+     (instance? ChatModel obj)
+     (let [^ChatModel obj obj]
+       (reify
+        ChatModel
+        ;; - each provider overrides one of the following two methods and uses
+        ;; default impls for the rest of the "chat" methods
+        (^ChatResponse chat [this ^ChatRequest chatRequest]
+          (instrument-chat! name chatRequest #(.chat obj chatRequest) wrap-options))
+        (^ChatResponse doChat [this ^ChatRequest chatRequest]
+          (instrument-chat! name chatRequest #(.doChat obj chatRequest) wrap-options))
+        (defaultRequestParameters [this] (.defaultRequestParameters obj))
+        (listeners [this] (.listeners obj))
+        (provider [this] (.provider obj))
+        (supportedCapabilities [this] (.supportedCapabilities obj))
+
+        IUnderlying
+        (getUnderlying [this] obj)
+
+        Closeable
+        (close [this] (try-close! obj))))
+
+
+     (instance? StreamingChatModel obj)
+     (let [^StreamingChatModel obj obj]
+       (reify
+        ChatModel
+        ;; - same as with ChatModel impls, some StreamingChatModel impls
+        ;; implement chat(ChatRequest, StreamingChatResponseHandler) and others
+        ;; implement doChat(ChatRequest, StreamingChatResponseHandler)
+        ;; - so here only need to implement these entry points and forward to
+        ;; corresponding method on StreamingChatModel
+        (^ChatResponse chat [this ^ChatRequest chatRequest]
+          (instrument-streaming-chat!
+           name
+           chatRequest
+           #(.chat obj chatRequest ^StreamingChatResponseHandler %)
+           wrap-options))
+        (^ChatResponse doChat [this ^ChatRequest chatRequest]
+          (instrument-streaming-chat!
+           name
+           chatRequest
+           #(.doChat obj chatRequest ^StreamingChatResponseHandler %)
+           wrap-options))
+        (defaultRequestParameters [this] (.defaultRequestParameters obj))
+        (listeners [this] (.listeners obj))
+        (provider [this] (.provider obj))
+        (supportedCapabilities [this] (.supportedCapabilities obj))
+
+        IUnderlying
+        (getUnderlying [this] obj)
+
+        Closeable
+        (close [this] (try-close! obj))))
+
+     ;; only wrapped when batching, since single embed calls coalesce into one embedAll
+     (and (instance? EmbeddingModel obj) (:embedding-batcher wrap-options))
+     (let [^EmbeddingModel obj obj
+           batcher (:embedding-batcher wrap-options)]
+       (reify
+        EmbeddingModel
+        (^Response embed [this ^String text]
+          (Response/from (batched-embed name batcher obj (TextSegment/from text))))
+        (^Response embed [this ^TextSegment segment]
+          (Response/from (batched-embed name batcher obj segment)))
+        ;; callers batching themselves are already efficient
+        (embedAll [this segments]
+          (.embedAll obj segments))
+        (dimension [this] (.dimension obj))
+
+        IUnderlying
+        (getUnderlying [this] obj)
+
+        Closeable
+        (close [this] (try-close! obj))))
+
+     (instance? EmbeddingStore obj)
+     (let [^EmbeddingStore obj obj]
+       (reify
+        EmbeddingStore
+        (add [this embedding]
+          (with-traced
+           (.add obj embedding)
+           name
+           :db-write
+           [res]
+           {"op" "add"
+            "id" res
+           }))
+        (^String add [this ^Embedding embedding ^Object embedded]
+          (with-traced
+           (.add obj embedding embedded)
+           name
+           :db-write
+           [res]
+           {"op" "add"
+            "id" res
+           }))
+        (^void add [this ^String id ^Embedding embedding]
+          (with-traced
+           (.add obj id embedding)
+           name
+           :db-write
+           [res]
+           {"op" "add"
+            "id" id
+           }))
+        (addAll [this embeddings]
+          (with-traced
+           (.addAll obj embeddings)
+           name
+           :db-write
+           [res]
+           {"op"  "addAll"
+            "ids" res
+           }))
+        (addAll [this embeddings embeddeds]
+          (with-traced
+           (.addAll obj embeddings embeddeds)
+           name
+           :db-write
+           [res]
+           {"op"  "addAll"
+            "ids" res
+           }))
+        (addAll [this ids embeddings embeddeds]
+          (with-traced
+           (.addAll obj ids embeddings embeddeds)
+           name
+           :db-write
+           [res]
+           {"op"  "addAll"
+            "ids" ids
+           }))
+        (generateIds [this n]
+          (.generateIds obj n))
+        (remove [this id]
+          (with-traced
+           (.remove obj id)
+           name
+           :db-write
+           [res]
+           {"op" "remove"
+            "id" id
+           }))
+        (removeAll [this]
+          (with-traced
+           (.removeAll obj)
+           name
+           :db-write
+           [res]
+           {"op" "removeAll"
+           }))
+        (^void removeAll [this ^Filter filter]
+          (with-traced
+           (.removeAll obj filter)
+           name
+           :db-write
+           [res]
+           {"op"     "removeAll"
+            "filter" (str filter)
+           }))
+        (^void removeAll [this ^java.util.Collection ids]
+          (with-traced
+           (.removeAll obj ids)
+           name
+           :db-write
+           [res]
+           {"op"  "removeAll"
+            "ids" ids
+           }))
+        (search [this request]
+          (with-traced
+           (.search obj request)
+           name
+           :db-read
+           [res]
+           {"op"      "search"
+            "request" {"filter"     (str (.filter request))
+                       "maxResults" (.maxResults request)
+                       "minScore"   (.minScore request)}
+            "matches" (mapv
+                       (fn [^EmbeddingMatch match]
+                         (let [embedded (.embedded match)
+                               base-map {"id"    (.embeddingId match)
+                                         "score" (.score match)}]
+                           (if (instance? TextSegment embedded)
+                             (let [metadata (.metadata ^TextSegment embedded)]
+                               (if metadata
+                                 (assoc base-map "metadata" (into {} (.toMap metadata)))
+                                 base-map))
+                             base-map)))
+                       (.matches res))
+           }))
+
+        IUnderlying
+        (getUnderlying [this] obj)
+
+        Closeable
+        (close [this] (try-close! obj))))
+
+     :else
+     obj)))
+
+(defn- captured-nested-ops
+  [agent-node capture-policy]
+  (let [^AgentDeclaredObjectsTaskGlobal declared-objects (get-declared-objects agent-node)]
+    (tc/capture-nested-ops capture-policy
+                           (fn [object-name] (.getCaptureLevel declared-objects object-name))
+                           (:nested-ops (agent-node-state agent-node)))))
+
+(defn- write-node-nested-ops!
+  "Writes the nested op payloads of a completed node straight into the node PState on its
+   task, before its NodeComplete is appended, so the NodeComplete only has to carry their
+   stats."
+  [agent-name task-id invoke-id retry-num ^AgentNode agent-node
+   ^RamaClientsTaskGlobal rama-clients nested-ops]
+  (let [inv (get-agent-invoke agent-node)]
+    (simpl/do-pstate-write!
+     (.getPStateWriteDepot rama-clients)
+     (aor-types/->PStateWriteAgentSource agent-name
+                                         (:task-id inv)
+                                         (:agent-invoke-id inv)
+                                         retry-num)
+     (po/agent-node-task-global-name agent-name)
+     (path (must invoke-id) :nested-ops NIL->VECTOR END (termval nested-ops))
+     (aor-types/->DirectTaskId task-id))))
 
 (defn node-event
   [agent-name task-id invoke-id retry-num node-name node-fn
    ^AgentNode agent-node args ^RamaClientsTaskGlobal rama-clients
-   fork-context acquire-timeout-millis]
+   fork-context acquire-timeout-millis separate-payloads? capture-policy]
   (fn []
-    (let [depot (.getAgentDepot rama-clients agent-name)]
+    (let [depot (.getAgentDepot rama-clients agent-name)
+          ;; set once the payloads are in the node PState, so a failure after that doesn't
+          ;; record them twice
+          written-vol (volatile! false)]
       (try
         (h/thread-local-set! AGENT-NODE-CONTEXT agent-node)
         (h/thread-local-set!
          AgentDeclaredObjectsTaskGlobal/ACQUIRE_TIMEOUT_MILLIS
          acquire-timeout-millis)
-        (let [res (apply node-fn agent-node args)
-              {:keys [emits result nested-ops]} (agent-node-state agent-node)]
+        (let [^longs admission (AgentNodeExecutorTaskGlobal/getAdmission)
+              res (apply node-fn agent-node args)
+              _   (wait-async-calls! agent-node)
+              {:keys [emits result]} (agent-node-state agent-node)
+              nested-ops (captured-nested-ops agent-node capture-policy)]
           (-> agent-node
               get-streaming-recorder
               waitFinish)
+          (when separate-payloads?
+            (write-node-nested-ops! agent-name
+                                    task-id
+                                    invoke-id
+                                    retry-num
+                                    agent-node
+                                    rama-clients
+                                    nested-ops)
+            (vreset! written-vol true))
           (foreign-append!
            depot
            (aor-types/->valid-NodeComplete
@@ -817,9 +1477,12 @@
             res
             emits
             result
-            nested-ops
+            (if separate-payloads? [] nested-ops)
             (h/current-time-millis)
-            fork-context)
+            fork-context
+            (when separate-payloads? (stats/nested-op-stats nested-ops))
+            (some-> admission (aget 0))
+            (some-> admission (aget 1)))
            :append-ack))
         (catch Throwable t
           (log-node-error t
@@ -833,9 +1496,7 @@
             invoke-id
             retry-num
             (h/throwable->str t)
-            (-> agent-node
-                agent-node-state
-                :nested-ops))
+            (if @written-vol [] (captured-nested-ops agent-node capture-policy)))
            :append-ack)
           (throw t))
         (finally
@@ -892,6 +1553,7 @@
            :node              *next-node
            :metadata          (get *execution-context :metadata)
            :source            (get *execution-context :source)
+           :priority          (get *execution-context :priority)
            :start-time-millis *start-time-millis
            :input             *args
            :agg-invoke-id     *agg-invoke-id
@@ -903,8 +1565,44 @@
    (read-config *agent-name
                 aor-types/ACQUIRE-OBJECT-TIMEOUT-MILLIS-CONFIG
                 :> *acquire-timeout-millis)
-   (submit-virtual-task!
+   (read-config *agent-name
+                aor-types/SEPARATE-NESTED-OP-PAYLOADS-CONFIG
+                :> *separate-payloads?)
+   (read-config *agent-name
+                aor-types/NESTED-OP-CAPTURE-LEVEL-CONFIG
+                :> *capture-level)
+   (read-config *agent-name
+                aor-types/NESTED-OP-CAPTURE-TRUNCATE-BYTES-CONFIG
+                :> *capture-truncate-bytes)
+   (read-config *agent-name
+                aor-types/NESTED-OP-FULL-CAPTURE-SAMPLE-RATE-CONFIG
+                :> *full-capture-sample-rate)
+   (tc/mk-capture-policy *capture-level
+                         *capture-truncate-bytes
+                         *full-capture-sample-rate
+                         *agent-id
+                         :> *capture-policy)
+   (read-config *agent-name
+                aor-types/MAX-RUNNING-NODES-PER-TASK-CONFIG
+                :> *agent-limit)
+   (read-config *agent-name
+                aor-types/MAX-RUNNING-NODES-PER-TASK-BY-NODE-CONFIG
+                :> *node-limits)
+   (read-config *agent-name
+                aor-types/INTERACTIVE-RESERVED-NODES-PER-TASK-CONFIG
+                :> *interactive-reserved)
+   (read-config *agent-name
+                aor-types/BATCH-RESERVED-NODES-PER-TASK-CONFIG
+                :> *batch-reserved)
+   (submit-node-task!
+    *agent-name
+    *next-node
     *invoke-id
+    (get *execution-context :priority)
+    *agent-limit
+    *node-limits
+    *interactive-reserved
+    *batch-reserved
     (node-event *agent-name
                 *task-id
                 *invoke-id
@@ -915,10 +1613,12 @@
                 *args
                 *rama-clients
                 *fork-context
-                *acquire-timeout-millis))
+                *acquire-timeout-millis
+                *separate-payloads?
+                *capture-policy))
    (:>)))
 
-(defn- invoke-or-error
+(defn invoke-or-error
   [afn info]
   (try
     (afn)
@@ -928,12 +1628,11 @@
 
 (defn hook:appended-agent-failure [agent-task-id agent-id retry-num])
 
-(deframaop invoke-on-task-thread
-  [*agent-name *agent-task-id *agent-id *node *invoke-id *retry-num *afn *info]
+(deframaop handle-invoke-result
+  [*agent-name *agent-task-id *agent-id *node *invoke-id *retry-num *res]
   (<<with-substitutions
    [$$root (po/agent-root-task-global *agent-name)
     *failure-depot (po/agent-failures-depot-task-global *agent-name)]
-   (invoke-or-error *afn *info :> *res)
    (<<if (and> (map? *res) (contains? *res ::error))
      (h/throwable->str (get *res ::error) :> *s)
      (|direct *agent-task-id)
@@ -953,3 +1652,28 @@
     (else>)
      (:> *res)
    )))
+
+(deframaop invoke-on-task-thread
+  [*agent-name *agent-task-id *agent-id *node *invoke-id *retry-num *afn *info]
+  (invoke-or-error *afn *info :> *res)
+  (handle-invoke-result *agent-name
+                        *agent-task-id
+                        *agent-id
+                        *node
+                        *invoke-id
+                        *retry-num
+                        *res
+                        :> *ret)
+  (:> *ret))
+
+(defn submit-agg-update!
+  [agg-invoke-id initial update-fn]
+  (let [^AgentNodeExecutorTaskGlobal node-exec
+        (po/agent-node-executor-task-global)]
+    (.submitAggUpdate node-exec agg-invoke-id initial update-fn)))
+
+(defn finish-agg-update!
+  [agg-invoke-id cf]
+  (let [^AgentNodeExecutorTaskGlobal node-exec
+        (po/agent-node-executor-task-global)]
+    (.finishAggUpdate node-exec agg-invoke-id cf)))
@@ -10,7 +10,8 @@
     AgentInvoke
     AgentManager
     AgentNode
-    AgentTopology]
+    AgentTopology
+    NewDatasetExample]
    [java.util.concurrent
     CompletableFuture]))
 
@@ -43,6 +44,24 @@
    agg
    node-fn))
 
+(defn set-node-placement
+  ([agent-graph name strategy]
+   (set-node-placement agent-graph name strategy nil))
+  ([agent-graph name strategy key-fn]
+   (graph/internal-set-node-placement!
+    agent-graph
+    name
+    (h/remove-empty-vals {:strategy strategy
+                          :key-fn   (if (var? key-fn) (symbol key-fn) key-fn)}))))
+
+(defn set-compact-agg-inputs
+  [agent-graph name]
+  (graph/internal-set-compact-agg-inputs! agent-graph name))
+
+(defn set-async-agg-updates
+  [agent-graph name]
+  (graph/internal-set-async-agg-updates! agent-graph name))
+
 (defn emit!
   [^AgentNode agent-node node & args]
   (.emit agent-node node (into-array Object args)))
@@ -67,6 +86,14 @@
   ^AgentInvoke [agent-client context & args]
   (.get ^CompletableFuture (apply agent-initiate-with-context-async agent-client context args)))
 
+(defn agent-initiate-batch-async
+  ^CompletableFuture [agent-client context args-list]
+  (aor-types/initiate-batch-async-internal agent-client context (mapv vec args-list)))
+
+(defn agent-initiate-batch
+  [agent-client context args-list]
+  (.get (agent-initiate-batch-async agent-client context args-list)))
+
 (defn agent-result
   [^AgentClient agent-client agent-invoke]
   (.result agent-client agent-invoke))
@@ -94,6 +121,32 @@
                               input
                               joptions))))
 
+(defn add-dataset-examples-batch-async!
+  (^CompletableFuture [manager dataset-id examples]
+   (add-dataset-examples-batch-async! manager dataset-id examples nil))
+  (^CompletableFuture [^AgentManager manager dataset-id examples options]
+   (h/validate-options! dataset-id options {:snapshot h/any-spec})
+   (.addDatasetExamplesBatchAsync
+    manager
+    dataset-id
+    (:snapshot options)
+    (mapv (fn [example]
+            (h/validate-options! dataset-id
+                                 example
+                                 {:input h/any-spec
+                                  :reference-output h/any-spec
+                                  :tags h/any-spec})
+            (NewDatasetExample. (:input example)
+                                (:reference-output example)
+                                (:tags example)))
+          examples))))
+
+(defn add-dataset-examples-batch!
+  ([manager dataset-id examples]
+   (.get (add-dataset-examples-batch-async! manager dataset-id examples)))
+  ([manager dataset-id examples options]
+   (.get (add-dataset-examples-batch-async! manager dataset-id examples options))))
+
 (defn add-dataset-example!
   ([manager dataset-id input]
    (.get (add-dataset-example-async! manager dataset-id input)))
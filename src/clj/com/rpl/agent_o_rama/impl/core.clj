@@ -5,6 +5,7 @@
    [clojure.set :as set]
    [com.rpl.agent-o-rama.impl.analytics :as ana]
    [com.rpl.agent-o-rama.impl.datasets :as datasets]
+   [com.rpl.agent-o-rama.impl.embedding-store :as es]
    [com.rpl.agent-o-rama.impl.evaluators :as evals]
    [com.rpl.agent-o-rama.impl.experiments :as exp]
    [com.rpl.agent-o-rama.impl.helpers :as h]
@@ -12,6 +13,7 @@
    [com.rpl.agent-o-rama.impl.partitioner :as apart]
    [com.rpl.agent-o-rama.impl.pobjects :as po]
    [com.rpl.agent-o-rama.impl.queries :as queries]
+   [com.rpl.agent-o-rama.impl.rate-limits :as rl]
    [com.rpl.agent-o-rama.impl.retries :as retries]
    [com.rpl.agent-o-rama.impl.topology :as at]
    [com.rpl.agent-o-rama.impl.types :as aor-types]
@@ -21,11 +23,14 @@
     AgentFailedException
     AgentInvoke
     AgentNode
-    AgentObjectOptions$Impl]
+    AgentObjectOptions$Impl
+    NestedOpCaptureLevel]
    [com.rpl.agentorama.impl
     RamaClientsTaskGlobal
     AgentDeclaredObjectsTaskGlobal
-    AgentNodeExecutorTaskGlobal]
+    AgentNodeExecutorTaskGlobal
+    DatasetSchemaCacheTaskGlobal
+    EmbeddingIndexTaskGlobal]
    [com.rpl.agent_o_rama.impl.types
     AggAckOp
     ChangeConfig
@@ -40,6 +45,9 @@
 
 (def SUBSTITUTE-TICK-DEPOTS false)
 (def DEFAULT-GC-TICK-MILLIS 10000)
+;; granularity of sending buffered aggregation stats, whose age is bounded by the agent's
+;; stats flush interval config
+(def STATS-FLUSH-TICK-MILLIS 250)
 (def DEFAULT-ANALYTICS-TICK-MILLIS 10000)
 
 ;; for agent-o-rama namespace
@@ -56,7 +64,9 @@
         agent-config-depot-sym    (symbol (po/agent-config-depot-name
                                            agent-name))
         agent-gc-tick-depot-sym   (symbol (po/agent-gc-tick-depot-name
-                                           agent-name))]
+                                           agent-name))
+        agent-stats-flush-tick-depot-sym (symbol (po/agent-stats-flush-tick-depot-name
+                                                  agent-name))]
     (declare-depot* setup agent-depot-sym apart/agent-depot-partitioner)
     (declare-depot* setup
                     agent-streaming-depot-sym
@@ -112,6 +122,10 @@
         (declare-depot* setup
                         agent-gc-tick-depot-sym
                         :random
+                        {:global? true})
+        (declare-depot* setup
+                        agent-stats-flush-tick-depot-sym
+                        :random
                         {:global? true}))
       (do
         (declare-tick-depot* setup
@@ -120,7 +134,10 @@
                              retries/DEFAULT-CHECKER-TICK-MILLIS)
         (declare-tick-depot* setup
                              agent-gc-tick-depot-sym
-                             DEFAULT-GC-TICK-MILLIS)))
+                             DEFAULT-GC-TICK-MILLIS)
+        (declare-tick-depot* setup
+                             agent-stats-flush-tick-depot-sym
+                             STATS-FLUSH-TICK-MILLIS)))
     (declare-depot* setup
                     (symbol (po/agent-failures-depot-name agent-name))
                     :random)
@@ -173,6 +190,9 @@
      (source> agent-gc-tick-depot-sym)
       (at/handle-gc agent-name)
 
+     (source> agent-stats-flush-tick-depot-sym)
+      (at/handle-stats-flush agent-name)
+
      (source> agent-depot-sym {:retry-mode :none} :> *data)
       (at/intake-agent-depot agent-name
                              *data
@@ -226,6 +246,12 @@
   (declare-object* setup
                    (symbol (po/agent-node-executor-name))
                    (AgentNodeExecutorTaskGlobal.))
+  (declare-object* setup
+                   (symbol (po/dataset-schema-cache-name))
+                   (DatasetSchemaCacheTaskGlobal.))
+  (declare-object* setup
+                   (symbol (po/embedding-index-name))
+                   (EmbeddingIndexTaskGlobal.))
 
   (declare-object* setup
                    (symbol (po/agent-declared-objects-name))
@@ -242,11 +268,17 @@
         datasets-depot-sym       (symbol (po/datasets-depot-name))
         global-actions-depot-sym (symbol (po/global-actions-depot-name))
         analytics-tick-depot-sym (symbol (po/agent-analytics-tick-depot-name))
-        agent-edit-depot-sym     (symbol (po/agent-edit-depot-name))]
+        agent-edit-depot-sym     (symbol (po/agent-edit-depot-name))
+        rate-limit-depot-sym     (symbol (po/agent-rate-limit-depot-name))
+        embedding-write-depot-sym (symbol (po/embedding-store-write-depot-name))]
     (declare-depot* setup pstate-write-depot-sym (hash-by :key))
     (declare-depot* setup datasets-depot-sym (hash-by :dataset-id))
     (declare-depot* setup agent-edit-depot-sym apart/agent-task-id-depot-partitioner)
     (declare-depot* setup global-actions-depot-sym :random {:global? true})
+    (declare-depot* setup rate-limit-depot-sym (hash-by :object-name))
+    (declare-depot* setup
+                    embedding-write-depot-sym
+                    apart/agent-source-depot-partitioner)
     (if SUBSTITUTE-TICK-DEPOTS
       (declare-depot* setup
                       analytics-tick-depot-sym
@@ -259,11 +291,23 @@
      stream-topology
      (symbol (po/datasets-task-global-name))
      po/DATASETS-PSTATE-SCHEMA)
+    (declare-pstate*
+     stream-topology
+     (symbol (po/dataset-shards-task-global-name))
+     po/DATASET-SHARDS-PSTATE-SCHEMA)
     (declare-pstate*
      stream-topology
      (symbol (po/evaluators-task-global-name))
      po/EVALUATORS-PSTATE-SCHEMA
      {:global? true})
+    (declare-pstate*
+     stream-topology
+     (symbol (po/agent-rate-limits-task-global-name))
+     po/AGENT-RATE-LIMITS-PSTATE-SCHEMA)
+    (declare-pstate*
+     stream-topology
+     (symbol (po/llm-judge-verdicts-task-global-name))
+     {String Object})
     (declare-pstate*
      stream-topology
      (symbol (po/agent-global-config-task-global-name))
@@ -313,6 +357,12 @@
      (source> agent-edit-depot-sym :> *data)
       (at/handle-agent-edit *data)
 
+     (source> rate-limit-depot-sym {:retry-mode :none} :> *data)
+      (rl/handle-rate-limit-lease *data)
+
+     (source> embedding-write-depot-sym {:retry-mode :none} :> *data)
+      (es/handle-embedding-store-write *data)
+
      (source> global-actions-depot-sym :> *data)
       (<<cond
        (case> (instance? EvaluatorEvent *data))
@@ -338,6 +388,8 @@
   (queries/declare-search-datasets-topology topologies)
   (queries/declare-search-examples-query-topology topologies)
   (queries/declare-multi-examples-query-topology topologies)
+  (queries/declare-snapshot-example-ids-query-topology topologies)
+  (queries/declare-snapshot-has-examples-query-topology topologies)
   (queries/declare-all-evaluator-builders-query-topology topologies)
   (ana/declare-all-action-builders-query-topology topologies)
   (queries/declare-try-evaluator-query-topology topologies)
@@ -352,6 +404,7 @@
   (queries/declare-get-action-log-page-topology topologies)
   (queries/declare-search-metadata-topology topologies)
   (queries/declare-all-agent-metrics-topology topologies)
+  (es/declare-embedding-search-query-topology topologies)
 
   (doseq [[agent-name agent-graph] agent-graphs]
     (define-agent! agent-name
@@ -362,6 +415,12 @@
                    analytics-mb-topology
                    agent-graph)))
 
+(def ^:private CAPTURE-LEVEL-CLJ
+  {NestedOpCaptureLevel/FULL         :full
+   NestedOpCaptureLevel/TRUNCATED    :truncated
+   NestedOpCaptureLevel/HASHED       :hashed
+   NestedOpCaptureLevel/TIMINGS_ONLY :timings-only})
+
 (defn convert-agent-object-options
   [^AgentObjectOptions$Impl options]
   (when options
@@ -369,7 +428,24 @@
             NONE
             {:thread-safe?        (.threadSafe options)
              :auto-tracing?       (.autoTracing options)
-             :worker-object-limit (.workerObjectLimit options)})))
+             :worker-object-limit (.workerObjectLimit options)
+             :capture-level       (get CAPTURE-LEVEL-CLJ (.captureLevel options))
+             :rate-limit          (when (or (.requestsPerMinute options)
+                                            (.tokensPerMinute options))
+                                    (setval [MAP-VALS nil?]
+                                            NONE
+                                            {:requests-per-minute (.requestsPerMinute options)
+                                             :tokens-per-minute   (.tokensPerMinute options)}))
+             :embedding-batch     (when (.embeddingMaxBatchSize options)
+                                    {:max-batch-size  (.embeddingMaxBatchSize options)
+                                     :max-wait-millis (.embeddingMaxWaitMillis options)})
+             :response-cache      (when (.responseCacheMaxEntries options)
+                                    (setval [MAP-VALS nil?]
+                                            NONE
+                                            {:max-entries (.responseCacheMaxEntries options)
+                                             :max-bytes   (.responseCacheMaxBytes options)
+                                             :ttl-millis  (.responseCacheTtlMillis options)
+                                             :store       (.responseCacheStore options)}))})))
 
 (defn mk-failure-exception
   [result exceptions]
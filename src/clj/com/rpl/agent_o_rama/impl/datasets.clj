@@ -3,6 +3,7 @@
         [com.rpl.rama path])
   (:require
    [clojure.java.io :as io]
+   [clojure.set :as set]
    [clojure.string :as str]
    [com.rpl.agent-o-rama.impl.helpers :as h]
    [com.rpl.agent-o-rama.impl.pobjects :as po]
@@ -16,6 +17,7 @@
     ObjectMapper
     JsonNode]
    [com.fasterxml.jackson.databind.node
+    JsonNodeFactory
     POJONode]
    [com.networknt.schema
     Keyword
@@ -31,12 +33,14 @@
     ValidationContext
     SpecVersion$VersionFlag]
    [com.rpl.agentorama
-    AddDatasetExampleOptions
-    AgentManager]
+    AgentManager
+    NewDatasetExample]
    [com.rpl.agentorama.impl
-    AgentDeclaredObjectsTaskGlobal]
+    AgentDeclaredObjectsTaskGlobal
+    DatasetSchemaCacheTaskGlobal]
    [com.rpl.agent_o_rama.impl.types
     AddDatasetExample
+    AddDatasetExamples
     AddDatasetExampleTag
     AddRemoteDataset
     CreateDataset
@@ -61,6 +65,7 @@
     Consumer]))
 
 (def ^ObjectMapper MAPPER (ObjectMapper.))
+(def ^JsonNodeFactory NODE-FACTORY (.getNodeFactory MAPPER))
 (def META "urn:agent-o-rama:meta:java-types-2020-12")
 
 (def java-type-keyword
@@ -187,7 +192,29 @@
       (doseq [v x] (.add arr ^JsonNode (wrap-pojos v)))
       arr)
 
-    (or (string? x) (number? x) (boolean? x) (nil? x))
+    (string? x)
+    (.textNode NODE-FACTORY ^String x)
+
+    (instance? Long x)
+    (.numberNode NODE-FACTORY (long x))
+
+    (instance? Integer x)
+    (.numberNode NODE-FACTORY (int x))
+
+    (instance? Double x)
+    (.numberNode NODE-FACTORY (double x))
+
+    (instance? java.math.BigDecimal x)
+    (.numberNode NODE-FACTORY ^java.math.BigDecimal x)
+
+    (boolean? x)
+    (.booleanNode NODE-FACTORY (boolean x))
+
+    (nil? x)
+    (.nullNode NODE-FACTORY)
+
+    ;; less common numeric types (e.g. ratios) keep Jackson's own conversion
+    (number? x)
     (.valueToTree MAPPER x)
 
     :else
@@ -258,31 +285,56 @@
    (else>)
     (:> nil)))
 
+(defn compile-json-schema
+  ^JsonSchema [^String json-schema]
+  (.getSchema ^JsonSchemaFactory FACTORY
+              (.readTree ^ObjectMapper MAPPER json-schema)))
+
 (defn validate-with-schema*
-  [^String json-schema value]
-  (try
-    (let [^JsonNode schema-node (.readTree ^ObjectMapper MAPPER json-schema)
-          ^JsonSchema schema (.getSchema ^JsonSchemaFactory FACTORY schema-node)
-          errs (.validate schema (wrap-pojos value))]
-      (when (seq errs)
-        (str
-         (str/join
-          "\n"
-          (mapv #(.getMessage ^ValidationMessage %) errs))
-         ", schema: " (print-str json-schema)
-         ", value: " (pr-str value))))
-    (catch com.fasterxml.jackson.core.JsonProcessingException e
-      (str "Invalid JSON schema: " (h/throwable->str e)
-           ", schema: " (print-str json-schema)))
-    (catch Exception e
-      (str "Failed to compile or apply schema: " (h/throwable->str e)
-           ", schema: " (print-str json-schema)
-           ", value: " (pr-str value)))))
+  ([json-schema value]
+   (validate-with-schema* compile-json-schema json-schema value))
+  ([compile-fn ^String json-schema value]
+   (try
+     (let [^JsonSchema schema (compile-fn json-schema)
+           errs (.validate schema (wrap-pojos value))]
+       (when (seq errs)
+         (str
+          (str/join
+           "\n"
+           (mapv #(.getMessage ^ValidationMessage %) errs))
+          ", schema: " (print-str json-schema)
+          ", value: " (pr-str value))))
+     (catch com.fasterxml.jackson.core.JsonProcessingException e
+       (str "Invalid JSON schema: " (h/throwable->str e)
+            ", schema: " (print-str json-schema)))
+     (catch Exception e
+       (str "Failed to compile or apply schema: " (h/throwable->str e)
+            ", schema: " (print-str json-schema)
+            ", value: " (pr-str value))))))
+
+(defn cached-json-schema
+  ^JsonSchema [^DatasetSchemaCacheTaskGlobal cache dataset-id ^String json-schema]
+  (if-let [schema (.get cache dataset-id json-schema)]
+    schema
+    (let [schema (compile-json-schema json-schema)]
+      (.put cache dataset-id json-schema schema)
+      schema)))
+
+(defn validate-dataset-value*
+  [dataset-id json-schema value]
+  (let [cache (po/dataset-schema-cache-task-global)]
+    (validate-with-schema* #(cached-json-schema cache dataset-id %)
+                           json-schema
+                           value)))
+
+(defn invalidate-dataset-schemas!
+  [dataset-id]
+  (.invalidate (po/dataset-schema-cache-task-global) dataset-id))
 
 (deframaop validate-with-schema>
-  [*json-schema *value]
+  [*dataset-id *json-schema *value]
   (<<if (some? *json-schema)
-    (validate-with-schema* *json-schema *value :> *res)
+    (validate-dataset-value* *dataset-id *json-schema *value :> *res)
     (<<if (some? *res)
       (ack-return> *res)
      (else>)
@@ -290,6 +342,538 @@
    (else>)
     (:>)))
 
+(def ADD-EXAMPLES-BATCH-SIZE 500)
+
+(defn validate-dataset-examples
+  "Returns [valid-entries errors] where errors maps batch index to error string."
+  [dataset-id {:keys [input-json-schema output-json-schema]} entries]
+  (reduce-kv
+   (fn [[valid errors] i {:keys [input reference-output] :as entry}]
+     (let [error (or (when (some? input-json-schema)
+                       (validate-dataset-value* dataset-id input-json-schema input))
+                     (when (and (some? output-json-schema) (some? reference-output))
+                       (validate-dataset-value* dataset-id
+                                                output-json-schema
+                                                reference-output)))]
+       (if error
+         [valid (assoc errors i error)]
+         [(conj valid entry) errors])))
+   [[] {}]
+   (vec entries)))
+
+(defn new-example
+  [{:keys [input reference-output tags]} source time-millis]
+  {:input            input
+   :reference-output reference-output
+   :tags             tags
+   :source           source
+   :created-at       time-millis
+   :modified-at      time-millis})
+
+(defn new-examples
+  [entries source time-millis]
+  (mapv #(new-example % source time-millis) entries))
+
+;; Snapshots are copy-on-write. A snapshot created from another snapshot only records its
+;; parent in :snapshot-parents, and its own map in :snapshots is an overlay of the examples
+;; that differ from the parent, with removed examples marked by a tombstone. Before an example
+;; changes in a snapshot, its previous value is pushed down to the direct children that don't
+;; override it yet, so children keep seeing the snapshot as it was when they were created.
+
+(def MAX-SNAPSHOT-CHAIN-DEPTH 4)
+
+(def SNAPSHOT-TOMBSTONE {:removed? true})
+
+(defn live-example?
+  [example]
+  (and (some? example) (not (:removed? example))))
+
+(defn live-examples
+  [example-id->example]
+  (into {}
+        (filter #(live-example? (val %)))
+        example-id->example))
+
+(defn preserved-example
+  [example]
+  (if (some? example) example SNAPSHOT-TOMBSTONE))
+
+(defn multi-keypath
+  [l]
+  (apply multi-path (mapv keypath l)))
+
+(defn snapshot-chain
+  "Snapshots that reads from snapshot resolve through, nearest first."
+  [parents snapshot]
+  (loop [chain [snapshot]
+         s     snapshot]
+    (if-let [entry (get parents s)]
+      (recur (conj chain (:parent entry)) (:parent entry))
+      chain)))
+
+(defn snapshot-children
+  [parents snapshot]
+  (into []
+        (comp (filter #(= snapshot (:parent (val %))))
+              (map key))
+        parents))
+
+(defn merge-level-examples
+  "Merges values selected from one level of a snapshot chain, returning [found remaining]."
+  [found example-ids values]
+  (reduce
+   (fn [[found remaining] [example-id v]]
+     (if (some? v)
+       [(assoc found example-id v) remaining]
+       [found (conj remaining example-id)]))
+   [found []]
+   (map vector example-ids values)))
+
+(defn aligned-examples
+  [example-id->example example-ids]
+  (mapv #(get example-id->example %) example-ids))
+
+(defn- range-end-key
+  [ranges limit last-key-fn]
+  (reduce
+   (fn [curr r]
+     (let [k (last-key-fn r)]
+       (if (or (nil? curr) (neg? (compare k curr))) k curr)))
+   nil
+   (filter #(>= (count %) limit) ranges)))
+
+(defn merge-snapshot-range
+  "Merges range selections of up to limit entries from each level of a snapshot chain, nearest
+   first. Returns [examples end-key] where end-key is the last key for which every level is
+   complete, or nil if no level was truncated."
+  [levels limit]
+  (let [end-key (range-end-key levels limit #(key (last %)))
+        merged  (reduce into (sorted-map) (rseq (vec levels)))
+        merged  (if (some? end-key)
+                  (into (sorted-map) (subseq merged <= end-key))
+                  merged)]
+    [(into (sorted-map)
+           (filter #(live-example? (val %)))
+           merged)
+     end-key]))
+
+(defn example-tag-status
+  [[example-id example] tag]
+  [example-id
+   (and (live-example? example)
+        (or (nil? tag) (contains? (:tags example) tag)))])
+
+(defn merge-example-statuses
+  "Ids of matching examples given example-tag-status results for each level of a snapshot
+   chain, nearest first."
+  [levels]
+  (into []
+        (keep (fn [[example-id ok?]] (when ok? example-id)))
+        (reduce into (sorted-map) (rseq (vec levels)))))
+
+;; Each level of a snapshot chain keeps inverted indexes of the examples in its own map:
+;; :tag-index from tag to example IDs, and :text-index from each trigram of the lowercased ID,
+;; input, and reference output to example IDs. Examples with too much text to index are listed
+;; under UNINDEXED-GRAM so every text search considers them. Lookups only produce candidates,
+;; which are resolved through the chain and checked against the search filters, so postings
+;; left behind in a parent for an overridden or removed example don't cause false matches.
+;;
+;; Indexing amplifies writes: adding an example writes one posting per tag and per distinct
+;; trigram of its text, and updating one writes the difference between its old and new
+;; postings. An example gets at most MAX-TEXT-POSTINGS distinct trigrams, beyond which it's
+;; unindexed instead, so one example write costs at most MAX-TEXT-POSTINGS + 1 text postings.
+
+(def GRAM-SIZE 3)
+
+(def MAX-INDEXED-TEXT-LENGTH 4096)
+
+(def MAX-TEXT-POSTINGS 1024)
+
+(def UNINDEXED-GRAM "")
+
+(defn text-grams
+  [s]
+  (let [s (str/lower-case s)]
+    (into #{}
+          (map #(subs s % (+ % GRAM-SIZE)))
+          (range (inc (- (count s) GRAM-SIZE))))))
+
+(defn example-grams
+  [example-id {:keys [input reference-output]}]
+  (let [texts [(str example-id) (str (or input "")) (str (or reference-output ""))]]
+    (if (> (reduce + (map count texts)) MAX-INDEXED-TEXT-LENGTH)
+      #{UNINDEXED-GRAM}
+      (let [grams (into #{} (mapcat text-grams) texts)]
+        (if (> (count grams) MAX-TEXT-POSTINGS)
+          #{UNINDEXED-GRAM}
+          grams)))))
+
+(defn example-postings
+  "[tags grams] an example is listed under in the indexes of its snapshot."
+  [example-id example]
+  (if (live-example? example)
+    [(set (:tags example)) (example-grams example-id example)]
+    [#{} #{}]))
+
+(defn- postings-diff-paths
+  [index-key snapshot example-id old-keys new-keys]
+  (concat
+   (for [k (set/difference old-keys new-keys)]
+     (path (keypath index-key snapshot k) (set-elem example-id) NONE>))
+   (for [k (set/difference new-keys old-keys)]
+     (path (keypath index-key snapshot k) NONE-ELEM (termval example-id)))))
+
+(defn- index-update-paths
+  [snapshot example-id old-example new-example]
+  (let [[old-tags old-grams] (example-postings example-id old-example)
+        [new-tags new-grams] (example-postings example-id new-example)]
+    (concat
+     (postings-diff-paths :tag-index snapshot example-id old-tags new-tags)
+     (postings-diff-paths :text-index snapshot example-id old-grams new-grams))))
+
+(defn index-update-path
+  [snapshot example-id old-example new-example]
+  (let [paths (index-update-paths snapshot example-id old-example new-example)]
+    (if (empty? paths) STOP (apply multi-path paths))))
+
+(defn examples-write-path
+  "Path from a dataset that writes examples into a snapshot, removing those that are nil, and
+   updates the indexes of the snapshot given the previous values."
+  [snapshot example-ids old-examples new-examples]
+  (apply multi-path
+         (mapcat
+          (fn [example-id old-example new-example]
+            (cons (path (keypath :snapshots snapshot example-id)
+                        (if (some? new-example) (termval new-example) NONE>))
+                  (index-update-paths snapshot example-id old-example new-example)))
+          example-ids
+          old-examples
+          new-examples)))
+
+(defn chain-postings-nav
+  "Navigates from a dataset to each [index-key key] posting list at each level of a snapshot
+   chain, in order."
+  [chain postings]
+  (apply multi-path
+         (for [[index-key k] postings
+               level         chain]
+           (keypath index-key level k))))
+
+(defn text-postings
+  [grams]
+  (mapv #(vector :text-index %) grams))
+
+(defn rarest-gram
+  [grams chain counts]
+  (->> (partition (count chain) counts)
+       (map (fn [gram level-counts] [gram (reduce + level-counts)]) grams)
+       (apply min-key second)
+       first))
+
+(defn merge-postings-ranges
+  "Merges range selections of up to limit IDs from posting lists, returning [ids end-key] like
+   merge-snapshot-range."
+  [ranges limit]
+  (let [end-key (range-end-key ranges limit last)
+        ids     (into (sorted-set) cat ranges)]
+    [(vec (if (some? end-key) (subseq ids <= end-key) ids)) end-key]))
+
+(defn tagged-example-ids
+  [example-id->example tag]
+  (into []
+        (comp (filter #(contains? (:tags (val %)) tag))
+              (map key))
+        (into (sorted-map) example-id->example)))
+
+(deframaop write-examples>
+  [$$datasets *dataset-id *snapshot *example-ids *examples]
+  (multi-keypath *example-ids :> *examples-nav)
+  (local-select> [(keypath *dataset-id :snapshots *snapshot)
+                  (subselect *examples-nav)]
+                 $$datasets
+                 :> *old-examples)
+  (examples-write-path *snapshot *example-ids *old-examples *examples :> *path)
+  (local-transform> [(keypath *dataset-id) *path] $$datasets)
+  (:>))
+
+(deframaop write-example>
+  [$$datasets *dataset-id *snapshot *example-id *example]
+  (write-examples> $$datasets *dataset-id *snapshot [*example-id] [*example])
+  (:>))
+
+(deframaop reindex-example>
+  [$$datasets *dataset-id *snapshot *example-id *old-example]
+  (local-select> [(keypath *dataset-id :snapshots *snapshot *example-id)]
+                 $$datasets
+                 :> *example)
+  (index-update-path *snapshot *example-id *old-example *example :> *path)
+  (local-transform> [(keypath *dataset-id) *path] $$datasets)
+  (:>))
+
+;; returns the posting lists to drive a search from, or nil if it has to scan the examples
+(deframaop search-postings>
+  [$$datasets *dataset-id *chain *tag *search-string-lower]
+  (<<cond
+   (case> (some? *tag))
+    (:> [[:tag-index *tag]])
+
+   (case> (>= (count *search-string-lower) GRAM-SIZE))
+    (vec (text-grams *search-string-lower) :> *grams)
+    (chain-postings-nav *chain (text-postings *grams) :> *counts-nav)
+    (local-select> [(keypath *dataset-id) (subselect *counts-nav (view count))]
+                   $$datasets
+                   :> *counts)
+    (rarest-gram *grams *chain *counts :> *gram)
+    (:> [[:text-index *gram] [:text-index UNINDEXED-GRAM]])
+
+   (default>)
+    (:> nil)))
+
+(deframaop select-index-range>
+  [$$datasets *dataset-id *chain *postings *start-key *limit]
+  (sorted-set-range-from *start-key
+                         {:inclusive? false :max-amt *limit}
+                         :> *range-nav)
+  (chain-postings-nav *chain *postings :> *postings-nav)
+  (local-select> [(keypath *dataset-id) (subselect *postings-nav *range-nav)]
+                 $$datasets
+                 :> *ranges)
+  (merge-postings-ranges *ranges *limit :> [*ids *end-key])
+  (:> *ids *end-key))
+
+(deframaop resolve-example>
+  [$$datasets *dataset-id *chain *example-id]
+  (loop<- [*levels (seq *chain)
+           :> *example]
+    (<<if (nil? *levels)
+      (:> nil)
+     (else>)
+      (first *levels :> *level)
+      (local-select> [(keypath *dataset-id :snapshots *level *example-id)]
+                     $$datasets
+                     :> *v)
+      (<<if (some? *v)
+        (:> *v)
+       (else>)
+        (continue> (next *levels)))))
+  (ifexpr (live-example? *example) *example :> *res)
+  (:> *res))
+
+(deframaop select-snapshot-examples>
+  [$$datasets *dataset-id *snapshot *example-ids]
+  (local-select> [(keypath *dataset-id) :snapshot-parents] $$datasets :> *parents)
+  (snapshot-chain *parents *snapshot :> *chain)
+  (loop<- [*levels (seq *chain)
+           *found {}
+           *remaining *example-ids
+           :> *all-found]
+    (<<if (or> (nil? *levels) (empty? *remaining))
+      (:> *found)
+     (else>)
+      (first *levels :> *level)
+      (multi-keypath *remaining :> *examples-nav)
+      (local-select> [(keypath *dataset-id :snapshots *level)
+                      (subselect *examples-nav)]
+                     $$datasets
+                     :> *values)
+      (merge-level-examples *found *remaining *values :> [*new-found *new-remaining])
+      (continue> (next *levels) *new-found *new-remaining)))
+  (live-examples *all-found :> *res)
+  (:> *res))
+
+(deframaop select-snapshot-range>
+  [$$datasets *dataset-id *chain *start-key *limit]
+  (sorted-map-range-from *start-key
+                         {:inclusive? false :max-amt *limit}
+                         :> *range-nav)
+  (loop<- [*levels (seq *chain)
+           *selected []
+           :> *all-selected]
+    (<<if (nil? *levels)
+      (:> *selected)
+     (else>)
+      (first *levels :> *level)
+      (local-select> [(keypath *dataset-id :snapshots *level) *range-nav]
+                     $$datasets
+                     :> *m)
+      (continue> (next *levels) (conj *selected *m))))
+  (merge-snapshot-range *all-selected *limit :> [*examples *end-key])
+  (:> *examples *end-key))
+
+(deframaop preserve-for-children>
+  [$$datasets *dataset-id *snapshot *example-id]
+  (local-select> [(keypath *dataset-id) :snapshot-parents] $$datasets :> *parents)
+  (snapshot-children *parents *snapshot :> *children)
+  (<<if (not (empty? *children))
+    (snapshot-chain *parents *snapshot :> *chain)
+    (resolve-example> $$datasets *dataset-id *chain *example-id :> *old)
+    (preserved-example *old :> *preserved)
+    (<<atomic
+      (ops/explode *children :> *child)
+      (local-select> [(keypath *dataset-id :snapshots *child *example-id)]
+                     $$datasets
+                     :> *existing)
+      (<<if (nil? *existing)
+        (write-example> $$datasets *dataset-id *child *example-id *preserved))))
+  (:>))
+
+(deframaop materialize-example>
+  [$$datasets *dataset-id *snapshot *example-id]
+  (local-select> [(keypath *dataset-id) :snapshot-parents] $$datasets :> *parents)
+  (<<if (contains? *parents *snapshot)
+    (local-select> [(keypath *dataset-id :snapshots *snapshot *example-id)]
+                   $$datasets
+                   :> *own)
+    (<<if (nil? *own)
+      (snapshot-chain *parents *snapshot :> *chain)
+      (resolve-example> $$datasets *dataset-id *chain *example-id :> *resolved)
+      (<<if (some? *resolved)
+        (write-example> $$datasets *dataset-id *snapshot *example-id *resolved))))
+  (:>))
+
+(deframaop prepare-example-update>
+  [$$datasets *dataset-id *snapshot *example-id]
+  (preserve-for-children> $$datasets *dataset-id *snapshot *example-id)
+  (materialize-example> $$datasets *dataset-id *snapshot *example-id)
+  (:>))
+
+(deframaop snapshot-example-ids>
+  [$$datasets *dataset-id *snapshot *tag *indexed?]
+  (local-select> [(keypath *dataset-id) :snapshot-parents] $$datasets :> *parents)
+  (snapshot-chain *parents *snapshot :> *chain)
+  (<<if (and> *indexed? (some? *tag))
+    (chain-postings-nav *chain [[:tag-index *tag]] :> *postings-nav)
+    (local-select> [(keypath *dataset-id) (subselect *postings-nav ALL)]
+                   $$datasets
+                   {:allow-yield? true}
+                   :> *candidates)
+    (select-snapshot-examples> $$datasets
+                               *dataset-id
+                               *snapshot
+                               (vec (distinct *candidates))
+                               :> *found)
+    (tagged-example-ids *found *tag :> *res)
+    (:> *res)
+   (else>)
+    (loop<- [*levels (seq *chain)
+             *statuses []
+             :> *all-statuses]
+      (<<if (nil? *levels)
+        (:> *statuses)
+       (else>)
+        (local-select> [(keypath *dataset-id :snapshots (first *levels))
+                        (subselect ALL (view example-tag-status *tag))]
+                       $$datasets
+                       {:allow-yield? true}
+                       :> *level-statuses)
+        (continue> (next *levels) (conj *statuses *level-statuses))))
+    (merge-example-statuses *all-statuses :> *res)
+    (:> *res)))
+
+(def SNAPSHOT-EXISTS-SCAN-SIZE 16)
+
+;; scans in small ranges so it stops at the first live example instead of listing the
+;; snapshot, only going further when the nearest entries are tombstones
+(deframaop snapshot-has-examples>
+  [$$datasets *dataset-id *snapshot]
+  (local-select> [(keypath *dataset-id) :snapshot-parents] $$datasets :> *parents)
+  (snapshot-chain *parents *snapshot :> *chain)
+  (loop<- [*start-key nil
+           :> *has?]
+    (yield-if-overtime)
+    (select-snapshot-range> $$datasets
+                            *dataset-id
+                            *chain
+                            *start-key
+                            SNAPSHOT-EXISTS-SCAN-SIZE
+                            :> *m *end-key)
+    (<<cond
+     (case> (not (empty? *m)))
+      (:> true)
+
+     (case> (nil? *end-key))
+      (:> false)
+
+     (default>)
+      (continue> *end-key)))
+  (:> *has?))
+
+(deframaop copy-snapshot-examples>
+  [$$datasets *dataset-id *chain *to-snapshot-name]
+  (<<atomic
+    (ops/explode *chain :> *level)
+    (local-select> [(keypath *dataset-id :snapshots *level) MAP-KEYS]
+                   $$datasets
+                   {:allow-yield? true}
+                   :> *example-id)
+    (resolve-example> $$datasets *dataset-id *chain *example-id :> *example)
+    (<<if (some? *example)
+      (preserve-for-children> $$datasets *dataset-id *to-snapshot-name *example-id)
+      (write-example> $$datasets *dataset-id *to-snapshot-name *example-id *example)))
+  (:>))
+
+(defn foreign-snapshot-chain
+  [datasets dataset-id snapshot]
+  (snapshot-chain
+   (foreign-select-one [(keypath dataset-id) :snapshot-parents] datasets)
+   snapshot))
+
+(defn foreign-snapshot-exists?
+  [datasets dataset-id snapshot]
+  (or (foreign-select-one [(keypath dataset-id) :snapshot-parents (view contains? snapshot)]
+                          datasets)
+      (not (foreign-select-one [(keypath dataset-id) :snapshots (keypath snapshot) (view nil?)]
+                               datasets))))
+
+(defn foreign-select-examples
+  "Resolves examples of a snapshot through its parents, returning a vector aligned with
+   example-ids with nil for missing examples."
+  [datasets dataset-id snapshot example-ids]
+  (loop [levels    (seq (foreign-snapshot-chain datasets dataset-id snapshot))
+         found     {}
+         remaining (vec example-ids)]
+    (if (or (nil? levels) (empty? remaining))
+      (aligned-examples (live-examples found) example-ids)
+      (let [values (foreign-select-one [(keypath dataset-id :snapshots (first levels))
+                                        (subselect (multi-keypath remaining))]
+                                       datasets)
+            [found remaining] (merge-level-examples found remaining values)]
+        (recur (next levels) found remaining)))))
+
+(defn foreign-select-example
+  [datasets dataset-id snapshot example-id]
+  (first (foreign-select-examples datasets dataset-id snapshot [example-id])))
+
+(defn foreign-search-indexed?
+  [datasets dataset-id]
+  (foreign-select-one [(keypath dataset-id) :search-indexed? (view boolean)] datasets))
+
+(defn foreign-snapshot-example-ids
+  "Ids of all examples in a snapshot, or only those with tag if it's non-nil."
+  [datasets dataset-id snapshot tag]
+  (let [chain (foreign-snapshot-chain datasets dataset-id snapshot)]
+    (if (and (some? tag) (foreign-search-indexed? datasets dataset-id))
+      (let [candidates (vec (distinct
+                             (foreign-select [(keypath dataset-id)
+                                              (chain-postings-nav chain [[:tag-index tag]])
+                                              ALL]
+                                             datasets)))]
+        (tagged-example-ids
+         (zipmap candidates
+                 (foreign-select-examples datasets dataset-id snapshot candidates))
+         tag))
+      (merge-example-statuses
+       (mapv (fn [level]
+               (foreign-select [(keypath dataset-id :snapshots level)
+                                ALL
+                                (view example-tag-status tag)]
+                               datasets))
+             chain)))))
+
+(defn foreign-sharded?
+  [datasets dataset-id]
+  (foreign-select-one [(keypath dataset-id) :props :sharded? (view boolean)] datasets))
+
 (defbasicblocksegmacro update-dataset!
   [pstate dataset-id apath]
   (let [time-millis (gen-anyvar "time-millis")]
@@ -303,24 +887,58 @@
 
 (defbasicblocksegmacro update-dataset-example!
   [pstate dataset-id snapshot-name example-id apath]
-  (let [time-millis (gen-anyvar "time-millis")]
+  (let [time-millis (gen-anyvar "time-millis")
+        old-example (gen-anyvar "old-example")]
     [[h/current-time-millis :> time-millis]
-     [update-dataset!
+     [local-select>
+      [(seg# keypath dataset-id :snapshots snapshot-name example-id)]
       pstate
-      dataset-id
-      [:snapshots
-       (seg# keypath snapshot-name example-id)
-       some?
+      :> old-example]
+     [local-transform>
+      [(seg# keypath dataset-id :snapshots snapshot-name example-id)
+       live-example?
        (seg# multi-path
              [:modified-at (seg# termval time-millis)]
-             apath)]]]))
+             apath)]
+      pstate]
+     [reindex-example> pstate dataset-id snapshot-name example-id old-example]]))
+
+;; Examples of sharded datasets live in the shards PState on the task of their example ID,
+;; while props stay on the home task of the dataset. Snapshot names are also registered on
+;; the home task since no single shard knows all of them.
+(deframaop touch-dataset>
+  [$$datasets *dataset-id *sharded? *snapshot-name]
+  (<<if (and> *sharded? (some? *snapshot-name))
+    (update-dataset! $$datasets
+                     *dataset-id
+                     [:shard-snapshot-names NONE-ELEM (termval *snapshot-name)])
+   (else>)
+    (update-dataset! $$datasets *dataset-id STOP))
+  (:>))
+
+(def CLEAR-EXAMPLES-PATH
+  (multi-path [:snapshots MAP-VALS NONE>]
+              [:tag-index MAP-VALS MAP-VALS NONE>]
+              [:text-index MAP-VALS MAP-VALS NONE>]))
+
+(defmacro <<with-examples-store
+  "Runs body with store-sym bound to the PState holding the examples of a dataset. For
+   sharded datasets, shard-partitioner first moves to the tasks holding the examples."
+  [sharded? shard-partitioner [store-sym] & body]
+  `(<<if ~sharded?
+     ~shard-partitioner
+     (<<with-substitutions [~store-sym (po/dataset-shards-task-global)] ~@body)
+    (~'else>)
+     (<<with-substitutions [~store-sym (po/datasets-task-global)] ~@body)))
 
 (defn get-cluster-retriever
   [^AgentDeclaredObjectsTaskGlobal declared-objects-tg]
   (.getClusterRetriever declared-objects-tg))
 
-(defmacro with-datasets-pstate
-  [declared-objects-tg remote-params [datasets-sym] & body]
+(defmacro with-dataset-module
+  "Binds a cluster retriever and the module holding a dataset, which is this module unless
+   remote-params point elsewhere."
+  [declared-objects-tg remote-params [retriever-sym module-name-sym] & body]
   `(let [{host#        :cluster-conductor-host
           port#        :cluster-conductor-port
           module-name# :module-name}
@@ -331,14 +949,27 @@
                                                                        port#))
                       (get-cluster-retriever ~declared-objects-tg))]
      (try
-       (let [~datasets-sym (foreign-pstate retriever#
-                                           module-name#
-                                           (po/datasets-task-global-name))]
+       (let [~retriever-sym   retriever#
+             ~module-name-sym (or module-name#
+                                  (.getThisModuleName
+                                   ~(with-meta declared-objects-tg
+                                      {:tag 'com.rpl.agentorama.impl.AgentDeclaredObjectsTaskGlobal})))]
          ~@body)
        (finally
          (when host#
            (close! retriever#))))))
 
+(defmacro with-datasets-pstate
+  [declared-objects-tg remote-params [datasets-sym] & body]
+  `(with-dataset-module
+    ~declared-objects-tg
+    ~remote-params
+    [retriever# module-name#]
+    (let [~datasets-sym (foreign-pstate retriever#
+                                        module-name#
+                                        (po/datasets-task-global-name))]
+      ~@body)))
+
 (defn verify-remote-dataset
   [{:keys [dataset-id cluster-conductor-host cluster-conductor-port module-name]
     :as   params}]
@@ -368,10 +999,12 @@
    (filter> (or> (instance? CreateDataset *data)
                  (instance? AddRemoteDataset *data)
                  (some? *props)))
+   (get *props :sharded? :> *sharded?)
    (<<subsource *data
     (case> CreateDataset
            :> {:keys [*name *description *input-json-schema
                        *output-json-schema]})
+     (get *data :sharded? :> *create-sharded?)
      (normalize-json-schema> *input-json-schema :> *isnorm)
      (normalize-json-schema> *output-json-schema :> *osnorm)
      (h/current-time-millis :> *current-time-millis)
@@ -383,6 +1016,11 @@
                                   :created-at        *current-time-millis
                                   :modified-at       *current-time-millis})]
                        $$datasets)
+     (<<if *create-sharded?
+       (local-transform> [(keypath *dataset-id) :props :sharded? (termval true)]
+                         $$datasets))
+     (local-transform> [(keypath *dataset-id) :search-indexed? (termval true)]
+                       $$datasets)
 
     (case> AddRemoteDataset
            :> {:keys [*cluster-conductor-host *cluster-conductor-port
@@ -403,13 +1041,24 @@
         $$datasets))
 
     (case> UpdateDatasetProperty :> {:keys [*key *value]})
+     (invalidate-dataset-schemas! *dataset-id)
      (update-dataset! $$datasets
                       *dataset-id
                       [:props (keypath *key) (termval *value)])
 
     (case> DestroyDataset)
-     (local-transform> [(keypath *dataset-id :snapshots MAP-VALS) NONE>]
-                       $$datasets)
+     (invalidate-dataset-schemas! *dataset-id)
+     (anchor> <destroy>)
+     (<<if *sharded?
+       (|all)
+       (<<with-substitutions
+        [$$shards (po/dataset-shards-task-global)]
+        (local-transform> [(keypath *dataset-id) CLEAR-EXAMPLES-PATH] $$shards)
+        (|direct (ops/current-task-id))
+        (local-transform> [(keypath *dataset-id) NONE>]
+                          $$shards)))
+     (hook> <destroy>)
+     (local-transform> [(keypath *dataset-id) CLEAR-EXAMPLES-PATH] $$datasets)
      (|direct (ops/current-task-id))
      (local-transform> [(keypath *dataset-id) NONE>]
                        $$datasets)
@@ -419,85 +1068,193 @@
                        *tags *source]})
      (get *props :input-json-schema :> *input-json-schema)
      (get *props :output-json-schema :> *output-json-schema)
-     (validate-with-schema> *input-json-schema *input)
+     (validate-with-schema> *dataset-id *input-json-schema *input)
      (<<if (some? *reference-output)
-       (validate-with-schema> *output-json-schema *reference-output))
+       (validate-with-schema> *dataset-id *output-json-schema *reference-output))
+     (touch-dataset> $$datasets *dataset-id *sharded? *snapshot-name)
      (h/current-time-millis :> *current-time-millis)
-     (update-dataset! $$datasets
-                      *dataset-id
-                      [(keypath :snapshots *snapshot-name *example-id)
-                       (termval
-                        {:input            *input
-                         :reference-output *reference-output
-                         :tags             *tags
-                         :source           *source
-                         :created-at       *current-time-millis
-                         :modified-at      *current-time-millis})])
+     (new-example *data *source *current-time-millis :> *example)
+     (<<with-examples-store *sharded? (|hash *example-id) [$$examples]
+       (preserve-for-children> $$examples *dataset-id *snapshot-name *example-id)
+       (write-example> $$examples *dataset-id *snapshot-name *example-id *example))
+
+    (case> AddDatasetExamples
+           :> {:keys [*snapshot-name *examples *source]})
+     (validate-dataset-examples *dataset-id *props *examples :> [*valid *errors])
+     (anchor> <add-examples>)
+     (<<if (not (empty? *errors))
+       (ack-return> *errors))
+     (hook> <add-examples>)
+     (filter> (not (empty? *valid)))
+     (touch-dataset> $$datasets *dataset-id *sharded? *snapshot-name)
+     (h/current-time-millis :> *current-time-millis)
+     (<<if *sharded?
+       (ops/explode *valid :> *entry)
+       (get *entry :example-id :> *example-id)
+       (|hash *example-id)
+       (<<with-substitutions
+        [$$shards (po/dataset-shards-task-global)]
+        (preserve-for-children> $$shards *dataset-id *snapshot-name *example-id)
+        (new-example *entry *source *current-time-millis :> *example)
+        (write-example> $$shards *dataset-id *snapshot-name *example-id *example))
+      (else>)
+       (<<atomic
+         (ops/explode *valid :> {:keys [*example-id]})
+         (preserve-for-children> $$datasets *dataset-id *snapshot-name *example-id))
+       (mapv :example-id *valid :> *example-ids)
+       (new-examples *valid *source *current-time-millis :> *new-examples)
+       (write-examples> $$datasets
+                        *dataset-id
+                        *snapshot-name
+                        *example-ids
+                        *new-examples))
 
     (case> UpdateDatasetExample
            :> {:keys [*snapshot-name *example-id *key *value]})
      (<<cond
       (case> (= *key :input))
        (get *props :input-json-schema :> *input-json-schema)
-       (validate-with-schema> *input-json-schema *value)
+       (validate-with-schema> *dataset-id *input-json-schema *value)
 
       (case> (= *key :reference-output))
        (get *props :output-json-schema :> *output-json-schema)
-       (validate-with-schema> *output-json-schema *value)
+       (validate-with-schema> *dataset-id *output-json-schema *value)
 
       (default>))
-     (update-dataset-example!
-      $$datasets
-      *dataset-id
-      *snapshot-name
-      *example-id
-      [(keypath *key) (termval *value)])
+     (touch-dataset> $$datasets *dataset-id *sharded? nil)
+     (<<with-examples-store *sharded? (|hash *example-id) [$$examples]
+       (prepare-example-update> $$examples *dataset-id *snapshot-name *example-id)
+       (update-dataset-example!
+        $$examples
+        *dataset-id
+        *snapshot-name
+        *example-id
+        [(keypath *key) (termval *value)]))
 
     (case> RemoveDatasetExample :> {:keys [*snapshot-name *example-id]})
-     (update-dataset!
-      $$datasets
-      *dataset-id
-      [(keypath :snapshots *snapshot-name *example-id) NONE>])
+     (touch-dataset> $$datasets *dataset-id *sharded? nil)
+     (<<with-examples-store *sharded? (|hash *example-id) [$$examples]
+       (preserve-for-children> $$examples *dataset-id *snapshot-name *example-id)
+       (local-select> [(keypath *dataset-id) :snapshot-parents
+                       (view contains? *snapshot-name)]
+                      $$examples
+                      :> *has-parent?)
+       ;; tombstone hides the example from the parent snapshot
+       (ifexpr *has-parent? SNAPSHOT-TOMBSTONE nil :> *removed)
+       (write-example> $$examples *dataset-id *snapshot-name *example-id *removed))
 
     (case> AddDatasetExampleTag :> {:keys [*snapshot-name *example-id *tag]})
-     (update-dataset-example!
-      $$datasets
-      *dataset-id
-      *snapshot-name
-      *example-id
-      [:tags NONE-ELEM (termval *tag)])
+     (touch-dataset> $$datasets *dataset-id *sharded? nil)
+     (<<with-examples-store *sharded? (|hash *example-id) [$$examples]
+       (prepare-example-update> $$examples *dataset-id *snapshot-name *example-id)
+       (update-dataset-example!
+        $$examples
+        *dataset-id
+        *snapshot-name
+        *example-id
+        [:tags NONE-ELEM (termval *tag)]))
 
     (case> RemoveDatasetExampleTag
            :> {:keys [*snapshot-name *example-id *tag]})
-     (update-dataset-example!
-      $$datasets
-      *dataset-id
-      *snapshot-name
-      *example-id
-      [:tags (set-elem *tag) NONE>])
+     (touch-dataset> $$datasets *dataset-id *sharded? nil)
+     (<<with-examples-store *sharded? (|hash *example-id) [$$examples]
+       (prepare-example-update> $$examples *dataset-id *snapshot-name *example-id)
+       (update-dataset-example!
+        $$examples
+        *dataset-id
+        *snapshot-name
+        *example-id
+        [:tags (set-elem *tag) NONE>]))
 
     (case> DatasetSnapshot
            :> {:keys [*from-snapshot-name *to-snapshot-name]})
-     ;; to update modified-at
-     (update-dataset! $$datasets *dataset-id STOP)
-     (local-select> [(keypath *dataset-id :snapshots *from-snapshot-name)
-                     ALL]
-                    $$datasets
-                    {:allow-yield? true}
-                    :> [*example-id *example])
-     (local-transform>
-      [(keypath *dataset-id :snapshots *to-snapshot-name *example-id)
-       (termval *example)]
-      $$datasets)
+     (touch-dataset> $$datasets *dataset-id *sharded? *to-snapshot-name)
+     ;; for sharded datasets each task snapshots its own examples independently
+     (<<with-examples-store *sharded? (|all) [$$examples]
+       (local-select> [(keypath *dataset-id) :snapshot-parents] $$examples :> *parents)
+       (local-select> [(keypath *dataset-id :snapshots *to-snapshot-name) (view empty?)]
+                      $$examples
+                      :> *to-empty?)
+       (snapshot-chain *parents *from-snapshot-name :> *chain)
+       (<<cond
+        ;; snapshotting into an existing snapshot merges the examples into it
+        (case> (or> (contains? *parents *to-snapshot-name) (not *to-empty?)))
+         (copy-snapshot-examples> $$examples *dataset-id *chain *to-snapshot-name)
+
+        ;; materialize instead of extending the chain so reads stay bounded
+        (case> (>= (count *chain) MAX-SNAPSHOT-CHAIN-DEPTH))
+         (copy-snapshot-examples> $$examples *dataset-id *chain *to-snapshot-name)
+
+        (default>)
+         (h/current-time-millis :> *current-time-millis)
+         (local-transform>
+          [(keypath *dataset-id :snapshot-parents *to-snapshot-name)
+           (termval {:parent     *from-snapshot-name
+                     :created-at *current-time-millis})]
+          $$examples)))
 
     (case> RemoveDatasetSnapshot :> {:keys [*snapshot-name]})
-     (update-dataset!
-      $$datasets
-      *dataset-id
-      [(keypath :snapshots *snapshot-name) NONE>]))))
+     (update-dataset! $$datasets
+                      *dataset-id
+                      [:shard-snapshot-names (set-elem *snapshot-name) NONE>])
+     (<<with-examples-store *sharded? (|all) [$$examples]
+       (local-select> [(keypath *dataset-id) :snapshot-parents] $$examples :> *parents)
+       (get *parents *snapshot-name :> *entry)
+       (snapshot-children *parents *snapshot-name :> *children)
+       ;; fold the removed snapshot into the snapshots that read through it
+       (<<atomic
+         (ops/explode *children :> *child)
+         (local-select> [(keypath *dataset-id :snapshots *snapshot-name) ALL]
+                        $$examples
+                        {:allow-yield? true}
+                        :> [*example-id *example])
+         (local-select> [(keypath *dataset-id :snapshots *child *example-id)]
+                        $$examples
+                        :> *existing)
+         (<<if (nil? *existing)
+           (write-example> $$examples *dataset-id *child *example-id *example)))
+       (<<atomic
+         (ops/explode *children :> *child)
+         (<<if (some? *entry)
+           (assoc (get *parents *child) :parent (get *entry :parent) :> *child-entry)
+           (local-transform> [(keypath *dataset-id :snapshot-parents *child)
+                              (termval *child-entry)]
+                             $$examples)
+          (else>)
+           (local-transform> [(keypath *dataset-id :snapshot-parents *child) NONE>]
+                             $$examples)))
+       (local-transform>
+        [(keypath *dataset-id)
+         (multi-path [(keypath :snapshots *snapshot-name) NONE>]
+                     [(keypath :snapshot-parents *snapshot-name) NONE>]
+                     [(keypath :tag-index *snapshot-name) NONE>]
+                     [(keypath :text-index *snapshot-name) NONE>])]
+        $$examples)))))
+
+(def UPLOAD-MAX-OUTSTANDING-BATCHES 8)
+
+(defn- parse-jsonl-example
+  [mapper line]
+  (try
+    (let [m      (j/read-value line mapper)
+          tags-v (get m "tags")]
+      (if-not (or (nil? tags-v)
+                  (and (sequential? tags-v)
+                       (every? string? tags-v)))
+        {:line  line
+         :error (ex-info "Tags must be an array of strings or omitted"
+                         {:tags tags-v})}
+        {:line    line
+         :example (NewDatasetExample.
+                   (jser/walk-json-thaw* (get m "input"))
+                   (jser/walk-json-thaw* (get m "output"))
+                   (if (nil? tags-v) #{} (set tags-v)))}))
+    (catch Exception ex
+      {:line line :error ex})))
 
 (defn upload-jsonl-examples!
-  "Best-effort JSONL uploader.
+  "Best-effort JSONL uploader. Lines are parsed in parallel and added in batches
+   with addDatasetExamplesBatchAsync.
 
      path is String path to UTF-8 JSONL file
      failure-callback is (fn [line ex]) for any per-line failure
@@ -505,52 +1262,46 @@
    Lines look like:
      {\"input\": <json>, \"output\": <json optional>, \"tags\": [\"...\"] optional }"
   [^AgentManager manager dataset-id snapshot-name path failure-callback]
-  (let [sem    (Semaphore. 100)
+  (let [sem    (Semaphore. UPLOAD-MAX-OUTSTANDING-BATCHES)
         mapper (j/object-mapper)]
     (with-open [r (io/reader path)]
       (binding [aor-types/OPERATION-SOURCE (aor-types/->BulkUploadSourceImpl)]
-        (doseq [line (line-seq r)]
-          (when-not (str/blank? line)
-            (let [m (try
-                      (j/read-value line mapper)
-                      (catch Exception ex
-                        (failure-callback line ex)
-                        ::parse-failed))]
-              (when-not (identical? ::parse-failed m)
-                (let [input  (jser/walk-json-thaw* (get m "input"))
-                      output (jser/walk-json-thaw* (get m "output"))
-                      tags-v (get m "tags")]
-                  (if-not (or (nil? tags-v)
-                              (and (sequential? tags-v)
-                                   (every? string? tags-v)))
-                    (failure-callback
-                     line
-                     (ex-info
-                      "Tags must be an array of strings or omitted"
-                      {:tags tags-v}))
-                    (let [tags    (if (nil? tags-v) #{} (set tags-v))
-                          options (AddDatasetExampleOptions.)]
-                      (set! (.snapshotName options) snapshot-name)
-                      (set! (.tags options) tags)
-                      (set! (.referenceOutput options) output)
-                      (.acquire sem)
-                      (try
-                        (let [cf
-                              (.addDatasetExampleAsync manager
-                                                       dataset-id
-                                                       input
-                                                       options)]
-                          (.whenComplete cf
-                                         (reify
-                                          BiConsumer
-                                          (accept [_ _ ex]
-                                            (.release sem)
-                                            (when ex
-                                              (failure-callback line ex))))))
-                        (catch Throwable t
-                          (.release sem)
-                          (failure-callback line t))))))))))
-        (.acquire sem 100)
+        (doseq [parsed (->> (line-seq r)
+                            (remove str/blank?)
+                            (partition-all ADD-EXAMPLES-BATCH-SIZE)
+                            (pmap #(mapv (partial parse-jsonl-example mapper) %)))]
+          (doseq [{:keys [line error]} parsed
+                  :when error]
+            (failure-callback line error))
+          (let [ok       (filterv :example parsed)
+                lines    (mapv :line ok)
+                examples (mapv :example ok)]
+            (when-not (empty? examples)
+              (.acquire sem)
+              (try
+                (let [cf (.addDatasetExamplesBatchAsync manager
+                                                        dataset-id
+                                                        snapshot-name
+                                                        examples)]
+                  (.whenComplete
+                   cf
+                   (reify
+                    BiConsumer
+                    (accept [_ errors ex]
+                      (.release sem)
+                      (if ex
+                        (doseq [line lines]
+                          (failure-callback line ex))
+                        (doseq [[i error] errors]
+                          (failure-callback
+                           (nth lines i)
+                           (h/ex-info "Error adding example"
+                                      {:info error}))))))))
+                (catch Throwable t
+                  (.release sem)
+                  (doseq [line lines]
+                    (failure-callback line t)))))))
+        (.acquire sem UPLOAD-MAX-OUTSTANDING-BATCHES)
         nil))))
 
 (defn download-jsonl-batch-size
@@ -0,0 +1,333 @@
+(ns com.rpl.agent-o-rama.impl.embedding-store
+  (:use [com.rpl.rama]
+        [com.rpl.rama path])
+  (:require
+   [com.rpl.agent-o-rama.impl.helpers :as h]
+   [com.rpl.agent-o-rama.impl.partitioner :as apart]
+   [com.rpl.agent-o-rama.impl.pobjects :as po]
+   [com.rpl.agent-o-rama.impl.types :as aor-types]
+   [com.rpl.rama.ops :as ops])
+  (:import
+   [com.rpl.agentorama.impl
+    HnswIndex
+    HnswIndex$Match]
+   [com.rpl.agentorama.store
+    VectorStore]
+   [com.rpl.rama
+    Depot
+    QueryTopologyClient]
+   [dev.langchain4j.data.embedding
+    Embedding]
+   [dev.langchain4j.data.segment
+    TextSegment]
+   [dev.langchain4j.store.embedding
+    EmbeddingMatch
+    EmbeddingSearchRequest
+    EmbeddingSearchResult]
+   [dev.langchain4j.store.embedding.filter
+    Filter]
+   [java.util
+    UUID]
+   [java.util.function
+    Predicate]))
+
+(def EMBEDDING-STORE-SCHEMA
+  {String (fixed-keys-schema {:embedding Embedding
+                              :segment   TextSegment})})
+
+;; Relevance scores follow langchain4j's convention of mapping cosine similarity from [-1, 1]
+;; to [0, 1]
+(defn- similarity->score
+  [similarity]
+  (/ (+ similarity 1.0) 2.0))
+
+(defn- score->similarity
+  [score]
+  (- (* 2.0 score) 1.0))
+
+(defn- segment-matches?
+  [^Filter filter {:keys [^TextSegment segment]}]
+  (boolean (and segment (.test filter (.metadata segment)))))
+
+(defn- index-put!
+  [^HnswIndex index id ^Embedding embedding]
+  (.put index id (.vector embedding)))
+
+(defn- index-remove!
+  [^HnswIndex index id]
+  (.remove index id))
+
+(defn- get-index
+  [store-name]
+  (.getIndex (po/embedding-index-task-global) store-name))
+
+(defn- new-index
+  []
+  (HnswIndex.))
+
+(defn- register-index!
+  [store-name index]
+  (.putIndex (po/embedding-index-task-global) store-name index))
+
+;; Indexes are built from the store's PState the first time they're used on a task, so writes
+;; and searches keep working across worker restarts and task rebalancing. The build doesn't
+;; yield and the index is only registered once it's complete, so no search sees a partial index
+;; and no write interleaves with the scan.
+(deframaop embedding-index>
+  [$$store *store-name]
+  (get-index *store-name :> *index)
+  (<<if (nil? *index)
+    (new-index :> *new-index)
+    (<<atomic
+      (local-select> [ALL (collect-one FIRST) LAST :embedding]
+                     $$store
+                     :> [*id *embedding])
+      (index-put! *new-index *id *embedding))
+    (register-index! *store-name *new-index)
+    (:> *new-index)
+   (else>)
+    (:> *index)))
+
+(defn- to-ids-predicate
+  ^Predicate [ids]
+  (when ids
+    (let [ids (set ids)]
+      (reify
+       Predicate
+       (test [_ id] (contains? ids id))))))
+
+(defn- search-index
+  [^HnswIndex index ^Embedding embedding k min-similarity ids-predicate]
+  (mapv (fn [^HnswIndex$Match m] [(.id m) (.similarity m)])
+        (.search index (.vector embedding) (int k) (double min-similarity) ids-predicate)))
+
+(defn- to-embedding-matches
+  [matches entries]
+  (vec
+   (for [[id similarity] matches
+         :let [{:keys [embedding segment]} (get entries id)]
+         :when embedding]
+     (EmbeddingMatch. (similarity->score similarity) id embedding segment))))
+
+(defn- top-matches
+  [matches k]
+  (->> matches
+       (sort-by (fn [^EmbeddingMatch m] (- (.score m))))
+       (take k)
+       vec))
+
+(defn- write-failure
+  []
+  {:type      :failure
+   :exception (h/ex-info "Agent invoke has been retried" {})})
+
+(deframaop handle-embedding-store-write
+  [{:keys [*agent-source *store-name *op *entries *ids *filter]}]
+  (identity *agent-source :> {:keys [*agent-name *agent-task-id *agent-id *retry-num]})
+  (<<if (and> (some? *agent-source)
+              (not (apart/valid-retry-num? *agent-name
+                                           *agent-task-id
+                                           *agent-id
+                                           *retry-num)))
+    (ack-return> (write-failure))
+   (else>)
+    (<<cond
+     (case> (= *op :add))
+      (ops/explode *entries :> {:keys [*id *embedding *segment]})
+      (|hash *id)
+      (this-module-pobject-task-global *store-name :> $$store)
+      (embedding-index> $$store *store-name :> *index)
+      (local-transform> [(keypath *id)
+                         (termval {:embedding *embedding :segment *segment})]
+                        $$store)
+      (index-put! *index *id *embedding)
+
+     (case> (= *op :remove))
+      (ops/explode *ids :> *id)
+      (|hash *id)
+      (this-module-pobject-task-global *store-name :> $$store)
+      (embedding-index> $$store *store-name :> *index)
+      (local-transform> [(keypath *id) NONE>] $$store)
+      (index-remove! *index *id)
+
+     (case> (= *op :remove-all))
+      (|all)
+      (this-module-pobject-task-global *store-name :> $$store)
+      (embedding-index> $$store *store-name :> *index)
+      (<<if (nil? *filter)
+        (local-select> (subselect MAP-KEYS) $$store {:allow-yield? true} :> *remove-ids)
+       (else>)
+        (local-select> (subselect ALL
+                                  (selected? LAST (pred (partial segment-matches? *filter)))
+                                  FIRST)
+                       $$store
+                       {:allow-yield? true}
+                       :> *remove-ids))
+      (ops/explode *remove-ids :> *id)
+      (local-transform> [(keypath *id) NONE>] $$store)
+      (index-remove! *index *id))))
+
+(defn declare-embedding-search-query-topology
+  [topologies]
+  (<<query-topology topologies
+    (po/embedding-store-search-query-name)
+    [*store-name *embedding *k *min-score *filter :> *res]
+    (|all)
+    (this-module-pobject-task-global *store-name :> $$store)
+    (embedding-index> $$store *store-name :> *index)
+    ;; filtered searches scan the index exactly over the matching ids
+    (<<if (nil? *filter)
+      (identity nil :> *ids)
+     (else>)
+      (local-select> (subselect ALL
+                                (selected? LAST (pred (partial segment-matches? *filter)))
+                                FIRST)
+                     $$store
+                     {:allow-yield? true}
+                     :> *ids))
+    (search-index *index
+                  *embedding
+                  *k
+                  (score->similarity *min-score)
+                  (to-ids-predicate *ids)
+                  :> *matches)
+    (local-select> (submap (mapv first *matches)) $$store :> *entries)
+    (to-embedding-matches *matches *entries :> *task-matches)
+    (|origin)
+    (h/+concatv *task-matches :> *all-matches)
+    (top-matches *all-matches *k :> *res)))
+
+
+(defn hook:initiating-embedding-store-op [])
+
+(defn- record-op!
+  [store-params start-time type op params]
+  ((:record-nested-op! store-params)
+   (aor-types/->valid-NestedOpInfoImpl
+    start-time
+    (h/current-time-millis)
+    type
+    {"name"   (:pstate-name store-params)
+     "op"     op
+     "params" params})))
+
+(defn- store-write!
+  [store-params ^Depot depot op params write]
+  (when (:mirror? store-params)
+    (throw (h/ex-info "Can only write to colocated PStates"
+                      {:pstate-name (:pstate-name store-params)})))
+  (let [start-time (h/current-time-millis)
+        _ (hook:initiating-embedding-store-op)
+        {ret aor-types/AGENT-TOPOLOGY-NAME}
+        (foreign-append!
+         depot
+         (aor-types/->valid-EmbeddingStoreWrite
+          (aor-types/->PStateWriteAgentSource
+           (:agent-name store-params)
+           (:agent-task-id store-params)
+           (:agent-id store-params)
+           (:retry-num store-params))
+          (:pstate-name store-params)
+          (:op write)
+          (:entries write)
+          (:ids write)
+          (:filter write)))]
+    (when (= (:type ret) :failure)
+      (throw (:exception ret)))
+    (record-op! store-params start-time :store-write op params)))
+
+(defn- generate-ids
+  [n]
+  (vec (repeatedly n #(str (UUID/randomUUID)))))
+
+(defn- add-all!
+  [store-params depot ids embeddings embeddeds]
+  (when-not (= (count ids) (count embeddings))
+    (throw (h/ex-info "Must give same number of ids and embeddings"
+                      {:ids (count ids) :embeddings (count embeddings)})))
+  (when (and embeddeds (not= (count embeddeds) (count embeddings)))
+    (throw (h/ex-info "Must give same number of embeddings and embedded segments"
+                      {:embeddings (count embeddings) :embeddeds (count embeddeds)})))
+  (when (seq ids)
+    (store-write! store-params
+                  depot
+                  "addAll"
+                  {"ids" (vec ids)}
+                  {:op      :add
+                   :entries (mapv (fn [id embedding segment]
+                                    {:id id :embedding embedding :segment segment})
+                                  ids
+                                  embeddings
+                                  (or embeddeds (repeat nil)))}))
+  (vec ids))
+
+(defn- remove-ids!
+  [store-params depot ids]
+  (when (seq ids)
+    (store-write! store-params
+                  depot
+                  "removeAll"
+                  {"ids" (vec ids)}
+                  {:op :remove :ids (vec ids)})))
+
+(defn- search!
+  [store-params ^QueryTopologyClient query ^EmbeddingSearchRequest request]
+  (let [start-time (h/current-time-millis)
+        _ (hook:initiating-embedding-store-op)
+        res        (foreign-invoke-query query
+                                         (:pstate-name store-params)
+                                         (.queryEmbedding request)
+                                         (.maxResults request)
+                                         (.minScore request)
+                                         (.filter request))]
+    ((:record-nested-op! store-params)
+     (aor-types/->valid-NestedOpInfoImpl
+      start-time
+      (h/current-time-millis)
+      :store-read
+      {"name"   (:pstate-name store-params)
+       "op"     "search"
+       "params" {"maxResults" (.maxResults request)
+                 "minScore"   (.minScore request)
+                 "filter"     (some-> (.filter request) str)}
+       "result" (mapv (fn [^EmbeddingMatch m] {"id" (.embeddingId m) "score" (.score m)})
+                      res)}))
+    (EmbeddingSearchResult. res)))
+
+(defn mk-embedding-store
+  [store-params depot query]
+  (reify
+   VectorStore
+   (^String add [this ^Embedding embedding]
+     (first (add-all! store-params depot (generate-ids 1) [embedding] nil)))
+   (^String add [this ^Embedding embedding ^Object embedded]
+     (first (add-all! store-params depot (generate-ids 1) [embedding] [embedded])))
+   (^void add [this ^String id ^Embedding embedding]
+     (add-all! store-params depot [id] [embedding] nil))
+   (addAll [this embeddings]
+     (add-all! store-params depot (generate-ids (count embeddings)) embeddings nil))
+   (addAll [this embeddings embeddeds]
+     (add-all! store-params depot (generate-ids (count embeddings)) embeddings embeddeds))
+   (addAll [this ids embeddings embeddeds]
+     (add-all! store-params depot ids embeddings embeddeds)
+     nil)
+   (generateIds [this n]
+     (generate-ids n))
+   (remove [this id]
+     (remove-ids! store-params depot [id]))
+   (^void removeAll [this ^java.util.Collection ids]
+     (remove-ids! store-params depot ids))
+   (^void removeAll [this ^Filter filter]
+     (store-write! store-params
+                   depot
+                   "removeAll"
+                   {"filter" (str filter)}
+                   {:op :remove-all :filter filter}))
+   (removeAll [this]
+     (store-write! store-params
+                   depot
+                   "removeAll"
+                   {}
+                   {:op :remove-all}))
+   (search [this request]
+     (search! store-params query request))))
@@ -6,15 +6,22 @@
    [clojure.spec.alpha :as spec]
    [com.rpl.agent-o-rama.impl.helpers :as h]
    [com.rpl.agent-o-rama.impl.pobjects :as po]
+   [com.rpl.agent-o-rama.impl.trace-capture :as tc]
    [com.rpl.agent-o-rama.impl.types :as aor-types]
    [com.rpl.agent-o-rama.langchain4j :as lc4j]
    [com.rpl.agent-o-rama.langchain4j.json :as lj]
+   [com.rpl.agent-o-rama.store :as store]
    [com.rpl.rama.ops :as ops]
    [expound.alpha :as expound]
    [jsonista.core :as j])
   (:import
    [com.rpl.agentorama
+    AgentNode
     AgentObjectFetcher]
+   [com.rpl.agentorama.impl
+    MicroBatcher
+    ResultCache
+    ResultCache$Entry]
    [com.rpl.agent_o_rama.impl.types
     AddEvaluator
     RemoveEvaluator]
@@ -23,7 +30,11 @@
     SystemMessage
     TextContent
     ToolExecutionResultMessage
-    UserMessage]))
+    UserMessage]
+   [java.util
+    List]
+   [java.util.concurrent
+    ExecutionException]))
 
 (spec/def ::description string?)
 (spec/def ::default string?)
@@ -110,33 +121,159 @@
 Evaluate whether the Model Output correctly and completely answers the Input, matching the meaning of the Reference Output.
 Be strict: minor wording differences are acceptable, but factual errors, omissions, or contradictions are not.")
 
+(def LLM-JUDGE-BATCH-WAIT-MILLIS 50)
+(def LLM-JUDGE-MEMORY-CACHE-ENTRIES 10000)
+
+(def LLM-JUDGE-BATCH-PROMPT
+  "Evaluate each of the following %count cases independently. Each case is a complete evaluation task with its own instructions. Respond with a \"results\" array containing exactly one evaluation per case, in the same order as the cases.")
+
+(def ^:private PROMPT-VARIABLE-REGEX #"%(input|output|referenceOutput)")
+
+(defn compile-prompt-template
+  "Splits a prompt template into its literal text and the variables between them, so a prompt
+  is rendered in one pass."
+  [template]
+  (let [m (re-matcher PROMPT-VARIABLE-REGEX template)]
+    (loop [start 0
+           parts []]
+      (if (.find m)
+        (recur (.end m)
+               (conj parts (subs template start (.start m)) (keyword (.group m 1))))
+        (conj parts (subs template start))))))
+
+(defn render-prompt
+  [parts vars]
+  (let [sb (StringBuilder.)]
+    (doseq [part parts]
+      (.append sb (if (keyword? part) (str (get vars part)) part)))
+    (.toString sb)))
+
+(defn- judge-request
+  [prompt temperature schema-name output-schema]
+  (lc4j/chat-request
+   [prompt]
+   {:temperature     temperature
+    :response-format
+    (lc4j/json-response-format schema-name (lj/from-json-string output-schema))}))
+
+(defn- batch-output-schema
+  [output-schema]
+  (j/write-value-as-string
+   {"type"                 "object"
+    "properties"           {"results" {"type"  "array"
+                                       "items" (j/read-value output-schema)}}
+    "required"             ["results"]
+    "additionalProperties" false}))
+
+(defn- judge!
+  [model {:keys [temperature output-schema]} prompt]
+  (-> model
+      (lc4j/chat (judge-request prompt temperature "Evaluation" output-schema))
+      .aiMessage
+      .text
+      j/read-value))
+
+(defn- judge-batch!
+  [model {:keys [temperature batch-output-schema] :as judge} prompts]
+  (let [prompt (str (str/replace LLM-JUDGE-BATCH-PROMPT "%count" (str (count prompts)))
+                    (apply str
+                           (map-indexed (fn [i p] (str "\n\n## Case " (inc i) "\n\n" p))
+                                        prompts)))
+        results (-> model
+                    (lc4j/chat (judge-request prompt temperature "Evaluations" batch-output-schema))
+                    .aiMessage
+                    .text
+                    j/read-value
+                    (get "results"))]
+    (if (and (instance? List results) (= (count results) (count prompts)))
+      (vec results)
+      ;; the model didn't follow the batch format, so judge each case on its own
+      (mapv #(judge! model judge %) prompts))))
+
+(defn- mk-judge-batcher
+  [judge batch-size]
+  (when (> batch-size 1)
+    (MicroBatcher.
+     (int batch-size)
+     (long LLM-JUDGE-BATCH-WAIT-MILLIS)
+     (fn [items]
+       ;; each item is [model prompt], and the model of the first caller runs the whole batch
+       ;; since that caller is blocked waiting on it
+       (let [model (ffirst items)]
+         (if (= 1 (count items))
+           [(judge! model judge (second (first items)))]
+           (judge-batch! model judge (mapv second items))))))))
+
+(defn- verdict-cache-key
+  [{:keys [prompt-template model-name temperature output-schema]} input ref-output output]
+  (first (tc/digest-args [(pr-str [prompt-template model-name temperature output-schema
+                                   (str input) (str output) (str ref-output)])])))
+
+(defn- verdicts-store
+  [fetcher]
+  ;; evaluators run outside an agent when tried from the UI, where only the worker's cache is used
+  (when (instance? AgentNode fetcher)
+    (.getStore ^AgentNode fetcher (po/llm-judge-verdicts-task-global-name))))
+
+(defn- cached-verdict
+  [^ResultCache cache store k verdict-fn]
+  (if-let [^ResultCache$Entry e (.get cache k)]
+    (.result e)
+    (let [stored (when store (store/pstate-select-one (keypath k) store k))]
+      (if (some? stored)
+        (do (.put cache k stored 0 (.expiresAt cache (h/current-time-millis)) 0)
+            stored)
+        (let [start   (h/current-time-millis)
+              verdict (verdict-fn)
+              now     (h/current-time-millis)]
+          (.put cache k verdict 0 (.expiresAt cache now) (- now start))
+          (when store
+            (store/pstate-transform! [(keypath k) (termval verdict)] store k))
+          verdict)))))
+
+(defn- llm-judge-builder
+  [params]
+  (let [temperature     (Double/parseDouble (get params "temperature"))
+        prompt-template (get params "prompt")
+        model-name      (get params "model")
+        output-schema   (get params "outputSchema")
+        batch-size      (Long/parseLong (get params "batchSize" "1"))
+        cache?          (Boolean/parseBoolean (get params "cache" "false"))
+        prompt-parts    (compile-prompt-template prompt-template)
+        judge           {:temperature         temperature
+                         :prompt-template     prompt-template
+                         :model-name          model-name
+                         :output-schema       output-schema
+                         :batch-output-schema (when (> batch-size 1)
+                                                (batch-output-schema output-schema))}
+        ^MicroBatcher batcher (mk-judge-batcher judge batch-size)
+        cache           (when cache?
+                          (ResultCache. LLM-JUDGE-MEMORY-CACHE-ENTRIES 0 0))]
+    (fn [fetcher input ref-output output]
+      (let [verdict-fn
+            (fn []
+              (let [model  (.getAgentObject ^AgentObjectFetcher fetcher model-name)
+                    prompt (render-prompt prompt-parts
+                                          {:input           input
+                                           :output          output
+                                           :referenceOutput ref-output})]
+                (if batcher
+                  (try
+                    (.get (.submit batcher [model prompt]))
+                    (catch ExecutionException e
+                      (throw (.getCause e))))
+                  (judge! model judge prompt))))]
+        (if cache
+          (cached-verdict cache
+                          (verdicts-store fetcher)
+                          (verdict-cache-key judge input ref-output output)
+                          verdict-fn)
+          (verdict-fn))))))
+
 (def BUILT-IN
   {"aor/llm-judge"
    {:type        :regular
-    :builder-fn
-    (fn [params]
-      (let [temperature     (Double/parseDouble (get params "temperature"))
-            prompt-template (get params "prompt")
-            model-name      (get params "model")
-            output-schema   (get params "outputSchema")]
-        (fn [fetcher input ref-output output]
-          (let [model  (.getAgentObject ^AgentObjectFetcher fetcher model-name)
-                prompt (-> prompt-template
-                           (str/replace "%input" (str input))
-                           (str/replace "%output" (str output))
-                           (str/replace "%referenceOutput" (str ref-output)))]
-            (-> model
-                (lc4j/chat
-                 (lc4j/chat-request
-                  [prompt]
-                  {:temperature     temperature
-                   :response-format
-                   (lc4j/json-response-format
-                    "Evaluation"
-                    (lj/from-json-string output-schema))}))
-                .aiMessage
-                .text
-                j/read-value)))))
+    :builder-fn  llm-judge-builder
     :description
     "Define an LLM judge with customizable prompt, model, temperature, and output schema. By configuring the output schema with multiple keys, the judge can return scores for multiple evaluations at once."
     :options
@@ -157,7 +294,17 @@ Be strict: minor wording differences are acceptable, but factual errors, omissio
       "outputSchema"
       {:description
        "JSON schema for the output of the LLM. Each key of the output is a separate evaluation score."
-       :default     DEFAULT-LLM-OUTPUT-SCHEMA}}
+       :default     DEFAULT-LLM-OUTPUT-SCHEMA}
+
+      "batchSize"
+      {:description
+       "Maximum number of examples to judge in a single request to the model. Examples being evaluated at the same time are batched together. Use 1 to judge each example on its own."
+       :default     "1"}
+
+      "cache"
+      {:description
+       "Whether to reuse verdicts for identical inputs, outputs, and reference outputs with the same prompt, model, temperature, and output schema. Verdicts are kept on each worker and persisted for experiments. Only enable this for deterministic judges, since cached verdicts aren't resampled."
+       :default     "false"}}
      ;; All paths enabled by default (flags omitted = true)
     }}
    "aor/conciseness"
@@ -247,6 +394,19 @@ Be strict: minor wording differences are acceptable, but factual errors, omissio
     (merge BUILT-IN
            (.getEvaluatorBuilders declared-objects))))
 
+(defn params-with-defaults
+  "Fills in the declared default of each param that wasn't provided."
+  [builder-name params]
+  (let [declared-params (-> (all-evaluator-builders)
+                            (get builder-name)
+                            :options
+                            :params)]
+    (merge (into {}
+                 (for [[k {:keys [default]}] declared-params
+                       :when (some? default)]
+                   [k default]))
+           params)))
+
 (defn verify-evaluator-add
   [{:keys [builder-name params input-json-path output-json-path
            reference-output-json-path]}]
@@ -257,6 +417,7 @@ Be strict: minor wording differences are acceptable, but factual errors, omissio
         declared-set    (-> declared-params
                             keys
                             set)
+        params          (params-with-defaults builder-name params)
         provided-set    (-> params
                             keys
                             set)]
@@ -304,10 +465,11 @@ Be strict: minor wording differences are acceptable, but factual errors, omissio
      (<<if (some? *error-str)
        (ack-return> *error-str)
       (else>)
+       (params-with-defaults *builder-name *params :> *full-params)
        (local-transform>
         [(keypath *name)
          (termval {:builder-name     *builder-name
-                   :builder-params   *params
+                   :builder-params   *full-params
                    :description      *description
                    :input-json-path  *input-json-path
                    :output-json-path *output-json-path
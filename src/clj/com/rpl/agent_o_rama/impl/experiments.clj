@@ -5,10 +5,12 @@
    [clojure.string :as str]
    [com.rpl.agent-o-rama.impl.agent-node :as anode]
    [com.rpl.agent-o-rama.impl.clojure :as c]
+   [com.rpl.agent-o-rama.impl.datasets :as datasets]
    [com.rpl.agent-o-rama.impl.evaluators :as evals]
    [com.rpl.agent-o-rama.impl.feedback :as fb]
    [com.rpl.agent-o-rama.impl.helpers :as h]
    [com.rpl.agent-o-rama.impl.pobjects :as po]
+   [com.rpl.agent-o-rama.impl.queries :as queries]
    [com.rpl.agent-o-rama.impl.stats :as stats]
    [com.rpl.agent-o-rama.impl.topology :as at]
    [com.rpl.agent-o-rama.impl.types :as aor-types]
@@ -91,17 +93,54 @@
          (when cluster-conductor-host#
            (close! retriever#))))))
 
+(defn retriever-module-name
+  [{:keys [agent-node remote-info]}]
+  (or (:module-name remote-info) (get-this-module-name agent-node)))
+
 (defn get-pstate
-  [{:keys [agent-node retriever experiment remote-info]} pstate-name]
-  (foreign-pstate
-   retriever
-   (or (:module-name remote-info) (get-this-module-name agent-node))
-   pstate-name))
+  [{:keys [retriever] :as m} pstate-name]
+  (foreign-pstate retriever (retriever-module-name m) pstate-name))
+
+(defn get-query
+  [{:keys [retriever] :as m} query-name]
+  (foreign-query retriever (retriever-module-name m) query-name))
 
 (defn datasets-pstate
   [retriever]
   (get-pstate retriever (po/datasets-task-global-name)))
 
+(defn select-example
+  [retriever dataset-id snapshot example-id]
+  (first (queries/foreign-select-examples (:retriever retriever)
+                                          (retriever-module-name retriever)
+                                          dataset-id
+                                          snapshot
+                                          [example-id])))
+
+;; examples of sharded datasets are spread across tasks, so listing them goes through the
+;; module's query which fans out to every task
+(defn snapshot-example-ids
+  [retriever dataset-id snapshot tag limit]
+  (let [datasets (datasets-pstate retriever)]
+    (if (datasets/foreign-sharded? datasets dataset-id)
+      (foreign-invoke-query (get-query retriever (queries/snapshot-example-ids-name))
+                            dataset-id
+                            snapshot
+                            tag
+                            limit)
+      (queries/take-example-ids
+       (datasets/foreign-snapshot-example-ids datasets dataset-id snapshot tag)
+       limit))))
+
+(defn snapshot-exists?
+  [retriever dataset-id snapshot]
+  (let [datasets (datasets-pstate retriever)]
+    (if (datasets/foreign-sharded? datasets dataset-id)
+      (foreign-invoke-query (get-query retriever (queries/snapshot-has-examples-name))
+                            dataset-id
+                            snapshot)
+      (datasets/foreign-snapshot-exists? datasets dataset-id snapshot))))
+
 (defn evals-pstate
   [retriever]
   (get-pstate retriever (po/evaluators-task-global-name)))
@@ -156,18 +195,13 @@
        :evaluator-type  (:type info)})))
 
 (defn retrieve-all-examples-ids
-  [datasets dataset-id snapshot selector]
+  [retriever dataset-id snapshot selector]
   (cond
     (nil? selector)
-    (foreign-select [(keypath dataset-id :snapshots snapshot) MAP-KEYS] datasets)
+    (snapshot-example-ids retriever dataset-id snapshot nil nil)
 
     (aor-types/TagSelector? selector)
-    (let [tag (:tag selector)]
-      (foreign-select [(keypath dataset-id :snapshots snapshot)
-                       ALL
-                       (selected? LAST :tags (view contains? tag) identity)
-                       FIRST]
-                      datasets))
+    (snapshot-example-ids retriever dataset-id snapshot (:tag selector) nil)
 
     (aor-types/ExampleIdsSelector? selector)
     (vec (:example-ids selector))
@@ -242,9 +276,7 @@
            datasets)
           (c/result! agent-node {:error "Dataset does not exist"})
 
-          (foreign-select-one
-           [(keypath dataset-id) :snapshots (keypath snapshot) (view nil?)]
-           datasets)
+          (not (snapshot-exists? retriever dataset-id snapshot))
           (c/result! agent-node {:error "Snapshot does not exist or has no examples"})
 
           :else
@@ -357,14 +389,12 @@
     )))
 
 (defn fetch-example-info
-  [local-ds datasets id dataset-id snapshot result+example-ids]
+  [local-ds retriever id dataset-id snapshot result+example-ids]
   (vec
    (for [[result-id example-id] result+example-ids
          :let
          [{:keys [input reference-output]}
-          (foreign-select-one
-           [(keypath dataset-id :snapshots snapshot example-id)]
-           datasets)
+          (select-example retriever dataset-id snapshot example-id)
 
           info
           (store/pstate-select-one
@@ -554,8 +584,7 @@
           remote-info]
        (with-retriever [agent-node experiment remote-info]
          [retriever]
-         (let [datasets    (datasets-pstate retriever)
-               example-ids (retrieve-all-examples-ids datasets dataset-id snapshot selector)
+         (let [example-ids (retrieve-all-examples-ids retriever dataset-id snapshot selector)
                result+example-ids (vec (for [i (range 0 (* num-repetitions (count example-ids)))]
                                          [i (nth example-ids (mod i (count example-ids)))]))
                chunks
@@ -575,8 +604,7 @@
        (hook:running-invoke-node result+example-ids)
        (with-retriever [agent-node experiment remote-info]
          [retriever]
-         (let [datasets     (datasets-pstate retriever)
-               local-ds     (local-datasets-store retriever)
+         (let [local-ds     (local-datasets-store retriever)
                targets      (aor-types/experiment-targets spec)
                num-targets  (count targets)
                clients      (mapv
@@ -616,13 +644,11 @@
                    (store/pstate-select-one
                     [(keypath dataset-id :experiments id :results result-id)]
                     local-ds)
-                   [input :as inputv] (when (< (count agent-initiates) (count targets))
-                                        (foreign-select
-                                         [(keypath dataset-id :snapshots snapshot)
-                                          (must example-id)
-                                          :input]
-                                         datasets))
-                   _ (when (and (some? inputv) (empty? inputv))
+                   example (when (< (count agent-initiates) (count targets))
+                             (select-example retriever dataset-id snapshot example-id))
+                   input (:input example)
+                   _ (when (and (< (count agent-initiates) (count targets))
+                                (nil? example))
                        (throw (h/ex-info "Did not find example"
                                          {:dataset-id dataset-id
                                           :snapshot   snapshot
@@ -696,14 +722,10 @@
          (let [eval-info     (all-evaluator-info retriever experiment)
                eval-info-map (relevant-eval-info agent-node eval-info #{:regular :comparative})
                eval-client   (.getAgentClient agent-node aor-types/EVALUATOR-AGENT-NAME)
-               local-ds      (local-datasets-store retriever)
-               datasets      (datasets-pstate retriever)
                local-ds      (local-datasets-store retriever)]
            (doseq [[result-id example-id] result+example-ids]
              (let [{:keys [input reference-output]}
-                   (foreign-select-one
-                    [(keypath dataset-id :snapshots snapshot example-id)]
-                    datasets)
+                   (select-example retriever dataset-id snapshot example-id)
 
                    {curr-evals          :evals
                     eval-failures       :eval-failures
@@ -778,11 +800,10 @@
          [retriever]
          (let [eval-info     (all-evaluator-info retriever experiment)
                eval-info-map (relevant-eval-info agent-node eval-info #{:summary})
-               datasets      (datasets-pstate retriever)
                local-ds      (local-datasets-store retriever)]
            (when (aor-types/RegularExperiment? spec)
              (let [example-info
-                   (fetch-example-info local-ds datasets id dataset-id snapshot result+example-ids)
+                   (fetch-example-info local-ds retriever id dataset-id snapshot result+example-ids)
 
                    {curr-evals :summary-evals
                     curr-failures :summary-eval-failures
@@ -890,7 +911,7 @@
      ;; have to do it this way since cannot do :ack on the depot append since it's running as part
      ;; of the same stream topology
      (h/random-uuid7 :> *agent-invoke-id)
-     (aor-types/->valid-AgentInitiate [*data] nil *agent-invoke-id nil nil :> *initiate)
+     (aor-types/->valid-AgentInitiate [*data] nil *agent-invoke-id nil nil :batch :> *initiate)
      (depot-partition-append!
       *agent-depot
       *initiate
@@ -11,6 +11,7 @@
    [com.rpl.agentorama
     AgentGraph
     MultiAgg$Impl
+    NodePlacement$Impl
     UpdateMode]
    [com.rpl.agentorama.impl
     BuiltInAgg
@@ -127,13 +128,28 @@
 
 (defprotocol AgentGraphInternal
   (internal-add-node! [this name output-nodes-spec node])
+  (internal-set-node-placement! [this name placement])
+  (internal-set-compact-agg-inputs! [this name])
+  (internal-set-async-agg-updates! [this name])
   (agent-graph-state [this]))
 
 (defn resolve-agent-graph
   [agent-graph]
-  (let [{:keys [nodes start-node update-mode]} (agent-graph-state agent-graph)
+  (let [{:keys [nodes start-node update-mode placements compact-aggs async-aggs]}
+        (agent-graph-state agent-graph)
         graph     (nodes->graph nodes)
         agg-graph (annotate-aggs graph start-node)]
+    (doseq [node (keys placements)]
+      (when-not (contains? nodes node)
+        (throw (h/ex-info "Placement set for undeclared node" {:node node}))))
+    (doseq [node compact-aggs]
+      (when-not (instance? NodeAgg (get-in nodes [node :node-obj]))
+        (throw (h/ex-info "Compact agg inputs set for node that isn't an agg node"
+                          {:node node}))))
+    (doseq [node async-aggs]
+      (when-not (instance? NodeAgg (get-in nodes [node :node-obj]))
+        (throw (h/ex-info "Async agg updates set for node that isn't an agg node"
+                          {:node node}))))
     (aor-types/->valid-AgentGraph
      (NippyMap.
       (reduce
@@ -149,7 +165,10 @@
             (aor-types/->valid-AgentNode
              node-obj
              (set output-nodes)
-             (lattr/attr agg-graph node :agg)))
+             (lattr/attr agg-graph node :agg)
+             (get placements node)
+             (when (contains? compact-aggs node) true)
+             (when (contains? async-aggs node) true)))
          ))
        {}
        (lgraph/nodes agg-graph)))
@@ -251,11 +270,23 @@
     :drop UpdateMode/DROP
     (throw (h/ex-info "Invalid mode" {:mode mode}))))
 
+(def PLACEMENT-STRATEGIES #{:round-robin :least-loaded :agent-root :partition-key})
+
+(defn convert-node-placement->clj
+  [^NodePlacement$Impl placement]
+  (let [^Class key-fn-class (.keyFnClass placement)]
+    (h/remove-empty-vals
+     {:strategy     (keyword (.strategy placement))
+      :key-fn-class (when key-fn-class (.getName key-fn-class))})))
+
 (defn mk-agent-graph
   []
   (let [nodes-vol      (volatile! {})
         start-node-vol (volatile! nil)
-        mode-vol       (volatile! nil)]
+        mode-vol       (volatile! nil)
+        placements-vol (volatile! {})
+        compact-aggs-vol (volatile! #{})
+        async-aggs-vol (volatile! #{})]
     (reify-AgentGraph
       (setUpdateMode
        [this mode]
@@ -263,6 +294,15 @@
          (vreset! mode-vol (convert-update-mode->clj mode))
          (throw (h/ex-info "Update mode already set" {:mode @mode-vol})))
        this)
+      (setNodePlacement
+       [this name placement]
+       (internal-set-node-placement! this name (convert-node-placement->clj placement)))
+      (setCompactAggInputs
+       [this name]
+       (internal-set-compact-agg-inputs! this name))
+      (setAsyncAggUpdates
+       [this name]
+       (internal-set-async-agg-updates! this name))
       (^AgentGraph aggNode
        [this ^String name ^Object outputNodesSpec ^RamaAccumulatorAgg agg
         ^RamaVoidFunction3 impl]
@@ -312,10 +352,36 @@
                 {:node-obj     node-obj
                  :output-nodes (normalize-output-nodes output-nodes-spec)})
         this)
+      (internal-set-node-placement!
+        [this name {:keys [strategy key-fn key-fn-class] :as placement}]
+        (when-not (contains? PLACEMENT-STRATEGIES strategy)
+          (throw (h/ex-info "Invalid placement strategy"
+                            {:strategy strategy :valid PLACEMENT-STRATEGIES})))
+        (when (and (= :partition-key strategy) (nil? key-fn) (nil? key-fn-class))
+          (throw (h/ex-info "Partition key placement requires a key function" {:node name})))
+        ;; placements are serialized with the graph, so key fns are stored by name
+        (when (and (some? key-fn) (not (qualified-symbol? key-fn)))
+          (throw (h/ex-info "Partition key function must be a var or qualified symbol"
+                            {:node name :key-fn key-fn})))
+        (when (contains? @placements-vol name)
+          (throw (h/ex-info "Placement already set" {:node name})))
+        (vswap! placements-vol assoc name placement)
+        this)
+      (internal-set-compact-agg-inputs!
+        [this name]
+        (vswap! compact-aggs-vol conj name)
+        this)
+      (internal-set-async-agg-updates!
+        [this name]
+        (vswap! async-aggs-vol conj name)
+        this)
       (agent-graph-state [this]
         {:nodes       @nodes-vol
          :start-node  @start-node-vol
-         :update-mode (or @mode-vol :continue)})
+         :update-mode (or @mode-vol :continue)
+         :placements  @placements-vol
+         :compact-aggs @compact-aggs-vol
+         :async-aggs  @async-aggs-vol})
     )))
 
 (defn graph->historical-graph-info
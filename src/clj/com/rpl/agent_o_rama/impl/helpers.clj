@@ -276,6 +276,11 @@
   (when-not (and (number? v) (pos? v))
     "value must be positive number"))
 
+(defn non-negative-number-spec
+  [v]
+  (when-not (and (number? v) (not (neg? v)))
+    "value must be non-negative number"))
+
 (defn boolean-spec
   [v]
   (when-not (boolean? v)
@@ -291,6 +296,11 @@
   (when-not (or (nil? v) (instance? java.util.List v))
     "value must be a list"))
 
+(defn coll-spec
+  [v]
+  (when-not (or (nil? v) (instance? java.util.Collection v))
+    "value must be a collection"))
+
 (defn any-spec
   [v])
 
@@ -9,6 +9,7 @@
     ActionBuilderOptions$Impl
     AgentContext$Impl
     EvaluatorBuilderOptions$Impl
+    InvokePriority
     ToolsAgentOptions$Impl
     ToolsAgentOptions$FunctionHandler
     ToolsAgentOptions$StaticStringHandler]))
@@ -48,6 +49,12 @@
                  :error-handler
                  (tools/error-handler-by-type tuples))
          this))
+     (inlineExecution [this]
+       (vswap! options assoc :inline? true)
+       this)
+     (distributedTools [this tool-names]
+       (vswap! options update :distributed-tools (fnil into #{}) tool-names)
+       this)
 
      clojure.lang.IDeref
      (deref [this]
@@ -114,9 +121,14 @@
      ))))
 
 
+(def ^:private PRIORITY-CLJ
+  {InvokePriority/INTERACTIVE :interactive
+   InvokePriority/BATCH       :batch})
+
 (defn mk-agent-context
   []
-  (let [metadata (volatile! {})]
+  (let [metadata (volatile! {})
+        priority (volatile! nil)]
     (reify
      AgentContext$Impl
      (^AgentContext$Impl metadata [this ^String name ^int val]
@@ -137,7 +149,11 @@
      (^AgentContext$Impl metadata [this ^String name ^String val]
        (vswap! metadata assoc name val)
        this)
+     (priority [this p]
+       (vreset! priority (get PRIORITY-CLJ p))
+       this)
      clojure.lang.IDeref
      (deref [this]
-       {:metadata @metadata}
+       (cond-> {:metadata @metadata}
+         @priority (assoc :priority @priority))
      ))))
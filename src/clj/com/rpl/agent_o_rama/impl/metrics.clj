@@ -153,6 +153,59 @@
   :target   :nodes
   :value-fn (op-latency-fn :db-write)})
 
+(defn- cached-tool-call-infos
+  [nested-ops]
+  (select [ALL
+           (selected? :type (pred= :tool-call))
+           :info
+           (selected? (must "cacheHit"))]
+          nested-ops))
+
+(defmetric
+ ToolCacheHits
+ {:id       [:agent :tool-cache-hits]
+  :target   :nodes
+  :value-fn
+  (fn [{:keys [nested-ops]}]
+    (let [infos (cached-tool-call-infos nested-ops)
+          hits  (count (filter #(true? (get % "cacheHit")) infos))]
+      {:type   :categorical
+       :values {"hit"  hits
+                "miss" (- (count infos) hits)}
+      }))})
+
+;; how long the tool originally took for each cache hit, i.e. the latency saved
+(defmetric
+ ToolCacheSavedTime
+ {:id       [:agent :tool-cache-saved-time]
+  :target   :nodes
+  :value-fn
+  (fn [{:keys [nested-ops]}]
+    {:type   :numeric
+     :values (select [ALL (must "savedMillis")] (cached-tool-call-infos nested-ops))
+    })})
+
+(defn- cached-model-call-infos
+  [nested-ops]
+  (select [ALL
+           (selected? :type (pred= :model-call))
+           :info
+           (selected? (must "cacheHit"))]
+          nested-ops))
+
+(defmetric
+ ModelCacheHits
+ {:id       [:agent :model-cache-hits]
+  :target   :nodes
+  :value-fn
+  (fn [{:keys [nested-ops]}]
+    (let [infos (cached-model-call-infos nested-ops)
+          hits  (count (filter #(true? (get % "cacheHit")) infos))]
+      {:type   :categorical
+       :values {"hit"  hits
+                "miss" (- (count infos) hits)}
+      }))})
+
 (defmetric
  AgentFirstTokenTime
  {:id       [:agent :first-token-time]
@@ -189,3 +242,24 @@
      :values (when (and node start-time-millis finish-time-millis)
                {node (- finish-time-millis start-time-millis)})
     })})
+
+(defmetric
+ AgentNodeAdmissionWaits
+ {:id       [:agent :node-admission-waits]
+  :target   :nodes
+  :value-fn
+  (fn [{:keys [node admission-wait-millis]}]
+    {:type   :categorical
+     :values (when (and node admission-wait-millis)
+               {node admission-wait-millis})
+    })})
+
+(defmetric
+ AdmissionQueueDepth
+ {:id       [:agent :admission-queue-depth]
+  :target   :nodes
+  :value-fn
+  (fn [{:keys [admission-queue-depth]}]
+    {:type   :numeric
+     :values (if admission-queue-depth [admission-queue-depth])
+    })})
@@ -33,6 +33,13 @@
   [{:keys [agent-task-id]} num-partitions]
   agent-task-id)
 
+(defdepotpartitioner agent-source-depot-partitioner
+  [{:keys [agent-source]} num-partitions]
+  ;; starts where the agent invoke's retry number can be validated
+  (if agent-source
+    (:agent-task-id agent-source)
+    (rand-int num-partitions)))
+
 (defdepotpartitioner human-depot-partitioner
   [data num-partitions]
   (cond
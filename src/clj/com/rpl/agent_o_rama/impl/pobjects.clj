@@ -3,11 +3,15 @@
   (:require
    [com.rpl.agent-o-rama.impl.types])
   (:import
+   [clojure.lang
+    Keyword]
    [com.rpl.agentorama
     AgentInvoke]
    [com.rpl.agentorama.impl
     AgentDeclaredObjectsTaskGlobal
     AgentNodeExecutorTaskGlobal
+    DatasetSchemaCacheTaskGlobal
+    EmbeddingIndexTaskGlobal
     RamaClientsTaskGlobal]
    [com.rpl.agentorama.source
     InfoSource]
@@ -47,6 +51,22 @@
   []
   "*_agent-declared-objects")
 
+(defn dataset-schema-cache-name
+  []
+  "*_aor-dataset-schema-cache")
+
+(defn embedding-index-name
+  []
+  "*_aor-embedding-index")
+
+(defn embedding-store-write-depot-name
+  []
+  RamaClientsTaskGlobal/EMBEDDING_STORE_WRITE_DEPOT)
+
+(defn embedding-store-search-query-name
+  []
+  RamaClientsTaskGlobal/EMBEDDING_STORE_SEARCH_QUERY)
+
 (defn agent-pstate-write-depot-name
   []
   RamaClientsTaskGlobal/AGENT_PSTATE_WRITE_DEPOT)
@@ -79,6 +99,10 @@
   [name]
   (str "*_agent-check-tick-depot-" name))
 
+(defn agent-stats-flush-tick-depot-name
+  [name]
+  (str "*_agent-stats-flush-tick-depot-" name))
+
 (defn agent-failures-depot-name
   [name]
   (str "*_agent-failures-depot-" name))
@@ -95,6 +119,10 @@
   []
   "*_agent-global-actions-depot")
 
+(defn agent-rate-limit-depot-name
+  []
+  AgentDeclaredObjectsTaskGlobal/RATE_LIMIT_DEPOT)
+
 (defn agents-clients-name
   []
   "*_agent-clients")
@@ -127,6 +155,7 @@
      :retry-num Long
      :metadata {String Object}
      :source InfoSource
+     :priority Keyword
      :stats AgentInvokeStatsImpl
      :feedback FEEDBACK-SCHEMA
      :human-requests (set-schema NodeHumanInputRequest {:subindex? true})
@@ -190,10 +219,15 @@
      :result              AgentResult
      :start-time-millis   Long
      :finish-time-millis  Long
+     ;; time the node invoke was queued for admission on its task
+     :admission-wait-millis Long
+     ;; node invokes of the agent queued ahead of it
+     :admission-queue-depth Long
      :exceptions          [String] ; throwable strs
      :feedback            FEEDBACK-SCHEMA
      :metadata            {String Object}
      :source              InfoSource
+     :priority            Keyword
 
      :agg-invoke-id       UUID
 
@@ -237,10 +271,65 @@
 (def AGENT-CONFIG-PSTATE-SCHEMA
   java.util.Map)
 
+(defn agent-rate-limits-task-global-name
+  []
+  "$$_agent-rate-limits")
+
+;; token bucket for each rate limited agent object, keyed by object name
+(def AGENT-RATE-LIMITS-PSTATE-SCHEMA
+  {String
+   (fixed-keys-schema
+    {:requests          Double
+     :tokens            Double
+     :refill-time-millis Long})})
+
 (defn datasets-task-global-name
   []
   "$$_aor-datasets")
 
+;; cache key -> verdict
+(defn llm-judge-verdicts-task-global-name
+  []
+  "$$_aor-llm-judge-verdicts")
+
+(def DATASET-SNAPSHOTS-SCHEMA
+  (map-schema
+   String ; nil for latest
+   (map-schema
+    UUID ; example ID
+    (fixed-keys-schema
+     {:input            Object
+      :reference-output Object
+      :tags             #{String}
+      :source           InfoSource
+      :created-at       Long
+      :modified-at      Long
+      ;; tombstone for an example removed from a snapshot with a parent
+      :removed?         Boolean
+     })
+    {:subindex? true})
+   {:subindex? true}))
+
+;; snapshot name -> tag or trigram -> IDs of the examples stored in that snapshot's own map
+;; in :snapshots, so lookups through a snapshot chain union the postings of every level
+(def DATASET-SNAPSHOT-INDEX-SCHEMA
+  (map-schema
+   String ; nil for latest
+   (map-schema
+    String
+    (set-schema UUID {:subindex? true})
+    {:subindex? true})
+   {:subindex? true}))
+
+;; snapshot name -> parent it was created from, only contains snapshots whose entry in
+;; :snapshots is an overlay on top of their parent
+(def DATASET-SNAPSHOT-PARENTS-SCHEMA
+  (map-schema
+   String
+   (fixed-keys-schema
+    {:parent     String ; nil for latest
+     :created-at Long})))
+
 (def DATASETS-PSTATE-SCHEMA
   {UUID ; dataset-id
    (fixed-keys-schema
@@ -256,24 +345,23 @@
                     :cluster-conductor-port Long
                     :module-name        String
 
+                    ;; examples are spread across tasks by example ID in the shards PState
+                    ;; instead of living with the props
+                    :sharded?           Boolean
+
                     ;; set for both
                     :created-at         Long
                     :modified-at        Long})
-     :snapshots
-     (map-schema
-      String ; nil for latest
-      (map-schema
-       UUID ; example ID
-       (fixed-keys-schema
-        {:input            Object
-         :reference-output Object
-         :tags             #{String}
-         :source           InfoSource
-         :created-at       Long
-         :modified-at      Long
-        })
-       {:subindex? true})
-      {:subindex? true})
+     :snapshots          DATASET-SNAPSHOTS-SCHEMA
+     :snapshot-parents   DATASET-SNAPSHOT-PARENTS-SCHEMA
+     :tag-index          DATASET-SNAPSHOT-INDEX-SCHEMA
+     :text-index         DATASET-SNAPSHOT-INDEX-SCHEMA
+     ;; set for datasets whose indexes have been maintained since creation, searches of other
+     ;; datasets scan the examples
+     :search-indexed?    Boolean
+
+     ;; names of snapshots of a sharded dataset, whose examples live in the shards PState
+     :shard-snapshot-names (set-schema String {:subindex? true})
 
      :experiments
      (map-schema
@@ -358,6 +446,20 @@
   (telemetry-schema {String ; category
                      NumberStats}))
 
+(defn dataset-shards-task-global-name
+  []
+  "$$_aor-dataset-shards")
+
+;; examples of sharded datasets, stored on the task of their example ID with snapshot parents
+;; tracked independently on each task
+(def DATASET-SHARDS-PSTATE-SCHEMA
+  {UUID ; dataset-id
+   (fixed-keys-schema
+    {:snapshots        DATASET-SNAPSHOTS-SCHEMA
+     :snapshot-parents DATASET-SNAPSHOT-PARENTS-SCHEMA
+     :tag-index        DATASET-SNAPSHOT-INDEX-SCHEMA
+     :text-index       DATASET-SNAPSHOT-INDEX-SCHEMA})})
+
 (defn evaluators-task-global-name
   []
   "$$_aor-evaluators")
@@ -410,6 +512,14 @@
   ^AgentDeclaredObjectsTaskGlobal []
   (declared-object-task-global (agent-declared-objects-name)))
 
+(defn dataset-schema-cache-task-global
+  ^DatasetSchemaCacheTaskGlobal []
+  (declared-object-task-global (dataset-schema-cache-name)))
+
+(defn embedding-index-task-global
+  ^EmbeddingIndexTaskGlobal []
+  (declared-object-task-global (embedding-index-name)))
+
 (defn agent-edit-depot-task-global
   []
   (this-module-pobject-task-global (agent-edit-depot-name)))
@@ -484,10 +594,18 @@
   []
   (this-module-pobject-task-global (agent-global-config-task-global-name)))
 
+(defn agent-rate-limits-task-global
+  []
+  (this-module-pobject-task-global (agent-rate-limits-task-global-name)))
+
 (defn datasets-task-global
   []
   (this-module-pobject-task-global (datasets-task-global-name)))
 
+(defn dataset-shards-task-global
+  []
+  (this-module-pobject-task-global (dataset-shards-task-global-name)))
+
 (defn evaluators-task-global
   []
   (this-module-pobject-task-global (evaluators-task-global-name)))
@@ -85,6 +85,14 @@
   []
   "_aor-search-dataset-examples")
 
+(defn snapshot-example-ids-name
+  []
+  "_aor-snapshot-example-ids")
+
+(defn snapshot-has-examples-name
+  []
+  "_aor-snapshot-has-examples")
+
 (defn search-evaluators-name
   []
   "_aor-search-evaluators")
@@ -495,27 +503,37 @@
       (into {} (take *limit *items) :> *res)
     )))
 
-(defn multi-keypath
-  [l]
-  (apply multi-path (mapv keypath l)))
-
 ;; returns map from example-id -> all example info
 (defn declare-multi-examples-query-topology
   [topologies]
-  (let [datasets-sym (symbol (po/datasets-task-global-name))]
+  (let [datasets-sym (symbol (po/datasets-task-global-name))
+        shards-sym   (symbol (po/dataset-shards-task-global-name))]
     (<<query-topology topologies
       (multi-examples-name)
       [*dataset-id *snapshot *example-ids :> *res]
       (|hash *dataset-id)
-      (multi-keypath *example-ids :> *examples-nav)
-      (local-select>
-       [(keypath *dataset-id :snapshots *snapshot)
-        (subselect *examples-nav)]
-       datasets-sym
-       :> *values)
-      (zipmap *example-ids *values :> *res)
+      (local-select> [(keypath *dataset-id) :props :sharded?]
+                     datasets-sym
+                     :> *sharded?)
+      (<<if *sharded?
+        (ops/explode *example-ids :> *example-id)
+        (|hash *example-id)
+        (datasets/select-snapshot-examples> shards-sym
+                                            *dataset-id
+                                            *snapshot
+                                            [*example-id]
+                                            :> *found)
+       (else>)
+        (datasets/select-snapshot-examples> datasets-sym
+                                            *dataset-id
+                                            *snapshot
+                                            *example-ids
+                                            :> *found))
       (|origin)
-    )))
+      (h/+concatv (vec *found) :> *found-entries)
+      (zipmap *example-ids
+              (datasets/aligned-examples (into {} *found-entries) *example-ids)
+              :> *res))))
 
 (defn all-evaluator-builders-without-builder-fns
   []
@@ -644,15 +662,104 @@
       (continue> (next-search-key *m *reverse?))))
   (:> @*results *page-key))
 
+;; when the dataset is indexed, pages are driven by the postings of the search tag or rarest
+;; trigram of the search string, and only those candidates are resolved and filtered
+(deframaop search-snapshot-loop
+  [$$datasets *dataset-id *snapshot *indexed? *search-tag *search-string-lower %filter
+   *limit *next-key]
+  (ramafn> %filter)
+  (local-select> [(keypath *dataset-id) :snapshot-parents] $$datasets :> *parents)
+  (datasets/snapshot-chain *parents *snapshot :> *chain)
+  (<<if *indexed?
+    (datasets/search-postings> $$datasets
+                               *dataset-id
+                               *chain
+                               *search-tag
+                               *search-string-lower
+                               :> *postings)
+   (else>)
+    (identity nil :> *postings))
+  (volatile! [] :> *results)
+  (loop<- [*next-key *next-key
+           :> *page-key]
+    (yield-if-overtime)
+    (<<if (some? *postings)
+      (datasets/select-index-range> $$datasets
+                                    *dataset-id
+                                    *chain
+                                    *postings
+                                    *next-key
+                                    *limit
+                                    :> *ids *end-key)
+      (datasets/select-snapshot-examples> $$datasets
+                                          *dataset-id
+                                          *snapshot
+                                          *ids
+                                          :> *found)
+      (into (sorted-map) *found :> *m)
+     (else>)
+      (datasets/select-snapshot-range> $$datasets
+                                       *dataset-id
+                                       *chain
+                                       *next-key
+                                       *limit
+                                       :> *m *end-key))
+    (<<atomic
+      (ops/explode (seq *m) :> [*id *info])
+      (%filter *id *info :> *assoc-map *dissoc-keys)
+      (<<if (some? *assoc-map)
+        (conj-vol! *results
+                   (merge (into {} (dissoc-all *info *dissoc-keys))
+                          *assoc-map))))
+    (<<cond
+     (case> (nil? *end-key))
+      (:> nil)
+
+     (case> (>= (count @*results) *limit))
+      (:> *end-key)
+
+     (default>)
+      (continue> *end-key)))
+  (:> @*results *page-key))
+
+(defn merge-search-pages
+  "Merges [items page-key] results from searching each task of a sharded dataset. Items past
+   the smallest page key are dropped since other tasks haven't searched that far yet, and
+   the page is trimmed to limit with the next page starting after the last item kept."
+  [pages limit]
+  (let [page-key (reduce
+                  (fn [curr k]
+                    (if (and (some? k) (or (nil? curr) (neg? (compare k curr)))) k curr))
+                  nil
+                  (map second pages))
+        items    (->> pages
+                      (mapcat first)
+                      (filter #(or (nil? page-key) (<= (compare (:id %) page-key) 0)))
+                      (sort-by :id)
+                      vec)]
+    (if (> (count items) limit)
+      (let [items (subvec items 0 limit)]
+        [items (:id (peek items))])
+      [items page-key])))
+
 ;; accepts filters :source, :tag, and search-string (looks for match within
 ;; stringified input or reference-output)
 (defn declare-search-examples-query-topology
   [topologies]
-  (let [datasets-sym (symbol (po/datasets-task-global-name))]
+  (let [datasets-sym (symbol (po/datasets-task-global-name))
+        shards-sym   (symbol (po/dataset-shards-task-global-name))]
     (<<query-topology topologies
       (search-examples-name)
       [*dataset-id *snapshot *filters *limit *next-key :> *res]
       (|hash *dataset-id)
+      (local-select> [(keypath *dataset-id) :props :sharded?]
+                     datasets-sym
+                     :> *sharded?)
+      (local-select> [(keypath *dataset-id) :search-indexed?]
+                     datasets-sym
+                     :> *indexed?)
+      (<<if *sharded?
+        (|all))
       (identity
        *filters
        :> {*search-tag    :tag
@@ -688,17 +795,96 @@
 
          (default>)
           (:> {:id *id} nil)))
-      (search-loop datasets-sym
-                   (keypath *dataset-id :snapshots *snapshot)
-                   %filter
-                   *limit
-                   *next-key
-                   false
-                   :> *items *page-key)
+      (<<if *sharded?
+        (search-snapshot-loop shards-sym
+                              *dataset-id
+                              *snapshot
+                              *indexed?
+                              *search-tag
+                              *search-string-lower
+                              %filter
+                              *limit
+                              *next-key
+                              :> *items *page-key)
+       (else>)
+        (search-snapshot-loop datasets-sym
+                              *dataset-id
+                              *snapshot
+                              *indexed?
+                              *search-tag
+                              *search-string-lower
+                              %filter
+                              *limit
+                              *next-key
+                              :> *items *page-key))
       (|origin)
-      (hash-map :examples *items :pagination-params *page-key :> *res)
+      (h/+concatv [[*items *page-key]] :> *pages)
+      (merge-search-pages *pages *limit :> [*all-items *next-page-key])
+      (hash-map :examples *all-items :pagination-params *next-page-key :> *res)
     )))
 
+(defn take-example-ids
+  [ids limit]
+  (if (some? limit)
+    (into [] (take limit) ids)
+    (vec ids)))
+
+;; returns sorted ids of examples in a snapshot, optionally only those with tag and
+;; up to limit
+(defn declare-snapshot-example-ids-query-topology
+  [topologies]
+  (let [datasets-sym (symbol (po/datasets-task-global-name))
+        shards-sym   (symbol (po/dataset-shards-task-global-name))]
+    (<<query-topology topologies
+      (snapshot-example-ids-name)
+      [*dataset-id *snapshot *tag *limit :> *res]
+      (|hash *dataset-id)
+      (local-select> [(keypath *dataset-id) :props :sharded?]
+                     datasets-sym
+                     :> *sharded?)
+      (local-select> [(keypath *dataset-id) :search-indexed?]
+                     datasets-sym
+                     :> *indexed?)
+      (<<if *sharded?
+        (|all)
+        (datasets/snapshot-example-ids> shards-sym
+                                        *dataset-id
+                                        *snapshot
+                                        *tag
+                                        *indexed?
+                                        :> *ids)
+       (else>)
+        (datasets/snapshot-example-ids> datasets-sym
+                                        *dataset-id
+                                        *snapshot
+                                        *tag
+                                        *indexed?
+                                        :> *ids))
+      (|origin)
+      (h/+concatv (take-example-ids *ids *limit) :> *all-ids)
+      (take-example-ids (sort *all-ids) *limit :> *res))))
+
+;; whether a snapshot has any live examples, where each task stops at its first one
+(defn declare-snapshot-has-examples-query-topology
+  [topologies]
+  (let [datasets-sym (symbol (po/datasets-task-global-name))
+        shards-sym   (symbol (po/dataset-shards-task-global-name))]
+    (<<query-topology topologies
+      (snapshot-has-examples-name)
+      [*dataset-id *snapshot :> *res]
+      (|hash *dataset-id)
+      (local-select> [(keypath *dataset-id) :props :sharded?]
+                     datasets-sym
+                     :> *sharded?)
+      (<<if *sharded?
+        (|all)
+        (datasets/snapshot-has-examples> shards-sym *dataset-id *snapshot :> *has?)
+       (else>)
+        (datasets/snapshot-has-examples> datasets-sym *dataset-id *snapshot :> *has?))
+      (|origin)
+      (aggs/+set-agg *has? :> *found)
+      (contains? *found true :> *res))))
+
 ;; - filters can contain :search-string, which matches against the evaluator
 ;; name, or :types which is set of :regular, :comparative, or :summary
 ;; - limit is approximate, it will return at least that amount and up to twice
@@ -832,18 +1018,37 @@
      ))
    results-map))
 
+(defn foreign-select-examples
+  "Examples of a snapshot aligned with example-ids, going through the module's queries for
+   sharded datasets."
+  [retriever module-name dataset-id snapshot example-ids]
+  (let [datasets (foreign-pstate retriever module-name (po/datasets-task-global-name))]
+    (if (datasets/foreign-sharded? datasets dataset-id)
+      (let [m (foreign-invoke-query
+               (foreign-query retriever module-name (multi-examples-name))
+               dataset-id
+               snapshot
+               example-ids)]
+        (mapv #(get m %) example-ids))
+      (datasets/foreign-select-examples datasets dataset-id snapshot example-ids))))
+
 (defn fetch-remote-examples
-  [declared-objects-tg remote-params query-path]
+  [declared-objects-tg remote-params dataset-id snapshot example-ids]
   (let [cf (h/mk-completable-future)]
     (anode/submit-virtual-task!
      nil
      (fn []
        (try
-         (datasets/with-datasets-pstate
+         (datasets/with-dataset-module
           declared-objects-tg
           remote-params
-          [datasets]
-          (.complete cf (foreign-select-one query-path datasets))
+          [retriever module-name]
+          (.complete cf
+                     (foreign-select-examples retriever
+                                              module-name
+                                              dataset-id
+                                              snapshot
+                                              example-ids))
          )
          (catch Throwable t
            (.completeExceptionally cf t)
@@ -876,6 +1081,9 @@
                                :module-name])]
                      datasets-pstate-sym
                      :> *remote-params)
+      (local-select> [(keypath *dataset-id) :props :sharded?]
+                     datasets-pstate-sym
+                     :> *sharded?)
       (local-select> [(keypath *dataset-id :experiments *experiment-id)
                       (submap [:experiment-info
                                :experiment-invoke
@@ -911,18 +1119,23 @@
           (:> *m)
          (else>)
           (first *chunks :> *chunk)
-          (multi-keypath *chunk :> *example-paths)
-          (path> (keypath *dataset-id :snapshots *snapshot)
-                 (subselect *example-paths)
-                 :> *query-path)
-          (<<if (is-remote-dataset? *remote-params)
+          ;; examples of sharded datasets are spread across tasks, so they're fetched through
+          ;; the multi-examples query like remote ones
+          (<<if (or> *sharded? (is-remote-dataset? *remote-params))
             (fetch-remote-examples (po/agent-declared-objects-task-global)
                                    *remote-params
-                                   *query-path
+                                   *dataset-id
+                                   *snapshot
+                                   *chunk
                                    :> *examples-cf)
             (completable-future> *examples-cf :> *examples)
            (else>)
-            (local-select> *query-path datasets-pstate-sym :> *examples))
+            (datasets/select-snapshot-examples> datasets-pstate-sym
+                                                *dataset-id
+                                                *snapshot
+                                                *chunk
+                                                :> *found)
+            (datasets/aligned-examples *found *chunk :> *examples))
           (mapv vector *chunk *examples :> *pairs)
           (continue> (into *m *pairs) (next *chunks))
         ))
@@ -1036,6 +1249,10 @@
   [datasets-pstate dataset-id]
   (set
    (foreign-select
-    [(keypath dataset-id) :snapshots MAP-KEYS some?]
+    [(keypath dataset-id)
+     (multi-path [:snapshots MAP-KEYS]
+                 [:snapshot-parents MAP-KEYS]
+                 [:shard-snapshot-names ALL])
+     some?]
     datasets-pstate
    )))
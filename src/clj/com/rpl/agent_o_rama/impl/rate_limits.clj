@@ -0,0 +1,116 @@
+(ns com.rpl.agent-o-rama.impl.rate-limits
+  (:use [com.rpl.rama]
+        [com.rpl.rama path])
+  (:require
+   [com.rpl.agent-o-rama.impl.helpers :as h]
+   [com.rpl.agent-o-rama.impl.pobjects :as po]
+   [com.rpl.agent-o-rama.impl.types :as aor-types])
+  (:import
+   [com.rpl.agentorama.impl
+    RateLimiter]))
+
+;; keeps a waiting call responsive to budget freed up by other workers' leases
+(def MAX-WAIT-STEP-MILLIS 1000)
+
+(defn- refill-bucket
+  [bucket requests-per-minute tokens-per-minute now]
+  (if (nil? bucket)
+    ;; a new bucket starts full
+    {:requests           (double requests-per-minute)
+     :tokens             (double tokens-per-minute)
+     :refill-time-millis now}
+    (let [elapsed (max 0 (- now (:refill-time-millis bucket)))
+          refill  (fn [curr per-minute]
+                    (min (double per-minute)
+                         (+ curr (/ (* elapsed per-minute) 60000.0))))]
+      {:requests           (refill (:requests bucket) requests-per-minute)
+       :tokens             (refill (:tokens bucket) tokens-per-minute)
+       :refill-time-millis (max now (:refill-time-millis bucket))})))
+
+(defn- whole-units
+  [amt]
+  ;; tolerates rounding error from accumulating fractional refills
+  (long (Math/floor (+ amt 1.0E-9))))
+
+(defn- refill-wait-millis
+  [shortfall per-minute]
+  (if (pos? shortfall)
+    (long (Math/ceil (/ (* shortfall 60000.0) per-minute)))
+    0))
+
+(defn lease-from-bucket
+  "Refills the bucket for the time elapsed since its last lease and grants as much of the
+  lease as it holds. Returns [bucket granted], where granted includes how long until the
+  rest of the lease would be available."
+  [bucket
+   {:keys [requests-per-minute tokens-per-minute requests tokens]}
+   now]
+  (let [{avail-requests :requests avail-tokens :tokens :as bucket}
+        (refill-bucket bucket requests-per-minute tokens-per-minute now)
+        granted-requests (min requests (whole-units avail-requests))
+        granted-tokens   (min tokens (whole-units avail-tokens))]
+    [(assoc bucket
+      :requests (- avail-requests granted-requests)
+      :tokens   (- avail-tokens granted-tokens))
+     {:requests     granted-requests
+      :tokens       granted-tokens
+      :retry-millis (max (refill-wait-millis (- requests granted-requests)
+                                             requests-per-minute)
+                         (refill-wait-millis (- tokens granted-tokens)
+                                             tokens-per-minute))}]))
+
+(deframaop handle-rate-limit-lease
+  [{:keys [*object-name] :as *lease}]
+  (<<with-substitutions
+   [$$rate-limits (po/agent-rate-limits-task-global)]
+   (local-select> (keypath *object-name) $$rate-limits :> *bucket)
+   (h/current-time-millis :> *now)
+   (lease-from-bucket *bucket *lease *now :> [*new-bucket *granted])
+   (local-transform> [(keypath *object-name) (termval *new-bucket)] $$rate-limits)
+   (ack-return> *granted)))
+
+(defn mk-rate-limiter
+  "Returns the worker's rate limiter for an agent object, or nil if the object isn't rate limited."
+  [object-name rate-limit-options depot]
+  (when rate-limit-options
+    (let [{:keys [requests-per-minute tokens-per-minute]} rate-limit-options]
+      {:object-name object-name
+       :depot       depot
+       :limiter     (RateLimiter. (long (or requests-per-minute 0))
+                                  (long (or tokens-per-minute 0)))})))
+
+(defn- lease!
+  [{:keys [object-name depot ^RateLimiter limiter]} [requests tokens]]
+  (let [{ret aor-types/AGENT-TOPOLOGY-NAME}
+        (foreign-append! depot
+                         (aor-types/->RateLimitLease
+                          object-name
+                          (.getRequestsPerMinute limiter)
+                          (.getTokensPerMinute limiter)
+                          requests
+                          tokens))]
+    ret))
+
+(defn hook:rate-limit-wait
+  [millis]
+  (Thread/sleep (long millis)))
+
+(defn acquire!
+  "Blocks until the rate limits allow a call estimated to use the given number of tokens.
+  Returns how long the call waited."
+  [{:keys [^RateLimiter limiter] :as rate-limiter} estimated-tokens]
+  (let [tokens (.capTokens limiter estimated-tokens)
+        start  (h/current-time-millis)]
+    (loop [retry-millis 0]
+      (when (pos? retry-millis)
+        (hook:rate-limit-wait (min retry-millis MAX-WAIT-STEP-MILLIS)))
+      (if (.tryAcquire limiter tokens)
+        (- (h/current-time-millis) start)
+        (let [granted (lease! rate-limiter (vec (.leaseAmounts limiter tokens)))]
+          (.addLease limiter (:requests granted) (:tokens granted))
+          (recur (:retry-millis granted)))))))
+
+(defn charge-actual-tokens!
+  [{:keys [^RateLimiter limiter]} estimated-tokens actual-tokens]
+  (when actual-tokens
+    (.chargeTokens limiter (- actual-tokens (.capTokens limiter estimated-tokens)))))
@@ -117,10 +117,9 @@
      :nested-op-stats @nops-vol
      :token-counts    @tc-vol}))
 
-(defn mk-node-stats
-  [node start-time-millis finish-time-millis nested-ops]
-  (let [nstats       (nested-op-stats nested-ops)
-        token-counts (:token-counts nstats)]
+(defn mk-node-stats-from-nested-op-stats
+  [node start-time-millis finish-time-millis nstats]
+  (let [token-counts (:token-counts nstats)]
     (aor-types/->valid-AgentInvokeStatsImpl
      (:subagent-stats nstats)
      (aor-types/->valid-BasicAgentInvokeStatsImpl
@@ -130,3 +129,10 @@
       (:total token-counts)
       {node (aor-types/->valid-OpStatsImpl 1 (- finish-time-millis start-time-millis))}
      ))))
+
+(defn mk-node-stats
+  [node start-time-millis finish-time-millis nested-ops]
+  (mk-node-stats-from-nested-op-stats node
+                                      start-time-millis
+                                      finish-time-millis
+                                      (nested-op-stats nested-ops)))
@@ -18,6 +18,7 @@
 
 (def KV :kv)
 (def DOC :doc)
+(def EMBEDDING :embedding)
 
 (aor-types/defaorrecord StoreParams
   [pstate-name :- String
@@ -28,7 +29,8 @@
    mirror? :- Boolean
    pstate-client :- PState
    write-depot :- Depot
-   nested-ops-vol :- (s/pred volatile?)
+   ;; (nested-op) -> nil
+   record-nested-op! :- clojure.lang.IFn
   ])
 
 (defn declare-store*
@@ -78,16 +80,15 @@
            path
            k)
         finish-time (h/current-time-millis)]
-    (vswap! (:nested-ops-vol store-params)
-            conj
-            (aor-types/->NestedOpInfoImpl
-             start-time
-             finish-time
-             :store-write
-             {"name"   (:pstate-name store-params)
-              "op"     op
-              "params" params}
-            ))))
+    ((:record-nested-op! store-params)
+     (aor-types/->NestedOpInfoImpl
+      start-time
+      finish-time
+      :store-write
+      {"name"   (:pstate-name store-params)
+       "op"     op
+       "params" params}
+     ))))
 
 (defmacro pstate-write!
   [store-params path k op & params]
@@ -105,9 +106,7 @@
                      options)
         finish-time (h/current-time-millis)
        ]
-    (vswap!
-     (:nested-ops-vol store-params)
-     conj
+    ((:record-nested-op! store-params)
      (aor-types/->valid-NestedOpInfoImpl
       start-time
       finish-time
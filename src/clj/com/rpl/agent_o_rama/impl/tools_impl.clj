@@ -11,11 +11,20 @@
    [com.rpl.rama.ops :as ops]
    [jsonista.core :as j])
   (:import
+   [com.rpl.agentorama
+    AgentNode]
+   [com.rpl.agentorama.impl
+    ResultCache
+    ResultCache$Entry]
+   [com.rpl.agentorama.store
+    KeyValueStore]
    [dev.langchain4j.agent.tool
     ToolExecutionRequest
     ToolSpecification]
    [dev.langchain4j.data.message
-    ToolExecutionResultMessage]))
+    ToolExecutionResultMessage]
+   [java.nio.charset
+    StandardCharsets]))
 
 (defn hook:new-tools-agent-options [name options])
 
@@ -49,80 +58,219 @@
                         {:conflicting-names invalid})))
     (transform MAP-VALS first tools-by-name)))
 
-(defn mk-tool-fn
-  [tools error-handler]
-  (let [tools-by-name (mk-tools-by-name tools)
-        tool-names    (-> tools-by-name
-                          keys
-                          sort)]
-    (fn [agent-node ^ToolExecutionRequest request caller-data]
-      (let [start-time-millis (h/current-time-millis)
-            tool-name (.name request)
-            args      (-> request
-                          .arguments
-                          (j/read-value MAPPER))
-            base-info {"id"   (.id request)
-                       "name" tool-name
-                       "args" args}]
+(def DEFAULT-CACHE-OPTIONS
+  {:max-entries 1000
+   :max-bytes   0
+   :ttl-millis  0})
+
+(defn- mk-tool-cache
+  [cache-options]
+  (let [{:keys [max-entries max-bytes ttl-millis]}
+        (merge DEFAULT-CACHE-OPTIONS cache-options)]
+    (ResultCache. (long max-entries) (long max-bytes) (long ttl-millis))))
+
+(defn- canonicalize
+  [v]
+  (cond
+    (map? v) (into (sorted-map) (map (fn [[k x]] [k (canonicalize x)])) v)
+    (sequential? v) (mapv canonicalize v)
+    :else v))
+
+(defn tool-cache-key
+  [tool-name args]
+  (str tool-name "\n" (j/write-value-as-string (canonicalize args))))
+
+(defn- utf8-size
+  [^String s]
+  (alength (.getBytes s StandardCharsets/UTF_8)))
+
+(defn- cache-store
+  ^KeyValueStore [^AgentNode agent-node cache-options]
+  (when-let [store-name (:store cache-options)]
+    (when agent-node
+      (.getStore agent-node store-name))))
+
+(defn- cached-tool-result
+  "Returns [result cache-info], where cache-info is added to the tool call's trace."
+  [^ResultCache cache cache-options agent-node tool-name args compute-fn]
+  (let [k     (tool-cache-key tool-name args)
+        store (cache-store agent-node cache-options)
+        now   (h/current-time-millis)]
+    (if-let [^ResultCache$Entry e (.get cache k)]
+      [(.result e)
+       {"cacheHit" true "cacheTier" "memory" "savedMillis" (.latencyMillis e)}]
+      (let [{:keys [result expires-at-millis latency-millis] :as stored}
+            (when store (.get store k))]
+        (if (and stored (> expires-at-millis now))
+          (do
+            (.put cache
+                  k
+                  result
+                  (+ (utf8-size k) (utf8-size (str result)))
+                  expires-at-millis
+                  latency-millis)
+            [result
+             {"cacheHit" true "cacheTier" "store" "savedMillis" latency-millis}])
+          (let [ret        (compute-fn)
+                latency    (- (h/current-time-millis) now)
+                expires-at (.expiresAt cache now)]
+            (.put cache k ret (+ (utf8-size k) (utf8-size (str ret))) expires-at latency)
+            (when store
+              (.put store
+                    k
+                    {:result            ret
+                     :expires-at-millis expires-at
+                     :latency-millis    latency}))
+            [ret {"cacheHit" false}]))))))
+
+(defn- execute-tool-request
+  "Runs the tool for the request and returns its ToolExecutionResultMessage."
+  [tools-by-name tool-names caches error-handler agent-node ^ToolExecutionRequest request
+   caller-data]
+  (let [start-time-millis (h/current-time-millis)
+        tool-name (.name request)
+        args      (-> request
+                      .arguments
+                      (j/read-value MAPPER))
+        base-info {"id"   (.id request)
+                   "name" tool-name
+                   "args" args}]
+    (try
+      (if-let [{:keys [tool-fn include-context? cache-options]}
+               (get tools-by-name tool-name)]
+        (let [compute-fn #(if include-context?
+                            (tool-fn agent-node caller-data args)
+                            (tool-fn args))
+              [ret cache-info]
+              (if-let [cache (get caches tool-name)]
+                (cached-tool-result cache
+                                    cache-options
+                                    agent-node
+                                    tool-name
+                                    args
+                                    compute-fn)
+                [(compute-fn) nil])]
+          (anode/record-nested-op!-impl agent-node
+                                        :tool-call
+                                        start-time-millis
+                                        (h/current-time-millis)
+                                        (merge base-info
+                                               {"type"   "success"
+                                                "result" ret}
+                                               cache-info))
+          (ToolExecutionResultMessage/from request (str ret)))
+
+        (do
+          (anode/record-nested-op!-impl agent-node
+                                        :tool-call
+                                        start-time-millis
+                                        (h/current-time-millis)
+                                        (assoc base-info "type" "invalid"))
+          (ToolExecutionResultMessage/from
+           request
+           (tool-invalid-error-string tool-name tool-names))
+        ))
+      (catch Throwable t
         (try
-          (if-let [{:keys [tool-fn include-context?]}
-                   (get tools-by-name tool-name)]
-            (let [ret (if include-context?
-                        (tool-fn agent-node caller-data args)
-                        (tool-fn args))]
-              (anode/record-nested-op!-impl agent-node
-                                            :tool-call
-                                            start-time-millis
-                                            (h/current-time-millis)
-                                            (merge base-info
-                                                   {"type"   "success"
-                                                    "result" ret}))
-              (c/emit! agent-node
-                       "agg-results"
-                       (ToolExecutionResultMessage/from request (str ret))))
-
-            (do
-              (anode/record-nested-op!-impl agent-node
-                                            :tool-call
-                                            start-time-millis
-                                            (h/current-time-millis)
-                                            (assoc base-info "type" "invalid"))
-              (c/emit! agent-node
-                       "agg-results"
-                       (ToolExecutionResultMessage/from
-                        request
-                        (tool-invalid-error-string tool-name tool-names)))
-            ))
-          (catch Throwable t
-            (try
-              (let [error-ret (error-handler t)]
-                (c/emit! agent-node
-                         "agg-results"
-                         (ToolExecutionResultMessage/from request error-ret))
-                (tl/warn ::tool-exec-error t "Tool execution exception")
-                (anode/record-nested-op!-impl
-                 agent-node
-                 :tool-call
-                 start-time-millis
-                 (h/current-time-millis)
-                 (merge base-info
-                        {"type"      "failure"
-                         "exception" (h/throwable->str t)
-                         "result"    error-ret})))
-              (catch Throwable t2
-                (anode/record-nested-op!-impl
-                 agent-node
-                 :tool-call
-                 start-time-millis
-                 (h/current-time-millis)
-                 (merge base-info
-                        (if (identical? t t2)
-                          {"type"      "throw"
-                           "exception" (h/throwable->str t)}
-                          {"type"       "throw"
-                           "exception1" (h/throwable->str t)
-                           "exception2" (h/throwable->str t2)})))
-                (throw t2)
-              ))
+          (let [error-ret (error-handler t)
+                ret       (ToolExecutionResultMessage/from request error-ret)]
+            (tl/warn ::tool-exec-error t "Tool execution exception")
+            (anode/record-nested-op!-impl
+             agent-node
+             :tool-call
+             start-time-millis
+             (h/current-time-millis)
+             (merge base-info
+                    {"type"      "failure"
+                     "exception" (h/throwable->str t)
+                     "result"    error-ret}))
+            ret)
+          (catch Throwable t2
+            (anode/record-nested-op!-impl
+             agent-node
+             :tool-call
+             start-time-millis
+             (h/current-time-millis)
+             (merge base-info
+                    (if (identical? t t2)
+                      {"type"      "throw"
+                       "exception" (h/throwable->str t)}
+                      {"type"       "throw"
+                       "exception1" (h/throwable->str t)
+                       "exception2" (h/throwable->str t2)})))
+            (throw t2)
           ))
-      ))))
+      ))
+  ))
+
+(defn- mk-tools-context
+  [tools]
+  (let [tools-by-name (mk-tools-by-name tools)]
+    {:tools-by-name tools-by-name
+     :tool-names    (-> tools-by-name
+                        keys
+                        sort)
+     ;; created when the topology is defined, so each worker has its own caches
+     :caches        (into {}
+                          (for [[name {:keys [cache-options]}] tools-by-name
+                                :when cache-options]
+                            [name (mk-tool-cache cache-options)]))}))
+
+(defn mk-tool-fn
+  [tools error-handler]
+  (let [{:keys [tools-by-name tool-names caches]} (mk-tools-context tools)]
+    (fn [agent-node request caller-data]
+      (c/emit! agent-node
+               "agg-results"
+               (execute-tool-request tools-by-name
+                                     tool-names
+                                     caches
+                                     error-handler
+                                     agent-node
+                                     request
+                                     caller-data)))))
+
+(defn mk-inline-tool-fn
+  "Like mk-tool-fn, but takes either a single request or a batch of requests and
+  emits a vector of results. A batch runs its requests concurrently within the node."
+  [tools error-handler]
+  (let [{:keys [tools-by-name tool-names caches]} (mk-tools-context tools)
+        execute! (fn [agent-node request caller-data]
+                   (execute-tool-request tools-by-name
+                                         tool-names
+                                         caches
+                                         error-handler
+                                         agent-node
+                                         request
+                                         caller-data))]
+    (fn [agent-node requests caller-data]
+      (c/emit!
+       agent-node
+       "agg-results"
+       (cond
+         (instance? ToolExecutionRequest requests)
+         [(execute! agent-node requests caller-data)]
+
+         (= 1 (count requests))
+         [(execute! agent-node (first requests) caller-data)]
+
+         :else
+         (anode/run-concurrently!
+          agent-node
+          (mapv (fn [request] #(execute! agent-node request caller-data))
+                requests)))))))
+
+(defn split-inline-requests
+  "Returns [inline distributed], where distributed are the requests for tools that
+  always run in their own node."
+  [requests distributed-tools]
+  (let [distributed? #(contains? distributed-tools (.name ^ToolExecutionRequest %))]
+    [(filterv (complement distributed?) requests)
+     (filterv distributed? requests)]))
+
+(def +concat-agg
+  (accumulator
+   (fn [v]
+     (term (fn [curr] (into curr v))))
+   :init-fn
+   vector))
@@ -10,6 +10,7 @@
    [com.rpl.agent-o-rama.impl.pobjects :as po]
    [com.rpl.agent-o-rama.impl.stats :as stats]
    [com.rpl.agent-o-rama.impl.queries :as queries]
+   [com.rpl.agent-o-rama.impl.trace-capture :as tc]
    [com.rpl.agent-o-rama.impl.types :as aor-types]
    [com.rpl.rama.ops :as ops])
   (:import
@@ -29,6 +30,13 @@
   (select-any [:node-map (keypath node) :node]
               agent-graph))
 
+(defn agg-input-args
+  [agent-graph node args]
+  ;; agg state is never rebuilt from inputs, so they're only needed for traces
+  (if (select-any [:node-map (keypath node) :compact-agg-inputs?] agent-graph)
+    (tc/digest-args args)
+    args))
+
 (defn hook:finding-graph-version [starting-task-id])
 
 (deframaop fetch-graph-version
@@ -75,6 +83,66 @@
   []
   (aor-types/->StreamingChunk -1 -1 iclient/FINISHED))
 
+(defn buffer-agg-ack!
+  "Combines a node's stats and aggregation ack into those pending for the aggregation on this
+   task. Returns the combined entry once batch-size completions are combined, or nil while it
+   stays buffered."
+  [agent-name agent-task-id agent-id retry-num agg-invoke-id stats ack-val batch-size]
+  (let [^AgentNodeExecutorTaskGlobal node-exec (po/agent-node-executor-task-global)
+        {:keys [amt] :as pending}
+        (or (.getPendingStats node-exec agent-name agent-id retry-num agg-invoke-id)
+            {:agent-task-id agent-task-id
+             :agent-id      agent-id
+             :retry-num     retry-num
+             :agg-invoke-id agg-invoke-id
+             :stats         stats/EMPTY-AGENT-STATS
+             :ack-val       0
+             :amt           0
+             :since-millis  (h/current-time-millis)})
+        pending (-> pending
+                    (update :stats (stats/agent-stats-merger stats))
+                    (update :ack-val bit-xor ack-val)
+                    (assoc :amt (inc amt)))]
+    (if (>= (:amt pending) batch-size)
+      (do (.takePendingStats node-exec agent-name agent-id retry-num agg-invoke-id)
+          pending)
+      (do (.putPendingStats node-exec agent-name agent-id retry-num agg-invoke-id pending)
+          nil))))
+
+(defn take-stale-agg-acks!
+  [agent-name flush-interval-millis]
+  (let [^AgentNodeExecutorTaskGlobal node-exec (po/agent-node-executor-task-global)]
+    (.takeStalePendingStats node-exec
+                            agent-name
+                            (- (h/current-time-millis) flush-interval-millis))))
+
+(defn initiate-queue-depth
+  [agent-name]
+  (let [^AgentNodeExecutorTaskGlobal node-exec (po/agent-node-executor-task-global)]
+    (.getQueuedCount node-exec agent-name)))
+
+(defn admission-info
+  [m wait-millis queue-depth]
+  (if (some? wait-millis)
+    (assoc m
+     :admission-wait-millis wait-millis
+     :admission-queue-depth queue-depth)
+    m))
+
+(deframaop merge-root-stats>
+  [*agent-name *agent-id *stats]
+  (<<with-substitutions
+   [$$root (po/agent-root-task-global *agent-name)]
+   ;; <<atomic here only because tests override the hook to elide this
+   (<<atomic
+     (hook:update-last-progress>)
+     (local-transform>
+      [(keypath *agent-id)
+       (multi-path [:last-progress-time-millis (termval (h/current-time-millis))]
+                   [:stats (term (stats/agent-stats-merger *stats))])]
+      $$root))
+   (:>)))
+
 (deframaop send-emits>
   [*agent-name *agent-task-id *agent-id *retry-num *invoke-id *agg-invoke-id
    *emits *result *stats *fork-context]
@@ -102,18 +170,33 @@
 
    (hook> <root>)
    (mapv (comp h/half-uuid :invoke-id) *emits :> *next-ack-vals)
-   (reduce bit-xor (h/half-uuid *invoke-id) *next-ack-vals :> *ack-val)
+   (reduce bit-xor (h/half-uuid *invoke-id) *next-ack-vals :> *node-ack-val)
+   (anode/read-config *agent-name
+                      aor-types/STATS-FLUSH-BATCH-SIZE-CONFIG
+                      :> *stats-batch-size)
+   (<<if (and> (> *stats-batch-size 1) (some? *agg-invoke-id) (nil? *result))
+     ;; - fan-out within aggregations would otherwise hop to the root task and merge into its
+     ;; stats on every node completion
+     ;; - the ack travels with the stats, so the aggregation can't complete before its stats
+     ;; are merged, and a tick sends whatever is left after the flush interval
+     (buffer-agg-ack! *agent-name
+                      *agent-task-id
+                      *agent-id
+                      *retry-num
+                      *agg-invoke-id
+                      *stats
+                      *node-ack-val
+                      *stats-batch-size
+                      :> *pending)
+     (filter> (some? *pending))
+     (identity *pending :> {*flush-stats :stats *ack-val :ack-val})
+    (else>)
+     (identity *stats :> *flush-stats)
+     (identity *node-ack-val :> *ack-val))
    (apart/|aor [*agent-name *agent-task-id *agent-id *retry-num]
                |direct
                *agent-task-id)
-   ;; <<atomic here only because tests override the hook to elide this
-   (<<atomic
-     (hook:update-last-progress>)
-     (local-transform>
-      [(keypath *agent-id)
-       (multi-path [:last-progress-time-millis (termval (h/current-time-millis))]
-                   [:stats (term (stats/agent-stats-merger *stats))])]
-      $$root))
+   (merge-root-stats> *agent-name *agent-id *flush-stats)
 
    (<<if (some? *result)
      (hook:writing-result *agent-task-id *agent-id *result)
@@ -170,7 +253,7 @@
 
 
 (deframaop init-root
-  [*agent-name *agent-id *retry-num *args *metadata *source]
+  [*agent-name *agent-id *retry-num *args *metadata *source *priority]
   (<<with-substitutions
    [$$root (po/agent-root-task-global *agent-name)
     $$root-count (po/agent-root-count-task-global *agent-name)]
@@ -191,6 +274,7 @@
                :stats             stats/EMPTY-AGENT-STATS
                :metadata          *metadata
                :source            *source
+               :priority          *priority
                :start-time-millis *current-time-millis})]
     $$root)
    (:> *invoke-id)))
@@ -231,6 +315,7 @@
    (get *data :forced-agent-invoke-id :> *forced-agent-id)
    (get *data :source :> *source)
    (get *data :metadata :> *metadata)
+   (aor-types/invoke-priority (get *data :priority) *source :> *priority)
    (<<if (some? *forced-agent-id)
      ;; stop if already exists for idempotency
      (local-select> [(keypath *forced-agent-id) nil?] $$root)
@@ -238,7 +323,7 @@
     (else>)
      (gen-new-agent-id *agent-name :> *agent-id))
    (init-retry-num :> *retry-num)
-   (init-root *agent-name *agent-id *retry-num *args *metadata *source :> *invoke-id)
+   (init-root *agent-name *agent-id *retry-num *args *metadata *source *priority :> *invoke-id)
    (update-metadata-index! *agent-name *metadata)
    (local-transform> [:active-invokes NONE-ELEM (termval *agent-id)]
                      $$stream-shared)
@@ -251,7 +336,7 @@
                              :> *op)
    (:> *agent-task-id
        *agent-id
-       (aor-types/->valid-AgentExecutionContext *metadata *source)
+       (aor-types/->valid-AgentExecutionContext *metadata *source *priority)
        *retry-num
        *op)))
 
@@ -312,6 +397,7 @@
                       *result :result
                       *source :source
                       *metadata :metadata
+                      *priority :priority
 
                       {:keys [*fork-context
                               *parent-root-invoke-id]}
@@ -348,7 +434,14 @@
      (<<if (= :restart *handle-mode)
        (local-transform> [:gc-root-invokes (keypath *root-invoke-id) (termval nil)]
                          $$stream-shared)
-       (init-root *agent-name *agent-id *retry-num *args *metadata *source :> *root-invoke-id)
+       (init-root *agent-name
+                  *agent-id
+                  *retry-num
+                  *args
+                  *metadata
+                  *source
+                  *priority
+                  :> *root-invoke-id)
       (else>)
        (identity *root-invoke-id :> *root-invoke-id))
 
@@ -375,7 +468,7 @@
                                  :> *op)
        (:> *agent-task-id
            *agent-id
-           (aor-types/->valid-AgentExecutionContext *metadata *source)
+           (aor-types/->valid-AgentExecutionContext *metadata *source *priority)
            *retry-num
            *op)
      ))))
@@ -389,7 +482,8 @@
     %affected-aggs (queries/fork-affected-aggs-query-task-global)]
    (local-select> (keypath *agent-id)
                   $$root
-                  :> {:keys [*root-invoke-id *invoke-args *graph-version *metadata]})
+                  :> {:keys [*root-invoke-id *invoke-args *graph-version *metadata
+                             *priority]})
    (<<if (nil? *invoke-args)
      (throw! (h/ex-info "Forked agent ID does not exist"
                         {:agent-id *agent-id})))
@@ -411,6 +505,7 @@
               *invoke-args
               *metadata
               nil
+              *priority
               :> *invoke-id)
    (local-select> [(keypath *fork-agent-id) :graph-version]
                   $$root
@@ -440,7 +535,7 @@
                              :> *op)
    (:> *agent-task-id
        *fork-agent-id
-       (aor-types/->valid-AgentExecutionContext *metadata nil)
+       (aor-types/->valid-AgentExecutionContext *metadata nil *priority)
        *retry-num
        *op)))
 
@@ -496,7 +591,7 @@
                   $$nodes
                   :> {:keys [*agent-task-id *agent-id *node
                              *agg-invoke-id *start-time-millis
-                             *metadata *source]})
+                             *metadata *source *priority]})
    (filter> (some? *agent-id))
    (apart/filter-valid-retry-num> *agent-name
                                   *agent-task-id
@@ -504,7 +599,7 @@
                                   *retry-num)
    (:> *agent-task-id
        *agent-id
-       (aor-types/->valid-AgentExecutionContext *metadata *source)
+       (aor-types/->valid-AgentExecutionContext *metadata *source *priority)
        *node
        *agg-invoke-id
        *start-time-millis)))
@@ -548,7 +643,10 @@
            *emits
            *result
            *nested-ops
-           *finish-time-millis]}]
+           *finish-time-millis
+           *nested-op-stats
+           *admission-wait-millis
+           *admission-queue-depth]}]
   (<<with-substitutions
    [$$nodes (po/agent-node-task-global *agent-name)]
    (begin-node-complete
@@ -560,12 +658,16 @@
      [*m]
      (:> (reduce-kv assoc
                     *m
-                    {:emits  *emits
-                     :result *result
-                     :finish-time-millis *finish-time-millis})))
+                    (admission-info
+                     {:emits  *emits
+                      :result *result
+                      :finish-time-millis *finish-time-millis}
+                     *admission-wait-millis
+                     *admission-queue-depth))))
    (local-transform> [(keypath *invoke-id)
                       (multi-path
                        (term %merger)
+                       ;; empty when the node already wrote its payloads to this PState
                        [:nested-ops NIL->VECTOR END (termval *nested-ops)])]
                      $$nodes)
 
@@ -578,7 +680,18 @@
                        $$nodes))
 
 
-   (stats/mk-node-stats *node *start-time-millis *finish-time-millis *nested-ops :> *stats)
+   (<<if (some? *nested-op-stats)
+     (stats/mk-node-stats-from-nested-op-stats *node
+                                               *start-time-millis
+                                               *finish-time-millis
+                                               *nested-op-stats
+                                               :> *stats)
+    (else>)
+     (stats/mk-node-stats *node
+                          *start-time-millis
+                          *finish-time-millis
+                          *nested-ops
+                          :> *stats))
    (handle-node-complete-emits
     *agent-name
     *agent-task-id
@@ -610,6 +723,31 @@
     {:new-agg-state res
      :finished?     false}))
 
+(defn async-agg-updates?
+  [agent-graph node]
+  (boolean (select-any [:node-map (keypath node) :async-agg-updates?] agent-graph)))
+
+(defn async-agg-update
+  "Returns the function run for an agg update off the task thread. It receives the result of
+  the previous update queued for the aggregation, so updates queued behind one that finished
+  the aggregation are skipped, just like on the task thread. A failed update leaves the state
+  unchanged for the updates queued behind it, which still run like they would on the task
+  thread, and the failure is recorded when its result is handled."
+  [update-fn args]
+  (fn [{:keys [new-agg-state finished?] :as prev}]
+    (if (or finished? (contains? prev ::skipped?))
+      {::skipped? true}
+      (let [res (anode/invoke-or-error
+                 #(extract-agg-result (apply update-fn new-agg-state args))
+                 :agg-update)]
+        (if (contains? res ::anode/error)
+          (assoc res :new-agg-state new-agg-state :finished? false)
+          res)))))
+
+(defn skipped-agg-update?
+  [res]
+  (contains? res ::skipped?))
+
 (defn hook:running-complete-agg! [])
 
 (deframaop complete-agg!
@@ -707,6 +845,7 @@
                :agg-start-invoke-id *invoke-id
                :metadata            (get *execution-context :metadata)
                :source              (get *execution-context :source)
+               :priority            (get *execution-context :priority)
               })]
     $$nodes)
    (:>)))
@@ -777,15 +916,47 @@
     :> *op)
    (:> *agent-task-id *agent-id *execution-context *retry-num *op)))
 
+;; initiates of the evaluator agent are appended by the module's own topologies, like when
+;; starting an experiment, which can't check the ack and would leave the experiment hanging
+(defn initiate-admission-exempt?
+  [agent-name]
+  (= agent-name aor-types/EVALUATOR-AGENT-NAME))
+
+(deframaop filter-initiate-overloaded>
+  [*agent-name]
+  (anode/read-config *agent-name
+                     aor-types/INITIATE-BACKPRESSURE-QUEUE-DEPTH-CONFIG
+                     :> *max-queue-depth)
+  (initiate-queue-depth *agent-name :> *queue-depth)
+  (and> (not (initiate-admission-exempt? *agent-name))
+        (pos? *max-queue-depth)
+        (>= *queue-depth *max-queue-depth)
+        :> *overloaded?)
+  (<<if *overloaded?
+    ;; rejected before creating the root so the caller can back off and retry
+    (ack-return> (aor-types/->AgentOverloaded *agent-name *queue-depth)))
+  (filter> (not *overloaded?))
+  (:>))
+
 (deframaop intake-agent-depot
   [*agent-name *data]
   (<<cond
    (case> (aor-types/AgentInitiate? *data))
+    (filter-initiate-overloaded> *agent-name)
     (intake-agent-initiate *agent-name
                            *data
                            :> *agent-task-id *agent-id *execution-context *retry-num *op)
     (ack-return> [*agent-task-id *agent-id])
 
+   (case> (aor-types/AgentInitiateBatch? *data))
+    (filter-initiate-overloaded> *agent-name)
+    ;; agent ids are chosen by the client, so the batch only acks the task taking it
+    (ack-return> (ops/current-task-id))
+    (ops/explode (get *data :initiates) :> *initiate)
+    (intake-agent-initiate *agent-name
+                           *initiate
+                           :> *agent-task-id *agent-id *execution-context *retry-num *op)
+
    (case> (aor-types/RetryAgentInvoke? *data))
     (intake-retry *agent-name
                   *data
@@ -1004,26 +1175,46 @@
                         (termval *agg-invoke-id)]
                        $$nodes)
      (filter> (not *agg-finished?))
-     (<<ramafn %update-fn
-       []
-       (:> (apply *update-fn *agg-state *args)))
-     (anode/invoke-on-task-thread *agent-name
-                                  *agent-task-id
-                                  *agent-id
-                                  *next-node
-                                  *agg-invoke-id
-                                  *retry-num
-                                  %update-fn
-                                  :agg-update
-                                  :> *res)
-     (extract-agg-result *res :> {:keys [*new-agg-state *finished?]})
-
+     (<<if (async-agg-updates? *agent-graph *next-node)
+       ;; the state read above is only used if no other update is queued for the
+       ;; aggregation, since otherwise it's stale
+       (anode/submit-agg-update! *agg-invoke-id
+                                 {:new-agg-state *agg-state :finished? false}
+                                 (async-agg-update *update-fn *args)
+                                 :> *cf)
+       (completable-future> *cf :> *update-res)
+       (anode/finish-agg-update! *agg-invoke-id *cf)
+       (filter> (not (skipped-agg-update? *update-res)))
+       (anode/handle-invoke-result *agent-name
+                                   *agent-task-id
+                                   *agent-id
+                                   *next-node
+                                   *agg-invoke-id
+                                   *retry-num
+                                   *update-res
+                                   :> {:keys [*new-agg-state *finished?]})
+      (else>)
+       (<<ramafn %update-fn
+         []
+         (:> (apply *update-fn *agg-state *args)))
+       (anode/invoke-on-task-thread *agent-name
+                                    *agent-task-id
+                                    *agent-id
+                                    *next-node
+                                    *agg-invoke-id
+                                    *retry-num
+                                    %update-fn
+                                    :agg-update
+                                    :> *res)
+       (extract-agg-result *res :> {:keys [*new-agg-state *finished?]}))
+
+     (agg-input-args *agent-graph *next-node *args :> *input-args)
      (local-transform>
       [(keypath *agg-invoke-id)
        (multi-path [:agg-state (termval *new-agg-state)]
                    [:agg-inputs AFTER-ELEM
                     (termval (aor-types/->valid-AggInput *invoke-id
-                                                         *args))])]
+                                                         *input-args))])]
       $$nodes)
 
      ;; by not acking here and going straight go complete-agg!, it also prevents
@@ -1148,6 +1339,7 @@
                                     :agent-id      *agent-id
                                     :node          *agg-node
                                     :metadata      (get *execution-context :metadata)
+                                    :priority      (get *execution-context :priority)
                                     :agg-invoke-id *agg-invoke-id
                                     :agg-start-res *agg-start-res
                                     :agg-start-invoke-id *invoke-id})]
@@ -1191,6 +1383,36 @@
                       *retry-num
                       *node-op))))
 
+(deframaop handle-stats-flush
+  [*agent-name]
+  (<<with-substitutions
+   [$$root (po/agent-root-task-global *agent-name)]
+   (anode/read-config *agent-name
+                      aor-types/STATS-FLUSH-BATCH-SIZE-CONFIG
+                      :> *stats-batch-size)
+   (filter> (> *stats-batch-size 1))
+   (anode/read-config *agent-name
+                      aor-types/STATS-FLUSH-INTERVAL-MILLIS-CONFIG
+                      :> *stats-flush-interval-millis)
+   (|all)
+   (take-stale-agg-acks! *agent-name *stats-flush-interval-millis :> *pending)
+   (ops/explode *pending
+                :> {:keys [*agent-task-id *agent-id *retry-num *agg-invoke-id *stats
+                           *ack-val]})
+   (apart/|aor [*agent-name *agent-task-id *agent-id *retry-num]
+               |direct
+               *agent-task-id)
+   (local-select> [(keypath *agent-id) (view some?)] $$root :> *exists?)
+   ;; the root is gone if the invoke was garbage collected since
+   (filter> *exists?)
+   (local-select> (keypath *agent-id)
+                  $$root
+                  :> {:keys [*metadata *source *priority]})
+   (aor-types/->valid-AgentExecutionContext *metadata *source *priority
+                                            :> *execution-context)
+   (merge-root-stats> *agent-name *agent-id *stats)
+   (ack-agg! *agent-name *agg-invoke-id *execution-context *retry-num *ack-val)))
+
 (deframaop handle-gc
   [*agent-name]
   (<<with-substitutions
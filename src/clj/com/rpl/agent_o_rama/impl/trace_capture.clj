@@ -0,0 +1,105 @@
+(ns com.rpl.agent-o-rama.impl.trace-capture
+  (:import
+   [java.nio
+    ByteBuffer
+    CharBuffer]
+   [java.nio.charset
+    CodingErrorAction
+    StandardCharsets]
+   [java.security
+    MessageDigest]))
+
+;; identifying info kept at every level so traces stay navigable and stats stay computable
+(def PRESERVED-INFO-KEYS
+  #{"objectName" "modelName" "finishReason" "op" "name" "agent-module-name"
+    "agent-name" "agent-invoke" "stats" "failure"})
+
+(defn- truncate-utf8
+  [^String s max-bytes]
+  (let [bytes (.getBytes s StandardCharsets/UTF_8)]
+    (if (<= (alength bytes) max-bytes)
+      s
+      ;; decoding ignores a multi-byte character cut off at the boundary
+      (let [decoder (doto (.newDecoder StandardCharsets/UTF_8)
+                      (.onMalformedInput CodingErrorAction/IGNORE))
+            out     (CharBuffer/allocate max-bytes)]
+        (.decode decoder (ByteBuffer/wrap bytes 0 max-bytes) out true)
+        (.flip out)
+        (str out "...")))))
+
+(defn- sha256
+  [^String s]
+  (let [digest (.digest (MessageDigest/getInstance "SHA-256")
+                        (.getBytes s StandardCharsets/UTF_8))
+        sb     (StringBuilder. "sha256:")]
+    (doseq [b digest]
+      (.append sb (format "%02x" (bit-and b 0xff))))
+    (.toString sb)))
+
+(defn- scalar?
+  [v]
+  (or (nil? v) (number? v) (boolean? v) (keyword? v)))
+
+(defn- capture-value
+  [level max-bytes v]
+  (case level
+    "truncated" (if (string? v)
+                  (truncate-utf8 v max-bytes)
+                  ;; structured payloads are only stringified once they're too large
+                  (let [s (pr-str v)
+                        t (truncate-utf8 s max-bytes)]
+                    (if (identical? s t) v t)))
+    "hashed" (sha256 (if (string? v) v (pr-str v)))))
+
+(defn digest-args
+  "Replaces each arg with a SHA-256 digest of it."
+  [args]
+  (mapv #(capture-value "hashed" 0 %) args))
+
+(defn capture-info
+  [level max-bytes info]
+  (if (= level "full")
+    info
+    (reduce-kv
+     (fn [m k v]
+       (cond (or (contains? PRESERVED-INFO-KEYS k) (scalar? v))
+             (assoc m k v)
+
+             (= level "timings-only")
+             m
+
+             :else
+             (assoc m k (capture-value level max-bytes v))))
+     {}
+     info)))
+
+(defn sampled-full-capture?
+  [agent-id sample-rate]
+  ;; decided per agent invoke so a sampled trace is complete across all its nodes
+  (and (pos? sample-rate)
+       (< (/ (bit-and (hash agent-id) 0x7fffffff) (double 0x7fffffff))
+          sample-rate)))
+
+(defn mk-capture-policy
+  [level max-bytes sample-rate agent-id]
+  (let [sampled? (sampled-full-capture? agent-id sample-rate)]
+    {:level     (if sampled? "full" level)
+     :sampled?  sampled?
+     :max-bytes max-bytes}))
+
+(defn capture-nested-ops
+  "Applies the capture policy to nested ops. object-level-fn returns the capture level
+  declared for an agent object, if any, which overrides the agent's level for ops on that
+  object."
+  [{:keys [level sampled? max-bytes]} object-level-fn nested-ops]
+  (if sampled?
+    nested-ops
+    (mapv
+     (fn [{:keys [info] :as nested-op}]
+       (let [object-name (get info "objectName")
+             op-level    (or (when object-name (object-level-fn object-name))
+                             level)]
+         (if (= op-level "full")
+           nested-op
+           (assoc nested-op :info (capture-info op-level max-bytes info)))))
+     nested-ops)))
@@ -204,14 +204,30 @@
 
 (def METADATA-SCHEMA (s/maybe {String (s/pred valid-restricted-map-value?)}))
 
+(def PRIORITIES #{:interactive :batch})
+
+(defn invoke-priority
+  [priority source]
+  (cond priority priority
+        (ExperimentSourceImpl? source) :batch
+        :else :interactive))
+
 (defaorrecord AgentInitiate
   [args :- [s/Any]
    forced-agent-task-id :- (s/maybe Long)
    forced-agent-invoke-id :- (s/maybe UUID)
    metadata :- METADATA-SCHEMA
    source :- (s/maybe InfoSource)
+   priority :- (s/maybe (apply s/enum PRIORITIES))
   ])
 
+(defaorrecord AgentOverloaded
+  [agent-name :- String
+   queue-depth :- Long])
+
+(defaorrecord AgentInitiateBatch
+  [initiates :- [AgentInitiate]])
+
 (defaorrecord EditMetadata
   [agent-name :- String
    agent-task-id :- Long
@@ -221,7 +237,9 @@
 
 (defaorrecord AgentExecutionContext
   [metadata :- METADATA-SCHEMA
-   source :- (s/maybe InfoSource)])
+   source :- (s/maybe InfoSource)
+   ;; nil for invokes started before priorities existed, which run as interactive
+   priority :- (s/maybe (apply s/enum PRIORITIES))])
 
 (defaorrecord AgentResult
   [val :- s/Any
@@ -236,7 +254,14 @@
 (defaorrecord AgentNode
   [node :- (s/cond-pre Node NodeAggStart NodeAgg)
    output-nodes :- #{String}
-   agg-context :- (s/maybe String)])
+   agg-context :- (s/maybe String)
+   ;; {:strategy :key-fn :key-fn-class}, nil for the default round-robin placement. Key fns
+   ;; are stored as a qualified symbol or a class name, resolved on the workers
+   placement :- (s/maybe {s/Keyword s/Any})
+   ;; for agg nodes, whether inputs are kept as digests instead of full args
+   compact-agg-inputs? :- (s/maybe Boolean)
+   ;; for agg nodes, whether updates run on a virtual thread instead of the task thread
+   async-agg-updates? :- (s/maybe Boolean)])
 
 (defaorrecord AgentGraph
   [node-map :- NippyMap ; {String AgentNode}
@@ -303,6 +328,12 @@
    nested-ops :- [NestedOpInfoImpl]
    finish-time-millis :- Long
    fork-context :- (s/maybe ForkContext)
+   ;; set when the nested op payloads were written to the node PState by the node instead of
+   ;; being sent in nested-ops, result of stats/nested-op-stats on them
+   nested-op-stats :- (s/maybe {s/Keyword s/Any})
+   ;; time spent queued for admission and how many invokes of the agent were queued ahead
+   admission-wait-millis :- (s/maybe Long)
+   admission-queue-depth :- (s/maybe Long)
   ])
 
 (defaorrecord RetryNodeComplete
@@ -406,12 +437,43 @@
    path :- s/Any
    key :- s/Any])
 
+;; limits are carried on each lease so the bucket picks up changes on module update
+(defaorrecord RateLimitLease
+  [object-name :- String
+   requests-per-minute :- Long
+   tokens-per-minute :- Long
+   requests :- Long
+   tokens :- Long])
+
+(defaorrecord EmbeddingStoreWrite
+  [agent-source :- (s/maybe PStateWriteAgentSource)
+   store-name :- String
+   op :- (s/enum :add :remove :remove-all)
+   ;; for :add, each is {:id :embedding :segment}
+   entries :- (s/maybe [s/Any])
+   ids :- (s/maybe [String])
+   ;; for :remove-all, a langchain4j Filter on segment metadata, or nil for everything
+   filter :- s/Any])
+
 (defaorrecord ToolInfoImpl
   [tool-specification :- ToolSpecification
    tool-fn :- clojure.lang.IFn
-   include-context? :- Boolean]
+   include-context? :- Boolean
+   ;; {:max-entries :max-bytes :ttl-millis :store}, nil when results aren't cached
+   cache-options :- (s/maybe {s/Keyword s/Any})]
   ToolInfo
-  (getToolSpecification [this] tool-specification))
+  (getToolSpecification [this] tool-specification)
+  (withResultCache [this max-entries max-bytes ttl-millis]
+    (assoc this
+     :cache-options
+     {:max-entries max-entries :max-bytes max-bytes :ttl-millis ttl-millis}))
+  (withResultCache [this max-entries max-bytes ttl-millis store-name]
+    (assoc this
+     :cache-options
+     {:max-entries max-entries
+      :max-bytes   max-bytes
+      :ttl-millis  ttl-millis
+      :store       store-name})))
 
 
 ;; Datasets
@@ -422,6 +484,7 @@
    description :- (s/maybe String)
    input-json-schema :- (s/maybe String)
    output-json-schema :- (s/maybe String)
+   sharded? :- (s/maybe Boolean)
   ])
 
 (defaorrecord AddRemoteDataset
@@ -449,6 +512,20 @@
    source :- (s/maybe InfoSource)
   ])
 
+(defaorrecord DatasetExampleEntry
+  [example-id :- UUID
+   input :- Object
+   reference-output :- (s/maybe Object)
+   tags :- (s/maybe #{String})
+  ])
+
+(defaorrecord AddDatasetExamples
+  [dataset-id :- UUID
+   snapshot-name :- (s/maybe String)
+   examples :- [DatasetExampleEntry]
+   source :- (s/maybe InfoSource)
+  ])
+
 (defaorrecord UpdateDatasetExample
   [dataset-id :- UUID
    snapshot-name :- (s/maybe String)
@@ -845,6 +922,7 @@
   (set-metadata-internal! [this agent-invoke key value])
   (invoke-with-context-async-internal [this context args])
   (initiate-with-context-async-internal [this context args])
+  (initiate-batch-async-internal [this context args-list])
   (stream-internal [this agent-invoke node callback-fn])
   (stream-specific-internal [this agent-invoke node node-invoke-id callback-fn])
   (stream-all-internal [this agent-invoke node callback-fn])
@@ -935,6 +1013,86 @@
   "Timeout to acquire an agent object within a node"
   30000)
 
+(defconfig
+  SEPARATE-NESTED-OP-PAYLOADS
+  boolean?
+  "Write nested op payloads of completed nodes straight to the node's PState instead of sending them through the agent depot"
+  false)
+
+(defn- node-limits?
+  [v]
+  (and (map? v)
+       (every? string? (keys v))
+       (every? positive-long? (vals v))))
+
+(defconfig
+  MAX-RUNNING-NODES-PER-TASK
+  natural-long?
+  "Maximum number of node invokes of an agent running at once on each task, with the rest queued until slots free up. 0 is unlimited"
+  0)
+
+(defconfig
+  MAX-RUNNING-NODES-PER-TASK-BY-NODE
+  node-limits?
+  "Map from node name to the maximum number of invokes of that node running at once on each task"
+  {})
+
+(defconfig
+  INTERACTIVE-RESERVED-NODES-PER-TASK
+  natural-long?
+  "Slots of MAX-RUNNING-NODES-PER-TASK kept free for node invokes of interactive agent invokes, so batch invokes can't take the whole limit. Reservations never take the last slot from the other class, so batch invokes can always run at least one node"
+  0)
+
+(defconfig
+  BATCH-RESERVED-NODES-PER-TASK
+  natural-long?
+  "Slots of MAX-RUNNING-NODES-PER-TASK kept free for node invokes of batch agent invokes, so they make progress while interactive invokes are queued. Reservations never take the last slot from the other class, so interactive invokes can always run at least one node"
+  0)
+
+(defconfig
+  INITIATE-BACKPRESSURE-QUEUE-DEPTH
+  natural-long?
+  "Reject agent initiates on a task with at least this many node invokes of the agent queued, so callers see overload immediately. 0 disables rejection. Initiates of the internal evaluator agent, such as those starting experiments, are never rejected"
+  0)
+
+(defconfig
+  STATS-FLUSH-BATCH-SIZE
+  positive-long?
+  "Number of node completions within an aggregation whose stats and acks are combined on the node's task before being sent to the root task. 1 sends every completion immediately"
+  1)
+
+(defconfig
+  STATS-FLUSH-INTERVAL-MILLIS
+  positive-long?
+  "Maximum time stats and acks of node completions are combined before a periodic tick sends them to the root task. This bounds how stale the agent's stats and last progress time get, and how long an aggregation can wait past its last node"
+  1000)
+
+(defn- capture-level?
+  [v]
+  (contains? #{"full" "truncated" "hashed" "timings-only"} v))
+
+(defn- probability?
+  [v]
+  (and (number? v) (<= 0 v 1)))
+
+(defconfig
+  NESTED-OP-CAPTURE-LEVEL
+  capture-level?
+  "How much of nested op payloads to keep in traces: full, truncated, hashed, or timings-only"
+  "full")
+
+(defconfig
+  NESTED-OP-CAPTURE-TRUNCATE-BYTES
+  positive-long?
+  "Maximum size in bytes of each nested op payload value when the capture level is truncated"
+  1024)
+
+(defconfig
+  NESTED-OP-FULL-CAPTURE-SAMPLE-RATE
+  probability?
+  "Fraction of agent invokes whose nested ops are captured in full regardless of capture level"
+  0.0)
+
 (defconfig
   MAX-TRACES-PER-TASK
   positive-long?
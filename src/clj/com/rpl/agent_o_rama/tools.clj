@@ -74,6 +74,11 @@ Args:\n
     - (agent-node caller-data args) - Agent node, caller data, and arguments
   - options - Optional map with configuration:
     - :include-context? - Boolean, whether to pass agent-node and caller-data to tool-fn (default false)
+    - :cache - Map enabling a per-worker cache of results for read-only tools whose result depends only on their arguments. Calls with the same arguments, compared as canonical JSON, reuse the cached result. Failed calls aren't cached. Keys:
+      - :max-entries - maximum number of cached results (default 1000, 0 for no limit)
+      - :max-bytes - maximum total size of cached arguments and results (default 0, no limit)
+      - :ttl-millis - how long a result stays cached (default 0, kept until evicted)
+      - :store - name of a key/value store with String keys to also persist results to, so they're shared across workers
 \n
 Returns:\n
   - ToolInfo - Complete tool definition for use with [[new-tools-agent]]\n
@@ -90,6 +95,11 @@ Example:\n
     (let [store (aor/get-store agent-node \"$$cache\")]
       (aor/put! store \"key\" (get args \"value\"))))
   {:include-context? true})
+;; Caching results of a lookup for an hour\n
+(tool-info
+  (tool-specification \"lookup\" params \"Looks up a product\")
+  (fn [args] (lookup-product (get args \"sku\")))
+  {:cache {:max-entries 10000 :ttl-millis 3600000}})
 </pre>"
   ([tool-specification tool-fn]
    (tool-info tool-specification tool-fn nil))
@@ -97,7 +107,15 @@ Example:\n
    (let [options (merge {:include-context? false} options)]
      (h/validate-options! tool-specification
                           options
-                          {:include-context? h/boolean-spec})
+                          {:include-context? h/boolean-spec
+                           :cache            h/map-spec})
+     (when-let [cache-options (:cache options)]
+       (h/validate-options! tool-specification
+                            cache-options
+                            {:max-entries h/non-negative-number-spec
+                             :max-bytes   h/non-negative-number-spec
+                             :ttl-millis  h/non-negative-number-spec
+                             :store       h/string-spec}))
      (when-not (ifn? tool-fn)
        (throw (h/ex-info "Invalid tool function" {:type (class tool-fn)})))
      (when-not (instance? ToolSpecification tool-specification)
@@ -105,7 +123,8 @@ Example:\n
                          {:type (class tool-specification)})))
      (aor-types/->ToolInfoImpl tool-specification
                                tool-fn
-                               (:include-context? options))
+                               (:include-context? options)
+                               (:cache options))
    )))
 
 (defn error-handler-static-string
@@ -220,12 +239,16 @@ A tools agent is a special type of agent designed to execute tool calls requeste
 \n
 The agent uses aggregation to collect results from parallel tool executions and returns them as a vector of ToolExecutionResultMessage objects.\n
 \n
+By default every tool call runs in its own node invoke. With :inline? set, the tool calls of a batch instead run concurrently on virtual threads within a single node invoke, which avoids the per-call overhead of a node invoke for cheap tools. Each call is still traced as its own nested op. Tools named in :distributed-tools keep running in their own node invokes, which is better for heavy tools.\n
+\n
 Args:\n
   - topology - agent topology instance
   - name - String name for the tools agent
   - tools - Collection of ToolInfo instances created with [[tool-info]]
   - options - Optional map with configuration:
     - :error-handler - Function that handles tool execution errors (default: [[error-handler-default]])
+    - :inline? - Boolean, whether to run the tool calls of a batch within a single node (default false)
+    - :distributed-tools - Collection of tool names that run in their own node even when :inline? is set
 \n
 Example:\n
 <pre>
@@ -241,16 +264,25 @@ Example:\n
 ;; With custom error handling
 (new-tools-agent topology \"robust-calculator\" tools
   {:error-handler (error-handler-static-string \"Calculation failed\")})
+;; Running cheap tools inline, but a slow search tool in its own node
+(new-tools-agent topology \"assistant-tools\" tools
+  {:inline? true :distributed-tools #{\"web-search\"}})
 </pre>"
   ([topology name tools]
    (new-tools-agent topology name tools nil))
   ([topology name tools options]
    (tools-impl/hook:new-tools-agent-options name options)
-   (let [options (merge {:error-handler (error-handler-default)}
-                        options)]
+   (let [options (merge {:error-handler     (error-handler-default)
+                         :inline?           false
+                         :distributed-tools #{}}
+                        options)
+         {:keys [error-handler inline?]} options
+         distributed-tools (set (:distributed-tools options))]
      (h/validate-options! name
                           options
-                          {:error-handler h/fn-spec})
+                          {:error-handler     h/fn-spec
+                           :inline?           h/boolean-spec
+                           :distributed-tools h/coll-spec})
      (-> topology
          (c/new-agent name)
          (c/agg-start-node
@@ -260,16 +292,25 @@ Example:\n
             ([agent-node requests]
              (begin agent-node requests nil))
             ([agent-node requests caller-data]
-             (doseq [r requests]
-               (c/emit! agent-node "tool" r caller-data)))))
+             (if inline?
+               (let [[inline distributed]
+                     (tools-impl/split-inline-requests requests distributed-tools)]
+                 (when-not (empty? inline)
+                   (c/emit! agent-node "tool" inline caller-data))
+                 (doseq [r distributed]
+                   (c/emit! agent-node "tool" r caller-data)))
+               (doseq [r requests]
+                 (c/emit! agent-node "tool" r caller-data))))))
          (c/node
           "tool"
           "agg-results"
-          (tools-impl/mk-tool-fn tools (:error-handler options)))
+          (if inline?
+            (tools-impl/mk-inline-tool-fn tools error-handler)
+            (tools-impl/mk-tool-fn tools error-handler)))
          (c/agg-node
           "agg-results"
           nil
-          aggs/+vec-agg
+          (if inline? tools-impl/+concat-agg aggs/+vec-agg)
           (fn [agent-node agg-state _]
             (c/result! agent-node agg-state)))
      ))))
@@ -148,6 +148,32 @@ public interface AgentClient extends Closeable {
    */
   CompletableFuture<AgentInvoke> initiateWithContextAsync(AgentContext context, Object... args);
 
+  /**
+   * Initiates many agent executions at once and returns a handle for each.
+   *
+   * The initiates are appended to the agent depot in batches instead of one append per
+   * invoke, so this is much cheaper than calling initiate() in a loop for bulk workloads.
+   * All the invokes share the same context.
+   *
+   * Each batch is accepted or rejected for overload independently. If any batch is
+   * rejected this throws with an {@link AgentOverloadedException} cause whose
+   * {@link AgentOverloadedException#getBatchInvokes()} holds the accepted handles.
+   *
+   * @param argsList arguments for each agent execution
+   * @param context context containing metadata for the executions, or null
+   * @return agent invoke handles in the same order as argsList
+   */
+  List<AgentInvoke> initiateBatch(List<Object[]> argsList, AgentContext context);
+
+  /**
+   * Asynchronously initiates many agent executions at once.
+   *
+   * @param argsList arguments for each agent execution
+   * @param context context containing metadata for the executions, or null
+   * @return future that completes with the agent invoke handles in the same order as argsList
+   */
+  CompletableFuture<List<AgentInvoke>> initiateBatchAsync(List<Object[]> argsList, AgentContext context);
+
   /**
    * Synchronously forks an agent execution with new arguments for specific nodes.
    *
@@ -19,6 +19,8 @@ public interface AgentContext {
     
     AgentContext.Impl metadata(String name, boolean val);
     
+    AgentContext.Impl priority(InvokePriority priority);
+    
   }
 
   /**
@@ -52,4 +54,8 @@ public interface AgentContext {
     return create().metadata(name, val);
   }
   
+  static AgentContext.Impl priority(InvokePriority priority) {
+    return create().priority(priority);
+  }
+  
 }
@@ -56,6 +56,19 @@ public interface AgentManager extends IFetchAgentClient, Closeable {
    * @return UUID of the created dataset
    */
   UUID createDataset(String name, String description, String inputJsonSchema, String outputJsonSchema);
+
+  /**
+   * Creates a new dataset with the given options.
+   * 
+   * A sharded dataset spreads its examples across all tasks of the module by example ID
+   * instead of storing them on a single task. Use this for very large datasets so that
+   * ingest, search, and experiment reads scale with the number of tasks.
+   * 
+   * @param name the name of the dataset
+   * @param options description, JSON schemas, and whether the dataset is sharded
+   * @return UUID of the created dataset
+   */
+  UUID createDataset(String name, CreateDatasetOptions options);
   
   /**
    * Updates the name of an existing dataset.
@@ -100,6 +113,29 @@ public interface AgentManager extends IFetchAgentClient, Closeable {
    */
   UUID addDatasetExample(UUID datasetId, Object input, AddDatasetExampleOptions options);
   
+  /**
+   * Asynchronously adds a batch of examples to a dataset. Examples are written in multi-example
+   * records rather than one record per example, so this is much cheaper for bulk loads.
+   * Examples that fail the dataset's JSON schemas are skipped while the rest are still added.
+   * 
+   * @param datasetId UUID of the dataset
+   * @param snapshotName name of the snapshot (or null for current)
+   * @param examples examples to add
+   * @return future that completes with a map from index in examples to error message for each example that failed
+   */
+  CompletableFuture<Map<Integer, String>> addDatasetExamplesBatchAsync(UUID datasetId, String snapshotName, List<NewDatasetExample> examples);
+
+  /**
+   * Adds a batch of examples to a dataset. Examples that fail the dataset's JSON schemas are
+   * skipped while the rest are still added.
+   * 
+   * @param datasetId UUID of the dataset
+   * @param snapshotName name of the snapshot (or null for current)
+   * @param examples examples to add
+   * @return map from index in examples to error message for each example that failed
+   */
+  Map<Integer, String> addDatasetExamplesBatch(UUID datasetId, String snapshotName, List<NewDatasetExample> examples);
+  
   /**
    * Updates the input data for a specific dataset example.
    * 
@@ -14,7 +14,7 @@ import com.rpl.rama.*;
  * The topology provides the configuration context for:
  * <ul>
  * <li>Declaring agents with {@link AgentTopology#newAgent(String)}</li>
- * <li>Declaring stores: {@link AgentTopology#declareKeyValueStore(String, Class, Class)}, {@link AgentTopology#declareDocumentStore(String, Class, Object...)}, {@link AgentTopology#declarePStateStore(String, Class)}</li>
+ * <li>Declaring stores: {@link AgentTopology#declareKeyValueStore(String, Class, Class)}, {@link AgentTopology#declareDocumentStore(String, Class, Object...)}, {@link AgentTopology#declarePStateStore(String, Class)}, {@link AgentTopology#declareEmbeddingStore(String)}</li>
  * <li>Declaring agent objects: {@link AgentTopology#declareAgentObject(String, Object)}, {@link AgentTopology#declareAgentObjectBuilder(String, com.rpl.rama.ops.RamaFunction1)}</li>
  * <li>Declaring evaluators: {@link AgentTopology#declareEvaluatorBuilder(String, String, com.rpl.rama.ops.RamaFunction1)}, {@link AgentTopology#declareComparativeEvaluatorBuilder(String, String, com.rpl.rama.ops.RamaFunction1)}, {@link AgentTopology#declareSummaryEvaluatorBuilder(String, String, com.rpl.rama.ops.RamaFunction1)}</li>
  * <li>Declaring actions: {@link AgentTopology#declareActionBuilder(String, String, com.rpl.rama.ops.RamaFunction1)}</li>
@@ -52,6 +52,7 @@ public interface AgentNode extends AgentObjectFetcher, IFetchAgentClient {
    * - {@link AgentTopology#declareKeyValueStore(String, Class, Class)} for simple key-value storage
    * - {@link AgentTopology#declareDocumentStore(String, Class, Object...)} for schema-flexible nested data
    * - {@link AgentTopology#declarePStateStore(String, Class)} for direct Rama PState access
+   * - {@link AgentTopology#declareEmbeddingStore(String)} for vector search over embeddings
    * 
    * @param name the name of the store (must start with "$$")
    * @return the store instance
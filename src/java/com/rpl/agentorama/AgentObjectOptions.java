@@ -60,11 +60,79 @@ public interface AgentObjectOptions {
     return create().workerObjectLimit(amt);
   }
 
+  /**
+   * Creates options with a specific capture level for nested operations on this object.
+   * 
+   * This overrides the agent's configured capture level for calls recorded against this object.
+   * 
+   * @param level how much of each call's payload to keep in traces
+   * @return options with the specified capture level
+   */
+  public static Impl captureLevel(NestedOpCaptureLevel level) {
+    return create().captureLevel(level);
+  }
+
+  /**
+   * Creates options with a per-worker cache of chat model responses.
+   * 
+   * Requests with the same messages and parameters reuse the cached response. Only use this for
+   * deterministic calls. Requires auto-tracing.
+   * 
+   * @param maxEntries maximum number of cached responses, or 0 for no limit
+   * @param ttlMillis how long a response stays cached, or 0 to keep it until evicted
+   * @return options with the response cache enabled
+   */
+  public static Impl responseCache(int maxEntries, long ttlMillis) {
+    return create().responseCache(maxEntries, ttlMillis);
+  }
+
+  /**
+   * Creates options with a per-worker cache of chat model responses, also bounded by size.
+   * 
+   * @param maxEntries maximum number of cached responses, or 0 for no limit
+   * @param maxBytes maximum total size of cached keys and response texts, or 0 for no limit
+   * @param ttlMillis how long a response stays cached, or 0 to keep it until evicted
+   * @return options with the response cache enabled
+   */
+  public static Impl responseCache(int maxEntries, long maxBytes, long ttlMillis) {
+    return create().responseCache(maxEntries, maxBytes, ttlMillis);
+  }
+
+  /**
+   * Creates options with cluster-wide rate limits on chat model calls.
+   * 
+   * @param requestsPerMinute maximum requests per minute across the cluster, or 0 for no limit
+   * @param tokensPerMinute maximum tokens per minute across the cluster, or 0 for no limit
+   * @return options with the rate limits
+   */
+  public static Impl rateLimit(long requestsPerMinute, long tokensPerMinute) {
+    return create().rateLimit(requestsPerMinute, tokensPerMinute);
+  }
+
+  /**
+   * Creates options that coalesce concurrent embedding calls into batches.
+   * 
+   * @param maxBatchSize maximum number of texts embedded in one call
+   * @param maxWaitMillis how long a call waits for others to join its batch
+   * @return options with embedding batching enabled
+   */
+  public static Impl embeddingBatching(int maxBatchSize, long maxWaitMillis) {
+    return create().embeddingBatching(maxBatchSize, maxWaitMillis);
+  }
 
   class Impl implements AgentObjectOptions {
     public Boolean threadSafe;
     public Boolean autoTracing;
     public Long workerObjectLimit;
+    public NestedOpCaptureLevel captureLevel;
+    public Long responseCacheMaxEntries;
+    public Long responseCacheMaxBytes;
+    public Long responseCacheTtlMillis;
+    public String responseCacheStore;
+    public Long requestsPerMinute;
+    public Long tokensPerMinute;
+    public Long embeddingMaxBatchSize;
+    public Long embeddingMaxWaitMillis;
 
     /**
      * Creates options with thread-safe configuration.
@@ -102,5 +170,99 @@ public interface AgentObjectOptions {
       this.workerObjectLimit = (long) amt;
       return this;
     }
+
+    /**
+     * Creates options with a specific capture level for nested operations on this object.
+     * 
+     * This overrides the agent's configured capture level for calls recorded against this object.
+     * 
+     * @param level how much of each call's payload to keep in traces
+     * @return options with the specified capture level
+     */
+    public Impl captureLevel(NestedOpCaptureLevel level) {
+      this.captureLevel = level;
+      return this;
+    }
+
+    /**
+     * Enables a per-worker cache of chat model responses, shared by all instances of the object.
+     * 
+     * Requests with the same messages and parameters reuse the cached response, and streaming
+     * requests replay it as a single chunk. Only use this for deterministic calls. Requires auto-tracing.
+     * 
+     * @param maxEntries maximum number of cached responses, or 0 for no limit
+     * @param ttlMillis how long a response stays cached, or 0 to keep it until evicted
+     * @return this options instance
+     */
+    public Impl responseCache(int maxEntries, long ttlMillis) {
+      return responseCache(maxEntries, 0, ttlMillis);
+    }
+
+    /**
+     * Like {@link #responseCache(int, long)}, but also bounds the cache by the total size of cached
+     * keys and response texts.
+     * 
+     * @param maxEntries maximum number of cached responses, or 0 for no limit
+     * @param maxBytes maximum total size of cached keys and response texts, or 0 for no limit
+     * @param ttlMillis how long a response stays cached, or 0 to keep it until evicted
+     * @return this options instance
+     */
+    public Impl responseCache(int maxEntries, long maxBytes, long ttlMillis) {
+      this.responseCacheMaxEntries = (long) maxEntries;
+      this.responseCacheMaxBytes = maxBytes;
+      this.responseCacheTtlMillis = ttlMillis;
+      return this;
+    }
+
+    /**
+     * Also keeps cached responses in a key/value store declared on the module, which is checked on
+     * memory misses so cached responses survive restarts and are shared across workers.
+     * 
+     * Requires {@link #responseCache(int, long)}.
+     * 
+     * @param storeName name of the key/value store
+     * @return this options instance
+     */
+    public Impl responseCacheStore(String storeName) {
+      this.responseCacheStore = storeName;
+      return this;
+    }
+
+    /**
+     * Limits chat model calls on this object across the whole cluster, e.g. to match a provider's
+     * account-wide rate limits.
+     * 
+     * Each worker leases budget in chunks from a shared token bucket, so calls don't coordinate
+     * across workers until a worker's lease runs out. Calls wait until budget is available, and the
+     * wait is recorded as a nested operation. Token usage is estimated from the request before the
+     * call and corrected with the actual usage afterwards. Requires auto-tracing.
+     * 
+     * @param requestsPerMinute maximum requests per minute across the cluster, or 0 for no limit
+     * @param tokensPerMinute maximum tokens per minute across the cluster, or 0 for no limit
+     * @return this options instance
+     */
+    public Impl rateLimit(long requestsPerMinute, long tokensPerMinute) {
+      this.requestsPerMinute = requestsPerMinute;
+      this.tokensPerMinute = tokensPerMinute;
+      return this;
+    }
+
+    /**
+     * Coalesces concurrent {@code embed} calls on an {@code EmbeddingModel} from all agents on a
+     * worker into a single {@code embedAll} call.
+     * 
+     * A batch is sent once it reaches the max batch size or the max wait after its first call,
+     * whichever comes first. Each call is still recorded as its own nested operation. Requires
+     * auto-tracing.
+     * 
+     * @param maxBatchSize maximum number of texts embedded in one call
+     * @param maxWaitMillis how long a call waits for others to join its batch
+     * @return this options instance
+     */
+    public Impl embeddingBatching(int maxBatchSize, long maxWaitMillis) {
+      this.embeddingMaxBatchSize = (long) maxBatchSize;
+      this.embeddingMaxWaitMillis = maxWaitMillis;
+      return this;
+    }
   }
 }
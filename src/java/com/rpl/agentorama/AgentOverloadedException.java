@@ -0,0 +1,60 @@
+package com.rpl.agentorama;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Exception thrown when an agent initiate is rejected because the agent is overloaded.
+ * 
+ * Initiates are rejected when the task receiving them has at least the configured
+ * initiate backpressure queue depth of node invokes waiting for admission. Callers
+ * should back off and retry. No agent invoke is created for a rejected initiate.
+ * 
+ * A batch initiate is sent in chunks that are accepted or rejected independently, so when
+ * some chunks are rejected the others have still started their invokes. Their handles are
+ * available from {@link #getBatchInvokes()} so only the rejected entries are retried.
+ * 
+ * Example:
+ * <pre>{@code
+ * try {
+ *   AgentInvoke invoke = client.initiate("Hello world");
+ * } catch (RuntimeException e) {
+ *   if (e.getCause() instanceof AgentOverloadedException) {
+ *     // back off and retry
+ *   }
+ * }
+ * }</pre>
+ */
+public class AgentOverloadedException extends RuntimeException {
+  private final List<AgentInvoke> batchInvokes;
+
+  /**
+   * Creates a new AgentOverloadedException with the specified message.
+   * 
+   * @param message the detail message
+   */
+  public AgentOverloadedException(String message) {
+    this(message, Collections.emptyList());
+  }
+
+  /**
+   * Creates a new AgentOverloadedException for a partially rejected batch initiate.
+   *
+   * @param message the detail message
+   * @param batchInvokes handles aligned with the batch's arguments, null where rejected
+   */
+  public AgentOverloadedException(String message, List<AgentInvoke> batchInvokes) {
+    super(message);
+    this.batchInvokes = batchInvokes;
+  }
+
+  /**
+   * Gets the outcome of each entry of a batch initiate.
+   *
+   * @return invoke handles in the same order as the batch's arguments, with null for each
+   *         rejected entry, or an empty list if this wasn't a batch initiate
+   */
+  public List<AgentInvoke> getBatchInvokes() {
+    return batchInvokes;
+  }
+}
@@ -15,7 +15,7 @@ import java.util.*;
  * The topology provides the configuration context for:
  * <ul>
  * <li>Declaring agents with {@link #newAgent(String)}</li>
- * <li>Declaring stores: {@link #declareKeyValueStore(String, Class, Class)}, {@link #declareDocumentStore(String, Class, Object...)}, {@link #declarePStateStore(String, Class)}</li>
+ * <li>Declaring stores: {@link #declareKeyValueStore(String, Class, Class)}, {@link #declareDocumentStore(String, Class, Object...)}, {@link #declarePStateStore(String, Class)}, {@link #declareEmbeddingStore(String)}</li>
  * <li>Declaring agent objects: {@link #declareAgentObject(String, Object)}, {@link #declareAgentObjectBuilder(String, com.rpl.rama.ops.RamaFunction1)}</li>
  * <li>Declaring evaluators: {@link #declareEvaluatorBuilder(String, String, com.rpl.rama.ops.RamaFunction1)}, {@link #declareComparativeEvaluatorBuilder(String, String, com.rpl.rama.ops.RamaFunction1)}, {@link #declareSummaryEvaluatorBuilder(String, String, com.rpl.rama.ops.RamaFunction1)}</li>
  * <li>Declaring actions: {@link #declareActionBuilder(String, String, com.rpl.rama.ops.RamaFunction1)}</li>
@@ -140,6 +140,17 @@ public interface AgentTopology {
    */
   PState.Declaration declarePStateStore(String name,  PState.Schema schema);
 
+  /**
+   * Declares a built-in embedding store for retrieval, accessed as a {@link com.rpl.agentorama.store.VectorStore}.
+   *
+   * Embeddings are partitioned across the module's tasks with an approximate nearest neighbor
+   * index per partition, so retrieval needs no external vector database and searches run on
+   * all partitions in parallel.
+   *
+   * @param name the name of the store (must start with "$$")
+   */
+  void declareEmbeddingStore(String name);
+
   /**
    * Declares a static agent object that is shared across all agent executions.
    *
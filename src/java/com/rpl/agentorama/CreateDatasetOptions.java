@@ -0,0 +1,11 @@
+package com.rpl.agentorama;
+
+public class CreateDatasetOptions {
+  public String description;
+  public String inputJsonSchema;
+  public String outputJsonSchema;
+  public boolean sharded;
+
+  public CreateDatasetOptions() {
+  }
+}
@@ -0,0 +1,21 @@
+package com.rpl.agentorama;
+
+/**
+ * Priority class of an agent invoke.
+ * 
+ * When an agent's node invokes are limited by its max running nodes config, queued node
+ * invokes of interactive agent invokes are admitted before those of batch agent invokes.
+ * Invokes without an explicit priority are batch when started by an experiment, and
+ * interactive otherwise.
+ */
+public enum InvokePriority {
+  /**
+   * Latency sensitive invokes, such as ones serving user requests.
+   */
+  INTERACTIVE,
+
+  /**
+   * Throughput oriented invokes, such as experiments and bulk processing.
+   */
+  BATCH
+}
@@ -0,0 +1,29 @@
+package com.rpl.agentorama;
+
+/**
+ * How much of a nested operation's payload is kept in traces.
+ * 
+ * Identifying info like object names, model names, and token counts, along with timings,
+ * is kept at every level.
+ */
+public enum NestedOpCaptureLevel {
+  /**
+   * Payloads are kept in full.
+   */
+  FULL,
+
+  /**
+   * Payload values are truncated to the configured number of bytes.
+   */
+  TRUNCATED,
+
+  /**
+   * Payload values are replaced by their SHA-256 hash.
+   */
+  HASHED,
+
+  /**
+   * Payload values are dropped, keeping only timings and token counts.
+   */
+  TIMINGS_ONLY
+}
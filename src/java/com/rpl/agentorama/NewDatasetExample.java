@@ -0,0 +1,21 @@
+package com.rpl.agentorama;
+
+import java.util.Set;
+
+/**
+ * A single example to add to a dataset with {@link AgentManager#addDatasetExamplesBatch}.
+ */
+public class NewDatasetExample {
+  public Object input;
+  public Object referenceOutput;
+  public Set<String> tags;
+
+  public NewDatasetExample() {
+  }
+
+  public NewDatasetExample(Object input, Object referenceOutput, Set<String> tags) {
+    this.input = input;
+    this.referenceOutput = referenceOutput;
+    this.tags = tags;
+  }
+}
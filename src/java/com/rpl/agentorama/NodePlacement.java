@@ -0,0 +1,80 @@
+package com.rpl.agentorama;
+
+import java.util.List;
+
+import com.rpl.rama.ops.RamaFunction1;
+
+/**
+ * Strategy for choosing which task runs a node when it's emitted to.
+ * 
+ * By default emits are spread across tasks round-robin, with the first emit of a node invoke
+ * staying on the emitting task. Set a placement for a node with
+ * {@link AgentGraph#setNodePlacement(String, NodePlacement)}. Placement only applies to regular
+ * nodes, since aggregation nodes always run with the agent root.
+ * 
+ * Example:
+ * <pre>{@code
+ * topology.newAgent("my-agent")
+ *         .node("start", "process", (AgentNode agentNode, List<String> docs) -> {
+ *             for(String doc: docs) agentNode.emit("process", doc);
+ *         })
+ *         .node("process", null, (AgentNode agentNode, String doc) -> {
+ *             ...
+ *         })
+ *         .setNodePlacement("process", NodePlacement.leastLoaded());
+ * }</pre>
+ */
+public interface NodePlacement {
+  /**
+   * Spreads emits across tasks round-robin. This is the default.
+   * 
+   * @return round-robin placement
+   */
+  public static NodePlacement roundRobin() {
+    return new Impl("round-robin", null);
+  }
+
+  /**
+   * Sends emits to the task with the fewest node invokes currently running. Load is only known
+   * for tasks led by the same worker as the emitting node, so unless that worker leads every
+   * task of the module emits are placed round-robin instead.
+   * 
+   * @return least-loaded placement
+   */
+  public static NodePlacement leastLoaded() {
+    return new Impl("least-loaded", null);
+  }
+
+  /**
+   * Runs the node on the task of the agent invoke's root.
+   * 
+   * @return agent root placement
+   */
+  public static NodePlacement agentRoot() {
+    return new Impl("agent-root", null);
+  }
+
+  /**
+   * Sends emits with the same partition key to the same task, so per-task caches and pooled
+   * objects are reused across emits.
+   * 
+   * The key function is given as a class rather than an instance so the graph only records its
+   * name. It's instantiated once per worker and must have a public no-arg constructor.
+   * 
+   * @param keyFnClass class of the function from the emitted arguments to the partition key
+   * @return partition key placement
+   */
+  public static NodePlacement partitionKey(Class<? extends RamaFunction1<List<Object>, Object>> keyFnClass) {
+    return new Impl("partition-key", keyFnClass);
+  }
+
+  class Impl implements NodePlacement {
+    public final String strategy;
+    public final Class<? extends RamaFunction1<List<Object>, Object>> keyFnClass;
+
+    Impl(String strategy, Class<? extends RamaFunction1<List<Object>, Object>> keyFnClass) {
+      this.strategy = strategy;
+      this.keyFnClass = keyFnClass;
+    }
+  }
+}
@@ -68,4 +68,31 @@ public interface ToolInfo {
    * @return the tool specification
    */
   ToolSpecification getToolSpecification();
+
+  /**
+   * Returns a copy of this tool info whose results are cached on each worker.
+   * 
+   * Calls with the same arguments, compared as canonical JSON, reuse the cached result instead
+   * of running the tool again. Only use this for read-only tools whose result depends only on
+   * their arguments. Failed calls aren't cached. Cache hits are marked in the tool call's trace.
+   * 
+   * @param maxEntries maximum number of cached results, or 0 for no limit
+   * @param maxBytes maximum total size of cached arguments and results, or 0 for no limit
+   * @param ttlMillis how long a result stays cached, or 0 to keep it until evicted
+   * @return the tool info instance
+   */
+  ToolInfo withResultCache(long maxEntries, long maxBytes, long ttlMillis);
+
+  /**
+   * Like {@link #withResultCache(long, long, long)}, but also persists results to a key/value
+   * store declared on the tools agent's topology. The store is checked when a result isn't
+   * cached on the worker, so results survive restarts and are shared across workers.
+   * 
+   * @param maxEntries maximum number of results cached on each worker, or 0 for no limit
+   * @param maxBytes maximum total size of results cached on each worker, or 0 for no limit
+   * @param ttlMillis how long a result stays cached, or 0 to keep it until evicted
+   * @param storeName name of a key/value store with String keys and Object values
+   * @return the tool info instance
+   */
+  ToolInfo withResultCache(long maxEntries, long maxBytes, long ttlMillis, String storeName);
 }
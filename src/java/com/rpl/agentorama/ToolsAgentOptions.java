@@ -50,6 +50,10 @@ public interface ToolsAgentOptions {
     
     ToolsAgentOptions.Impl errorHandlerByType(FunctionHandler... handlers);
     
+    ToolsAgentOptions.Impl inlineExecution();
+    
+    ToolsAgentOptions.Impl distributedTools(String... toolNames);
+    
   }
 
   /**
@@ -80,4 +84,12 @@ public interface ToolsAgentOptions {
     return create().errorHandlerByType(handlers);
   }
   
+  static ToolsAgentOptions.Impl inlineExecution() {
+    return create().inlineExecution();
+  }
+  
+  static ToolsAgentOptions.Impl distributedTools(String... toolNames) {
+    return create().distributedTools(toolNames);
+  }
+  
 }
@@ -12,6 +12,7 @@ import java.util.concurrent.ConcurrentHashMap;
 
 public class AgentDeclaredObjectsTaskGlobal implements TaskGlobalObject {
   public static ThreadLocal<Long> ACQUIRE_TIMEOUT_MILLIS = new ThreadLocal<>();
+  public static String RATE_LIMIT_DEPOT = "*_agent-rate-limit-depot";
   Map<String, Map<String, Object>> _builders;
   Map<String, Map<Keyword, Object>> _evaluatorBuilders;
   Map<String, Map<Keyword, Object>> _actionBuilders;
@@ -44,6 +45,12 @@ public class AgentDeclaredObjectsTaskGlobal implements TaskGlobalObject {
     return _thisModuleName;
   }
 
+  // null when the object doesn't override the agent's capture level
+  public String getCaptureLevel(String name) {
+    Map info = _builders.get(name);
+    return info == null ? null : (String) info.get("captureLevel");
+  }
+
   public AgentManager getThisModuleAgentManager() {
     return _thisManager.getResource();
   }
@@ -119,9 +126,9 @@ public class AgentDeclaredObjectsTaskGlobal implements TaskGlobalObject {
     return _clusterRetriever;
   }
 
-  private static Object makeObject(String name, IFn afn, AgentObjectSetup setup, boolean autoTracing) {
+  private static Object makeObject(String name, IFn afn, AgentObjectSetup setup, boolean autoTracing, Object wrapOptions) {
     Object o = afn.invoke(setup);
-    return autoTracing ? AORHelpers.WRAP_AGENT_OBJECT.invoke(name, o) : o;
+    return autoTracing ? AORHelpers.WRAP_AGENT_OBJECT.invoke(name, o, wrapOptions) : o;
   }
 
   @Override
@@ -152,8 +159,11 @@ public class AgentDeclaredObjectsTaskGlobal implements TaskGlobalObject {
         }
       };
       _objects.put(name, new WorkerManagedResource(name, context, () -> {
-        if(threadSafe) return makeObject(name, afn, setup, autoTracing);
-        else return new LazyObjectPool(limit, () -> makeObject(name, afn, setup, autoTracing));
+        // created once per worker so that pooled instances share cached responses and rate limit leases
+        Object rateLimitDepot = info.get("rateLimit") == null ? null : context.getClusterRetriever().clusterDepot(_thisModuleName, RATE_LIMIT_DEPOT);
+        Object wrapOptions = AORHelpers.MAKE_WRAP_OPTIONS.invoke(name, info, rateLimitDepot);
+        if(threadSafe) return makeObject(name, afn, setup, autoTracing, wrapOptions);
+        else return new LazyObjectPool(limit, () -> makeObject(name, afn, setup, autoTracing, wrapOptions));
       }));
     }
 
@@ -2,6 +2,7 @@ package com.rpl.agentorama.impl;
 
 import java.io.IOException;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.*;
 
 import com.rpl.rama.integration.*;
@@ -11,14 +12,86 @@ import clojure.lang.Keyword;
 
 public class AgentNodeExecutorTaskGlobal implements TaskGlobalObject {
   private static final Keyword UUID_KW = Keyword.intern(null, "uuid");
+  private static final Keyword SINCE_MILLIS_KW = Keyword.intern(null, "since-millis");
+
+  // priority classes of agent invokes, in the order their queued node invokes are admitted
+  public static final int INTERACTIVE = 0;
+  public static final int BATCH = 1;
+  private static final int NUM_PRIORITIES = 2;
+
+  // executors of the tasks this worker currently leads by module name and task id, so node
+  // placement can see how loaded the other tasks are. Followers are left out since they run
+  // nothing and always look idle. Executors are added on gainedLeadership and removed when
+  // prepared again or closed, since there's no callback for losing leadership. Tasks in other
+  // workers aren't visible, so least-loaded placement only uses this when the worker leads every
+  // task of the module.
+  private static final ConcurrentHashMap<String, ConcurrentHashMap<Integer, AgentNodeExecutorTaskGlobal>> WORKER_EXECUTORS = new ConcurrentHashMap<>();
+
+  String _moduleName;
+  int _taskId;
 
   WorkerManagedResource<ExecutorService> _execServResource;
   ConcurrentHashMap<UUID, List> _runningInvokeIds;
+  // stats and acks of nodes completed on this task within an aggregation, not yet sent to their
+  // agent's root task, keyed by [agentName, agentId, retryNum, aggInvokeId]. Only accessed from
+  // the task thread, and lost if leadership moves, which leaves the aggregation for the retry
+  // checker like any other lost event.
+  HashMap<List, Object> _pendingStats;
+  // last queued update of each aggregation running its updates off the task thread, keyed by
+  // aggInvokeId. Entries are removed on the task thread once applied, or by the update itself if
+  // it fails. Lost if leadership moves.
+  ConcurrentHashMap<UUID, CompletableFuture> _aggMailboxes;
 
   // type is opaque here - only passed into clojure
   private Object _throttler;
 
   private static final ThreadLocal<Object> LOG_THROTTLER = new ThreadLocal<>();
+  // [waitMillis, queueDepth] of the node invoke running on this thread
+  private static final ThreadLocal<long[]> ADMISSION = new ThreadLocal<>();
+
+  private static class PendingNode {
+    final UUID invokeId;
+    final String agentName;
+    final int priority;
+    final List nodeKey;
+    final List classKey;
+    final List queueKey;
+    final long agentLimit;
+    final long nodeLimit;
+    // slots of agentLimit kept free for each priority class
+    final long[] reserved;
+    final clojure.lang.AFn f;
+    final long enqueuedMillis;
+    final long queueDepth;
+
+    PendingNode(UUID invokeId, String agentName, String node, int priority, long agentLimit,
+                long nodeLimit, long[] reserved, clojure.lang.AFn f, long queueDepth) {
+      this.invokeId = invokeId;
+      this.agentName = agentName;
+      this.priority = priority;
+      this.nodeKey = Arrays.asList(agentName, node);
+      this.classKey = Arrays.asList(agentName, priority);
+      this.queueKey = Arrays.asList(agentName, node, priority);
+      this.agentLimit = agentLimit;
+      this.nodeLimit = nodeLimit;
+      this.reserved = reserved;
+      this.f = f;
+      this.enqueuedMillis = System.currentTimeMillis();
+      this.queueDepth = queueDepth;
+    }
+  }
+
+  // Node invokes over their agent's or node's concurrency limit wait in a queue per
+  // [agentName, node, priority]. As slots free up, interactive queues are served before batch
+  // queues, and queues of the same priority take turns. Guarded by _admissionLock since slots are
+  // released from virtual threads. Not reset on leadership changes, since these track virtual
+  // threads that keep running regardless.
+  private final ReentrantLock _admissionLock = new ReentrantLock();
+  private final Map<String, Long> _runningByAgent = new HashMap<>();
+  private final Map<List, Long> _runningByNode = new HashMap<>();
+  private final Map<List, Long> _runningByClass = new HashMap<>();
+  private final Map<String, Long> _queuedByAgent = new HashMap<>();
+  private final LinkedHashMap<List, ArrayDeque<PendingNode>> _queued = new LinkedHashMap<>();
 
   public void submitTask(UUID invokeId, clojure.lang.AFn f) {
     if(invokeId!=null) _runningInvokeIds.put(invokeId, Arrays.asList());
@@ -35,15 +108,157 @@ public class AgentNodeExecutorTaskGlobal implements TaskGlobalObject {
     _execServResource.getResource().submit(wrappedTask);
   }
 
+  // a limit of 0 is unlimited, and reserved is indexed by priority
+  public void submitNodeTask(UUID invokeId, String agentName, String node, int priority,
+                             long agentLimit, long nodeLimit, long[] reserved,
+                             clojure.lang.AFn f) {
+    _runningInvokeIds.put(invokeId, Arrays.asList());
+    PendingNode admitted = null;
+    _admissionLock.lock();
+    try {
+      long queueDepth = _queuedByAgent.getOrDefault(agentName, 0L);
+      PendingNode p = new PendingNode(invokeId, agentName, node, priority, agentLimit, nodeLimit,
+                                      reserved, f, queueDepth);
+      // anything already queued for the same node and priority goes first
+      if(!_queued.containsKey(p.queueKey) && hasSlot(p)) {
+        acquireSlot(p);
+        admitted = p;
+      } else {
+        _queued.computeIfAbsent(p.queueKey, k -> new ArrayDeque<>()).add(p);
+        _queuedByAgent.merge(agentName, 1L, Long::sum);
+      }
+    } finally {
+      _admissionLock.unlock();
+    }
+    if(admitted!=null) runAdmitted(admitted);
+  }
+
+  public long getQueuedCount(String agentName) {
+    _admissionLock.lock();
+    try {
+      return _queuedByAgent.getOrDefault(agentName, 0L);
+    } finally {
+      _admissionLock.unlock();
+    }
+  }
+
+  public static long[] getAdmission() {
+    return ADMISSION.get();
+  }
+
+  // slots that must stay free for the other priority classes of the agent. Capped so at least one
+  // slot is left for this class, since reservations adding up to the limit would otherwise stop it
+  // from ever being admitted.
+  private long reservedForOthers(PendingNode p) {
+    long ret = 0;
+    for(int c=0; c<NUM_PRIORITIES; c++) {
+      if(c != p.priority && c < p.reserved.length) {
+        long running = _runningByClass.getOrDefault(Arrays.asList(p.agentName, c), 0L);
+        ret += Math.max(0, p.reserved[c] - running);
+      }
+    }
+    return p.agentLimit > 0 ? Math.min(ret, p.agentLimit - 1) : ret;
+  }
+
+  private boolean hasSlot(PendingNode p) {
+    return (p.agentLimit <= 0 ||
+            _runningByAgent.getOrDefault(p.agentName, 0L) + reservedForOthers(p) < p.agentLimit) &&
+           (p.nodeLimit <= 0 || _runningByNode.getOrDefault(p.nodeKey, 0L) < p.nodeLimit);
+  }
+
+  private void acquireSlot(PendingNode p) {
+    _runningByAgent.merge(p.agentName, 1L, Long::sum);
+    _runningByNode.merge(p.nodeKey, 1L, Long::sum);
+    _runningByClass.merge(p.classKey, 1L, Long::sum);
+  }
+
+  private static void decrement(Map m, Object k) {
+    m.compute(k, (key, v) -> ((Long) v) <= 1 ? null : ((Long) v) - 1);
+  }
+
+  private List<PendingNode> releaseSlot(PendingNode p) {
+    List<PendingNode> admitted = new ArrayList<>();
+    _admissionLock.lock();
+    try {
+      decrement(_runningByAgent, p.agentName);
+      decrement(_runningByNode, p.nodeKey);
+      decrement(_runningByClass, p.classKey);
+      for(int c=0; c<NUM_PRIORITIES; c++) {
+        // admit one invoke per queue per pass, and move queues that were served to the back
+        boolean progress = true;
+        while(progress && !_queued.isEmpty()) {
+          progress = false;
+          List<List> served = new ArrayList<>();
+          Iterator<Map.Entry<List, ArrayDeque<PendingNode>>> it = _queued.entrySet().iterator();
+          while(it.hasNext()) {
+            Map.Entry<List, ArrayDeque<PendingNode>> e = it.next();
+            PendingNode head = e.getValue().peek();
+            if(head.priority == c && hasSlot(head)) {
+              e.getValue().poll();
+              acquireSlot(head);
+              decrement(_queuedByAgent, head.agentName);
+              admitted.add(head);
+              progress = true;
+              if(e.getValue().isEmpty()) it.remove();
+              else served.add(e.getKey());
+            }
+          }
+          for(List k: served) _queued.put(k, _queued.remove(k));
+        }
+      }
+    } finally {
+      _admissionLock.unlock();
+    }
+    return admitted;
+  }
+
+  private void runAdmitted(PendingNode p) {
+    long[] admission = new long[] {System.currentTimeMillis() - p.enqueuedMillis, p.queueDepth};
+    Runnable wrappedTask = () -> {
+      try {
+        LOG_THROTTLER.set(_throttler);
+        ADMISSION.set(admission);
+        p.f.run();
+      } catch (Throwable t) {
+        _runningInvokeIds.remove(p.invokeId);
+        throw t;
+      } finally {
+        LOG_THROTTLER.remove();
+        ADMISSION.remove();
+        for(PendingNode next: releaseSlot(p)) runAdmitted(next);
+      }
+    };
+    _execServResource.getResource().submit(wrappedTask);
+  }
+
   public Set<UUID> getRunningInvokeIds() {
     return new HashSet(_runningInvokeIds.keySet());
   }
 
+  public int getRunningCount() {
+    return _runningInvokeIds.size();
+  }
+
+  public static Map<Integer, AgentNodeExecutorTaskGlobal> getWorkerExecutors(String moduleName) {
+    Map<Integer, AgentNodeExecutorTaskGlobal> ret = WORKER_EXECUTORS.get(moduleName);
+    return ret == null ? Collections.emptyMap() : ret;
+  }
+
   @Override
   public void prepareForTask(int taskId, TaskGlobalContext context) {
     _execServResource = new WorkerManagedResource("agentVirtualThreads", context, () -> Executors.newVirtualThreadPerTaskExecutor());
     _runningInvokeIds = new ConcurrentHashMap();
+    _pendingStats = new HashMap();
+    _aggMailboxes = new ConcurrentHashMap();
     _throttler = context.getLogThrottler();
+    _moduleName = context.getModuleInstanceInfo().getModuleName();
+    _taskId = taskId;
+    unregisterLeader();
+  }
+
+  private void unregisterLeader() {
+    Map<Integer, AgentNodeExecutorTaskGlobal> executors = WORKER_EXECUTORS.get(_moduleName);
+    if(executors!=null) executors.remove(_taskId, this);
   }
 
   public void removeTrackedInvokeId(UUID invokeId) {
@@ -65,6 +280,70 @@ public class AgentNodeExecutorTaskGlobal implements TaskGlobalObject {
     return null;
   }
 
+  public Object getPendingStats(String agentName, UUID agentId, long retryNum, UUID aggInvokeId) {
+    return _pendingStats.get(Arrays.asList(agentName, agentId, retryNum, aggInvokeId));
+  }
+
+  public void putPendingStats(String agentName, UUID agentId, long retryNum, UUID aggInvokeId,
+                              Object pending) {
+    _pendingStats.put(Arrays.asList(agentName, agentId, retryNum, aggInvokeId), pending);
+  }
+
+  public Object takePendingStats(String agentName, UUID agentId, long retryNum, UUID aggInvokeId) {
+    return _pendingStats.remove(Arrays.asList(agentName, agentId, retryNum, aggInvokeId));
+  }
+
+  // removes and returns the pending entries of the agent first buffered at or before
+  // sinceMillis
+  public List takeStalePendingStats(String agentName, long sinceMillis) {
+    List ret = new ArrayList();
+    Iterator<Map.Entry<List, Object>> it = _pendingStats.entrySet().iterator();
+    while(it.hasNext()) {
+      Map.Entry<List, Object> e = it.next();
+      if(agentName.equals(e.getKey().get(0))) {
+        long since = (Long) ((ILookup) e.getValue()).valAt(SINCE_MILLIS_KW);
+        if(since <= sinceMillis) {
+          ret.add(e.getValue());
+          it.remove();
+        }
+      }
+    }
+    return ret;
+  }
+
+  // Runs update on a virtual thread once the previous update queued for the aggregation has
+  // finished, passing it that update's result. initial is passed to the first update when nothing
+  // is queued.
+  public CompletableFuture submitAggUpdate(UUID aggInvokeId, Object initial,
+                                           clojure.lang.IFn update) {
+    CompletableFuture prev = _aggMailboxes.get(aggInvokeId);
+    if(prev==null) prev = CompletableFuture.completedFuture(initial);
+    CompletableFuture ret = prev.thenApplyAsync(v -> {
+      LOG_THROTTLER.set(_throttler);
+      try {
+        return update.invoke(v);
+      } finally {
+        LOG_THROTTLER.remove();
+      }
+    }, _execServResource.getResource());
+    _aggMailboxes.put(aggInvokeId, ret);
+    // a failed update has no result to pass on, so it's dropped and the next update starts from
+    // the state on the task
+    ret.whenComplete((v, t) -> {
+      if(t!=null) _aggMailboxes.remove(aggInvokeId, ret);
+    });
+    return ret;
+  }
+
+  // called once the update's result is applied, so later updates read the applied state
+  public void finishAggUpdate(UUID aggInvokeId, CompletableFuture cf) {
+    _aggMailboxes.remove(aggInvokeId, cf);
+  }
+
+  public int getAggMailboxCount() {
+    return _aggMailboxes.size();
+  }
+
   public Object getHumanRequest(UUID invokeId) {
     List tuple = _runningInvokeIds.get(invokeId);
     if(tuple!=null && !tuple.isEmpty()) return tuple.get(0);
@@ -78,10 +357,14 @@ public class AgentNodeExecutorTaskGlobal implements TaskGlobalObject {
   @Override
   public void gainedLeadership() {
     _runningInvokeIds = new ConcurrentHashMap();
+    _pendingStats = new HashMap();
+    _aggMailboxes = new ConcurrentHashMap();
+    WORKER_EXECUTORS.computeIfAbsent(_moduleName, k -> new ConcurrentHashMap<>()).put(_taskId, this);
   }
 
   @Override
   public void close() throws IOException {
+    if(_moduleName!=null) unregisterLeader();
     _execServResource.close();
   }
 }
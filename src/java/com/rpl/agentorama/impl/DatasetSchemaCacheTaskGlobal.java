@@ -0,0 +1,69 @@
+package com.rpl.agentorama.impl;
+
+import java.io.IOException;
+import java.util.*;
+
+import com.rpl.rama.integration.*;
+
+// Caches compiled dataset JSON schemas on the datasets task so that example validation doesn't
+// re-parse and re-compile the schema string on every write. Only accessed from the task thread.
+public class DatasetSchemaCacheTaskGlobal implements TaskGlobalObject {
+  public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+  private static class LRU extends LinkedHashMap<List, List> {
+    private final int _maxEntries;
+
+    public LRU(int maxEntries) {
+      super(16, 0.75f, true);
+      _maxEntries = maxEntries;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<List, List> eldest) {
+      return size() > _maxEntries;
+    }
+  }
+
+  final int _maxEntries;
+  LRU _cache;
+
+  public DatasetSchemaCacheTaskGlobal() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  public DatasetSchemaCacheTaskGlobal(int maxEntries) {
+    _maxEntries = maxEntries;
+  }
+
+  private static List cacheKey(UUID datasetId, String schema) {
+    return Arrays.asList(datasetId, schema.hashCode());
+  }
+
+  public Object get(UUID datasetId, String schema) {
+    List entry = _cache.get(cacheKey(datasetId, schema));
+    // guard against hash collisions by checking the full schema string
+    if(entry!=null && schema.equals(entry.get(0))) return entry.get(1);
+    return null;
+  }
+
+  public void put(UUID datasetId, String schema, Object compiled) {
+    _cache.put(cacheKey(datasetId, schema), Arrays.asList(schema, compiled));
+  }
+
+  public void invalidate(UUID datasetId) {
+    _cache.keySet().removeIf(k -> datasetId.equals(k.get(0)));
+  }
+
+  public int size() {
+    return _cache.size();
+  }
+
+  @Override
+  public void prepareForTask(int taskId, TaskGlobalContext context) {
+    _cache = new LRU(_maxEntries);
+  }
+
+  @Override
+  public void close() throws IOException {
+  }
+}
@@ -0,0 +1,37 @@
+package com.rpl.agentorama.impl;
+
+import java.io.IOException;
+import java.util.*;
+
+import com.rpl.rama.integration.*;
+
+// Holds the ANN index of each embedding store's partition on a task. Indexes aren't durable and
+// are rebuilt from the store's PState the first time they're used after the task starts or gains
+// leadership, since writes applied while another replica led aren't in an index built earlier.
+// Only accessed from the task thread.
+public class EmbeddingIndexTaskGlobal implements TaskGlobalObject {
+  Map<String, HnswIndex> _indexes;
+
+  // null when the index hasn't been loaded yet
+  public HnswIndex getIndex(String storeName) {
+    return _indexes.get(storeName);
+  }
+
+  public void putIndex(String storeName, HnswIndex index) {
+    _indexes.put(storeName, index);
+  }
+
+  @Override
+  public void prepareForTask(int taskId, TaskGlobalContext context) {
+    _indexes = new HashMap<>();
+  }
+
+  @Override
+  public void gainedLeadership() {
+    _indexes = new HashMap<>();
+  }
+
+  @Override
+  public void close() throws IOException {
+  }
+}
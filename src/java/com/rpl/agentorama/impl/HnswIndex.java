@@ -0,0 +1,252 @@
+package com.rpl.agentorama.impl;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+// Approximate nearest neighbor index over the embeddings of one embedding store partition, using
+// a hierarchical navigable small world graph. Similarity is cosine similarity, so vectors are
+// normalized on insert. Removed and replaced entries are tombstoned and stay in the graph for
+// navigation until they outnumber live entries, at which point the graph is rebuilt. Small
+// partitions and filtered searches are scanned exactly instead. Only accessed from the task thread.
+public class HnswIndex {
+  public static final int DEFAULT_M = 16;
+  public static final int DEFAULT_EF_CONSTRUCTION = 100;
+  public static final int DEFAULT_EF_SEARCH = 64;
+  // below this many live entries an exact scan is as fast as searching the graph
+  public static final int EXACT_SCAN_THRESHOLD = 1000;
+
+  public static final class Match {
+    public final String id;
+    public final double similarity;
+
+    Match(String id, double similarity) {
+      this.id = id;
+      this.similarity = similarity;
+    }
+  }
+
+  final int _m;
+  final int _efConstruction;
+  final int _efSearch;
+  final double _levelMult;
+  final Random _rand = new Random(42);
+
+  ArrayList<float[]> _vectors = new ArrayList<>();
+  ArrayList<String> _ids = new ArrayList<>();
+  // node -> level -> neighbor nodes, with counts tracked separately
+  ArrayList<int[][]> _links = new ArrayList<>();
+  ArrayList<int[]> _linkCounts = new ArrayList<>();
+  BitSet _deleted = new BitSet();
+  HashMap<String, Integer> _nodeById = new HashMap<>();
+  int _entry = -1;
+  int _maxLevel = -1;
+
+  public HnswIndex() {
+    this(DEFAULT_M, DEFAULT_EF_CONSTRUCTION, DEFAULT_EF_SEARCH);
+  }
+
+  public HnswIndex(int m, int efConstruction, int efSearch) {
+    _m = m;
+    _efConstruction = efConstruction;
+    _efSearch = efSearch;
+    _levelMult = 1 / Math.log(m);
+  }
+
+  public int size() {
+    return _nodeById.size();
+  }
+
+  private static float[] normalize(float[] v) {
+    double norm = 0;
+    for(float f: v) norm += f * f;
+    norm = Math.sqrt(norm);
+    float[] ret = new float[v.length];
+    if(norm == 0) return ret;
+    for(int i=0; i<v.length; i++) ret[i] = (float) (v[i] / norm);
+    return ret;
+  }
+
+  private static double dot(float[] a, float[] b) {
+    double ret = 0;
+    for(int i=0; i<a.length; i++) ret += a[i] * b[i];
+    return ret;
+  }
+
+  private int capacity(int level) {
+    return level == 0 ? 2 * _m : _m;
+  }
+
+  public void put(String id, float[] vector) {
+    remove(id);
+    float[] v = normalize(vector);
+    int node = _vectors.size();
+    int level = (int) (-Math.log(1 - _rand.nextDouble()) * _levelMult);
+    _vectors.add(v);
+    _ids.add(id);
+    int[][] links = new int[level + 1][];
+    for(int l=0; l<=level; l++) links[l] = new int[capacity(l) + 1];
+    _links.add(links);
+    _linkCounts.add(new int[level + 1]);
+    _nodeById.put(id, node);
+
+    if(_entry < 0) {
+      _entry = node;
+      _maxLevel = level;
+      return;
+    }
+    int ep = _entry;
+    for(int l=_maxLevel; l>level; l--) ep = greedyClosest(v, ep, l);
+    for(int l=Math.min(level, _maxLevel); l>=0; l--) {
+      List<int[]> candidates = searchLayer(v, ep, _efConstruction, l);
+      int n = Math.min(capacity(l), candidates.size());
+      for(int i=0; i<n; i++) {
+        int other = candidates.get(i)[0];
+        addLink(node, other, l);
+        addLink(other, node, l);
+      }
+      ep = candidates.get(0)[0];
+    }
+    if(level > _maxLevel) {
+      _entry = node;
+      _maxLevel = level;
+    }
+  }
+
+  private void addLink(int from, int to, int level) {
+    int[] links = _links.get(from)[level];
+    int[] counts = _linkCounts.get(from);
+    links[counts[level]++] = to;
+    if(counts[level] > capacity(level)) {
+      // keep the closest neighbors
+      float[] v = _vectors.get(from);
+      Integer[] sorted = new Integer[counts[level]];
+      for(int i=0; i<sorted.length; i++) sorted[i] = links[i];
+      Arrays.sort(sorted, (a, b) -> Double.compare(dot(v, _vectors.get(b)), dot(v, _vectors.get(a))));
+      counts[level] = capacity(level);
+      for(int i=0; i<counts[level]; i++) links[i] = sorted[i];
+    }
+  }
+
+  private int greedyClosest(float[] v, int ep, int level) {
+    double best = dot(v, _vectors.get(ep));
+    boolean changed = true;
+    while(changed) {
+      changed = false;
+      int[] links = _links.get(ep)[level];
+      int count = _linkCounts.get(ep)[level];
+      for(int i=0; i<count; i++) {
+        double s = dot(v, _vectors.get(links[i]));
+        if(s > best) {
+          best = s;
+          ep = links[i];
+          changed = true;
+        }
+      }
+    }
+    return ep;
+  }
+
+  // returns the ef closest nodes found, sorted by decreasing similarity
+  private List<int[]> searchLayer(float[] v, int ep, int ef, int level) {
+    BitSet visited = new BitSet();
+    PriorityQueue<double[]> candidates = new PriorityQueue<>((a, b) -> Double.compare(b[1], a[1]));
+    PriorityQueue<double[]> results = new PriorityQueue<>((a, b) -> Double.compare(a[1], b[1]));
+    double[] start = new double[] {ep, dot(v, _vectors.get(ep))};
+    visited.set(ep);
+    candidates.add(start);
+    results.add(start);
+    while(!candidates.isEmpty()) {
+      double[] c = candidates.poll();
+      if(results.size() >= ef && c[1] < results.peek()[1]) break;
+      int node = (int) c[0];
+      int[] links = _links.get(node)[level];
+      int count = _linkCounts.get(node)[level];
+      for(int i=0; i<count; i++) {
+        int other = links[i];
+        if(visited.get(other)) continue;
+        visited.set(other);
+        double s = dot(v, _vectors.get(other));
+        if(results.size() < ef || s > results.peek()[1]) {
+          double[] e = new double[] {other, s};
+          candidates.add(e);
+          results.add(e);
+          if(results.size() > ef) results.poll();
+        }
+      }
+    }
+    List<int[]> ret = new ArrayList<>(results.size());
+    while(!results.isEmpty()) {
+      double[] e = results.poll();
+      ret.add(new int[] {(int) e[0]});
+    }
+    Collections.reverse(ret);
+    return ret;
+  }
+
+  public boolean remove(String id) {
+    Integer node = _nodeById.remove(id);
+    if(node == null) return false;
+    _deleted.set(node);
+    if(_deleted.cardinality() > Math.max(size(), EXACT_SCAN_THRESHOLD)) rebuild();
+    return true;
+  }
+
+  public void clear() {
+    _vectors = new ArrayList<>();
+    _ids = new ArrayList<>();
+    _links = new ArrayList<>();
+    _linkCounts = new ArrayList<>();
+    _deleted = new BitSet();
+    _nodeById = new HashMap<>();
+    _entry = -1;
+    _maxLevel = -1;
+  }
+
+  private void rebuild() {
+    List<String> ids = new ArrayList<>();
+    List<float[]> vectors = new ArrayList<>();
+    for(Map.Entry<String, Integer> e: _nodeById.entrySet()) {
+      ids.add(e.getKey());
+      vectors.add(_vectors.get(e.getValue()));
+    }
+    clear();
+    for(int i=0; i<ids.size(); i++) put(ids.get(i), vectors.get(i));
+  }
+
+  private List<Match> exactSearch(float[] v, int k, double minSimilarity, Predicate<String> filter) {
+    PriorityQueue<Match> best = new PriorityQueue<>((a, b) -> Double.compare(a.similarity, b.similarity));
+    for(Map.Entry<String, Integer> e: _nodeById.entrySet()) {
+      if(filter != null && !filter.test(e.getKey())) continue;
+      double s = dot(v, _vectors.get(e.getValue()));
+      if(s < minSimilarity) continue;
+      best.add(new Match(e.getKey(), s));
+      if(best.size() > k) best.poll();
+    }
+    List<Match> ret = new ArrayList<>(best);
+    ret.sort((a, b) -> Double.compare(b.similarity, a.similarity));
+    return ret;
+  }
+
+  // filter is given the id of each candidate, or is null to match everything
+  public List<Match> search(float[] query, int k, double minSimilarity, Predicate<String> filter) {
+    if(_entry < 0 || k <= 0) return new ArrayList<>();
+    float[] v = normalize(query);
+    if(filter != null || size() <= EXACT_SCAN_THRESHOLD) {
+      return exactSearch(v, k, minSimilarity, filter);
+    }
+    int ep = _entry;
+    for(int l=_maxLevel; l>0; l--) ep = greedyClosest(v, ep, l);
+    // tombstoned nodes take up result slots, so search wider to still find k live matches
+    int ef = Math.max(_efSearch, k) + Math.min(_deleted.cardinality(), 10 * k);
+    List<Match> ret = new ArrayList<>();
+    for(int[] e: searchLayer(v, ep, ef, 0)) {
+      int node = e[0];
+      if(_deleted.get(node)) continue;
+      double s = dot(v, _vectors.get(node));
+      if(s < minSimilarity) break;
+      ret.add(new Match(_ids.get(node), s));
+      if(ret.size() == k) break;
+    }
+    return ret;
+  }
+}
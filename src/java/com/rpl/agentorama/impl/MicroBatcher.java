@@ -0,0 +1,101 @@
+package com.rpl.agentorama.impl;
+
+import clojure.lang.IFn;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Coalesces concurrent calls on a worker into batches. A batch is run once it reaches
+// maxBatchSize or maxWaitMillis after its first item arrived, whichever comes first. batchFn
+// takes the list of items and returns a list of results in the same order. A full batch runs
+// on the thread that filled it, and a batch that times out runs on a virtual thread. Accessed
+// from many virtual threads, so this locks with a ReentrantLock rather than synchronized.
+public class MicroBatcher {
+  private static class Pending {
+    final Object item;
+    final CompletableFuture result = new CompletableFuture();
+
+    Pending(Object item) {
+      this.item = item;
+    }
+  }
+
+  final int _maxBatchSize;
+  final long _maxWaitMillis;
+  final IFn _batchFn;
+  final ReentrantLock _lock = new ReentrantLock();
+  List<Pending> _pending = new ArrayList<>();
+  // identifies the current batch so a timer doesn't flush a batch started after it
+  long _batchId = 0;
+
+  public MicroBatcher(int maxBatchSize, long maxWaitMillis, IFn batchFn) {
+    _maxBatchSize = maxBatchSize;
+    _maxWaitMillis = maxWaitMillis;
+    _batchFn = batchFn;
+  }
+
+  public CompletableFuture submit(Object item) {
+    Pending p = new Pending(item);
+    List<Pending> full = null;
+    _lock.lock();
+    try {
+      _pending.add(p);
+      if(_pending.size() >= _maxBatchSize) {
+        full = takeBatch();
+      } else if(_pending.size() == 1) {
+        long batchId = _batchId;
+        Thread.ofVirtual().start(() -> flushAfterWait(batchId));
+      }
+    } finally {
+      _lock.unlock();
+    }
+    if(full != null) runBatch(full);
+    return p.result;
+  }
+
+  private List<Pending> takeBatch() {
+    List<Pending> ret = _pending;
+    _pending = new ArrayList<>();
+    _batchId++;
+    return ret;
+  }
+
+  private void flushAfterWait(long batchId) {
+    try {
+      Thread.sleep(_maxWaitMillis);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    List<Pending> batch = null;
+    _lock.lock();
+    try {
+      if(_batchId == batchId && !_pending.isEmpty()) batch = takeBatch();
+    } finally {
+      _lock.unlock();
+    }
+    if(batch != null) runBatch(batch);
+  }
+
+  private void runBatch(List<Pending> batch) {
+    try {
+      List items = new ArrayList(batch.size());
+      for(Pending p: batch) items.add(p.item);
+      List results = (List) _batchFn.invoke(items);
+      if(results == null || results.size() != batch.size()) {
+        throw new RuntimeException("Batch function returned " + (results == null ? "null" : results.size() + " results") + " for " + batch.size() + " items");
+      }
+      for(int i=0; i<batch.size(); i++) batch.get(i).result.complete(results.get(i));
+    } catch(Throwable t) {
+      for(Pending p: batch) p.result.completeExceptionally(t);
+    }
+  }
+
+  public int getPendingCount() {
+    _lock.lock();
+    try {
+      return _pending.size();
+    } finally {
+      _lock.unlock();
+    }
+  }
+}
@@ -7,15 +7,43 @@ import com.rpl.rama.impl.Util;
 import java.io.*;
 import java.util.*;
 
+// Map serialized with Nippy when sent between processes, as framed Nippy bytes with the usual
+// header so large maps are LZ4 compressed. The receiver only thaws them on first access, so maps
+// that are just forwarded are never decoded and are re-sent from the same bytes.
 public class NippyMap implements Map, RamaSerializable {
-    private Map delegate;
+    // computed from the class before its fields and methods changed, so maps serialized by older
+    // versions still deserialize. The format itself is unchanged.
+    private static final long serialVersionUID = -3836585153763893948L;
+
+    private transient volatile Map delegate;
+    private transient byte[] frozen;
 
     public NippyMap(Map val) {
       delegate = val;
     }
 
+    public boolean isThawed() {
+      return delegate != null;
+    }
+
+    private Map delegate() {
+      Map ret = delegate;
+      if(ret == null) {
+        synchronized(this) {
+          if(delegate == null) delegate = (Map) AORHelpers.thaw(frozen);
+          ret = delegate;
+        }
+      }
+      return ret;
+    }
+
+    private synchronized byte[] frozen() {
+      if(frozen == null) frozen = AORHelpers.freeze(delegate);
+      return frozen;
+    }
+
     private void writeObject(ObjectOutputStream out) throws IOException {
-      byte[] ser = AORHelpers.freeze(delegate);
+      byte[] ser = frozen();
       out.writeInt(ser.length);
       out.write(ser);
     }
@@ -24,32 +52,32 @@ public class NippyMap implements Map, RamaSerializable {
       int size = in.readInt();
       byte[] ser = new byte[size];
       in.readFully(ser);
-      this.delegate = (Map) AORHelpers.thaw(ser);
+      this.frozen = ser;
     }
 
     @Override
     public int size() {
-      return delegate.size();
+      return delegate().size();
     }
 
     @Override
     public boolean isEmpty() {
-      return delegate.isEmpty();
+      return delegate().isEmpty();
     }
 
     @Override
     public boolean containsKey(Object key) {
-      return delegate.containsKey(key);
+      return delegate().containsKey(key);
     }
 
     @Override
     public boolean containsValue(Object value) {
-      return delegate.containsValue(value);
+      return delegate().containsValue(value);
     }
 
     @Override
     public Object get(Object key) {
-      return delegate.get(key);
+      return delegate().get(key);
     }
 
     @Override
@@ -74,16 +102,16 @@ public class NippyMap implements Map, RamaSerializable {
 
     @Override
     public Set keySet() {
-      return delegate.keySet();
+      return delegate().keySet();
     }
 
     @Override
     public Collection values() {
-      return delegate.values();
+      return delegate().values();
     }
 
     @Override
     public Set entrySet() {
-      return delegate.entrySet();
+      return delegate().entrySet();
     }
 }
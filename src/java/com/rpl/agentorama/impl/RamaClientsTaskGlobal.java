@@ -22,6 +22,8 @@ public class RamaClientsTaskGlobal implements TaskGlobalObject {
   }
 
   public static String AGENT_PSTATE_WRITE_DEPOT = "*_agent-pstate-write";
+  public static String EMBEDDING_STORE_WRITE_DEPOT = "*_agent-embedding-store-write";
+  public static String EMBEDDING_STORE_SEARCH_QUERY = "_agent-embedding-store-search";
 
   private static class ClientInfo implements Closeable {
     private String moduleName;
@@ -31,15 +33,19 @@ public class RamaClientsTaskGlobal implements TaskGlobalObject {
     public Map<String, Depot> humanDepots;
     public ConcurrentHashMap<String, PState> localPStates;
     public Depot pstateWritesDepot;
+    public Depot embeddingWritesDepot;
+    public QueryTopologyClient embeddingSearchQuery;
     ClusterManagerBase manager;
 
-    public ClientInfo(String moduleName, Map mirrorClients, Map agentDepots, Map streamingDepots, Map humanDepots, Depot pstateWritesDepot, ClusterManagerBase manager) {
+    public ClientInfo(String moduleName, Map mirrorClients, Map agentDepots, Map streamingDepots, Map humanDepots, Depot pstateWritesDepot, Depot embeddingWritesDepot, QueryTopologyClient embeddingSearchQuery, ClusterManagerBase manager) {
       this.moduleName = moduleName;
       this.mirrorClients = mirrorClients;
       this.agentDepots = agentDepots;
       this.streamingDepots = streamingDepots;
       this.humanDepots = humanDepots;
       this.pstateWritesDepot = pstateWritesDepot;
+      this.embeddingWritesDepot = embeddingWritesDepot;
+      this.embeddingSearchQuery = embeddingSearchQuery;
       this.localPStates = new ConcurrentHashMap();
       this.manager = manager;
     }
@@ -83,6 +89,14 @@ public class RamaClientsTaskGlobal implements TaskGlobalObject {
     return _clientInfo.getResource().pstateWritesDepot;
   }
 
+  public Depot getEmbeddingStoreWriteDepot() {
+    return _clientInfo.getResource().embeddingWritesDepot;
+  }
+
+  public QueryTopologyClient getEmbeddingStoreSearchQuery() {
+    return _clientInfo.getResource().embeddingSearchQuery;
+  }
+
   public Depot getAgentDepot(String agentName) {
     return _clientInfo.getResource().agentDepots.get(agentName);
   }
@@ -135,6 +149,8 @@ public class RamaClientsTaskGlobal implements TaskGlobalObject {
                                streamingDepots,
                                humanDepots,
                                manager.clusterDepot(moduleName, AGENT_PSTATE_WRITE_DEPOT),
+                               manager.clusterDepot(moduleName, EMBEDDING_STORE_WRITE_DEPOT),
+                               manager.clusterQuery(moduleName, EMBEDDING_STORE_SEARCH_QUERY),
                                manager);
                     });
   }
@@ -0,0 +1,111 @@
+package com.rpl.agentorama.impl;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+// Worker-local share of an agent object's cluster-wide rate limits. Budget is leased in chunks
+// from the object's token bucket PState and spent locally, so calls only coordinate when the
+// local budget runs out. A limit of 0 means that dimension is unlimited. Token balance can go
+// negative when a call uses more tokens than estimated, which is paid back by later leases.
+// Accessed from many virtual threads, so this locks with a ReentrantLock rather than synchronized.
+public class RateLimiter {
+  // each lease takes this fraction of the per-minute limit, so a worker holds at most a few
+  // seconds of budget that other workers can't use
+  public static final long LEASE_DIVISOR = 20;
+
+  final long _requestsPerMinute;
+  final long _tokensPerMinute;
+  final ReentrantLock _lock = new ReentrantLock();
+  long _requests = 0;
+  long _tokens = 0;
+
+  public RateLimiter(long requestsPerMinute, long tokensPerMinute) {
+    _requestsPerMinute = requestsPerMinute;
+    _tokensPerMinute = tokensPerMinute;
+  }
+
+  public long getRequestsPerMinute() {
+    return _requestsPerMinute;
+  }
+
+  public long getTokensPerMinute() {
+    return _tokensPerMinute;
+  }
+
+  // a single call can never need more than the bucket holds
+  public long capTokens(long tokens) {
+    return _tokensPerMinute > 0 ? Math.min(tokens, _tokensPerMinute) : 0;
+  }
+
+  public boolean tryAcquire(long tokens) {
+    _lock.lock();
+    try {
+      boolean requestsOk = _requestsPerMinute <= 0 || _requests >= 1;
+      boolean tokensOk = _tokensPerMinute <= 0 || _tokens >= tokens;
+      if(requestsOk && tokensOk) {
+        if(_requestsPerMinute > 0) _requests--;
+        if(_tokensPerMinute > 0) _tokens -= tokens;
+        return true;
+      }
+      return false;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  private static long leaseAmount(long limit, long balance, long needed) {
+    if(limit <= 0) return 0;
+    long shortfall = Math.max(0, needed - balance);
+    if(shortfall == 0) return 0;
+    return Math.min(limit, Math.max(shortfall, limit / LEASE_DIVISOR));
+  }
+
+  // amounts to lease from the bucket to cover a call needing one request and the given tokens
+  public long[] leaseAmounts(long tokens) {
+    _lock.lock();
+    try {
+      return new long[] {leaseAmount(_requestsPerMinute, _requests, 1),
+                         leaseAmount(_tokensPerMinute, _tokens, tokens)};
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  public void addLease(long requests, long tokens) {
+    _lock.lock();
+    try {
+      _requests += requests;
+      _tokens += tokens;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  // charges the difference between a call's actual and estimated token usage
+  public void chargeTokens(long delta) {
+    if(_tokensPerMinute <= 0) return;
+    _lock.lock();
+    try {
+      _tokens -= delta;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  public long getRequests() {
+    _lock.lock();
+    try {
+      return _requests;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  public long getTokens() {
+    _lock.lock();
+    try {
+      return _tokens;
+    } finally {
+      _lock.unlock();
+    }
+  }
+}
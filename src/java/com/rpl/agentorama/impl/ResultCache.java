@@ -0,0 +1,102 @@
+package com.rpl.agentorama.impl;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded LRU of results held on a worker, like tool results or model responses.
+// Entries expire after ttlMillis, and the cache is bounded by entry count and by the total size
+// of keys and results. A bound of 0 means unbounded. Accessed from many virtual threads, so this
+// locks with a ReentrantLock rather than synchronized.
+public class ResultCache {
+  public static final class Entry {
+    public final Object result;
+    public final long sizeBytes;
+    public final long expiresAtMillis;
+    // how long computing the result took
+    public final long latencyMillis;
+
+    Entry(Object result, long sizeBytes, long expiresAtMillis, long latencyMillis) {
+      this.result = result;
+      this.sizeBytes = sizeBytes;
+      this.expiresAtMillis = expiresAtMillis;
+      this.latencyMillis = latencyMillis;
+    }
+  }
+
+  final long _maxEntries;
+  final long _maxBytes;
+  final long _ttlMillis;
+  final ReentrantLock _lock = new ReentrantLock();
+  final LinkedHashMap<String, Entry> _cache = new LinkedHashMap<>(16, 0.75f, true);
+  long _totalBytes = 0;
+
+  public ResultCache(long maxEntries, long maxBytes, long ttlMillis) {
+    _maxEntries = maxEntries;
+    _maxBytes = maxBytes;
+    _ttlMillis = ttlMillis;
+  }
+
+  public long expiresAt(long nowMillis) {
+    return _ttlMillis <= 0 ? Long.MAX_VALUE : nowMillis + _ttlMillis;
+  }
+
+  public Entry get(String key) {
+    _lock.lock();
+    try {
+      Entry e = _cache.get(key);
+      if(e!=null && e.expiresAtMillis <= System.currentTimeMillis()) {
+        removeEntry(key);
+        return null;
+      }
+      return e;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  public Entry put(String key, Object result, long sizeBytes, long expiresAtMillis,
+                   long latencyMillis) {
+    Entry e = new Entry(result, sizeBytes, expiresAtMillis, latencyMillis);
+    // a result that can never fit isn't worth evicting everything else for
+    if(_maxBytes > 0 && sizeBytes > _maxBytes) return e;
+    _lock.lock();
+    try {
+      removeEntry(key);
+      _cache.put(key, e);
+      _totalBytes += sizeBytes;
+      Iterator<Map.Entry<String, Entry>> it = _cache.entrySet().iterator();
+      while(it.hasNext() &&
+            ((_maxEntries > 0 && _cache.size() > _maxEntries) ||
+             (_maxBytes > 0 && _totalBytes > _maxBytes))) {
+        _totalBytes -= it.next().getValue().sizeBytes;
+        it.remove();
+      }
+      return e;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  private void removeEntry(String key) {
+    Entry e = _cache.remove(key);
+    if(e!=null) _totalBytes -= e.sizeBytes;
+  }
+
+  public int size() {
+    _lock.lock();
+    try {
+      return _cache.size();
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  public long totalBytes() {
+    _lock.lock();
+    try {
+      return _totalBytes;
+    } finally {
+      _lock.unlock();
+    }
+  }
+}
@@ -12,6 +12,7 @@ package com.rpl.agentorama.store;
  * <li>{@link KeyValueStore} - Simple typed key-value storage</li>
  * <li>{@link DocumentStore} - Schema-flexible storage for nested data</li>
  * <li>{@link PStateStore} - Direct access to Rama's built-in PState storage</li>
+ * <li>{@link VectorStore} - Embeddings with approximate nearest neighbor search</li>
  * </ul>
  */
 public interface Store {
@@ -0,0 +1,31 @@
+package com.rpl.agentorama.store;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+
+/**
+ * Built-in embedding store for retrieval, kept in the module alongside the agent's other stores.
+ *
+ * Vector stores are created using {@link com.rpl.agentorama.AgentTopology#declareEmbeddingStore(String)}.
+ * Embeddings are partitioned by id across the module's tasks, and each partition keeps an approximate
+ * nearest neighbor index in memory. Searches run on every partition in parallel and merge the top
+ * matches. Searches with a metadata filter scan the matching embeddings exactly. Relevance scores are
+ * derived from cosine similarity.
+ *
+ * Metadata isn't indexed, so a filtered search evaluates the filter against every embedding on every
+ * partition and costs time proportional to the size of the store. Prefer unfiltered searches on large
+ * stores, or split data that's commonly filtered on into separate stores.
+ *
+ * Embedded values must be {@link TextSegment}s, whose text and metadata are stored with the embedding.
+ *
+ * Example:
+ * <pre>{@code
+ * VectorStore store = agentNode.getStore("$$docs");
+ * store.add(embedding, TextSegment.from("Rama is a platform for building distributed backends"));
+ * EmbeddingSearchResult<TextSegment> result = store.search(
+ *   EmbeddingSearchRequest.builder().queryEmbedding(queryEmbedding).maxResults(5).build());
+ * }</pre>
+ */
+public interface VectorStore extends Store, EmbeddingStore<TextSegment> {
+
+}
@@ -0,0 +1,75 @@
+(ns com.rpl.agent-o-rama.impl.hnsw-index-test
+  (:require
+   [clojure.set :as set]
+   [clojure.test :refer [deftest is]])
+  (:import
+   [com.rpl.agentorama.impl
+    HnswIndex
+    HnswIndex$Match]
+   [java.util
+    BitSet
+    Random]
+   [java.util.function
+    Predicate]))
+
+(def DIM 16)
+
+(defn- random-vector
+  [^Random rand]
+  (float-array (repeatedly DIM #(.nextGaussian rand))))
+
+(def MATCH-ALL
+  (reify Predicate
+    (test [_ _] true)))
+
+(defn- search-ids
+  [^HnswIndex index query k filter]
+  (mapv #(.id ^HnswIndex$Match %) (.search index query k -1.0 filter)))
+
+;; filtered searches always scan exactly, so a filter that matches everything gives the true
+;; nearest neighbors to compare the graph search against
+(defn- recall
+  [index queries k]
+  (let [found (reduce
+               (fn [total query]
+                 (+ total
+                    (count (set/intersection (set (search-ids index query k nil))
+                                             (set (search-ids index query k MATCH-ALL))))))
+               0
+               queries)]
+    (/ (double found) (* k (count queries)))))
+
+(defn- tombstone-count
+  [index]
+  (let [field (doto (.getDeclaredField HnswIndex "_deleted") (.setAccessible true))]
+    (.cardinality ^BitSet (.get field index))))
+
+(deftest graph-search-recall-test
+  (let [rand    (Random. 1)
+        index   (HnswIndex.)
+        n       (* 3 HnswIndex/EXACT_SCAN_THRESHOLD)
+        queries (repeatedly 50 #(random-vector rand))]
+    (doseq [i (range n)]
+      (.put index (str i) (random-vector rand)))
+    (is (= n (.size index)))
+    (is (= 10 (count (search-ids index (first queries) 10 nil))))
+    (is (>= (recall index queries 10) 0.9))))
+
+(deftest rebuild-test
+  (let [rand    (Random. 2)
+        index   (HnswIndex.)
+        n       (* 4 HnswIndex/EXACT_SCAN_THRESHOLD)
+        queries (repeatedly 50 #(random-vector rand))]
+    (doseq [i (range n)]
+      (.put index (str i) (random-vector rand)))
+    ;; tombstones stay in the graph until they outnumber the live entries
+    (doseq [i (range 1500)]
+      (.remove index (str i)))
+    (is (= 1500 (tombstone-count index)))
+    (doseq [i (range 1500 2200)]
+      (.remove index (str i)))
+    (is (< (tombstone-count index) 1500))
+    (is (= (- n 2200) (.size index)))
+    (let [removed (set (map str (range 2200)))]
+      (is (not-any? removed (mapcat #(search-ids index % 20 nil) queries))))
+    (is (>= (recall index queries 10) 0.9))))
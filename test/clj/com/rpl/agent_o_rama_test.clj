@@ -14,6 +14,7 @@
    [com.rpl.agent-o-rama.impl.pobjects :as po]
    [com.rpl.agent-o-rama.store :as store]
    [com.rpl.agent-o-rama.impl.queries :as queries]
+   [com.rpl.agent-o-rama.impl.rate-limits :as rl]
    [com.rpl.agent-o-rama.impl.store-impl :as simpl]
    [com.rpl.agent-o-rama.impl.topology :as at]
    [com.rpl.agent-o-rama.impl.types :as aor-types]
@@ -27,9 +28,13 @@
   (:import
    [com.rpl.agentorama
     AgentInvoke
+    AgentOverloadedException
     BuiltIn]
    [com.rpl.agentorama.impl
-    AgentNodeExecutorTaskGlobal]
+    AgentNodeExecutorTaskGlobal
+    MicroBatcher]
+   [com.rpl.agentorama.store
+    VectorStore]
    [com.rpl.agent_o_rama.impl.types
     Node
     NodeAgg
@@ -40,6 +45,30 @@
     TestSnippets]
    [com.rpl.rama.helpers
     TopologyUtils]
+   [dev.langchain4j.data.document
+    Metadata]
+   [dev.langchain4j.data.embedding
+    Embedding]
+   [dev.langchain4j.data.message
+    AiMessage]
+   [dev.langchain4j.data.segment
+    TextSegment]
+   [dev.langchain4j.model.chat
+    ChatModel]
+   [dev.langchain4j.model.chat.response
+    ChatResponse$Builder]
+   [dev.langchain4j.model.embedding
+    EmbeddingModel]
+   [dev.langchain4j.model.output
+    FinishReason
+    Response
+    TokenUsage]
+   [dev.langchain4j.store.embedding
+    EmbeddingMatch
+    EmbeddingSearchRequest]
+   [dev.langchain4j.store.embedding.filter
+    Filter
+    MetadataFilterBuilder]
    [com.rpl.rama.ops
     RamaAccumulatorAgg0
     RamaAccumulatorAgg2
@@ -576,8 +605,528 @@
         (aor/agg-start-node "N1" "N2" (fn [agent-node]))
         (aor/agg-node "N2" "N2" aggs/+sum (fn [agent-node agg node-start-res]))
     )))
+  (ex-info-thrown?
+   #"Placement set for undeclared node.*"
+   {:node "N2"}
+   (graph/resolve-agent-graph
+    (-> (graph/mk-agent-graph)
+        (aor/node "N1" nil (fn [agent-node]))
+        (aor/set-node-placement "N2" :agent-root)
+    )))
+  (ex-info-thrown?
+   #"Partition key placement requires a key function.*"
+   {:node "N1"}
+   (-> (graph/mk-agent-graph)
+       (aor/node "N1" nil (fn [agent-node]))
+       (aor/set-node-placement "N1" :partition-key)))
+  (ex-info-thrown?
+   #"Partition key function must be a var or qualified symbol.*"
+   {:node "N1"}
+   (-> (graph/mk-agent-graph)
+       (aor/node "N1" nil (fn [agent-node]))
+       (aor/set-node-placement "N1" :partition-key (fn [i] i))))
+  (ex-info-thrown?
+   #"Compact agg inputs set for node that isn't an agg node.*"
+   {:node "N1"}
+   (graph/resolve-agent-graph
+    (-> (graph/mk-agent-graph)
+        (aor/node "N1" nil (fn [agent-node]))
+        (aor/set-compact-agg-inputs "N1")
+    )))
+  (ex-info-thrown?
+   #"Async agg updates set for node that isn't an agg node.*"
+   {:node "N1"}
+   (graph/resolve-agent-graph
+    (-> (graph/mk-agent-graph)
+        (aor/node "N1" nil (fn [agent-node]))
+        (aor/set-async-agg-updates "N1")
+    )))
 )
 
+(defn placement-key
+  [i]
+  (mod i 3))
+
+(deftest node-placement-test
+  (with-open [ipc (rtest/create-ipc)]
+    (letlocals
+     (bind declare-agent!
+       (fn [topology name & placement]
+         (as-> topology $
+           (aor/new-agent $ name)
+           (aor/node $
+                     "start"
+                     "work"
+                     (fn [agent-node]
+                       (doseq [i (range 12)]
+                         (aor/emit! agent-node "work" i))))
+           (aor/node $ "work" nil (fn [agent-node i]))
+           (apply aor/set-node-placement $ "work" placement))))
+     (bind module
+       (aor/agentmodule
+        [topology]
+        (declare-agent! topology "root" :agent-root)
+        (declare-agent! topology "keyed" :partition-key #'placement-key)
+        (declare-agent! topology "loaded" :least-loaded)))
+     (launch-module-without-eval-agent! ipc module {:tasks 4 :threads 2})
+     (bind module-name (get-module-name module))
+     (bind agent-manager (aor/agent-manager ipc module-name))
+
+     (bind emit-task-ids
+       (fn [agent-name]
+         (let [client        (aor/agent-client agent-manager agent-name)
+               traces-query  (:tracing-query (aor-types/underlying-objects client))
+               root-pstate   (foreign-pstate ipc
+                                             module-name
+                                             (po/agent-root-task-global-name agent-name))
+               inv           (aor/agent-initiate client)
+               _             (aor/agent-result client inv)
+               agent-task-id (:task-id inv)
+               root-invoke-id
+               (foreign-select-one [(keypath (:agent-invoke-id inv)) :root-invoke-id]
+                                   root-pstate
+                                   {:pkey agent-task-id})]
+           [agent-task-id
+            (->> (foreign-invoke-query traces-query
+                                       agent-task-id
+                                       [[agent-task-id root-invoke-id]]
+                                       10000)
+                 :invokes-map
+                 (select-one [(keypath root-invoke-id) :emits])
+                 (mapv (juxt (comp first :args) :target-task-id)))])))
+
+     (let [[agent-task-id emits] (emit-task-ids "root")]
+       (is (= 12 (count emits)))
+       (is (= #{agent-task-id} (set (map second emits)))))
+
+     (let [[_ emits] (emit-task-ids "keyed")]
+       (is (= 3
+              (->> emits
+                   (group-by #(mod (first %) 3))
+                   vals
+                   (map #(set (map second %)))
+                   (filter #(= 1 (count %)))
+                   count))))
+
+     (let [[_ emits] (emit-task-ids "loaded")]
+       (is (= #{0 1 2 3} (set (map second emits))))))))
+
+(deftest compact-agg-inputs-test
+  (with-open [ipc (rtest/create-ipc)]
+    (letlocals
+     (bind declare-agent!
+       (fn [topology name compact?]
+         (as-> topology $
+           (aor/new-agent $ name)
+           (aor/agg-start-node $
+                               "start"
+                               "agg"
+                               (fn [agent-node]
+                                 (doseq [i (range 5)]
+                                   (aor/emit! agent-node "agg" "add" (str "chunk" i) i))))
+           (aor/agg-node $
+                         "agg"
+                         nil
+                         (aor/multi-agg
+                          (init [] 0)
+                          (on "add" [curr _ i] (+ curr i)))
+                         (fn [agent-node agg _]
+                           (aor/result! agent-node agg)))
+           (if compact? (aor/set-compact-agg-inputs $ "agg") $))))
+     (bind module
+       (aor/agentmodule
+        [topology]
+        (declare-agent! topology "full" false)
+        (declare-agent! topology "compact" true)))
+     (launch-module-without-eval-agent! ipc module {:tasks 2 :threads 1})
+     (bind module-name (get-module-name module))
+     (bind agent-manager (aor/agent-manager ipc module-name))
+
+     (bind agg-input-args
+       (fn [agent-name]
+         (let [client      (aor/agent-client agent-manager agent-name)
+               node-pstate (foreign-pstate ipc
+                                           module-name
+                                           (po/agent-node-task-global-name agent-name))]
+           (is (= 10 (aor/agent-invoke client)))
+           (sort-by str
+                    (mapcat #(foreign-select [MAP-VALS (must :agg-inputs) ALL :args]
+                                             node-pstate
+                                             {:pkey %})
+                            (range 2))))))
+
+     (is (= (for [i (range 5)] ["add" (str "chunk" i) i])
+            (sort-by str (agg-input-args "full"))))
+     (bind args (agg-input-args "compact"))
+     (is (= 5 (count args)))
+     (is (every? (fn [a] (and (= 3 (count a))
+                              (every? #(.startsWith ^String % "sha256:") a)))
+                 args))
+     (is (= 5 (count (set args))))
+    )))
+
+(deftest async-agg-updates-test
+  (let [virtual-atom (atom [])
+        flaky-atom   (atom 0)]
+    (with-open [ipc (rtest/create-ipc)]
+      (letlocals
+       (bind declare-agent!
+         (fn [topology name agg]
+           (-> topology
+               (aor/new-agent name)
+               (aor/agg-start-node "start"
+                                   "agg"
+                                   (fn [agent-node]
+                                     (doseq [i (range 1 21)]
+                                       (aor/emit! agent-node "agg" "add" i))))
+               (aor/agg-node "agg"
+                             nil
+                             agg
+                             (fn [agent-node agg _]
+                               (aor/result! agent-node agg)))
+               (aor/set-async-agg-updates "agg"))))
+       (bind module
+         (aor/agentmodule
+          [topology]
+          (declare-agent! topology
+                          "sum"
+                          (aor/multi-agg
+                           (init [] 0)
+                           (on "add"
+                               [curr i]
+                               (swap! virtual-atom
+                                      conj
+                                      (.isVirtual (Thread/currentThread)))
+                               (+ curr i))))
+          (declare-agent! topology
+                          "early"
+                          (aor/multi-agg
+                           (init [] 0)
+                           (on "add"
+                               [curr i]
+                               (let [ret (+ curr i)]
+                                 (if (> ret 10) (reduced ret) ret)))))
+          (declare-agent! topology
+                          "fails"
+                          (aor/multi-agg
+                           (init [] 0)
+                           (on "add"
+                               [curr i]
+                               (throw (ex-info "fail" {})))))
+          (declare-agent! topology
+                          "flaky"
+                          (aor/multi-agg
+                           (init [] 0)
+                           (on "add"
+                               [curr i]
+                               (when (and (= i 3) (= 1 (swap! flaky-atom inc)))
+                                 (throw (ex-info "fail once" {})))
+                               (+ curr i))))))
+       (launch-module-without-eval-agent! ipc module {:tasks 2 :threads 2})
+       (bind module-name (get-module-name module))
+       (bind agent-manager (aor/agent-manager ipc module-name))
+
+       (bind sum (aor/agent-client agent-manager "sum"))
+       (is (= 210 (aor/agent-invoke sum)))
+       (is (= 20 (count @virtual-atom)))
+       (is (every? true? @virtual-atom))
+
+       (bind early (aor/agent-client agent-manager "early"))
+       (bind res (aor/agent-invoke early))
+       (is (> res 10))
+       (is (< res 31))
+
+       (bind fails (aor/agent-client agent-manager "fails"))
+       (is (thrown? Exception (aor/agent-invoke fails)))
+
+       ;; the failed update is retried like on the task thread, and no update stays queued
+       (bind flaky (aor/agent-client agent-manager "flaky"))
+       (bind inv (aor/agent-initiate flaky))
+       (is (= 210 (aor/agent-result flaky inv)))
+       (is (>= @flaky-atom 2))
+       (bind root-pstate
+         (foreign-pstate ipc module-name (po/agent-root-task-global-name "flaky")))
+       (is (= 1
+              (count (foreign-select-one [(keypath (:agent-invoke-id inv))
+                                          :exception-summaries]
+                                         root-pstate
+                                         {:pkey (:task-id inv)}))))
+       (is (condition-attained?
+            (->> (AgentNodeExecutorTaskGlobal/getWorkerExecutors module-name)
+                 vals
+                 (map #(.getAggMailboxCount ^AgentNodeExecutorTaskGlobal %))
+                 (every? zero?))))
+      ))))
+
+;; this is a separate deftest from the other agent object tests so the call count
+;; only includes calls made here
+(deftest response-cache-test
+  (let [calls-atom (atom 0)]
+    (with-open [ipc (rtest/create-ipc)]
+      (letlocals
+       (bind module
+         (aor/agentmodule
+          [topology]
+          (aor/declare-key-value-store topology "$$responses" String Object)
+          (aor/declare-agent-object-builder
+           topology
+           "model"
+           (fn [setup]
+             (reify
+              ChatModel
+              (doChat [this request]
+                (swap! calls-atom inc)
+                (-> (ChatResponse$Builder.)
+                    (.aiMessage (AiMessage. (str "echo " (count (.messages request)))))
+                    (.finishReason FinishReason/STOP)
+                    (.modelName "aor-model")
+                    (.tokenUsage (TokenUsage. (int 10) (int 20)))
+                    .build))))
+           {:response-cache {:max-entries 10 :store "$$responses"}})
+          (->
+            topology
+            (aor/new-agent "foo")
+            (aor/node
+             "start"
+             nil
+             (fn [agent-node prompt]
+               (let [^ChatModel model (aor/get-agent-object agent-node "model")]
+                 (aor/result! agent-node (.chat model ^String prompt))))))))
+       (launch-module-without-eval-agent! ipc module {:tasks 4 :threads 2})
+       (bind module-name (get-module-name module))
+       (bind agent-manager (aor/agent-manager ipc module-name))
+       (bind foo (aor/agent-client agent-manager "foo"))
+       (bind traces-query (:tracing-query (aor-types/underlying-objects foo)))
+       (bind root-pstate
+         (foreign-pstate ipc
+                         module-name
+                         (po/agent-root-task-global-name "foo")))
+
+       (bind invoke!
+         (fn [prompt]
+           (let [inv           (aor/agent-initiate foo prompt)
+                 res           (aor/agent-result foo inv)
+                 agent-task-id (:task-id inv)
+                 {:keys [root-invoke-id]}
+                 (foreign-select-one (keypath (:agent-invoke-id inv))
+                                     root-pstate
+                                     {:pkey agent-task-id})]
+             [res
+              (->> (foreign-invoke-query traces-query
+                                         agent-task-id
+                                         [[agent-task-id root-invoke-id]]
+                                         10000)
+                   :invokes-map
+                   (select-one [(keypath root-invoke-id)
+                                :nested-ops
+                                ALL
+                                (selected? :type (pred= :model-call))
+                                :info]))])))
+
+       (bind [res info] (invoke! "hello"))
+       (is (= "echo 1" res))
+       (is (= false (get info "cacheHit")))
+       (is (= 30 (get info "totalTokenCount")))
+       (is (= 1 @calls-atom))
+
+       ;; the same request may run on another task, so it's served from either tier
+       (bind [res info] (invoke! "hello"))
+       (is (= "echo 1" res))
+       (is (= true (get info "cacheHit")))
+       (is (contains? #{"memory" "store"} (get info "cacheTier")))
+       (is (= "aor-model" (get info "modelName")))
+       (is (not (contains? info "totalTokenCount")))
+       (is (= 1 @calls-atom))
+
+       (bind [res info] (invoke! "goodbye"))
+       (is (= false (get info "cacheHit")))
+       (is (= 2 @calls-atom))
+      ))))
+
+(deftest response-cache-options-test
+  (with-open [ipc (rtest/create-ipc)]
+    (letlocals
+     (bind launch!
+       (fn [options]
+         (launch-module-without-eval-agent!
+          ipc
+          (aor/agentmodule
+           [topology]
+           (aor/declare-agent-object-builder topology "model" (fn [setup] 1) options))
+          {:tasks 1 :threads 1})))
+     (is (thrown? Exception (launch! {:response-cache {:max-entries -1}})))
+     (is (thrown? Exception (launch! {:response-cache {:foo 1}})))
+     (is (thrown? Exception
+                  (launch! {:response-cache {:max-entries 10} :auto-tracing? false})))
+    )))
+
+(deftest lease-from-bucket-test
+  (letlocals
+   (bind lease
+     (fn [requests tokens]
+       (aor-types/->RateLimitLease "model" 60 6000 requests tokens)))
+   (bind [bucket granted] (rl/lease-from-bucket nil (lease 10 1000) 0))
+   (is (= {:requests 10 :tokens 1000 :retry-millis 0} granted))
+   (is (= {:requests 50.0 :tokens 5000.0 :refill-time-millis 0} bucket))
+
+   (bind [bucket granted] (rl/lease-from-bucket bucket (lease 60 0) 0))
+   (is (= {:requests 50 :tokens 0 :retry-millis 10000} granted))
+   (is (= 0.0 (:requests bucket)))
+
+   ;; refills at the per-minute rate
+   (bind [bucket granted] (rl/lease-from-bucket bucket (lease 3 0) 2000))
+   (is (= {:requests 2 :tokens 0 :retry-millis 1000} granted))
+
+   ;; refills no further than the per-minute limit
+   (bind [bucket granted] (rl/lease-from-bucket bucket (lease 0 0) 1000000))
+   (is (= 60.0 (:requests bucket)))
+   (is (= 6000.0 (:tokens bucket)))
+
+   (bind [bucket granted]
+     (rl/lease-from-bucket nil (aor-types/->RateLimitLease "model" 0 100 0 200) 0))
+   (is (= {:requests 0 :tokens 100 :retry-millis 60000} granted))
+  ))
+
+(deftest rate-limit-test
+  (let [calls-atom (atom 0)
+        waits-atom (atom [])]
+    (with-redefs [rl/hook:rate-limit-wait
+                  (fn [millis]
+                    (swap! waits-atom conj millis)
+                    (TopologyUtils/advanceSimTime millis))]
+      (with-open [ipc (rtest/create-ipc)
+                  _ (TopologyUtils/startSimTime)]
+        (letlocals
+         (bind module
+           (aor/agentmodule
+            [topology]
+            (aor/declare-agent-object-builder
+             topology
+             "model"
+             (fn [setup]
+               (reify
+                ChatModel
+                (doChat [this request]
+                  (swap! calls-atom inc)
+                  (-> (ChatResponse$Builder.)
+                      (.aiMessage (AiMessage. "ok"))
+                      (.tokenUsage (TokenUsage. (int 10) (int 20)))
+                      .build))))
+             {:rate-limit {:requests-per-minute 3}})
+            (->
+              topology
+              (aor/new-agent "foo")
+              (aor/node
+               "start"
+               nil
+               (fn [agent-node]
+                 (let [^ChatModel model (aor/get-agent-object agent-node "model")]
+                   (aor/result! agent-node (.chat model "hello"))))))))
+         (launch-module-without-eval-agent! ipc module {:tasks 4 :threads 2})
+         (bind module-name (get-module-name module))
+         (bind agent-manager (aor/agent-manager ipc module-name))
+         (bind foo (aor/agent-client agent-manager "foo"))
+         (bind nodes-pstate
+           (foreign-pstate ipc module-name (po/agent-node-task-global-name "foo")))
+         (bind root-pstate
+           (foreign-pstate ipc module-name (po/agent-root-task-global-name "foo")))
+         (bind wait-ops
+           (fn [{:keys [task-id agent-invoke-id]}]
+             (let [root-id (foreign-select-one [(keypath agent-invoke-id) :root-invoke-id]
+                                               root-pstate
+                                               {:pkey task-id})]
+               (foreign-select [(keypath root-id)
+                                :nested-ops
+                                ALL
+                                (selected? :type (pred= :other))
+                                :info]
+                               nodes-pstate
+                               {:pkey task-id}))))
+
+         ;; the bucket starts with a full minute of budget
+         (dotimes [_ 3]
+           (is (= "ok" (aor/agent-invoke foo))))
+         (is (= 3 @calls-atom))
+         (is (empty? @waits-atom))
+
+         (bind inv (aor/agent-initiate foo))
+         (is (= "ok" (aor/agent-result foo inv)))
+         (is (= 4 @calls-atom))
+         (is (= 20000 (reduce + @waits-atom)))
+         (bind [op] (wait-ops inv))
+         (is (= "model" (get op "objectName")))
+         (is (= "rateLimitWait" (get op "op")))
+         (is (= 20000 (get op "waitMillis")))
+        )))))
+
+(deftest embedding-batching-test
+  (let [batches-atom (atom [])]
+    (with-open [ipc (rtest/create-ipc)]
+      (letlocals
+       (bind module
+         (aor/agentmodule
+          [topology]
+          (aor/declare-agent-object-builder
+           topology
+           "embedder"
+           (fn [setup]
+             (reify
+              EmbeddingModel
+              (embedAll [this segments]
+                (swap! batches-atom conj (count segments))
+                (Response/from
+                 (mapv (fn [^TextSegment s]
+                         (Embedding/from (float-array [(count (.text s))])))
+                       segments)))))
+           {:thread-safe?    true
+            :embedding-batch {:max-batch-size 8 :max-wait-millis 100}})
+          (->
+            topology
+            (aor/new-agent "foo")
+            (aor/agg-start-node
+             "start"
+             "embed"
+             (fn [agent-node n]
+               (doseq [i (range n)]
+                 (aor/emit! agent-node "embed" (apply str (repeat (inc i) "a"))))))
+            (aor/node
+             "embed"
+             "agg"
+             (fn [agent-node text]
+               (let [^EmbeddingModel model (aor/get-agent-object agent-node "embedder")]
+                 (aor/emit! agent-node
+                            "agg"
+                            [text (-> (.embed model ^String text) .content .vector first long)]))))
+            (aor/agg-node
+             "agg"
+             nil
+             aggs/+vec-agg
+             (fn [agent-node agg _]
+               (aor/result! agent-node agg))))))
+       (launch-module-without-eval-agent! ipc module {:tasks 4 :threads 2})
+       (bind module-name (get-module-name module))
+       (bind agent-manager (aor/agent-manager ipc module-name))
+       (bind foo (aor/agent-client agent-manager "foo"))
+
+       (bind res (aor/agent-invoke foo 16))
+       (is (= 16 (count res)))
+       (is (every? (fn [[text n]] (= (count text) n)) res))
+       (is (= 16 (reduce + @batches-atom)))
+       (is (< (count @batches-atom) 16))
+       (is (every? #(<= % 8) @batches-atom))
+      ))))
+
+(deftest micro-batcher-failure-test
+  (let [batcher (MicroBatcher. 2 1000 (fn [items] (throw (ex-info "fail" {}))))
+        cf1     (.submit batcher 1)
+        cf2     (.submit batcher 2)]
+    (is (thrown? Exception (.get ^CompletableFuture cf1)))
+    (is (thrown? Exception (.get ^CompletableFuture cf2)))
+    (is (= 0 (.getPendingCount batcher))))
+  (let [batcher (MicroBatcher. 10 10 (fn [items] [:a]))]
+    ;; the batch function must return one result per item
+    (is (thrown? Exception (.get ^CompletableFuture (.submit batcher 1))))))
+
 (deftest agg-types-test
   (letlocals
    (bind get-agg-node
@@ -786,7 +1335,7 @@
          (dotimes [_ 10]
            (let [{[agent-task-id agent-id] "_agent-topology"}
                  (foreign-append! depot
-                                  (aor-types/->AgentInitiate ["hello"] nil nil nil nil))]
+                                  (aor-types/->AgentInitiate ["hello"] nil nil nil nil nil))]
              (is (= 0
                     (foreign-select-one [(keypath agent-id) :graph-version]
                                         root-pstate
@@ -839,7 +1388,7 @@
          (reset! task-counts-atom {})
          (dotimes [_ 10]
            (let [{[agent-task-id agent-id] "_agent-topology"}
-                 (foreign-append! depot (aor-types/->AgentInitiate [] nil nil nil nil))]
+                 (foreign-append! depot (aor-types/->AgentInitiate [] nil nil nil nil nil))]
              (is (= 1
                     (foreign-select-one [(keypath agent-id) :graph-version]
                                         root-pstate
@@ -1268,6 +1817,84 @@
      (is (= 1 (foreign-select-one [:zz 0] p {:pkey :e})))
     )))
 
+(deftest embedding-store-test
+  (with-open [ipc (rtest/create-ipc)]
+    (letlocals
+     (bind embedding
+       (fn [angle]
+         (Embedding/from (float-array [(Math/cos angle) (Math/sin angle)]))))
+     (bind search
+       (fn [^VectorStore store request]
+         (mapv (fn [^EmbeddingMatch m] (.embeddingId m))
+               (.matches (.search store request)))))
+     (bind request
+       (fn [k min-score filter]
+         (-> (EmbeddingSearchRequest/builder)
+             (.queryEmbedding (embedding 0))
+             (.maxResults (int k))
+             (.minScore (double min-score))
+             (.filter filter)
+             .build)))
+     (bind odd-filter
+       (-> (MetadataFilterBuilder/metadataKey "kind")
+           (.isEqualTo "odd")))
+     (bind module
+       (aor/agentmodule
+        [topology]
+        (aor/declare-embedding-store topology "$$docs")
+        (->
+          topology
+          (aor/new-agent "foo")
+          (aor/node
+           "start"
+           nil
+           (fn [agent-node]
+             (let [^VectorStore store (aor/get-store agent-node "$$docs")]
+               (.addAll store
+                        (mapv #(str "d" %) (range 6))
+                        (mapv #(embedding (* % 0.3)) (range 6))
+                        (mapv #(TextSegment/from
+                                (str "doc " %)
+                                (Metadata/from {"kind" (if (even? %) "even" "odd")}))
+                              (range 6)))
+               (let [top       (search store (request 3 0 nil))
+                     min-score (search store (request 3 0.99 nil))
+                     filtered  (search store (request 2 0 odd-filter))
+                     text      (-> (.search store (request 1 0 nil))
+                                   .matches
+                                   first
+                                   .embedded
+                                   .text)
+                     _ (.remove store "d0")
+                     removed   (search store (request 1 0 nil))
+                     _ (.removeAll store ^Filter odd-filter)
+                     filter-removed (search store (request 10 0 nil))
+                     _ (.removeAll store)
+                     all-removed (search store (request 10 0 nil))]
+                 (aor/result! agent-node
+                              {:top            top
+                               :min-score      min-score
+                               :filtered       filtered
+                               :text           text
+                               :removed        removed
+                               :filter-removed filter-removed
+                               :all-removed    all-removed})))
+           )))))
+     (launch-module-without-eval-agent! ipc module {:tasks 4 :threads 2})
+     (bind module-name (get-module-name module))
+     (bind agent-manager (aor/agent-manager ipc module-name))
+     (bind foo (aor/agent-client agent-manager "foo"))
+
+     (is (= {:top            ["d0" "d1" "d2"]
+             :min-score      ["d0"]
+             :filtered       ["d1" "d3"]
+             :text           "doc 0"
+             :removed        ["d1"]
+             :filter-removed ["d2" "d4"]
+             :all-removed    []}
+            (aor/agent-invoke foo)))
+    )))
+
 (deftest store-traces-test
   (let [advance-vol (volatile! 1)
         advance-fn  (fn [& args]
@@ -2148,6 +2775,108 @@
          (close! bar)
         )))))
 
+(deftest agent-initiate-batch-test
+  (with-redefs [aor/MAX-INITIATE-BATCH-SIZE 3]
+    (with-open [ipc (rtest/create-ipc)]
+      (letlocals
+       (bind module
+         (aor/agentmodule
+          [topology]
+          (->
+            topology
+            (aor/new-agent "bar")
+            (aor/node "start"
+                      nil
+                      (fn [agent-node v1 v2]
+                        (aor/result! agent-node (+ v1 v2)))))))
+       (launch-module-without-eval-agent! ipc module {:tasks 4 :threads 2})
+       (bind module-name (get-module-name module))
+
+       (bind agent-manager (aor/agent-manager ipc module-name))
+       (bind bar (aor/agent-client agent-manager "bar"))
+       (bind root-pstate
+         (foreign-pstate ipc
+                         module-name
+                         (po/agent-root-task-global-name "bar")))
+
+       (bind invs (aor/agent-initiate-batch bar nil (for [i (range 8)] [i 10])))
+       (is (= 8 (count invs)))
+       (is (= 8 (count (set (map :agent-invoke-id invs)))))
+       (is (= (vec (range 10 18))
+              (mapv #(aor/agent-result bar %) invs)))
+       ;; invokes within a chunk are initiated on the same task
+       (is (= 1 (count (set (map :task-id (take 3 invs))))))
+
+       (bind invs
+         (.get (aor/agent-initiate-batch-async bar
+                                               {:metadata {"a" 1} :priority :batch}
+                                               [[1 2] [3 4]])))
+       (is (= [3 7] (mapv #(aor/agent-result bar %) invs)))
+       (is (= [{"a" 1} {"a" 1}] (mapv #(aor/get-metadata bar %) invs)))
+       (is (= [:batch :batch]
+              (mapv (fn [{:keys [task-id agent-invoke-id]}]
+                      (foreign-select-one [(keypath agent-invoke-id) :priority]
+                                          root-pstate
+                                          {:pkey task-id}))
+                    invs)))
+
+       (is (= [] (aor/agent-initiate-batch bar nil [])))
+       (is (thrown? Exception
+                    (aor/agent-initiate-batch bar {:priority :urgent} [[1 2]])))
+      ))))
+
+(deftest agent-initiate-batch-overloaded-test
+  (let [started-atom (atom 0)
+        latch        (java.util.concurrent.CountDownLatch. 1)]
+    (with-redefs [aor/MAX-INITIATE-BATCH-SIZE 3]
+      (with-open [ipc (rtest/create-ipc)]
+        (letlocals
+         (bind module
+           (aor/agentmodule
+            [topology]
+            (->
+              topology
+              (aor/new-agent "bar")
+              (aor/node "start"
+                        nil
+                        (fn [agent-node v]
+                          (swap! started-atom inc)
+                          (.await latch)
+                          (aor/result! agent-node (inc v)))))))
+         (launch-module-without-eval-agent! ipc module {:tasks 1 :threads 2})
+         (bind module-name (get-module-name module))
+
+         (bind agent-manager (aor/agent-manager ipc module-name))
+         (bind bar (aor/agent-client agent-manager "bar"))
+         (bind config-depot
+           (foreign-depot ipc module-name (po/agent-config-depot-name "bar")))
+         (foreign-append! config-depot (aor-types/change-max-running-nodes-per-task 1))
+         (foreign-append! config-depot
+                          (aor-types/change-initiate-backpressure-queue-depth 2))
+
+         (bind inv (aor/agent-initiate bar 0))
+         (is (condition-attained? (= 1 @started-atom)))
+
+         ;; the first chunk is accepted and queues behind the blocked invoke, so the second
+         ;; chunk is rejected
+         (bind ex
+           (try
+             (aor/agent-initiate-batch bar nil (for [i (range 1 7)] [i]))
+             nil
+             (catch Exception e
+               (ex-cause e))))
+         (is (instance? AgentOverloadedException ex))
+         (bind batch-invokes (vec (.getBatchInvokes ^AgentOverloadedException ex)))
+         (is (= 6 (count batch-invokes)))
+         (is (every? some? (take 3 batch-invokes)))
+         (is (every? nil? (drop 3 batch-invokes)))
+
+         (.countDown latch)
+         (is (= 1 (aor/agent-result bar inv)))
+         (is (= [2 3 4] (mapv #(aor/agent-result bar %) (take 3 batch-invokes))))
+         (is (= 4 @started-atom))
+        )))))
+
 (defn matching-ascending-seq?
   ([items final-seq] (matching-ascending-seq? items final-seq <))
   ([items final-seq comp-fn]
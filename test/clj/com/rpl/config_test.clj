@@ -7,7 +7,11 @@
    [com.rpl.agent-o-rama :as aor]
    [com.rpl.agent-o-rama.impl.pobjects :as po]
    [com.rpl.agent-o-rama.impl.types :as aor-types]
-   [com.rpl.rama.test :as rtest]))
+   [com.rpl.rama.aggs :as aggs]
+   [com.rpl.rama.test :as rtest])
+  (:import
+   [com.rpl.agentorama
+    AgentOverloadedException]))
 
 
 (deftest change-configs-test
@@ -86,3 +90,454 @@
      (is (thrown? Exception
                   (aor-types/change-max-limited-actions-concurrency 2.5)))
     )))
+
+(deftest separate-nested-op-payloads-test
+  (with-open [ipc (rtest/create-ipc)]
+    (letlocals
+     (bind module
+       (aor/agentmodule
+        [topology]
+        (->
+          topology
+          (aor/new-agent "foo")
+          (aor/node
+           "start"
+           nil
+           (fn [agent-node]
+             (aor/record-nested-op! agent-node
+                                    :model-call
+                                    1
+                                    3
+                                    {"response"         "abc"
+                                     "inputTokenCount"  10
+                                     "outputTokenCount" 5
+                                     "totalTokenCount"  15})
+             (aor/record-nested-op! agent-node :other 3 4 {"a" 1})
+             (aor/result! agent-node "abcd")
+           )))))
+     (launch-module-without-eval-agent! ipc module {:tasks 4 :threads 2})
+     (bind module-name (get-module-name module))
+
+     (bind agent-manager (aor/agent-manager ipc module-name))
+     (bind foo (aor/agent-client agent-manager "foo"))
+     (bind traces-query (:tracing-query (aor-types/underlying-objects foo)))
+     (bind config-depot
+       (foreign-depot ipc module-name (po/agent-config-depot-name "foo")))
+     (bind root-pstate
+       (foreign-pstate ipc
+                       module-name
+                       (po/agent-root-task-global-name "foo")))
+
+     (foreign-append! config-depot
+                      (aor-types/change-separate-nested-op-payloads true))
+     (is (thrown? Exception
+                  (aor-types/change-separate-nested-op-payloads 1)))
+
+     (bind inv (aor/agent-initiate foo))
+     (is (= "abcd" (aor/agent-result foo inv)))
+     (bind agent-task-id (:task-id inv))
+     (bind {:keys [root-invoke-id stats]}
+       (foreign-select-one (keypath (:agent-invoke-id inv))
+                           root-pstate
+                           {:pkey agent-task-id}))
+     (bind nested-ops
+       (-> (foreign-invoke-query traces-query
+                                 agent-task-id
+                                 [[agent-task-id root-invoke-id]]
+                                 10000)
+           :invokes-map
+           (get root-invoke-id)
+           :nested-ops))
+     (is (= [[:model-call {"response"         "abc"
+                           "inputTokenCount"  10
+                           "outputTokenCount" 5
+                           "totalTokenCount"  15}]
+             [:other {"a" 1}]]
+            (mapv (juxt :type :info) nested-ops)))
+     (is (= 15 (-> stats :basic-stats :total-token-count)))
+     (is (= 1 (-> stats :basic-stats :nested-op-stats :other :count)))
+    )))
+
+(deftest nested-op-capture-level-test
+  (with-open [ipc (rtest/create-ipc)]
+    (letlocals
+     (bind module
+       (aor/agentmodule
+        [topology]
+        (aor/declare-agent-object-builder topology
+                                          "full-model"
+                                          (fn [setup] 1)
+                                          {:capture-level :full})
+        (->
+          topology
+          (aor/new-agent "foo")
+          (aor/node
+           "start"
+           nil
+           (fn [agent-node]
+             (aor/record-nested-op! agent-node
+                                    :model-call
+                                    1
+                                    3
+                                    {"objectName"      "full-model"
+                                     "response"        "abcdefgh"
+                                     "inputTokenCount" 10})
+             (aor/record-nested-op! agent-node
+                                    :other
+                                    3
+                                    4
+                                    {"op"    "x"
+                                     "input" "abcdefgh"
+                                     "count" 2})
+             (aor/result! agent-node "abcd")
+           )))))
+     (launch-module-without-eval-agent! ipc module {:tasks 4 :threads 2})
+     (bind module-name (get-module-name module))
+
+     (bind agent-manager (aor/agent-manager ipc module-name))
+     (bind foo (aor/agent-client agent-manager "foo"))
+     (bind traces-query (:tracing-query (aor-types/underlying-objects foo)))
+     (bind config-depot
+       (foreign-depot ipc module-name (po/agent-config-depot-name "foo")))
+     (bind root-pstate
+       (foreign-pstate ipc
+                       module-name
+                       (po/agent-root-task-global-name "foo")))
+
+     (bind run-nested-ops
+       (fn []
+         (let [inv           (aor/agent-initiate foo)
+               _             (aor/agent-result foo inv)
+               agent-task-id (:task-id inv)
+               {:keys [root-invoke-id]}
+               (foreign-select-one (keypath (:agent-invoke-id inv))
+                                   root-pstate
+                                   {:pkey agent-task-id})]
+           (->> (foreign-invoke-query traces-query
+                                      agent-task-id
+                                      [[agent-task-id root-invoke-id]]
+                                      10000)
+                :invokes-map
+                (select-one [(keypath root-invoke-id) :nested-ops])
+                (mapv :info)))))
+
+     (is (thrown? Exception (aor-types/change-nested-op-capture-level "none")))
+     (is (thrown? Exception
+                  (aor-types/change-nested-op-full-capture-sample-rate 1.5)))
+
+     (foreign-append! config-depot
+                      (aor-types/change-nested-op-capture-level "truncated"))
+     (foreign-append! config-depot
+                      (aor-types/change-nested-op-capture-truncate-bytes 4))
+     (is (= [{"objectName" "full-model" "response" "abcdefgh" "inputTokenCount" 10}
+             {"op" "x" "input" "abcd..." "count" 2}]
+            (run-nested-ops)))
+
+     (foreign-append! config-depot
+                      (aor-types/change-nested-op-capture-level "timings-only"))
+     (is (= {"op" "x" "count" 2} (second (run-nested-ops))))
+
+     (foreign-append! config-depot
+                      (aor-types/change-nested-op-full-capture-sample-rate 1.0))
+     (is (= {"op" "x" "input" "abcdefgh" "count" 2} (second (run-nested-ops))))
+    )))
+
+(deftest stats-flush-batch-size-test
+  (with-open [ipc (rtest/create-ipc)]
+    (letlocals
+     (bind module
+       (aor/agentmodule
+        [topology]
+        (->
+          topology
+          (aor/new-agent "foo")
+          (aor/agg-start-node
+           "start"
+           "work"
+           (fn [agent-node n]
+             (doseq [i (range n)]
+               (aor/emit! agent-node "work" i))))
+          (aor/node
+           "work"
+           "agg"
+           (fn [agent-node i]
+             (aor/record-nested-op! agent-node
+                                    :model-call
+                                    1
+                                    2
+                                    {"totalTokenCount" 3})
+             (aor/emit! agent-node "agg" i)))
+          (aor/agg-node
+           "agg"
+           nil
+           aggs/+sum
+           (fn [agent-node agg _]
+             (aor/result! agent-node agg))))))
+     (launch-module-without-eval-agent! ipc module {:tasks 4 :threads 2})
+     (bind module-name (get-module-name module))
+
+     (bind agent-manager (aor/agent-manager ipc module-name))
+     (bind foo (aor/agent-client agent-manager "foo"))
+     (bind config-depot
+       (foreign-depot ipc module-name (po/agent-config-depot-name "foo")))
+     (bind root-pstate
+       (foreign-pstate ipc
+                       module-name
+                       (po/agent-root-task-global-name "foo")))
+
+     (foreign-append! config-depot (aor-types/change-stats-flush-batch-size 7))
+     (is (thrown? Exception (aor-types/change-stats-flush-batch-size 0)))
+
+     (bind inv (aor/agent-initiate foo 20))
+     (is (= 190 (aor/agent-result foo inv)))
+     (bind stats
+       (foreign-select-one [(keypath (:agent-invoke-id inv)) :stats]
+                           root-pstate
+                           {:pkey (:task-id inv)}))
+     (is (= 60 (-> stats :basic-stats :total-token-count)))
+     (is (= 20 (-> stats :basic-stats :nested-op-stats :model-call :count)))
+     (is (= {"start" 1 "work" 20 "agg" 1}
+            (transform MAP-VALS :count (-> stats :basic-stats :node-stats))))
+
+     ;; batches never fill up, so the aggregation completes once the tick sends them
+     (foreign-append! config-depot (aor-types/change-stats-flush-batch-size 1000))
+     (foreign-append! config-depot (aor-types/change-stats-flush-interval-millis 100))
+     (bind inv (aor/agent-initiate foo 20))
+     (is (= 190 (aor/agent-result foo inv)))
+     (bind stats
+       (foreign-select-one [(keypath (:agent-invoke-id inv)) :stats]
+                           root-pstate
+                           {:pkey (:task-id inv)}))
+     (is (= 60 (-> stats :basic-stats :total-token-count)))
+     (is (= {"start" 1 "work" 20 "agg" 1}
+            (transform MAP-VALS :count (-> stats :basic-stats :node-stats))))
+    )))
+
+(deftest max-running-nodes-test
+  (let [running-atom     (atom 0)
+        max-running-atom (atom 0)
+        latch-atom       (atom nil)]
+    (with-open [ipc (rtest/create-ipc)]
+      (letlocals
+       (bind module
+         (aor/agentmodule
+          [topology]
+          (->
+            topology
+            (aor/new-agent "foo")
+            (aor/agg-start-node
+             "start"
+             "work"
+             (fn [agent-node n]
+               (doseq [i (range n)]
+                 (aor/emit! agent-node "work" i))))
+            (aor/node
+             "work"
+             "agg"
+             (fn [agent-node i]
+               (swap! max-running-atom max (swap! running-atom inc))
+               (when-let [latch @latch-atom]
+                 (.await ^java.util.concurrent.CountDownLatch latch))
+               (Thread/sleep 10)
+               (swap! running-atom dec)
+               (aor/emit! agent-node "agg" i)))
+            (aor/agg-node
+             "agg"
+             nil
+             aggs/+sum
+             (fn [agent-node agg _]
+               (aor/result! agent-node agg))))))
+       (launch-module-without-eval-agent! ipc module {:tasks 1 :threads 1})
+       (bind module-name (get-module-name module))
+
+       (bind agent-manager (aor/agent-manager ipc module-name))
+       (bind foo (aor/agent-client agent-manager "foo"))
+       (bind config-depot
+         (foreign-depot ipc module-name (po/agent-config-depot-name "foo")))
+       (bind node-pstate
+         (foreign-pstate ipc
+                         module-name
+                         (po/agent-node-task-global-name "foo")))
+
+       (is (thrown? Exception (aor-types/change-max-running-nodes-per-task -1)))
+       (is (thrown? Exception
+                    (aor-types/change-max-running-nodes-per-task-by-node {"work" 0})))
+
+       (testing "agent limit"
+         (foreign-append! config-depot (aor-types/change-max-running-nodes-per-task 1))
+         (is (= 45 (aor/agent-invoke foo 10)))
+         (is (= 1 @max-running-atom))
+         (bind depths
+           (foreign-select [MAP-VALS
+                            (selected? :node (pred= "work"))
+                            :admission-queue-depth]
+                           node-pstate
+                           {:pkey 0}))
+         (is (= 10 (count depths)))
+         (is (some pos? depths)))
+
+       (testing "node limit"
+         (reset! max-running-atom 0)
+         (foreign-append! config-depot (aor-types/change-max-running-nodes-per-task 0))
+         (foreign-append! config-depot
+                          (aor-types/change-max-running-nodes-per-task-by-node {"work" 2}))
+         (is (= 45 (aor/agent-invoke foo 10)))
+         (is (<= @max-running-atom 2)))
+
+       (testing "initiate backpressure"
+         (reset! latch-atom (java.util.concurrent.CountDownLatch. 1))
+         (foreign-append! config-depot
+                          (aor-types/change-max-running-nodes-per-task-by-node {"work" 1}))
+         (foreign-append! config-depot
+                          (aor-types/change-initiate-backpressure-queue-depth 2))
+         (bind inv (aor/agent-initiate foo 5))
+         (is (condition-attained?
+              (try
+                (aor/agent-initiate foo 1)
+                false
+                (catch Exception e
+                  (instance? AgentOverloadedException (ex-cause e))))))
+         (.countDown ^java.util.concurrent.CountDownLatch @latch-atom)
+         (is (= 10 (aor/agent-result foo inv)))
+         (is (= 0 (aor/agent-invoke foo 1))))
+      ))))
+
+(deftest invoke-priority-test
+  (let [order-atom (atom [])
+        latch-atom (atom nil)]
+    (with-open [ipc (rtest/create-ipc)]
+      (letlocals
+       (bind module
+         (aor/agentmodule
+          [topology]
+          (->
+            topology
+            (aor/new-agent "foo")
+            (aor/agg-start-node
+             "start"
+             "work"
+             (fn [agent-node tag n]
+               (doseq [i (range n)]
+                 (aor/emit! agent-node "work" tag i))))
+            (aor/node
+             "work"
+             "agg"
+             (fn [agent-node tag i]
+               (swap! order-atom conj tag)
+               (when-let [latch @latch-atom]
+                 (.await ^java.util.concurrent.CountDownLatch latch))
+               (Thread/sleep 50)
+               (aor/emit! agent-node "agg" i)))
+            (aor/agg-node
+             "agg"
+             nil
+             aggs/+sum
+             (fn [agent-node agg _]
+               (aor/result! agent-node agg))))))
+       (launch-module-without-eval-agent! ipc module {:tasks 1 :threads 1})
+       (bind module-name (get-module-name module))
+
+       (bind agent-manager (aor/agent-manager ipc module-name))
+       (bind foo (aor/agent-client agent-manager "foo"))
+       (bind config-depot
+         (foreign-depot ipc module-name (po/agent-config-depot-name "foo")))
+       (bind root-pstate
+         (foreign-pstate ipc
+                         module-name
+                         (po/agent-root-task-global-name "foo")))
+       (bind node-pstate
+         (foreign-pstate ipc
+                         module-name
+                         (po/agent-node-task-global-name "foo")))
+
+       (is (thrown? Exception
+                    (aor/agent-initiate-with-context foo {:priority :urgent} "b" 1)))
+
+       (foreign-append! config-depot (aor-types/change-max-running-nodes-per-task 1))
+       (reset! latch-atom (java.util.concurrent.CountDownLatch. 1))
+       (bind batch-inv (aor/agent-initiate-with-context foo {:priority :batch} "b" 5))
+       (is (condition-attained? (= ["b"] @order-atom)))
+       (bind inv (aor/agent-initiate foo "i" 2))
+       ;; the interactive start node is queued behind the blocked batch node
+       (is (condition-attained?
+            (= ["start"]
+               (foreign-select [MAP-VALS
+                                (selected? :agent-id (pred= (:agent-invoke-id inv)))
+                                :node]
+                               node-pstate
+                               {:pkey 0}))))
+       (.countDown ^java.util.concurrent.CountDownLatch @latch-atom)
+       (is (= 1 (aor/agent-result foo inv)))
+       (is (= 10 (aor/agent-result foo batch-inv)))
+
+       (bind order @order-atom)
+       (is (= 7 (count order)))
+       ;; interactive nodes overtook the batch nodes queued before them
+       (is (< (.lastIndexOf ^java.util.List order "i")
+              (.lastIndexOf ^java.util.List order "b")))
+       (is (= :batch
+              (foreign-select-one [(keypath (:agent-invoke-id batch-inv)) :priority]
+                                  root-pstate
+                                  {:pkey (:task-id batch-inv)})))
+       (is (= :interactive
+              (foreign-select-one [(keypath (:agent-invoke-id inv)) :priority]
+                                  root-pstate
+                                  {:pkey (:task-id inv)})))
+      ))))
+
+(deftest interactive-reserved-nodes-test
+  (let [running-atom (atom 0)
+        max-atom     (atom 0)
+        latch        (java.util.concurrent.CountDownLatch. 1)]
+    (with-open [ipc (rtest/create-ipc)]
+      (letlocals
+       (bind module
+         (aor/agentmodule
+          [topology]
+          (->
+            topology
+            (aor/new-agent "foo")
+            (aor/node
+             "start"
+             "work"
+             (fn [agent-node tag n]
+               (doseq [_ (range n)]
+                 (aor/emit! agent-node "work" tag))))
+            (aor/node
+             "work"
+             nil
+             (fn [agent-node tag]
+               (when (= tag "b")
+                 (let [running (swap! running-atom inc)]
+                   (swap! max-atom max running))
+                 (.await latch)
+                 (swap! running-atom dec))
+               (aor/result! agent-node tag))))))
+       (launch-module-without-eval-agent! ipc module {:tasks 1 :threads 1})
+       (bind module-name (get-module-name module))
+
+       (bind agent-manager (aor/agent-manager ipc module-name))
+       (bind foo (aor/agent-client agent-manager "foo"))
+       (bind config-depot
+         (foreign-depot ipc module-name (po/agent-config-depot-name "foo")))
+       (foreign-append! config-depot (aor-types/change-max-running-nodes-per-task 3))
+       (foreign-append! config-depot
+                        (aor-types/change-interactive-reserved-nodes-per-task 1))
+
+       (bind batch-inv (aor/agent-initiate-with-context foo {:priority :batch} "b" 6))
+       (is (condition-attained? (= 2 @running-atom)))
+       ;; batch work is saturated and blocked, but the reserved slot lets interactive work run
+       (bind inv (aor/agent-initiate foo "i" 1))
+       (is (= "i" (aor/agent-result foo inv)))
+       (is (= 2 @max-atom))
+
+       (.countDown latch)
+       (is (= "b" (aor/agent-result foo batch-inv)))
+       (is (= 2 @max-atom))
+
+       ;; a reservation covering the whole limit still leaves batch work one slot
+       (foreign-append! config-depot
+                        (aor-types/change-interactive-reserved-nodes-per-task 5))
+       (bind batch-inv (aor/agent-initiate-with-context foo {:priority :batch} "x" 2))
+       (is (= "x" (aor/agent-result foo batch-inv)))
+      ))))
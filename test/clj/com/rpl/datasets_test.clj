@@ -26,6 +26,8 @@
     ValidationMessage]
    [com.rpl.agentorama
     AddDatasetExampleOptions]
+   [com.rpl.agentorama.impl
+    DatasetSchemaCacheTaskGlobal]
    [dev.langchain4j.data.message
     UserMessage]))
 
@@ -538,6 +540,107 @@
       (is (string? err))
       (is (h/contains-string? err "x-javaType: $.owner")))))
 
+(deftest wrap-pojos-node-types-test
+  (let [^JsonNode node (datasets/wrap-pojos
+                        {"s" "a" "l" 1 "i" (int 2) "d" 1.5 "b" true
+                         "n" nil "xs" [1 "x"] "p" (->Person "A" 1)})]
+    (is (.isTextual (.get node "s")))
+    (is (instance? com.fasterxml.jackson.databind.node.LongNode (.get node "l")))
+    (is (instance? com.fasterxml.jackson.databind.node.IntNode (.get node "i")))
+    (is (instance? com.fasterxml.jackson.databind.node.DoubleNode (.get node "d")))
+    (is (.isBoolean (.get node "b")))
+    (is (.isNull (.get node "n")))
+    (is (.isArray (.get node "xs")))
+    (is (instance? com.fasterxml.jackson.databind.node.POJONode (.get node "p")))))
+
+(deftest dataset-schema-cache-test
+  (let [cache   (DatasetSchemaCacheTaskGlobal. 2)
+        ds1     (h/random-uuid7)
+        ds2     (h/random-uuid7)
+        schema1 "{\"type\":\"string\"}"
+        schema2 "{\"type\":\"integer\"}"
+        compiles (atom 0)
+        lookup (fn [ds s]
+                     (with-redefs [datasets/compile-json-schema
+                                   (fn [s]
+                                     (swap! compiles inc)
+                                     (datasets/build-schema (j/read-value s)))]
+                       (datasets/cached-json-schema cache ds s)))]
+    (.prepareForTask cache 0 nil)
+    (is (identical? (lookup ds1 schema1) (lookup ds1 schema1)))
+    (is (= 1 @compiles))
+    (lookup ds1 schema2)
+    (is (= 2 @compiles))
+    (is (= 2 (.size cache)))
+    ;; bounded by entry count with LRU eviction
+    (lookup ds2 schema1)
+    (is (= 2 (.size cache)))
+    (is (nil? (.get cache ds1 schema1)))
+    (is (some? (.get cache ds1 schema2)))
+    (.invalidate cache ds1)
+    (is (nil? (.get cache ds1 schema2)))
+    (is (some? (.get cache ds2 schema1)))
+    (is (nil? (datasets/validate-with-schema*
+               #(datasets/cached-json-schema cache ds2 %)
+               schema1
+               "abc")))
+    (is (string? (datasets/validate-with-schema*
+                  #(datasets/cached-json-schema cache ds2 %)
+                  schema1
+                  1)))))
+
+(deftest snapshot-chain-test
+  (let [parents {"s1" {:parent nil :created-at 1}
+                 "s2" {:parent "s1" :created-at 2}
+                 "s3" {:parent "s1" :created-at 3}}]
+    (is (= [nil] (datasets/snapshot-chain parents nil)))
+    (is (= ["s2" "s1" nil] (datasets/snapshot-chain parents "s2")))
+    (is (= ["other"] (datasets/snapshot-chain parents "other")))
+    (is (= #{"s2" "s3"} (set (datasets/snapshot-children parents "s1"))))
+    (is (= ["s1"] (datasets/snapshot-children parents nil))))
+  (let [tomb datasets/SNAPSHOT-TOMBSTONE]
+    (is (= [{1 :a 3 :c} nil]
+           (datasets/merge-snapshot-range
+            [(sorted-map 2 tomb 3 :c) (sorted-map 1 :a 2 :b)]
+            10)))
+    ;; only keys for which every truncated level is complete are returned
+    (is (= [{1 :a 2 :x} 2]
+           (datasets/merge-snapshot-range
+            [(sorted-map 2 :x 5 :y) (sorted-map 1 :a 2 :b)]
+            2)))
+    (is (= [{"a" {:input 1}} ["b"]]
+           (datasets/merge-level-examples {}
+                                          ["a" "b"]
+                                          [{:input 1} nil])))))
+
+(deftest example-index-test
+  (is (= #{"abc" "bcd"} (datasets/text-grams "AbcD")))
+  (is (= #{} (datasets/text-grams "ab")))
+  (is (= [#{"t"} #{"xyz" "yz1"}]
+         (datasets/example-postings 1 {:input "xyz1" :tags #{"t"}})))
+  (is (= [#{"t"} #{datasets/UNINDEXED-GRAM}]
+         (datasets/example-postings
+          1
+          {:input (apply str (repeat (inc datasets/MAX-INDEXED-TEXT-LENGTH) "a"))
+           :tags  #{"t"}})))
+  ;; short enough, but with too many distinct trigrams
+  (is (= [#{} #{datasets/UNINDEXED-GRAM}]
+         (datasets/example-postings
+          1
+          {:input (let [letters "abcdefghijklmnopqrstuvwxyz"]
+                    (apply str (take 1100 (for [a letters b letters c letters] (str a b c)))))})))
+  (is (= [#{} #{}]
+         (datasets/example-postings 1 datasets/SNAPSHOT-TOMBSTONE)))
+  ;; counts are per gram per chain level
+  (is (= "bcd" (datasets/rarest-gram ["abc" "bcd"] ["s1" nil] [3 4 1 1])))
+  (is (= [[1 2 3] 3]
+         (datasets/merge-postings-ranges [(sorted-set 1 2 3) (sorted-set 2 5) nil] 3)))
+  (is (= [[1 2 5] nil]
+         (datasets/merge-postings-ranges [(sorted-set 1 2) (sorted-set 2 5)] 3)))
+  (is (= [1 2]
+         (datasets/tagged-example-ids {2 {:tags #{"a"}} 1 {:tags #{"a" "b"}} 3 nil}
+                                      "a"))))
+
 (deftest dataset-operations-test
   (with-redefs [queries/search-pagination-size (constantly 2)]
     (with-open [ipc (rtest/create-ipc)]
@@ -1017,6 +1120,23 @@
          (get-examples-page ds-id1 "snapshot1" 10 nil))
        (is (nil? pagination-params))
        (is (empty? examples))
+       ;; snapshot2 was created from snapshot1 and is unaffected by later
+       ;; changes to snapshot1 or its removal
+       (bind {:keys [examples pagination-params]}
+         (get-examples-page ds-id1 "snapshot2" 10 nil))
+       (is (nil? pagination-params))
+       (is
+        (=
+         (examples-cleaned examples)
+         [{:input "example1-1" :reference-output nil :tags #{} :source (aor-types/->ApiSourceImpl)}
+          {:input  "example1-2"
+           :reference-output "output1-2"
+           :tags   #{"tag1" "tag2"}
+           :source ar-source}
+          {:input  "examples1-1"
+           :reference-output nil
+           :tags   #{}
+           :source (aor-types/->ApiSourceImpl)}]))
 
 
        ;; now verify schema checking
@@ -1249,6 +1369,27 @@
                                     nil
                                     (mapv :id less-examples))))
 
+       ;; batch add skips examples failing the schema and reports them by index
+       (bind batch-errors
+         (aor/add-dataset-examples-batch! manager
+                                          ds-id4
+                                          [{:input "e"}
+                                           {:input 5}
+                                           {:input "f" :tags #{"t3"}}]))
+       (is (= [1] (keys batch-errors)))
+       (is (string? (get batch-errors 1)))
+       (bind {:keys [examples]}
+         (get-examples-page ds-id4 nil 100 nil))
+       (is (= [{:input  "e"
+                :reference-output nil
+                :tags   #{}
+                :source (aor-types/->ApiSourceImpl)}
+               {:input  "f"
+                :reference-output nil
+                :tags   #{"t3"}
+                :source (aor-types/->ApiSourceImpl)}]
+              (drop 2 (examples-cleaned examples))))
+
        ;; test download-jsonl-examples! pagination
        (bind ds-id-pagination
          (create-and-wait! manager
@@ -1411,3 +1552,112 @@
               ]))
        (is (nil? pagination-params))
       ))))
+
+(deftest sharded-dataset-test
+  (with-open [ipc (rtest/create-ipc)]
+    (letlocals
+     (bind module
+       (aor/agentmodule
+        [topology]
+        (-> topology
+            (aor/new-agent "foo")
+            (aor/node
+             "start"
+             nil
+             (fn [agent-node]
+               (aor/result! agent-node "done")
+             )))
+       ))
+     (launch-module-without-eval-agent! ipc module {:tasks 4 :threads 2})
+     (bind module-name (get-module-name module))
+     (bind manager (aor/agent-manager ipc module-name))
+     (bind pstate
+       (foreign-pstate ipc module-name (po/datasets-task-global-name)))
+     (bind search-examples-query
+       (foreign-query ipc module-name (queries/search-examples-name)))
+     (bind multi-examples-query
+       (foreign-query ipc module-name (queries/multi-examples-name)))
+     (bind example-ids-query
+       (foreign-query ipc module-name (queries/snapshot-example-ids-name)))
+     (bind has-examples-query
+       (foreign-query ipc module-name (queries/snapshot-has-examples-name)))
+     (bind search-all
+       (fn [ds-id snapshot filters limit]
+         (loop [page-key nil
+                acc      []]
+           (let [{:keys [examples pagination-params]}
+                 (foreign-invoke-query search-examples-query
+                                       ds-id
+                                       snapshot
+                                       filters
+                                       limit
+                                       page-key)
+                 acc (into acc examples)]
+             (if (some? pagination-params)
+               (recur pagination-params acc)
+               acc)))))
+
+     (bind ds-id
+       (aor/create-dataset! manager
+                            "sharded"
+                            {:input-json-schema (to-json {"type" "string"})
+                             :sharded?          true}))
+     (is (:sharded? (queries/get-dataset-properties pstate ds-id)))
+
+     (bind errors
+       (aor/add-dataset-examples-batch!
+        manager
+        ds-id
+        (vec (for [i (range 20)]
+               {:input (str "input" i)
+                :tags  (if (even? i) #{"even"} #{})}))))
+     (is (empty? errors))
+     (is (= {0 true}
+            (transform MAP-VALS
+                       string?
+                       (aor/add-dataset-examples-batch! manager ds-id [{:input 1}]))))
+     (bind id20 (aor/add-dataset-example! manager ds-id "input20"))
+
+     ;; examples are spread across tasks with nothing stored on the home task
+     (is (nil? (foreign-select-one [(keypath ds-id) :snapshots (keypath nil)] pstate)))
+
+     (bind all-examples (search-all ds-id nil nil 3))
+     (is (= 21 (count all-examples)))
+     (bind first-page (foreign-invoke-query search-examples-query ds-id nil nil 3 nil))
+     (is (= 3 (count (:examples first-page))))
+     (is (= (:id (last (:examples first-page))) (:pagination-params first-page)))
+     (is (= (sort (map :id all-examples)) (map :id all-examples)))
+     (is (= (set (map #(str "input" %) (range 21)))
+            (set (map :input all-examples))))
+     (is (= 11 (count (search-all ds-id nil {:tag "even"} 2))))
+     (is (= (mapv :id all-examples)
+            (foreign-invoke-query example-ids-query ds-id nil nil nil)))
+     (is (= 2 (count (foreign-invoke-query example-ids-query ds-id nil "even" 2))))
+
+     (bind ids (mapv :id all-examples))
+     (bind multi (foreign-invoke-query multi-examples-query ds-id nil ids))
+     (is (= (set ids) (set (keys multi))))
+     (is (= "input20" (:input (get multi id20))))
+
+     (aor/snapshot-dataset! manager ds-id nil "snap")
+     (aor/set-dataset-example-input! manager ds-id id20 "changed")
+     (aor/remove-dataset-example! manager ds-id (first ids))
+     (is (= 20 (count (search-all ds-id nil nil 5))))
+     (bind snap-examples (search-all ds-id "snap" nil 5))
+     (is (= 21 (count snap-examples)))
+     (is (= "input20"
+            (:input (get (foreign-invoke-query multi-examples-query ds-id "snap" [id20])
+                         id20))))
+     (is (= #{"snap"} (queries/get-dataset-snapshot-names pstate ds-id)))
+     (is (foreign-invoke-query has-examples-query ds-id nil))
+     (is (foreign-invoke-query has-examples-query ds-id "snap"))
+     (is (not (foreign-invoke-query has-examples-query ds-id "missing")))
+
+     (aor/remove-dataset-snapshot! manager ds-id "snap")
+     (is (= #{} (queries/get-dataset-snapshot-names pstate ds-id)))
+     (is (empty? (search-all ds-id "snap" nil 5)))
+     (is (not (foreign-invoke-query has-examples-query ds-id "snap")))
+
+     (aor/destroy-dataset! manager ds-id)
+     (is (empty? (foreign-invoke-query example-ids-query ds-id nil nil nil)))
+    )))
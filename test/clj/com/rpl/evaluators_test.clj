@@ -20,6 +20,7 @@
    [jsonista.core :as j])
   (:import
    [com.rpl.agentorama
+    AgentObjectFetcher
     ExampleRun]
    [com.rpl.aortest
     TestSnippets]
@@ -716,6 +717,80 @@
           nil))
     )))
 
+(deftest llm-judge-batching-and-cache-test
+  (letlocals
+   (bind requests-atom (atom []))
+   (bind model
+     (reify
+      ChatModel
+      (doChat [this request]
+        (let [text  (.singleText ^UserMessage (last (.messages request)))
+              cases (mapv #(Long/parseLong (second %)) (re-seq #"case=(\d+)" text))]
+          (swap! requests-atom conj (count cases))
+          (-> (ChatResponse$Builder.)
+              (.aiMessage (AiMessage. (j/write-value-as-string
+                                       (if (> (count cases) 1)
+                                         {"results" (mapv (fn [n] {"score" n}) cases)}
+                                         {"score" (first cases)}))))
+              .build)))))
+   (bind fetcher
+     (reify
+      AgentObjectFetcher
+      (getAgentObject [this name] model)))
+   (bind builder-fn (get-in evals/BUILT-IN ["aor/llm-judge" :builder-fn]))
+   (bind judge
+     (builder-fn {"prompt"       "case=%input"
+                  "model"        "my-model"
+                  "temperature"  "0.0"
+                  "outputSchema" evals/DEFAULT-LLM-OUTPUT-SCHEMA
+                  "batchSize"    "4"
+                  "cache"        "true"}))
+
+   (bind res (->> (range 8)
+                  (mapv (fn [i] (future (judge fetcher i nil nil))))
+                  (mapv deref)))
+   (is (= (mapv (fn [i] {"score" i}) (range 8)) res))
+   (is (= 8 (reduce + @requests-atom)))
+   (is (< (count @requests-atom) 8))
+   (is (every? #(<= % 4) @requests-atom))
+
+   ;; identical examples are served from the cache
+   (reset! requests-atom [])
+   (is (= {"score" 3} (judge fetcher 3 nil nil)))
+   (is (= [] @requests-atom))
+   (is (= {"score" 9} (judge fetcher 9 nil nil)))
+   (is (= [1] @requests-atom))
+
+   (bind uncached
+     (builder-fn {"prompt"       "case=%input"
+                  "model"        "my-model"
+                  "temperature"  "0.0"
+                  "outputSchema" evals/DEFAULT-LLM-OUTPUT-SCHEMA
+                  "batchSize"    "1"
+                  "cache"        "false"}))
+   (reset! requests-atom [])
+   (uncached fetcher 3 nil nil)
+   (uncached fetcher 3 nil nil)
+   (is (= [1 1] @requests-atom))
+
+   ;; caching is off unless enabled
+   (bind default-judge
+     (builder-fn {"prompt"       "case=%input"
+                  "model"        "my-model"
+                  "temperature"  "0.7"
+                  "outputSchema" evals/DEFAULT-LLM-OUTPUT-SCHEMA}))
+   (reset! requests-atom [])
+   (default-judge fetcher 3 nil nil)
+   (default-judge fetcher 3 nil nil)
+   (is (= [1 1] @requests-atom))))
+
+(deftest prompt-template-test
+  ;; substituted values aren't themselves treated as variables
+  (is (= "1 a 2 %output 3 c 4 a"
+         (evals/render-prompt (evals/compile-prompt-template
+                               "1 %input 2 %referenceOutput 3 %output 4 %input")
+                              {:input "a" :referenceOutput "%output" :output "c"}))))
+
 (deftest llm-judge-with-default-schema-test
   ;; Tests llm-judge evaluator using the default output schema.
   ;; Verifies that when outputSchema parameter is omitted,
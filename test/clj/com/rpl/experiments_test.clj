@@ -2030,6 +2030,89 @@
     )))
 
 
+(deftest experiment-initiate-overloaded-test
+  (let [started-atom (atom 0)
+        latch        (java.util.concurrent.CountDownLatch. 1)]
+    (with-open [ipc (rtest/create-ipc)]
+      (letlocals
+       (bind module
+         (aor/agentmodule
+          [topology]
+          (-> topology
+              (aor/new-agent "foo")
+              (aor/node
+               "start"
+               nil
+               (fn [agent-node arg]
+                 (swap! started-atom inc)
+                 (.await latch)
+                 (aor/result! agent-node (str arg "!")))
+              ))))
+       (rtest/launch-module! ipc module {:tasks 1 :threads 2})
+       (bind module-name (get-module-name module))
+       (bind manager (aor/agent-manager ipc module-name))
+       (bind exp-client (aor/agent-client manager aor-types/EVALUATOR-AGENT-NAME))
+       (bind global-actions-depot
+         (foreign-depot ipc module-name (po/global-actions-depot-name)))
+       (bind config-depot
+         (foreign-depot ipc
+                        module-name
+                        (po/agent-config-depot-name aor-types/EVALUATOR-AGENT-NAME)))
+       (bind node-pstate
+         (foreign-pstate ipc
+                         module-name
+                         (po/agent-node-task-global-name aor-types/EVALUATOR-AGENT-NAME)))
+
+       (aor/create-evaluator! manager
+                              "concise2"
+                              "aor/conciseness"
+                              {"threshold" "2"}
+                              "")
+       (bind ds-id (aor/create-dataset! manager "Dataset 1"))
+       (add-example-and-wait! manager ds-id "aa")
+
+       (foreign-append! config-depot (aor-types/change-max-running-nodes-per-task 1))
+       (foreign-append! config-depot
+                        (aor-types/change-initiate-backpressure-queue-depth 1))
+
+       (bind start-experiment!
+         (fn []
+           (let [{exp-invoke aor-types/AGENT-TOPOLOGY-NAME}
+                 (foreign-append!
+                  global-actions-depot
+                  (aor-types/->StartExperiment
+                   (h/random-uuid7)
+                   "overloaded"
+                   ds-id
+                   nil
+                   nil
+                   [(aor-types/->valid-EvaluatorSelector "concise2" false)]
+                   (aor-types/->valid-RegularExperiment
+                    (aor-types/->valid-ExperimentTarget
+                     (aor-types/->valid-AgentTarget "foo")
+                     {}
+                     ["$"]))
+                   1
+                   1))]
+             exp-invoke)))
+
+       ;; the first experiment holds the evaluator's only slot while its target is blocked,
+       ;; so the second queues and the third is initiated while the agent is overloaded
+       (bind exp-invoke1 (start-experiment!))
+       (is (condition-attained? (= 1 @started-atom)))
+       (bind exp-invoke2 (start-experiment!))
+       (bind exp-invoke3 (start-experiment!))
+       (.countDown latch)
+       (wait-experiment-finished! exp-client exp-invoke1)
+       (wait-experiment-finished! exp-client exp-invoke2)
+       (wait-experiment-finished! exp-client exp-invoke3)
+       (is (= 3 @started-atom))
+       (is (some pos?
+                 (foreign-select [MAP-VALS :admission-queue-depth some?]
+                                 node-pstate
+                                 {:pkey 0})))
+      ))))
+
 (deftest merge-number-evals-test
   (is (= {"a" {"b" [1] "c" [2 3]}
           "d" {"b" [10 11]}
@@ -63,8 +63,14 @@
     And
     Not
     Or]
+   [com.rpl.agentorama.impl
+    NippyMap]
    [java.io
-    DataOutput]))
+    ByteArrayInputStream
+    ByteArrayOutputStream
+    DataOutput
+    ObjectInputStream
+    ObjectOutputStream]))
 
 (defn- roundtrip
   [obj]
@@ -231,3 +237,47 @@
               :additional-properties? true}
              {"a" (lj/string) "b" (lj/int)})))
 )
+
+(defn- java-ser
+  ^bytes [obj]
+  (let [bytes (ByteArrayOutputStream.)]
+    (with-open [out (ObjectOutputStream. bytes)]
+      (.writeObject out obj))
+    (.toByteArray bytes)))
+
+(defn- java-deser
+  [^bytes ser]
+  (with-open [in (ObjectInputStream. (ByteArrayInputStream. ser))]
+    (.readObject in)))
+
+(deftest nippy-map-test
+  (let [m {"a" {:val [1 2 3]}
+           "b" (UserMessage. "hello")
+           "c" (apply str (repeat 20000 "x"))}]
+    (letlocals
+     (bind ^NippyMap lazy (java-deser (java-ser (NippyMap. m))))
+     (is (not (.isThawed lazy)))
+     ;; forwarding without access re-sends the same bytes
+     (bind ^NippyMap lazy2 (java-deser (java-ser lazy)))
+     (is (not (.isThawed lazy)))
+     (is (not (.isThawed lazy2)))
+     (is (= (get m "a") (get lazy2 "a")))
+     (is (.isThawed lazy2))
+     (is (= m (into {} lazy2)))
+     (is (= m (into {} (java-deser (java-ser lazy2)))))
+    )))
+
+(deftest nippy-map-stream-boundary-test
+  ;; Point isn't supported natively by nippy, so it's nested Java serialization
+  (let [m {"a" [1 2 3] "p" (java.awt.Point. 3 4) "s" (apply str (repeat 20000 "y"))}]
+    (binding [nippy/*thaw-serializable-allowlist* #{"*"}]
+      (let [bytes (ByteArrayOutputStream.)]
+        (with-open [out (ObjectOutputStream. bytes)]
+          (.writeObject out (NippyMap. m))
+          (.writeObject out "trailing")
+          (.writeInt out 42))
+        (with-open [in (ObjectInputStream. (ByteArrayInputStream. (.toByteArray bytes)))]
+          (is (= m (into {} (.readObject in))))
+          (is (= "trailing" (.readObject in)))
+          (is (= 42 (.readInt in)))
+          (is (= -1 (.read in))))))))
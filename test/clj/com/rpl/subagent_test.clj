@@ -417,3 +417,71 @@
 
      (is (= 31 (aor/agent-invoke foo 3)))
     )))
+
+(deftest async-subagent-test
+  (with-open [ipc (rtest/create-ipc)]
+    (letlocals
+     (bind module
+       (aor/agentmodule
+        [topology]
+        (-> topology
+            (aor/new-agent "inc")
+            (aor/node
+             "start"
+             nil
+             (fn [agent-node v]
+               (aor/result! agent-node (inc v))
+             )))
+        (-> topology
+            (aor/new-agent "fanout")
+            (aor/node
+             "start"
+             nil
+             (fn [agent-node n]
+               (let [inc-client (aor/agent-client agent-node "inc")
+                     cfs        (mapv #(aor/agent-invoke-async inc-client %) (range n))]
+                 ;; not waited on by the node, but still recorded before it completes
+                 (aor/agent-initiate-async inc-client 100)
+                 ;; started from a callback once the initiate completes, and still waited on
+                 (.thenCompose ^java.util.concurrent.CompletableFuture
+                               (aor/agent-initiate-async inc-client 200)
+                               (h/cf-function [inv]
+                                 (aor/agent-result-async inc-client inv)))
+                 (aor/result! agent-node (reduce + (map deref cfs))))
+             )))
+       ))
+     (launch-module-without-eval-agent! ipc module {:tasks 2 :threads 2})
+     (bind module-name (get-module-name module))
+     (bind agent-manager (aor/agent-manager ipc module-name))
+     (bind fanout (aor/agent-client agent-manager "fanout"))
+     (bind fanout-root
+       (foreign-pstate ipc
+                       module-name
+                       (po/agent-root-task-global-name "fanout")))
+     (bind fanout-trace (:tracing-query (aor-types/underlying-objects fanout)))
+
+     (bind inv (aor/agent-initiate fanout 5))
+     (is (= 15 (aor/agent-result fanout inv)))
+
+     (bind agent-task-id (:task-id inv))
+     (bind root-invoke-id
+       (foreign-select-one [(keypath (:agent-invoke-id inv)) :root-invoke-id]
+                           fanout-root
+                           {:pkey agent-task-id}))
+     (bind nested-ops
+       (-> (foreign-invoke-query fanout-trace
+                                 agent-task-id
+                                 [[agent-task-id root-invoke-id]]
+                                 10000)
+           :invokes-map
+           (get root-invoke-id)
+           :nested-ops))
+     (is (every? #(= :agent-call (:type %)) nested-ops))
+     (is (= (sort-by :start-time-millis nested-ops) nested-ops))
+     (bind ops-by-name (group-by #(get-in % [:info "op"]) nested-ops))
+     (is (= 7 (count (get ops-by-name "initiate"))))
+     (is (= 6 (count (get ops-by-name "nextStep"))))
+     (is (every? #(some? (get-in % [:info "stats"])) (get ops-by-name "nextStep")))
+     (is (= #{1 2 3 4 5 201}
+            (set (map #(get-in % [:info "result"]) (get ops-by-name "nextStep")))))
+    )))
@@ -19,6 +19,8 @@
    [jsonista.core :as j]
    [meander.epsilon :as m])
   (:import
+   [com.rpl.agentorama.impl
+    ResultCache]
    [dev.langchain4j.agent.tool
     ToolExecutionRequest]
    [dev.langchain4j.data.message
@@ -379,3 +381,256 @@
          #"java.lang.IllegalArgumentException: text cannot be null or blank[\s\S]*"
          (get info "exception2")))
       ))))
+
+(deftest inline-tools-test
+  (with-redefs [anode/log-node-error (fn [& args])
+                aor-types/get-config (max-retries-override 0)]
+    (with-open [ipc (rtest/create-ipc)]
+      (letlocals
+       (bind module
+         (aor/agentmodule
+          [topology]
+          (-> topology
+              (aor/new-agent "foo")
+              (aor/node
+               "start"
+               nil
+               (fn [agent-node tools-agent-name caller-data requests]
+                 (let [tools (aor/agent-client agent-node tools-agent-name)]
+                   (aor/result! agent-node
+                                (aor/agent-invoke tools requests caller-data))))))
+          (tools/new-tools-agent topology "inline" TOOLS {:inline? true})
+          (tools/new-tools-agent topology
+                                 "mixed"
+                                 TOOLS
+                                 {:inline?           true
+                                  :distributed-tools #{"add"}})
+          (tools/new-tools-agent topology
+                                 "rethrow"
+                                 TOOLS
+                                 {:inline?       true
+                                  :error-handler (tools/error-handler-rethrow)})))
+       (bind module-name (get-module-name module))
+       (launch-module-without-eval-agent! ipc module {:tasks 4 :threads 2})
+       (bind agent-manager (aor/agent-manager ipc module-name))
+       (bind foo (aor/agent-client agent-manager "foo"))
+       (bind foo-root
+         (foreign-pstate ipc
+                         module-name
+                         (po/agent-root-task-global-name "foo")))
+       (bind foo-nodes
+         (foreign-pstate ipc
+                         module-name
+                         (po/agent-node-task-global-name "foo")))
+
+       (bind tool-invokes
+         (fn [{:keys [task-id agent-invoke-id]}]
+           (letlocals
+            (bind root-id
+              (foreign-select-one [(keypath agent-invoke-id) :root-invoke-id]
+                                  foo-root
+                                  {:pkey task-id}))
+            (bind [agent-name {:keys [task-id agent-invoke-id]}]
+              (foreign-select
+               [(keypath root-id) :nested-ops FIRST :info
+                (multi-path "agent-name" "result")]
+               foo-nodes
+               {:pkey task-id}))
+            (bind tools-root
+              (foreign-pstate ipc module-name (po/agent-root-task-global-name agent-name)))
+            (bind tools-nodes
+              (foreign-pstate ipc module-name (po/agent-node-task-global-name agent-name)))
+            (bind root-id
+              (foreign-select-one [(keypath agent-invoke-id) :root-invoke-id]
+                                  tools-root
+                                  {:pkey task-id}))
+            (bind emits
+              (foreign-select-one [(keypath root-id) :emits]
+                                  tools-nodes
+                                  {:pkey task-id}))
+            (for [{:keys [target-task-id invoke-id]} emits]
+              (foreign-select-one [(keypath invoke-id) :nested-ops]
+                                  tools-nodes
+                                  {:pkey target-task-id})))))
+
+       (bind sort-res
+         (fn [res]
+           (sort-by #(.id ^ToolExecutionResultMessage %) res)))
+
+       (bind requests
+         [(mk-request "add" "id1" {"a" 1 "b" 3})
+          (mk-request "math-with-context" "id2" {"a" 6 "b" 3 "c" 5})
+          (mk-request "throw" "id3" {"type" "arith"})
+          (mk-request "blah" "id4" {})])
+
+       (bind inv (aor/agent-initiate foo "inline" 11 requests))
+       (bind [r1 r2 r3 r4 :as res] (sort-res (aor/agent-result foo inv)))
+       (is (= 4 (count res)))
+       (is (res= r1 "id1" "add" "4"))
+       (is (res= r2 "id2" "math-with-context" "225"))
+       (is
+        (res=
+         r3
+         "id3"
+         "throw"
+         #"Error: java.lang.ArithmeticException: intentional[\s\S]*\nPlease fix your mistakes."))
+       (is (res= r4
+                 "id4"
+                 "blah"
+                 "Error: blah is not a valid tool, try one of [add, math-with-context, throw]."))
+       ;; all tool calls ran in a single node, each still traced
+       (bind invokes (tool-invokes inv))
+       (is (= 1 (count invokes)))
+       (bind n (first invokes))
+       (is (= 5 (count n)))
+       (is (= #{"id1" "id2" "id3" "id4"}
+              (set (keep #(get (:info %) "id") n))))
+       (is (= {"caller-data" 11}
+              (:info (first (filter #(= :other (:type %)) n)))))
+
+       (bind inv (aor/agent-initiate foo "mixed" 2 requests))
+       (bind [r1 r2 :as res] (sort-res (aor/agent-result foo inv)))
+       (is (= 4 (count res)))
+       (is (res= r1 "id1" "add" "4"))
+       (is (res= r2 "id2" "math-with-context" "45"))
+       (bind invokes (tool-invokes inv))
+       (is (= 2 (count invokes)))
+       (is (= #{["id1"] ["id2" "id3" "id4"]}
+              (set (for [n invokes]
+                     (vec (sort (keep #(get (:info %) "id") n)))))))
+
+       (is (thrown? Exception
+                    (aor/agent-invoke foo
+                                      "rethrow"
+                                      nil
+                                      [(mk-request "add" "id1" {"a" 1 "b" 3})
+                                       (mk-request "throw" "id2" {"type" "arith"})])))
+      ))))
+
+(deftest tool-result-cache-test
+  (let [calls-atom (atom 0)]
+    (with-open [ipc (rtest/create-ipc)]
+      (letlocals
+       (bind lookup
+         (tools/tool-info
+          (tools/tool-specification
+           "lookup"
+           (lj/object {"a" (lj/number "first number")
+                       "b" (lj/number "second number")}))
+          (fn [args]
+            (swap! calls-atom inc)
+            (* (get args "a") (get args "b")))
+          {:cache {:max-entries 10 :store "$$tool-cache"}}))
+       (bind module
+         (aor/agentmodule
+          [topology]
+          (aor/declare-key-value-store topology "$$tool-cache" String Object)
+          (-> topology
+              (aor/new-agent "foo")
+              (aor/node
+               "start"
+               nil
+               (fn [agent-node tools-agent-name requests]
+                 (let [tools (aor/agent-client agent-node tools-agent-name)]
+                   (aor/result! agent-node (aor/agent-invoke tools requests))))))
+          (tools/new-tools-agent topology "tools1" [lookup])
+          (tools/new-tools-agent topology "tools2" [lookup])))
+       (bind module-name (get-module-name module))
+       (launch-module-without-eval-agent! ipc module {:tasks 4 :threads 2})
+       (bind agent-manager (aor/agent-manager ipc module-name))
+       (bind foo (aor/agent-client agent-manager "foo"))
+
+       (bind tool-call-info
+         (fn [tools-agent-name {:keys [task-id agent-invoke-id]}]
+           (let [root    (foreign-pstate ipc
+                                         module-name
+                                         (po/agent-root-task-global-name "foo"))
+                 nodes   (foreign-pstate ipc
+                                         module-name
+                                         (po/agent-node-task-global-name "foo"))
+                 root-id (foreign-select-one [(keypath agent-invoke-id) :root-invoke-id]
+                                             root
+                                             {:pkey task-id})
+                 {:keys [task-id agent-invoke-id]}
+                 (foreign-select-one [(keypath root-id) :nested-ops FIRST :info "result"]
+                                     nodes
+                                     {:pkey task-id})
+                 troot   (foreign-pstate ipc
+                                         module-name
+                                         (po/agent-root-task-global-name tools-agent-name))
+                 tnodes  (foreign-pstate ipc
+                                         module-name
+                                         (po/agent-node-task-global-name tools-agent-name))
+                 root-id (foreign-select-one [(keypath agent-invoke-id) :root-invoke-id]
+                                             troot
+                                             {:pkey task-id})
+                 {:keys [target-task-id invoke-id]}
+                 (foreign-select-one [(keypath root-id) :emits FIRST]
+                                     tnodes
+                                     {:pkey task-id})]
+             (foreign-select-one [(keypath invoke-id)
+                                  :nested-ops
+                                  ALL
+                                  (selected? :type (pred= :tool-call))
+                                  :info]
+                                 tnodes
+                                 {:pkey target-task-id}))))
+
+       (bind invoke!
+         (fn [tools-agent-name args]
+           (let [inv (aor/agent-initiate foo
+                                         tools-agent-name
+                                         [(mk-request "lookup" "id1" args)])
+                 [r] (aor/agent-result foo inv)]
+             [(.text ^ToolExecutionResultMessage r) (tool-call-info tools-agent-name inv)])))
+
+       (bind [text info] (invoke! "tools1" {"a" 3 "b" 4}))
+       (is (= "12" text))
+       (is (= false (get info "cacheHit")))
+       (is (= 1 @calls-atom))
+
+       ;; same arguments in a different order hit the worker's cache
+       (bind [text info] (invoke! "tools1" {"b" 4 "a" 3}))
+       (is (= "12" text))
+       (is (= true (get info "cacheHit")))
+       (is (= "memory" (get info "cacheTier")))
+       (is (number? (get info "savedMillis")))
+       (is (= 1 @calls-atom))
+
+       ;; another tools agent has its own cache but shares the store
+       (bind [text info] (invoke! "tools2" {"a" 3 "b" 4}))
+       (is (= "12" text))
+       (is (= "store" (get info "cacheTier")))
+       (is (= 1 @calls-atom))
+
+       (bind [text info] (invoke! "tools1" {"a" 5 "b" 4}))
+       (is (= "20" text))
+       (is (= false (get info "cacheHit")))
+       (is (= 2 @calls-atom))
+      ))))
+
+(deftest result-cache-bounds-test
+  (let [cache (ResultCache. 2 0 0)]
+    (.put cache "a" 1 10 (.expiresAt cache 0) 5)
+    (.put cache "b" 2 10 (.expiresAt cache 0) 5)
+    (.get cache "a")
+    (.put cache "c" 3 10 (.expiresAt cache 0) 5)
+    (is (= 2 (.size cache)))
+    (is (nil? (.get cache "b")))
+    (is (= 1 (.result (.get cache "a")))))
+  (let [cache (ResultCache. 0 25 0)]
+    (.put cache "a" 1 10 Long/MAX_VALUE 5)
+    (.put cache "b" 2 10 Long/MAX_VALUE 5)
+    (.put cache "c" 3 10 Long/MAX_VALUE 5)
+    (is (= 2 (.size cache)))
+    (is (= 20 (.totalBytes cache)))
+    ;; too large to ever fit
+    (.put cache "d" 4 30 Long/MAX_VALUE 5)
+    (is (nil? (.get cache "d")))
+    (is (= 2 (.size cache))))
+  (let [cache (ResultCache. 0 0 1000)]
+    (.put cache "a" 1 10 (.expiresAt cache (- (System/currentTimeMillis) 2000)) 5)
+    (.put cache "b" 2 10 (.expiresAt cache (System/currentTimeMillis)) 5)
+    (is (nil? (.get cache "a")))
+    (is (= 2 (.result (.get cache "b"))))
+    (is (= 10 (.totalBytes cache)))))